@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import com.google.caliper.Param;
+import com.google.caliper.runner.CaliperMain;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.internal.tls.CertificateChainCleaner;
+import okhttp3.mockwebserver.internal.tls.HeldCertificate;
+
+/**
+ * Measures how long it takes to clean a realistic certificate chain: a leaf certificate and an
+ * intermediate CA certificate, signed by one of many trusted root CA certificates. Some of the
+ * trusted roots share a subject with the signing root, as happens when a CA renews its key.
+ */
+public class CertificateChainCleanerBenchmark extends com.google.caliper.Benchmark {
+  /** How many root CA certificates are trusted. System trust stores have about 150. */
+  @Param({"1", "150"})
+  int trustedRootCount;
+
+  /**
+   * True to clean the same chain repeatedly with one cleaner, as when connecting to one fleet of
+   * servers. False to create a new cleaner for each chain, so nothing is remembered.
+   */
+  @Param
+  boolean repeatedChain;
+
+  X509Certificate[] trustedRoots;
+  List<Certificate> chain;
+  CertificateChainCleaner cleaner;
+
+  public static void main(String[] args) {
+    CaliperMain.main(CertificateChainCleanerBenchmark.class, args);
+  }
+
+  @Override protected void setUp() throws Exception {
+    HeldCertificate root = new HeldCertificate.Builder()
+        .serialNumber("1")
+        .ca(2)
+        .commonName("root")
+        .build();
+    HeldCertificate intermediate = new HeldCertificate.Builder()
+        .serialNumber("2")
+        .ca(1)
+        .issuedBy(root)
+        .commonName("intermediate")
+        .build();
+    HeldCertificate leaf = new HeldCertificate.Builder()
+        .serialNumber("3")
+        .issuedBy(intermediate)
+        .commonName("example.com")
+        .build();
+    chain = Arrays.<Certificate>asList(leaf.certificate, intermediate.certificate);
+
+    List<X509Certificate> roots = new ArrayList<>();
+    for (int i = 1; i < trustedRootCount; i++) {
+      // Every tenth root has the signing root's subject but a different key.
+      roots.add(new HeldCertificate.Builder()
+          .serialNumber(Integer.toString(100 + i))
+          .ca(2)
+          .commonName(i % 10 == 0 ? "root" : "root " + i)
+          .build()
+          .certificate);
+    }
+    roots.add(root.certificate);
+    trustedRoots = roots.toArray(new X509Certificate[roots.size()]);
+    cleaner = CertificateChainCleaner.get(trustedRoots);
+  }
+
+  public int timeClean(int reps) throws Exception {
+    int result = 0;
+    for (int i = 0; i < reps; i++) {
+      CertificateChainCleaner cleaner = repeatedChain
+          ? this.cleaner
+          : CertificateChainCleaner.get(trustedRoots);
+      result += cleaner.clean(chain, "example.com").size();
+    }
+    return result;
+  }
+}
@@ -19,6 +19,8 @@ import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.cert.X509Certificate;
@@ -29,8 +31,10 @@ import java.util.UUID;
 import javax.security.auth.x500.X500Principal;
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
 import org.bouncycastle.asn1.x509.BasicConstraints;
 import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
 import org.bouncycastle.asn1.x509.X509Extensions;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.x509.X509V3CertificateGenerator;
@@ -141,6 +145,12 @@ public final class HeldCertificate {
       generator.setPublicKey(heldKeyPair.getPublic());
       generator.setSignatureAlgorithm("SHA256WithRSAEncryption");
 
+      // Identify this certificate's key and its signer's key, as certificate authorities do.
+      generator.addExtension(X509Extensions.SubjectKeyIdentifier, false,
+          new SubjectKeyIdentifier(keyIdentifier(heldKeyPair.getPublic())));
+      generator.addExtension(X509Extensions.AuthorityKeyIdentifier, false,
+          new AuthorityKeyIdentifier(keyIdentifier(signedByKeyPair.getPublic())));
+
       if (maxIntermediateCas > 0) {
         generator.addExtension(X509Extensions.BasicConstraints, true,
             new BasicConstraints(maxIntermediateCas));
@@ -164,6 +174,11 @@ public final class HeldCertificate {
       return new HeldCertificate(certificate, heldKeyPair);
     }
 
+    /** Returns an identifier for {@code publicKey}: the SHA-1 hash of its encoding. */
+    private static byte[] keyIdentifier(PublicKey publicKey) throws GeneralSecurityException {
+      return MessageDigest.getInstance("SHA-1").digest(publicKey.getEncoded());
+    }
+
     public KeyPair generateKeyPair() throws GeneralSecurityException {
       KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA", "BC");
       keyPairGenerator.initialize(1024, new SecureRandom());
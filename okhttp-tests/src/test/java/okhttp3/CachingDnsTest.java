@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class CachingDnsTest {
+  private final FakeDns dns = new FakeDns();
+  private final RecordingListener listener = new RecordingListener();
+  private final Executor directExecutor = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private CachingDns cachingDns = new CachingDns.Builder()
+      .delegate(dns)
+      .executor(directExecutor)
+      .listener(listener)
+      .build();
+
+  @Test public void freshResultIsCached() throws Exception {
+    List<InetAddress> addresses = dns.allocate(2);
+    dns.set("a.com", addresses);
+
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+    dns.assertRequests("a.com");
+    assertEquals(1, cachingDns.size());
+  }
+
+  @Test public void expiredResultIsLookedUpAgain() throws Exception {
+    cachingDns = cachingDns.newBuilder()
+        .ttl(50, TimeUnit.MILLISECONDS)
+        .staleTtl(0, TimeUnit.MILLISECONDS)
+        .build();
+    List<InetAddress> first = dns.allocate(1);
+    List<InetAddress> second = dns.allocate(1);
+
+    dns.set("a.com", first);
+    assertEquals(first, cachingDns.lookup("a.com"));
+
+    Thread.sleep(100);
+    dns.set("a.com", second);
+    assertEquals(second, cachingDns.lookup("a.com"));
+    dns.assertRequests("a.com", "a.com");
+  }
+
+  @Test public void staleResultIsReturnedAndRefreshed() throws Exception {
+    cachingDns = cachingDns.newBuilder()
+        .ttl(50, TimeUnit.MILLISECONDS)
+        .staleTtl(1, TimeUnit.MINUTES)
+        .build();
+    List<InetAddress> first = dns.allocate(1);
+    List<InetAddress> second = dns.allocate(1);
+
+    dns.set("a.com", first);
+    assertEquals(first, cachingDns.lookup("a.com"));
+
+    Thread.sleep(100);
+    dns.set("a.com", second);
+    assertEquals(first, cachingDns.lookup("a.com")); // Stale, but refreshed in the background.
+    assertEquals(second, cachingDns.lookup("a.com"));
+    dns.assertRequests("a.com", "a.com");
+  }
+
+  @Test public void failedRefreshKeepsStaleResult() throws Exception {
+    cachingDns = cachingDns.newBuilder()
+        .ttl(50, TimeUnit.MILLISECONDS)
+        .staleTtl(1, TimeUnit.MINUTES)
+        .build();
+    List<InetAddress> addresses = dns.allocate(1);
+
+    dns.set("a.com", addresses);
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+
+    Thread.sleep(100);
+    dns.clear("a.com");
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+    dns.assertRequests("a.com", "a.com", "a.com");
+  }
+
+  @Test public void failureIsCached() throws Exception {
+    try {
+      cachingDns.lookup("a.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+
+    dns.set("a.com", dns.allocate(1));
+    try {
+      cachingDns.lookup("a.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+    dns.assertRequests("a.com");
+  }
+
+  @Test public void failureExpires() throws Exception {
+    cachingDns = cachingDns.newBuilder()
+        .negativeTtl(50, TimeUnit.MILLISECONDS)
+        .build();
+    try {
+      cachingDns.lookup("a.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+
+    Thread.sleep(100);
+    List<InetAddress> addresses = dns.allocate(1);
+    dns.set("a.com", addresses);
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+    dns.assertRequests("a.com", "a.com");
+  }
+
+  @Test public void leastRecentlyUsedHostIsEvicted() throws Exception {
+    cachingDns = cachingDns.newBuilder()
+        .maxEntries(2)
+        .build();
+    dns.set("a.com", dns.allocate(1));
+    dns.set("b.com", dns.allocate(1));
+    dns.set("c.com", dns.allocate(1));
+
+    cachingDns.lookup("a.com");
+    cachingDns.lookup("b.com");
+    cachingDns.lookup("a.com");
+    cachingDns.lookup("c.com"); // Evicts b.com.
+    assertEquals(2, cachingDns.size());
+    dns.assertRequests("a.com", "b.com", "c.com");
+
+    cachingDns.lookup("a.com");
+    cachingDns.lookup("b.com");
+    dns.assertRequests("b.com");
+  }
+
+  @Test public void concurrentLookupsAreShared() throws Exception {
+    final CountDownLatch lookupStarted = new CountDownLatch(1);
+    final CountDownLatch releaseLookup = new CountDownLatch(1);
+    final AtomicInteger lookupCount = new AtomicInteger();
+    final List<InetAddress> addresses = dns.allocate(1);
+    cachingDns = cachingDns.newBuilder()
+        .delegate(new Dns() {
+          @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            lookupCount.incrementAndGet();
+            lookupStarted.countDown();
+            try {
+              releaseLookup.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError();
+            }
+            return addresses;
+          }
+        })
+        .build();
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    Future<List<InetAddress>> first = executor.submit(lookupTask("a.com"));
+    assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+    Future<List<InetAddress>> second = executor.submit(lookupTask("a.com"));
+    Thread.sleep(100); // Give the second lookup time to find the first.
+    releaseLookup.countDown();
+
+    assertEquals(addresses, first.get(5, TimeUnit.SECONDS));
+    assertEquals(addresses, second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, lookupCount.get());
+    executor.shutdown();
+  }
+
+  @Test public void prefetch() throws Exception {
+    List<InetAddress> addresses = dns.allocate(1);
+    dns.set("a.com", addresses);
+
+    cachingDns.prefetch("a.com");
+    dns.assertRequests("a.com");
+
+    cachingDns.prefetch("a.com"); // Already cached.
+    assertEquals(addresses, cachingDns.lookup("a.com"));
+    dns.assertRequests();
+  }
+
+  @Test public void evictAll() throws Exception {
+    dns.set("a.com", dns.allocate(1));
+    cachingDns.lookup("a.com");
+    cachingDns.evictAll();
+    assertEquals(0, cachingDns.size());
+
+    cachingDns.lookup("a.com");
+    dns.assertRequests("a.com", "a.com");
+  }
+
+  @Test public void listenerReceivesLookups() throws Exception {
+    dns.set("a.com", dns.allocate(1));
+    cachingDns.lookup("a.com");
+    cachingDns.lookup("a.com");
+    try {
+      cachingDns.lookup("b.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+
+    assertEquals(2, listener.events.size());
+    assertEquals("lookupSucceeded a.com", listener.events.get(0));
+    assertEquals("lookupFailed b.com", listener.events.get(1));
+  }
+
+  private Callable<List<InetAddress>> lookupTask(final String hostname) {
+    return new Callable<List<InetAddress>>() {
+      @Override public List<InetAddress> call() throws Exception {
+        return cachingDns.lookup(hostname);
+      }
+    };
+  }
+
+  static final class RecordingListener implements CachingDns.Listener {
+    final List<String> events = new ArrayList<>();
+
+    @Override public synchronized void lookupSucceeded(String hostname,
+        List<InetAddress> addresses, long latencyNanos) {
+      assertTrue(latencyNanos >= 0);
+      events.add("lookupSucceeded " + hostname);
+    }
+
+    @Override public synchronized void lookupFailed(String hostname, UnknownHostException e,
+        long latencyNanos) {
+      assertTrue(latencyNanos >= 0);
+      events.add("lookupFailed " + hostname);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.ProtocolException;
 import java.net.Proxy;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.net.UnknownServiceException;
@@ -42,6 +43,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -89,6 +91,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -1021,6 +1024,189 @@ public final class CallTest {
     callback.await(request.url()).assertHandshake();
   }
 
+  @Test public void tls_AsyncNonBlockingHandshake() throws Exception {
+    NonBlockingListener listener = new NonBlockingListener();
+    client = client.newBuilder()
+        .sslContext(sslClient.sslContext, sslClient.trustManager)
+        .hostnameVerifier(new RecordingHostnameVerifier())
+        .nonBlockingHandshakes(true)
+        .dispatcher(new okhttp3.Dispatcher(listener.dispatcherExecutor))
+        .eventListener(listener)
+        .build();
+    server.useHttps(sslClient.socketFactory, false);
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.enqueue(new MockResponse().setBody("def"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/a"))
+        .build();
+    client.newCall(request).enqueue(callback);
+    callback.await(request.url())
+        .assertHandshake()
+        .assertBody("abc");
+
+    Request request2 = new Request.Builder()
+        .url(server.url("/b"))
+        .build();
+    client.newCall(request2).enqueue(callback);
+    callback.await(request2.url())
+        .assertHandshake()
+        .assertBody("def");
+
+    // The connection connected without blocking was pooled and reused.
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+    listener.assertNonBlockingHandshakes();
+  }
+
+  @Test public void nioTransport_Http1() throws Exception {
+    NonBlockingListener listener = new NonBlockingListener();
+    client = client.newBuilder()
+        .nioTransport(true)
+        .eventListener(listener)
+        .build();
+    String body = TestUtil.repeat('a', 1024 * 1024);
+    server.enqueue(new MockResponse().setBody(body));
+    server.enqueue(new MockResponse().setBody("def"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/a"))
+        .post(RequestBody.create(MediaType.parse("text/plain"), body))
+        .build();
+    executeSynchronously(request)
+        .assertCode(200)
+        .assertBody(body);
+    executeSynchronously("/b")
+        .assertCode(200)
+        .assertBody("def");
+
+    RecordedRequest recordedRequest = server.takeRequest();
+    assertEquals(body, recordedRequest.getBody().readUtf8());
+    assertEquals(0, recordedRequest.getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+    listener.assertNonBlockingChannels();
+  }
+
+  @Test public void nioTransport_H2PriorKnowledge() throws Exception {
+    NonBlockingListener listener = new NonBlockingListener();
+    client = client.newBuilder()
+        .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+        .nioTransport(true)
+        .eventListener(listener)
+        .build();
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    String body = TestUtil.repeat('a', 1024 * 1024);
+    server.enqueue(new MockResponse().setBody(body));
+    server.enqueue(new MockResponse().setBody("def"));
+
+    RecordedResponse response = executeSynchronously("/a")
+        .assertCode(200)
+        .assertBody(body);
+    assertEquals(Protocol.H2_PRIOR_KNOWLEDGE, response.response.protocol());
+    executeSynchronously("/b")
+        .assertCode(200)
+        .assertBody("def");
+
+    // Both streams were carried by one connection.
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+    listener.assertNonBlockingChannels();
+  }
+
+  @Test public void sharedScheduler_H2PriorKnowledge() throws Exception {
+    client = client.newBuilder()
+        .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+        .sharedScheduler(true)
+        .nioTransport(true)
+        .pingInterval(100, TimeUnit.MILLISECONDS)
+        .build();
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    String body = TestUtil.repeat('a', 1024 * 1024);
+    server.enqueue(new MockResponse().setBody(body));
+    server.enqueue(new MockResponse().setBody("def"));
+
+    executeSynchronously("/a")
+        .assertCode(200)
+        .assertBody(body);
+    Thread.sleep(250); // Ping the server a few times.
+    executeSynchronously("/b")
+        .assertCode(200)
+        .assertBody("def");
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+
+    // Derived clients share the scheduler.
+    OkHttpClient derived = client.newBuilder().build();
+    assertTrue(derived.sharedScheduler());
+    assertSame(client.scheduler, derived.scheduler);
+    assertFalse(derived.newBuilder().sharedScheduler(false).build().sharedScheduler());
+  }
+
+  @Test public void tls_AsyncNonBlockingHandshakeRespectsDispatcherLimits() throws Exception {
+    NonBlockingListener listener = new NonBlockingListener();
+    okhttp3.Dispatcher dispatcher = new okhttp3.Dispatcher(listener.dispatcherExecutor);
+    dispatcher.setMaxRequests(1);
+    client = client.newBuilder()
+        .sslContext(sslClient.sslContext, sslClient.trustManager)
+        .hostnameVerifier(new RecordingHostnameVerifier())
+        .nonBlockingHandshakes(true)
+        .dispatcher(dispatcher)
+        .eventListener(listener)
+        .build();
+    server.useHttps(sslClient.socketFactory, false);
+    server.enqueue(new MockResponse().setBody("a"));
+    server.enqueue(new MockResponse().setBody("b"));
+    server.enqueue(new MockResponse().setBody("c"));
+
+    // Only one call connects at a time, so the later calls reuse the first call's connection.
+    for (String path : Arrays.asList("/a", "/b", "/c")) {
+      client.newCall(new Request.Builder().url(server.url(path)).build()).enqueue(callback);
+    }
+    callback.await(server.url("/a")).assertBody("a");
+    callback.await(server.url("/b")).assertBody("b");
+    callback.await(server.url("/c")).assertBody("c");
+
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+    assertEquals(2, server.takeRequest().getSequenceNumber());
+    listener.assertNonBlockingHandshakes();
+  }
+
+  @Test public void nioTransport_Https() throws Exception {
+    NonBlockingListener listener = new NonBlockingListener();
+    client = client.newBuilder()
+        .sslContext(sslClient.sslContext, sslClient.trustManager)
+        .hostnameVerifier(new RecordingHostnameVerifier())
+        .nonBlockingHandshakes(true)
+        .nioTransport(true)
+        .dispatcher(new okhttp3.Dispatcher(listener.dispatcherExecutor))
+        .eventListener(listener)
+        .build();
+    server.useHttps(sslClient.socketFactory, false);
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.enqueue(new MockResponse().setBody("def"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/a"))
+        .build();
+    client.newCall(request).enqueue(callback);
+    callback.await(request.url())
+        .assertHandshake()
+        .assertBody("abc");
+
+    Request request2 = new Request.Builder()
+        .url(server.url("/b"))
+        .build();
+    client.newCall(request2).enqueue(callback);
+    callback.await(request2.url())
+        .assertHandshake()
+        .assertBody("def");
+
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+    listener.assertNonBlockingHandshakes();
+  }
+
   @Test public void recoverWhenRetryOnConnectionFailureIsTrue() throws Exception {
     server.enqueue(new MockResponse().setBody("seed connection pool"));
     server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
@@ -2019,6 +2205,116 @@ public final class CallTest {
     assertEquals(0, server.getRequestCount());
   }
 
+  @Test public void deadlineReachedBeforeEnqueuedCallStarts() throws Exception {
+    Request request = new Request.Builder()
+        .url(server.url("/a"))
+        .deadlineNanoTime(System.nanoTime() - 1)
+        .build();
+    client.newCall(request).enqueue(callback);
+
+    callback.await(request.url())
+        .assertFailure(InterruptedIOException.class)
+        .assertFailure("deadline reached");
+    assertEquals(0, server.getRequestCount());
+  }
+
+  @Test public void concurrentIdenticalGetsAreCoalesced() throws Exception {
+    server.enqueue(new MockResponse()
+        .setHeadersDelay(500, TimeUnit.MILLISECONDS)
+        .addHeader("Content-Type: text/plain")
+        .setBody("abc"));
+    server.enqueue(new MockResponse()
+        .setBody("def"));
+
+    client = client.newBuilder()
+        .coalesceRequests(true)
+        .build();
+    Request request = new Request.Builder()
+        .url(server.url("/a"))
+        .build();
+    client.newCall(request).enqueue(callback);
+    client.newCall(request).enqueue(callback);
+    client.newCall(request).enqueue(callback);
+
+    callback.await(request.url()).assertCode(200).assertBody("abc");
+    callback.await(request.url()).assertCode(200).assertBody("abc");
+    callback.await(request.url()).assertCode(200).assertBody("abc");
+    assertEquals(1, server.getRequestCount());
+
+    // Calls that start after the shared exchange completes make their own request.
+    executeSynchronously("/a").assertBody("def");
+  }
+
+  @Test public void coalescedGetWithoutWaitingCallsStreamsItsBody() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("abcdefgh")
+        .throttleBody(1, 250, TimeUnit.MILLISECONDS));
+
+    client = client.newBuilder()
+        .coalesceRequests(true)
+        .build();
+    long startNanos = System.nanoTime();
+    Response response = client.newCall(new Request.Builder()
+        .url(server.url("/a"))
+        .build()).execute();
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+    // The body takes 2 seconds to transmit. The call returns before it is read.
+    assertTrue(elapsedMillis < 1000);
+    assertEquals("abcdefgh", response.body().string());
+  }
+
+  @Test public void coalescedCallsShareBodyAfterLeaderCloses() throws Exception {
+    server.enqueue(new MockResponse()
+        .setHeadersDelay(500, TimeUnit.MILLISECONDS)
+        .setBody("abcdefgh")
+        .throttleBody(2, 50, TimeUnit.MILLISECONDS));
+
+    client = client.newBuilder()
+        .coalesceRequests(true)
+        .build();
+    final Request request = new Request.Builder()
+        .url(server.url("/a"))
+        .build();
+    client.newCall(request).enqueue(new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+      }
+
+      @Override public void onResponse(Call call, Response response) throws IOException {
+        response.close();
+      }
+    });
+    Thread.sleep(100); // Let the first call start before the second.
+    Response response = client.newCall(request).execute();
+    assertEquals("abcdefgh", response.body().string());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void getsWithDifferentHeadersAreNotCoalesced() throws Exception {
+    server.enqueue(new MockResponse()
+        .setHeadersDelay(500, TimeUnit.MILLISECONDS)
+        .setBody("abc"));
+    server.enqueue(new MockResponse()
+        .setBody("def"));
+
+    client = client.newBuilder()
+        .coalesceRequests(true)
+        .build();
+    Request requestA = new Request.Builder()
+        .url(server.url("/a"))
+        .header("Accept-Language", "en")
+        .build();
+    Request requestB = requestA.newBuilder()
+        .header("Accept-Language", "fr")
+        .build();
+    client.newCall(requestA).enqueue(callback);
+    client.newCall(requestB).enqueue(callback);
+
+    callback.await(requestA.url()).assertCode(200);
+    callback.await(requestB.url()).assertCode(200);
+    assertEquals(2, server.getRequestCount());
+  }
+
   @Test public void cancelDuringHttpConnect() throws Exception {
     cancelDuringConnect("http");
   }
@@ -2048,6 +2344,42 @@ public final class CallTest {
     assertEquals(cancelDelayMillis, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), 100f);
   }
 
+  /** Cancel a call that's waiting for its host to have capacity for another connection. */
+  @Test public void cancelWhileAwaitingConnectionCapacity() throws Exception {
+    server.enqueue(new MockResponse().setBody("a"));
+
+    ConnectionPool connectionPool = new ConnectionPool();
+    connectionPool.setHostPolicy(server.getHostName(), new ConnectionPool.HostPolicy.Builder()
+        .maxConnections(1)
+        .build());
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .connectTimeout(10, TimeUnit.SECONDS)
+        .build();
+
+    // Hold the host's only connection by not reading the response body.
+    Response response = client.newCall(new Request.Builder()
+        .url(server.url("/a"))
+        .build()).execute();
+
+    long cancelDelayMillis = 300L;
+    Call call = client.newCall(new Request.Builder()
+        .url(server.url("/b"))
+        .build());
+    cancelLater(call, cancelDelayMillis);
+
+    long startNanos = System.nanoTime();
+    try {
+      call.execute();
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Canceled", expected.getMessage());
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    assertEquals(cancelDelayMillis, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), 100f);
+    response.close();
+  }
+
   @Test public void cancelImmediatelyAfterEnqueue() throws Exception {
     server.enqueue(new MockResponse());
     final CountDownLatch latch = new CountDownLatch(1);
@@ -3333,6 +3665,62 @@ public final class CallTest {
     }.start();
   }
 
+  /**
+   * Records the sockets of acquired connections, and whether TLS handshakes finished on one of the
+   * dispatcher's threads or while its only thread was busy.
+   */
+  private static final class NonBlockingListener extends EventListener {
+    final Set<Thread> dispatcherThreads = Collections.synchronizedSet(new LinkedHashSet<Thread>());
+    final ExecutorService dispatcherExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+          @Override public Thread newThread(Runnable runnable) {
+            Thread result = new Thread(runnable, "CallTest Dispatcher");
+            result.setDaemon(true);
+            dispatcherThreads.add(result);
+            return result;
+          }
+        });
+    final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+    final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override public void secureConnectEnd(Call call, Handshake handshake) {
+      if (dispatcherThreads.contains(Thread.currentThread())) {
+        failures.add("handshake on a dispatcher thread");
+        return;
+      }
+      // The call waiting for this handshake must have released its dispatcher thread.
+      try {
+        dispatcherExecutor.submit(new Runnable() {
+          @Override public void run() {
+          }
+        }).get(5, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        failures.add("dispatcher thread blocked during handshake: " + e);
+      }
+    }
+
+    @Override public void connectionAcquired(Call call, Connection connection) {
+      sockets.add(connection.socket());
+    }
+
+    void assertNonBlockingHandshakes() {
+      assertEquals(Collections.<String>emptyList(), failures);
+      assertFalse(sockets.isEmpty());
+      for (Socket socket : sockets) {
+        assertEquals("EngineSocket", socket.getClass().getSimpleName());
+      }
+      dispatcherExecutor.shutdown();
+    }
+
+    void assertNonBlockingChannels() {
+      assertFalse(sockets.isEmpty());
+      for (Socket socket : sockets) {
+        assertFalse(socket.getChannel().isBlocking());
+      }
+      dispatcherExecutor.shutdown();
+    }
+  }
+
   private static class RecordingSSLSocketFactory extends DelegatingSSLSocketFactory {
 
     private List<SSLSocket> socketsCreated = new ArrayList<>();
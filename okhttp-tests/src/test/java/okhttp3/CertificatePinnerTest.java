@@ -16,11 +16,14 @@
 package okhttp3;
 
 import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import okhttp3.CertificatePinner.Pin;
+import okhttp3.internal.tls.CertificateChainCleaner;
 import okhttp3.mockwebserver.internal.tls.HeldCertificate;
 import org.junit.Test;
 
@@ -105,6 +108,33 @@ public final class CertificatePinnerTest {
     certificatePinner.check("example.com", certA1.certificate);
   }
 
+  @Test public void verifiedChainsAreNotCleanedAgain() throws Exception {
+    final AtomicInteger cleanCount = new AtomicInteger();
+    CertificatePinner certificatePinner = new CertificatePinner.Builder()
+        .add("example.com", certA1Sha256Pin)
+        .build()
+        .withCertificateChainCleaner(new CertificateChainCleaner() {
+          @Override public List<Certificate> clean(List<Certificate> chain, String hostname) {
+            cleanCount.incrementAndGet();
+            return chain;
+          }
+        });
+
+    certificatePinner.check("example.com", certA1.certificate);
+    certificatePinner.check("example.com", certA1.certificate);
+    assertEquals(1, cleanCount.get());
+
+    // Chains that fail aren't remembered.
+    for (int i = 0; i < 2; i++) {
+      try {
+        certificatePinner.check("example.com", certB1.certificate);
+        fail();
+      } catch (SSLPeerUnverifiedException expected) {
+      }
+    }
+    assertEquals(3, cleanCount.get());
+  }
+
   @Test public void successfulCheckSha1Pin() throws Exception {
     CertificatePinner certificatePinner = new CertificatePinner.Builder()
         .add("example.com", "sha1/" + CertificatePinner.sha1(certA1.certificate).base64())
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class ConcurrencyLimiterTest {
+  private final List<String> limitChanges = new ArrayList<>();
+  private final ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder()
+      .initialLimit(4)
+      .minLimit(2)
+      .maxLimit(6)
+      .backoffRatio(0.5)
+      .latencyThreshold(1, SECONDS)
+      .listener(new ConcurrencyLimiter.Listener() {
+        @Override public void limitChanged(String host, int limit) {
+          limitChanges.add(host + "=" + limit);
+        }
+      })
+      .build();
+
+  @Test public void unknownHostHasInitialLimit() {
+    assertEquals(4, limiter.limit("a"));
+  }
+
+  @Test public void fastCallsIncreaseLimitAdditively() {
+    limiter.callFinished("a", 4, MILLISECONDS.toNanos(10), false);
+    assertEquals(5, limiter.limit("a"));
+    limiter.callFinished("a", 5, MILLISECONDS.toNanos(10), false);
+    limiter.callFinished("a", 6, MILLISECONDS.toNanos(10), false);
+    assertEquals(6, limiter.limit("a")); // Capped at the max limit.
+    assertEquals(4, limiter.limit("b"));
+    assertEquals(Arrays.asList("a=5", "a=6"), limitChanges);
+  }
+
+  @Test public void underutilizedLimitDoesNotIncrease() {
+    limiter.callFinished("a", 1, MILLISECONDS.toNanos(10), false);
+    assertEquals(4, limiter.limit("a"));
+    assertEquals(Arrays.<String>asList(), limitChanges);
+  }
+
+  @Test public void failedCallsDecreaseLimitMultiplicatively() {
+    limiter.callFinished("a", 4, MILLISECONDS.toNanos(10), true);
+    assertEquals(2, limiter.limit("a"));
+    limiter.callFinished("a", 2, MILLISECONDS.toNanos(10), true);
+    assertEquals(2, limiter.limit("a")); // Capped at the min limit.
+    assertEquals(Arrays.asList("a=2"), limitChanges);
+  }
+
+  @Test public void slowCallsDecreaseLimit() {
+    limiter.callFinished("a", 4, SECONDS.toNanos(2), false);
+    assertEquals(2, limiter.limit("a"));
+  }
+
+  @Test public void idleHostAtInitialLimitIsForgotten() {
+    limiter.callFinished("a", 4, MILLISECONDS.toNanos(10), false);
+    limiter.callFinished("b", 1, MILLISECONDS.toNanos(10), false);
+    assertEquals(1, limiter.hostCount()); // Only "a" differs from the initial limit.
+
+    limiter.callFinished("a", 2, MILLISECONDS.toNanos(10), true); // 5 * 0.5 = 2.5.
+    limiter.callFinished("a", 2, MILLISECONDS.toNanos(10), false); // 3.5.
+    limiter.callFinished("a", 2, MILLISECONDS.toNanos(10), false); // 4.5, but another is running.
+    assertEquals(1, limiter.hostCount());
+    limiter.callFinished("a", 1, SECONDS.toNanos(2), false); // 2.25.
+    limiter.callFinished("a", 2, MILLISECONDS.toNanos(10), false); // 3.25.
+    limiter.callFinished("a", 2, MILLISECONDS.toNanos(10), false); // 4.25.
+    limiter.callFinished("a", 1, MILLISECONDS.toNanos(10), false); // Idle, unchanged at 4.
+    assertEquals(0, limiter.hostCount());
+    assertEquals(4, limiter.limit("a"));
+  }
+
+  @Test public void invalidLimits() {
+    try {
+      new ConcurrencyLimiter.Builder().minLimit(5).maxLimit(4).build();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      new ConcurrencyLimiter.Builder().initialLimit(10).maxLimit(4).build();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      new ConcurrencyLimiter.Builder().backoffRatio(1.0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
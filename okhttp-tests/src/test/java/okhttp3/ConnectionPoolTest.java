@@ -15,11 +15,14 @@
  */
 package okhttp3;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.Socket;
 import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import okhttp3.internal.Internal;
@@ -31,7 +34,12 @@ import org.junit.Test;
 import static okhttp3.TestUtil.awaitGarbageCollection;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public final class ConnectionPoolTest {
   private final Address addressA = newAddress("a");
@@ -47,7 +55,7 @@ public final class ConnectionPoolTest {
 
   @Test public void connectionsEvictedWhenIdleLongEnough() throws Exception {
     ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
-    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
 
     RealConnection c1 = newConnection(pool, routeA1, 50L);
 
@@ -79,7 +87,7 @@ public final class ConnectionPoolTest {
 
   @Test public void inUseConnectionsNotEvicted() throws Exception {
     ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
-    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
 
     RealConnection c1 = newConnection(pool, routeA1, 50L);
     synchronized (pool) {
@@ -106,7 +114,7 @@ public final class ConnectionPoolTest {
 
   @Test public void cleanupPrioritizesEarliestEviction() throws Exception {
     ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
-    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
 
     RealConnection c1 = newConnection(pool, routeA1, 75L);
     RealConnection c2 = newConnection(pool, routeB1, 50L);
@@ -138,7 +146,7 @@ public final class ConnectionPoolTest {
 
   @Test public void oldestConnectionsEvictedIfIdleLimitExceeded() throws Exception {
     ConnectionPool pool = new ConnectionPool(2, 100L, TimeUnit.NANOSECONDS);
-    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
 
     RealConnection c1 = newConnection(pool, routeA1, 50L);
     RealConnection c2 = newConnection(pool, routeB1, 75L);
@@ -162,7 +170,7 @@ public final class ConnectionPoolTest {
 
   @Test public void leakedAllocation() throws Exception {
     ConnectionPool pool = new ConnectionPool(2, 100L, TimeUnit.NANOSECONDS);
-    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
 
     RealConnection c1 = newConnection(pool, routeA1, 0L);
     allocateAndLeakAllocation(pool, c1);
@@ -174,6 +182,174 @@ public final class ConnectionPoolTest {
     assertTrue(c1.noNewStreams); // Can't allocate once a leak has been detected.
   }
 
+  @Test public void getReturnsConnectionForAddress() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
+
+    RealConnection a1 = newConnection(pool, routeA1, 50L);
+    RealConnection b1 = newConnection(pool, routeB1, 50L);
+
+    synchronized (pool) {
+      StreamAllocation streamAllocation = new StreamAllocation(pool, addressB, null,
+          EventListener.NONE, null);
+      assertSame(b1, pool.get(addressB, streamAllocation, null));
+      streamAllocation.release();
+
+      streamAllocation = new StreamAllocation(pool, addressC, null, EventListener.NONE, null);
+      assertNull(pool.get(addressC, streamAllocation, routeC1));
+    }
+
+    // Evicted connections are no longer found.
+    assertEquals(0L, pool.cleanup(150L));
+    assertEquals(1, pool.connectionCount());
+    synchronized (pool) {
+      StreamAllocation streamAllocation = new StreamAllocation(pool, addressA, null,
+          EventListener.NONE, null);
+      assertNull(pool.get(addressA, streamAllocation, null));
+    }
+    assertTrue(a1.socket().isClosed());
+  }
+
+  @Test public void idleConnectionEvictedInBackground() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.MILLISECONDS);
+
+    RealConnection c1 = newConnection(pool, routeA1, System.nanoTime());
+    assertEquals(1, pool.connectionCount());
+
+    for (int i = 0; i < 50 && pool.connectionCount() > 0; i++) {
+      Thread.sleep(100L);
+    }
+    assertEquals(0, pool.connectionCount());
+    assertTrue(c1.socket().isClosed());
+  }
+
+  @Test public void idleConnectionClosedOffTimingWheelThread() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.MILLISECONDS);
+
+    final BlockingQueue<Thread> closingThreads = new LinkedBlockingQueue<>();
+    Socket socket = new Socket() {
+      @Override public synchronized void close() throws IOException {
+        closingThreads.add(Thread.currentThread());
+        super.close();
+      }
+    };
+    RealConnection c1 = RealConnection.testConnection(pool, routeA1, socket, System.nanoTime());
+    synchronized (pool) {
+      pool.put(c1);
+    }
+
+    // The wheel's thread keeps running while the connection's eviction is pending.
+    final BlockingQueue<Thread> wheelThreads = new LinkedBlockingQueue<>();
+    ConnectionPool.timingWheel.schedule(new Runnable() {
+      @Override public void run() {
+        wheelThreads.add(Thread.currentThread());
+      }
+    }, 0L, TimeUnit.MILLISECONDS);
+
+    Thread wheelThread = wheelThreads.poll(5, TimeUnit.SECONDS);
+    Thread closingThread = closingThreads.poll(5, TimeUnit.SECONDS);
+    assertNotNull(wheelThread);
+    assertNotNull(closingThread);
+    assertNotSame(wheelThread, closingThread);
+    assertEquals(0, pool.connectionCount());
+  }
+
+  @Test public void reusedConnectionNotEvictedInBackground() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.MILLISECONDS);
+
+    RealConnection a1 = newConnection(pool, routeA1, System.nanoTime());
+    StreamAllocation streamAllocation = new StreamAllocation(pool, addressA, null,
+        EventListener.NONE, null);
+    synchronized (pool) {
+      assertSame(a1, pool.get(addressA, streamAllocation, null));
+    }
+
+    Thread.sleep(500L);
+    assertEquals(1, pool.connectionCount());
+    assertFalse(a1.socket().isClosed());
+    assertSame(a1, streamAllocation.connection());
+  }
+
+  @Test public void hostPolicyMaxIdleConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
+    pool.setHostPolicy("a", new ConnectionPool.HostPolicy.Builder()
+        .maxIdleConnections(1)
+        .build());
+
+    RealConnection a1 = newConnection(pool, routeA1, 50L);
+    RealConnection a2 = newConnection(pool, routeA1, 60L);
+    RealConnection b1 = newConnection(pool, routeB1, 50L);
+
+    assertEquals(0L, pool.cleanup(60L));
+    assertTrue(a1.socket().isClosed());
+    assertFalse(a2.socket().isClosed());
+    assertFalse(b1.socket().isClosed());
+
+    assertEquals(90L, pool.cleanup(60L));
+    assertEquals(2, pool.connectionCount());
+  }
+
+  @Test public void hostPolicyKeepAliveDuration() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
+    pool.setHostPolicy("a", new ConnectionPool.HostPolicy.Builder()
+        .keepAliveDuration(10L, TimeUnit.NANOSECONDS)
+        .build());
+
+    RealConnection a1 = newConnection(pool, routeA1, 50L);
+    RealConnection b1 = newConnection(pool, routeB1, 50L);
+
+    assertEquals(5L, pool.cleanup(55L));
+    assertEquals(0L, pool.cleanup(60L));
+    assertTrue(a1.socket().isClosed());
+    assertFalse(b1.socket().isClosed());
+  }
+
+  @Test public void hostPolicyMinIdleConnectionsNotEvictedForPoolLimit() throws Exception {
+    ConnectionPool pool = new ConnectionPool(1, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
+    pool.setHostPolicy("a", new ConnectionPool.HostPolicy.Builder()
+        .minIdleConnections(1)
+        .build());
+
+    RealConnection a1 = newConnection(pool, routeA1, 50L);
+    RealConnection b1 = newConnection(pool, routeB1, 75L);
+
+    // The longest-idle connection is kept warm for its host, so the other one is evicted.
+    assertEquals(0L, pool.cleanup(100L));
+    assertFalse(a1.socket().isClosed());
+    assertTrue(b1.socket().isClosed());
+  }
+
+  @Test public void hostPolicyMaxConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupEnabled = false; // Prevent connections from being evicted in the background.
+    pool.setHostPolicy("a", new ConnectionPool.HostPolicy.Builder()
+        .maxConnections(2)
+        .build());
+
+    newConnection(pool, routeA1, 50L);
+    synchronized (pool) {
+      assertTrue(pool.reserveConnection(addressA));
+      assertFalse(pool.reserveConnection(addressA));
+      assertTrue(pool.reserveConnection(addressB));
+      pool.releaseReservation(addressA);
+      assertTrue(pool.reserveConnection(addressA));
+    }
+  }
+
+  @Test public void invalidHostPolicy() throws Exception {
+    try {
+      new ConnectionPool.HostPolicy.Builder()
+          .maxIdleConnections(1)
+          .minIdleConnections(2)
+          .build();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
   /** Use a helper method so there's no hidden reference remaining on the stack. */
   private void allocateAndLeakAllocation(ConnectionPool pool, RealConnection connection) {
     synchronized (pool) {
@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLException;
+import okhttp3.RecordingEventListener.TlsSessionCacheHit;
+import okhttp3.RecordingEventListener.TlsSessionCacheMiss;
 import okhttp3.mockwebserver.internal.tls.SslClient;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -103,6 +105,64 @@ public final class ConnectionReuseTest {
     assertConnectionNotReused(request, request);
   }
 
+  @Test public void closedConnectionsAreEvictedByBackgroundHealthChecks() throws Exception {
+    ConnectionPool connectionPool = new ConnectionPool();
+    connectionPool.setHealthCheckInterval(100, TimeUnit.MILLISECONDS);
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .build();
+    server.enqueue(new MockResponse()
+        .setBody("a")
+        .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+    server.enqueue(new MockResponse().setBody("b"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .build();
+    Response response = client.newCall(request).execute();
+    assertEquals("a", response.body().string());
+    assertEquals(1, connectionPool.connectionCount());
+
+    // The server closed the connection. A health check notices and evicts it.
+    for (int i = 0; i < 50 && connectionPool.connectionCount() > 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(0, connectionPool.connectionCount());
+
+    Response response2 = client.newCall(request).execute();
+    assertEquals("b", response2.body().string());
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+  }
+
+  @Test public void http2ConnectionsSurviveBackgroundHealthChecks() throws Exception {
+    enableHttpsAndAlpn(Protocol.HTTP_2, Protocol.HTTP_1_1);
+    ConnectionPool connectionPool = new ConnectionPool();
+    connectionPool.setHealthCheckInterval(50, TimeUnit.MILLISECONDS);
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .pingInterval(200, TimeUnit.MILLISECONDS)
+        .build();
+    server.enqueue(new MockResponse().setBody("a"));
+    server.enqueue(new MockResponse().setBody("b"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .build();
+    Response response = client.newCall(request).execute();
+    assertEquals(Protocol.HTTP_2, response.protocol());
+    assertEquals("a", response.body().string());
+
+    // The idle connection is pinged by health checks and by the ping interval. It stays pooled.
+    Thread.sleep(1000);
+    assertEquals(1, connectionPool.connectionCount());
+
+    Response response2 = client.newCall(request).execute();
+    assertEquals("b", response2.body().string());
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+  }
+
   @Test public void connectionsAreNotReusedIfPoolIsSizeZero() throws Exception {
     client = client.newBuilder()
         .connectionPool(new ConnectionPool(0, 5, TimeUnit.SECONDS))
@@ -264,6 +324,42 @@ public final class ConnectionReuseTest {
     }
   }
 
+  @Test public void tlsSessionsAreResumedByNewConnections() throws Exception {
+    enableHttps();
+    // Don't count sessions of other tests' connections.
+    InMemoryTlsSessionCache tlsSessionCache = new InMemoryTlsSessionCache(256);
+    ConnectionPool connectionPool = new ConnectionPool();
+    connectionPool.setTlsSessionCache(tlsSessionCache);
+    RecordingEventListener listener = new RecordingEventListener();
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .eventListener(listener)
+        .build();
+    server.enqueue(new MockResponse().setBody("a"));
+    server.enqueue(new MockResponse().setBody("b"));
+    server.enqueue(new MockResponse().setBody("c"));
+
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .header("Connection", "close")
+        .build();
+    assertConnectionNotReused(request, request);
+
+    assertEquals(2, tlsSessionCache.handshakeCount());
+    assertEquals(1, tlsSessionCache.missCount());
+    assertEquals(1, tlsSessionCache.hitCount());
+    assertEquals(1, tlsSessionCache.size());
+    listener.removeUpToEvent(TlsSessionCacheMiss.class);
+    listener.removeUpToEvent(TlsSessionCacheHit.class);
+
+    // Invalidated sessions aren't resumed.
+    tlsSessionCache.evictAll();
+    assertConnectionNotReused(request);
+    assertEquals(2, tlsSessionCache.missCount());
+    assertEquals(1, tlsSessionCache.hitCount());
+    listener.removeUpToEvent(TlsSessionCacheMiss.class);
+  }
+
   @Test public void connectionsAreNotReusedIfHostnameVerifierChanges() throws Exception {
     enableHttps();
     server.enqueue(new MockResponse());
@@ -9,13 +9,17 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import okhttp3.RealCall.AsyncCall;
+import okhttp3.internal.platform.Platform;
 import org.junit.Before;
 import org.junit.Test;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static okhttp3.TestUtil.defaultClient;
 import static org.junit.Assert.assertEquals;
@@ -264,6 +268,358 @@ public final class DispatcherTest {
     assertTrue(idle.get());
   }
 
+  @Test public void readyCallsPromotedByPriority() throws Exception {
+    dispatcher.setMaxRequests(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(new Request.Builder().url("http://b/1").priority(10).build())
+        .enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/3").priority(-10).build())
+        .enqueue(callback);
+    client.newCall(new Request.Builder().url("http://b/2").priority(10).build())
+        .enqueue(callback);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://b/1");
+    executor.finishJob("http://b/1");
+    executor.assertJobs("http://b/2");
+    executor.finishJob("http://b/2");
+    executor.assertJobs("http://a/2");
+    executor.finishJob("http://a/2");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void readyCallsPromotedByDeadline() throws Exception {
+    dispatcher.setMaxRequests(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/3").deadline(10, SECONDS).build())
+        .enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/4").deadline(5, SECONDS).build())
+        .enqueue(callback);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/4");
+    executor.finishJob("http://a/4");
+    executor.assertJobs("http://a/3");
+    executor.finishJob("http://a/3");
+    executor.assertJobs("http://a/2");
+  }
+
+  @Test public void readyCallFailsAtDeadline() throws Exception {
+    dispatcher.setMaxRequests(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/2").deadline(100, MILLISECONDS).build())
+        .enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://a/2")).assertFailure("deadline reached");
+    assertEquals(1, dispatcher.queuedCallsCount());
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void concurrentAdmissionReadyCallFailsAtDeadline() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequestsPerHost(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/2").deadline(100, MILLISECONDS).build())
+        .enqueue(callback);
+    callback.await(HttpUrl.parse("http://a/2")).assertFailure("deadline reached");
+    assertEquals(0, dispatcher.queuedCallsCount());
+    executor.finishJob("http://a/1");
+    executor.assertJobs();
+  }
+
+  @Test public void concurrentAdmissionReadyCallsPromotedByPriority() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequestsPerHost(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/3").priority(1).build())
+        .enqueue(callback);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void concurrencyLimiterReplacesMaxPerHost() throws Exception {
+    dispatcher.setConcurrencyLimiter(new ConcurrencyLimiter.Builder()
+        .initialLimit(2)
+        .build());
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    executor.assertJobs("http://a/1", "http://a/2");
+
+    dispatcher.setConcurrencyLimiter(null);
+    executor.assertJobs("http://a/1", "http://a/2", "http://a/3");
+  }
+
+  @Test public void concurrentAdmissionConcurrencyLimiterReplacesMaxPerHost() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setConcurrencyLimiter(new ConcurrencyLimiter.Builder()
+        .initialLimit(1)
+        .build());
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    executor.assertJobs("http://a/1");
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2");
+  }
+
+  @Test public void multiplexAwareWithoutHttp2ConnectionUsesMaxPerHost() throws Exception {
+    dispatcher.setMultiplexAware(true);
+    dispatcher.setMaxRequestsPerHost(2);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    executor.assertJobs("http://a/1", "http://a/2");
+  }
+
+  @Test public void maxQueuedRequestsZero() throws Exception {
+    try {
+      dispatcher.setMaxQueuedRequests(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void queueOverflowRejectsNewCall() throws Exception {
+    dispatcher.setMaxRequests(1);
+    dispatcher.setMaxQueuedRequests(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://a/3")).assertFailure("dispatcher queue is full");
+    assertEquals(1, dispatcher.queuedCallsCount());
+    assertEquals(1, dispatcher.rejectedCallsCount());
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2");
+  }
+
+  @Test public void queueOverflowDropsOldestCall() throws Exception {
+    dispatcher.setMaxRequests(1);
+    dispatcher.setMaxQueuedRequests(2);
+    dispatcher.setQueueOverflowPolicy(Dispatcher.QueueOverflowPolicy.DROP_OLDEST);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    client.newCall(newRequest("http://a/4")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://a/2")).assertFailure("dropped from full dispatcher queue");
+    assertEquals(2, dispatcher.queuedCallsCount());
+    assertEquals(1, dispatcher.rejectedCallsCount());
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void queueOverflowDropsOldestCallRegardlessOfPriority() throws Exception {
+    dispatcher.setMaxRequests(1);
+    dispatcher.setMaxQueuedRequests(2);
+    dispatcher.setQueueOverflowPolicy(Dispatcher.QueueOverflowPolicy.DROP_OLDEST);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(new Request.Builder().url("http://a/2").priority(10).build())
+        .enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    client.newCall(newRequest("http://a/4")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://a/2")).assertFailure("dropped from full dispatcher queue");
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void queueOverflowBlocksUntilSpace() throws Exception {
+    dispatcher.setMaxRequests(1);
+    dispatcher.setMaxQueuedRequests(1);
+    dispatcher.setQueueOverflowPolicy(Dispatcher.QueueOverflowPolicy.BLOCK);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+
+    final CountDownLatch enqueued = new CountDownLatch(1);
+    Thread enqueuer = new Thread() {
+      @Override public void run() {
+        client.newCall(newRequest("http://a/3")).enqueue(callback);
+        enqueued.countDown();
+      }
+    };
+    enqueuer.start();
+    assertFalse(enqueued.await(250, TimeUnit.MILLISECONDS));
+
+    executor.finishJob("http://a/1");
+    assertTrue(enqueued.await(5, SECONDS));
+    executor.assertJobs("http://a/2");
+    assertEquals(1, dispatcher.queuedCallsCount());
+    assertEquals(0, dispatcher.rejectedCallsCount());
+  }
+
+  @Test public void concurrentAdmissionQueueOverflowRejectsNewCall() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequestsPerHost(1);
+    dispatcher.setMaxQueuedRequests(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://a/3")).assertFailure("dispatcher queue is full");
+    assertEquals(1, dispatcher.queuedCallsCount());
+    assertEquals(1, dispatcher.rejectedCallsCount());
+  }
+
+  @Test public void concurrentAdmissionQueueOverflowDropsOldestCall() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequests(1);
+    dispatcher.setMaxQueuedRequests(2);
+    dispatcher.setQueueOverflowPolicy(Dispatcher.QueueOverflowPolicy.DROP_OLDEST);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://b/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://c/1")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://b/1")).assertFailure("dropped from full dispatcher queue");
+    assertEquals(2, dispatcher.queuedCallsCount());
+    executor.finishJob("http://a/1");
+    executor.finishJob("http://a/2");
+    executor.assertJobs("http://c/1");
+  }
+
+  @Test public void concurrentAdmissionQueueOverflowDropsOldestAfterPromotion() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequests(1);
+    dispatcher.setMaxQueuedRequests(2);
+    dispatcher.setQueueOverflowPolicy(Dispatcher.QueueOverflowPolicy.DROP_OLDEST);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://b/1")).enqueue(callback);
+    client.newCall(newRequest("http://c/1")).enqueue(callback);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://b/1");
+    client.newCall(newRequest("http://d/1")).enqueue(callback);
+    client.newCall(newRequest("http://e/1")).enqueue(callback);
+    callback.await(HttpUrl.parse("http://c/1")).assertFailure("dropped from full dispatcher queue");
+    assertEquals(2, dispatcher.queuedCallsCount());
+  }
+
+  @Test public void concurrentAdmissionMaxRequestsEnforced() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequests(3);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://b/1")).enqueue(callback);
+    client.newCall(newRequest("http://b/2")).enqueue(callback);
+    executor.assertJobs("http://a/1", "http://a/2", "http://b/1");
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2", "http://b/1", "http://b/2");
+  }
+
+  @Test public void concurrentAdmissionMaxPerHostEnforced() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequestsPerHost(2);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://a/3")).enqueue(callback);
+    client.newCall(newRequest("http://b/1")).enqueue(callback);
+    executor.assertJobs("http://a/1", "http://a/2", "http://b/1");
+    executor.finishJob("http://b/1");
+    executor.assertJobs("http://a/1", "http://a/2");
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2", "http://a/3");
+  }
+
+  @Test public void concurrentAdmissionMaxPerHostNotEnforcedForWebSockets() {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequestsPerHost(2);
+    client.newWebSocket(newRequest("http://a/1"), webSocketListener);
+    client.newWebSocket(newRequest("http://a/2"), webSocketListener);
+    client.newWebSocket(newRequest("http://a/3"), webSocketListener);
+    executor.assertJobs("http://a/1", "http://a/2", "http://a/3");
+  }
+
+  @Test public void concurrentAdmissionIncreasingLimitsPromotesJobsImmediately() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequests(2);
+    dispatcher.setMaxRequestsPerHost(1);
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    client.newCall(newRequest("http://b/1")).enqueue(callback);
+    client.newCall(newRequest("http://c/1")).enqueue(callback);
+    executor.assertJobs("http://a/1", "http://b/1");
+    dispatcher.setMaxRequests(3);
+    executor.assertJobs("http://a/1", "http://b/1", "http://c/1");
+    dispatcher.setMaxRequestsPerHost(2);
+    executor.assertJobs("http://a/1", "http://b/1", "http://c/1");
+    dispatcher.setMaxRequests(4);
+    executor.assertJobs("http://a/1", "http://b/1", "http://c/1", "http://a/2");
+  }
+
+  @Test public void concurrentAdmissionCallAccessors() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    dispatcher.setMaxRequests(3);
+    Call a1 = client.newCall(newRequest("http://a/1"));
+    Call a2 = client.newCall(newRequest("http://a/2"));
+    Call b1 = client.newCall(newRequest("http://b/1"));
+    Call b2 = client.newCall(newRequest("http://b/2"));
+    Call c1 = client.newCall(newRequest("http://c/1"));
+    a1.enqueue(callback);
+    a2.enqueue(callback);
+    b1.enqueue(callback);
+    b2.enqueue(callback);
+    c1.enqueue(callback);
+    assertEquals(3, dispatcher.runningCallsCount());
+    assertEquals(2, dispatcher.queuedCallsCount());
+    assertEquals(set(a1, a2, b1), set(dispatcher.runningCalls()));
+    assertEquals(set(b2, c1), set(dispatcher.queuedCalls()));
+
+    dispatcher.cancelAll();
+    assertTrue(a1.isCanceled());
+    assertTrue(c1.isCanceled());
+  }
+
+  @Test public void concurrentAdmissionIdleCallbackInvokedWhenIdle() throws Exception {
+    dispatcher.setConcurrentAdmission(true);
+    final AtomicBoolean idle = new AtomicBoolean();
+    dispatcher.setIdleCallback(new Runnable() {
+      @Override public void run() {
+        idle.set(true);
+      }
+    });
+
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    client.newCall(newRequest("http://b/1")).enqueue(callback);
+    executor.finishJob("http://a/1");
+    assertFalse(idle.get());
+    executor.finishJob("http://b/1");
+    assertTrue(idle.get());
+
+    // Hosts that became idle are admitted again.
+    client.newCall(newRequest("http://a/2")).enqueue(callback);
+    executor.assertJobs("http://a/2");
+  }
+
+  @Test public void concurrentAdmissionCannotChangeWithQueuedCalls() throws Exception {
+    client.newCall(newRequest("http://a/1")).enqueue(callback);
+    try {
+      dispatcher.setConcurrentAdmission(true);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test public void virtualThreadsUsedWhenSupported() throws Exception {
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setVirtualThreads(true);
+    final BlockingQueue<Thread> threads = new LinkedBlockingQueue<>();
+    dispatcher.executorService().execute(new Runnable() {
+      @Override public void run() {
+        threads.add(Thread.currentThread());
+      }
+    });
+
+    Thread thread = threads.poll(5, SECONDS);
+    boolean virtualThreadsSupported = Platform.get().virtualThreadFactory("OkHttp Test") != null;
+    assertEquals(virtualThreadsSupported, isVirtual(thread));
+    dispatcher.executorService().shutdown();
+  }
+
+  private boolean isVirtual(Thread thread) throws Exception {
+    try {
+      return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
   private <T> Set<T> set(T... values) {
     return set(Arrays.asList(values));
   }
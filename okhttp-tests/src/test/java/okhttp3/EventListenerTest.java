@@ -24,6 +24,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import okhttp3.RecordingEventListener.CallEnd;
@@ -151,6 +153,35 @@ public final class EventListenerTest {
     assertEquals(expectedEvents, listener.recordedEventTypes());
   }
 
+  @Test public void prewarmEventSequence() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    client = client.newBuilder()
+        .dispatcher(new Dispatcher(executor))
+        .build();
+
+    client.prewarm(server.url("/"), 2);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    List<String> expectedEvents = Arrays.asList("CallStart",
+        "DnsStart", "DnsEnd", "ConnectStart", "ConnectEnd", "ConnectionAcquired",
+        "ConnectionReleased",
+        "DnsStart", "DnsEnd", "ConnectStart", "ConnectEnd", "ConnectionAcquired",
+        "ConnectionReleased",
+        "CallEnd");
+    assertEquals(expectedEvents, listener.recordedEventTypes());
+    listener.clearAllEvents();
+
+    // Calls use the prewarmed connections.
+    server.enqueue(new MockResponse()
+        .setBody("abc"));
+    Response response = client.newCall(new Request.Builder()
+        .url(server.url("/"))
+        .build()).execute();
+    assertEquals("abc", response.body().string());
+    assertFalse(listener.recordedEventTypes().contains("ConnectStart"));
+  }
+
   @Test public void failedCallEventSequence() throws IOException {
     server.enqueue(new MockResponse().setHeadersDelay(2, TimeUnit.SECONDS));
 
@@ -189,6 +220,7 @@ public final class EventListenerTest {
   }
 
   private void assertSuccessfulEventOrder(Matcher<Response> responseMatcher) throws IOException {
+    client.connectionPool().tlsSessionCache().evictAll(); // Don't resume other tests' sessions.
     Call call = client.newCall(new Request.Builder()
         .url(server.url("/"))
         .build());
@@ -200,9 +232,10 @@ public final class EventListenerTest {
     assumeThat(response, responseMatcher);
 
     List<String> expectedEvents = asList("CallStart", "DnsStart", "DnsEnd", "ConnectStart",
-        "SecureConnectStart", "SecureConnectEnd", "ConnectEnd", "ConnectionAcquired",
-        "RequestHeadersStart", "RequestHeadersEnd", "ResponseHeadersStart", "ResponseHeadersEnd",
-        "ResponseBodyStart", "ResponseBodyEnd", "ConnectionReleased", "CallEnd");
+        "SecureConnectStart", "TlsSessionCacheMiss", "SecureConnectEnd", "ConnectEnd",
+        "ConnectionAcquired", "RequestHeadersStart", "RequestHeadersEnd", "ResponseHeadersStart",
+        "ResponseHeadersEnd", "ResponseBodyStart", "ResponseBodyEnd", "ConnectionReleased",
+        "CallEnd");
 
     assertEquals(expectedEvents, listener.recordedEventTypes());
   }
@@ -546,6 +579,36 @@ public final class EventListenerTest {
     listener.removeUpToEvent(ConnectEnd.class);
   }
 
+  @Test public void fastFallbackRacesAddresses() throws IOException {
+    server.enqueue(new MockResponse());
+
+    client = client.newBuilder()
+        .fastFallback(true)
+        .dns(new Dns() {
+          @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            // The first address is reserved for documentation and won't connect.
+            InetAddress unreachable = InetAddress.getByName("192.0.2.1");
+            return Arrays.asList(unreachable, Dns.SYSTEM.lookup(hostname).get(0));
+          }
+        })
+        .build();
+
+    long start = System.nanoTime();
+    Call call = client.newCall(new Request.Builder()
+        .url(server.url("/"))
+        .build());
+    Response response = call.execute();
+    assertEquals(200, response.code());
+    response.body().close();
+
+    // The second address was tried without waiting for the first to time out.
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    List<String> eventTypes = listener.recordedEventTypes();
+    assertEquals(2, Collections.frequency(eventTypes, "ConnectStart"));
+    assertEquals(1, Collections.frequency(eventTypes, "ConnectFailed"));
+    assertEquals(1, Collections.frequency(eventTypes, "ConnectEnd"));
+  }
+
   @Test public void successfulHttpProxyConnect() throws IOException {
     server.enqueue(new MockResponse());
 
@@ -100,6 +100,14 @@ public final class RecordingEventListener extends EventListener {
     logEvent(new SecureConnectEnd(call, handshake));
   }
 
+  @Override public void tlsSessionCacheHit(Call call) {
+    logEvent(new TlsSessionCacheHit(call));
+  }
+
+  @Override public void tlsSessionCacheMiss(Call call) {
+    logEvent(new TlsSessionCacheMiss(call));
+  }
+
   @Override public void connectEnd(Call call, InetSocketAddress inetSocketAddress,
       @Nullable Proxy proxy, Protocol protocol) {
     logEvent(new ConnectEnd(call, inetSocketAddress, proxy, protocol));
@@ -289,6 +297,18 @@ public final class RecordingEventListener extends EventListener {
     }
   }
 
+  static final class TlsSessionCacheHit extends CallEvent {
+    TlsSessionCacheHit(Call call) {
+      super(call);
+    }
+  }
+
+  static final class TlsSessionCacheMiss extends CallEvent {
+    TlsSessionCacheMiss(Call call) {
+      super(call);
+    }
+  }
+
   static final class ConnectionAcquired extends CallEvent {
     final Connection connection;
 
@@ -26,7 +26,9 @@ import okio.Buffer;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public final class RequestTest {
@@ -137,6 +139,47 @@ public final class RequestTest {
     assertEquals(HttpUrl.parse("http://localhost/api/foo"), builtRequestWithCache.url());
   }
 
+  @Test public void priorityAndDeadline() throws Exception {
+    Request request = new Request.Builder().url("http://localhost/api").build();
+    assertEquals(0, request.priority());
+    assertFalse(request.hasDeadline());
+
+    Request urgent = request.newBuilder()
+        .priority(5)
+        .deadlineNanoTime(1234L)
+        .build();
+    assertEquals(5, urgent.priority());
+    assertTrue(urgent.hasDeadline());
+    assertEquals(1234L, urgent.deadlineNanoTime());
+
+    Request copy = urgent.newBuilder().build();
+    assertEquals(5, copy.priority());
+    assertEquals(1234L, copy.deadlineNanoTime());
+
+    Request cleared = urgent.newBuilder().clearDeadline().build();
+    assertFalse(cleared.hasDeadline());
+  }
+
+  @Test public void weight() throws Exception {
+    Request request = new Request.Builder().url("http://localhost/api").build();
+    assertEquals(16, request.weight());
+
+    Request heavy = request.newBuilder().weight(256).build();
+    assertEquals(256, heavy.weight());
+    assertEquals(256, heavy.newBuilder().build().weight());
+
+    try {
+      request.newBuilder().weight(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      request.newBuilder().weight(257);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test public void cacheControl() throws Exception {
     Request request = new Request.Builder()
         .cacheControl(new CacheControl.Builder().noCache().build())
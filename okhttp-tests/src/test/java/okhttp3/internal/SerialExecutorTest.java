@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class SerialExecutorTest {
+  private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Test public void tasksRunInOrderOneAtATime() throws Exception {
+    SerialExecutor executor = new SerialExecutor(pool);
+    final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    for (int i = 0; i < 100; i++) {
+      final int task = i;
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          int concurrent = running.incrementAndGet();
+          if (concurrent > maxRunning.get()) maxRunning.set(concurrent);
+          ran.add(task);
+          running.decrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(100, ran.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (int) ran.get(i));
+    }
+    assertEquals(1, maxRunning.get());
+  }
+
+  @Test public void executorsShareThePool() throws Exception {
+    SerialExecutor a = new SerialExecutor(pool);
+    SerialExecutor b = new SerialExecutor(pool);
+    final AtomicInteger count = new AtomicInteger();
+    Runnable increment = new Runnable() {
+      @Override public void run() {
+        count.incrementAndGet();
+      }
+    };
+    for (int i = 0; i < 10; i++) {
+      a.execute(increment);
+      b.execute(increment);
+    }
+    a.shutdown();
+    b.shutdown();
+    assertTrue(a.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(b.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(20, count.get());
+  }
+
+  @Test public void failingTaskDoesNotStopLaterTasks() throws Exception {
+    // Swallow the failure in the shared pool so it isn't reported as uncaught.
+    SerialExecutor executor = new SerialExecutor(new Executor() {
+      @Override public void execute(final Runnable runnable) {
+        pool.execute(new Runnable() {
+          @Override public void run() {
+            try {
+              runnable.run();
+            } catch (IllegalStateException expected) {
+            }
+          }
+        });
+      }
+    });
+    final AtomicInteger count = new AtomicInteger();
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    });
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        count.incrementAndGet();
+      }
+    });
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(1, count.get());
+  }
+
+  @Test public void rejectsTasksAfterShutdown() throws Exception {
+    SerialExecutor executor = new SerialExecutor(pool);
+    executor.shutdown();
+    assertTrue(executor.isShutdown());
+    try {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+        }
+      });
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+  }
+
+  @Test public void notTerminatedWhileRunning() throws Exception {
+    SerialExecutor executor = new SerialExecutor(pool);
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+    executor.shutdown();
+    assertFalse(executor.isTerminated());
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TimingWheelTest {
+  private final TimingWheel timingWheel = new TimingWheel("TimingWheelTest", 10L,
+      TimeUnit.MILLISECONDS, 4);
+
+  @Test public void taskRunsAfterDelay() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    timingWheel.schedule(countDown(latch), 50L, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50L));
+  }
+
+  @Test public void taskDueInLaterRevolution() throws Exception {
+    // With 4 buckets of 10 ms each, this task waits through several revolutions of the wheel.
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    timingWheel.schedule(countDown(latch), 150L, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150L));
+  }
+
+  @Test public void earlierTaskScheduledWhileWorkerSleeps() throws Exception {
+    CountDownLatch later = new CountDownLatch(1);
+    timingWheel.schedule(countDown(later), 10L, TimeUnit.SECONDS);
+    Thread.sleep(50L); // Let the worker sleep until the later task is due.
+
+    CountDownLatch sooner = new CountDownLatch(1);
+    timingWheel.schedule(countDown(sooner), 50L, TimeUnit.MILLISECONDS);
+    assertTrue(sooner.await(1, TimeUnit.SECONDS));
+    assertEquals(1, later.getCount());
+    assertEquals(1, timingWheel.pendingCount());
+  }
+
+  @Test public void canceledTaskDoesNotRun() throws Exception {
+    CountDownLatch canceled = new CountDownLatch(1);
+    CountDownLatch notCanceled = new CountDownLatch(1);
+    TimingWheel.Timeout timeout = timingWheel.schedule(
+        countDown(canceled), 20L, TimeUnit.MILLISECONDS);
+    timingWheel.schedule(countDown(notCanceled), 50L, TimeUnit.MILLISECONDS);
+
+    assertTrue(timeout.cancel());
+    assertFalse(timeout.isPending());
+    assertFalse(timeout.cancel());
+
+    assertTrue(notCanceled.await(5, TimeUnit.SECONDS));
+    assertEquals(1, canceled.getCount());
+    assertEquals(0, timingWheel.pendingCount());
+  }
+
+  @Test public void schedulingAfterIdleRestartsWorker() throws Exception {
+    CountDownLatch first = new CountDownLatch(1);
+    timingWheel.schedule(countDown(first), 0L, TimeUnit.MILLISECONDS);
+    assertTrue(first.await(5, TimeUnit.SECONDS));
+
+    Thread.sleep(50L); // Let the worker exit.
+
+    CountDownLatch second = new CountDownLatch(1);
+    timingWheel.schedule(countDown(second), 0L, TimeUnit.MILLISECONDS);
+    assertTrue(second.await(5, TimeUnit.SECONDS));
+  }
+
+  private Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override public void run() {
+        latch.countDown();
+      }
+    };
+  }
+}
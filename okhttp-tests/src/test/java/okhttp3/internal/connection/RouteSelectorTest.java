@@ -414,6 +414,110 @@ public final class RouteSelectorTest {
     assertFalse(routeSelector.hasNext());
   }
 
+  @Test public void interleaveAddressFamilies() throws Exception {
+    Address address = httpAddress();
+    RouteSelector routeSelector = new RouteSelector(address, routeDatabase, null,
+        EventListener.NONE);
+
+    InetAddress ipv6a = InetAddress.getByName("2001:db8::1");
+    InetAddress ipv6b = InetAddress.getByName("2001:db8::2");
+    InetAddress ipv4a = InetAddress.getByName("192.0.2.1");
+    InetAddress ipv4b = InetAddress.getByName("192.0.2.2");
+    InetAddress ipv4c = InetAddress.getByName("192.0.2.3");
+    dns.set(uriHost, Arrays.asList(ipv6a, ipv6b, ipv4a, ipv4b, ipv4c));
+    RouteSelector.Selection selection = routeSelector.next();
+    assertTrue(selection.canRace());
+
+    selection.interleaveAddressFamilies();
+    assertRoute(selection.next(), address, NO_PROXY, ipv6a, uriPort);
+    assertRoute(selection.next(), address, NO_PROXY, ipv4a, uriPort);
+    assertRoute(selection.next(), address, NO_PROXY, ipv6b, uriPort);
+    assertRoute(selection.next(), address, NO_PROXY, ipv4b, uriPort);
+    assertFalse(selection.canRace()); // Only one route remains.
+    assertRoute(selection.next(), address, NO_PROXY, ipv4c, uriPort);
+    assertFalse(selection.hasNext());
+  }
+
+  @Test public void routesOrderedByConnectLatency() throws Exception {
+    Address address = httpAddress();
+    dns.set(uriHost, dns.allocate(4));
+    List<Route> routes = new RouteSelector(address, routeDatabase, null, EventListener.NONE)
+        .next().getAll();
+
+    routeDatabase.connected(routes.get(0), 300L);
+    routeDatabase.connected(routes.get(1), 100L);
+    routeDatabase.connected(routes.get(2), 500L);
+    // routes.get(3) has never connected. It's assumed to have the average latency of 300.
+
+    RouteSelector.Selection selection = new RouteSelector(address, routeDatabase, null,
+        EventListener.NONE).next();
+    assertEquals(routes.get(1), selection.next());
+    assertEquals(routes.get(0), selection.next());
+    assertEquals(routes.get(3), selection.next());
+    assertEquals(routes.get(2), selection.next());
+    assertFalse(selection.hasNext());
+  }
+
+  @Test public void failuresPenalizeFastRoutes() throws Exception {
+    Address address = httpAddress();
+    dns.set(uriHost, dns.allocate(2));
+    List<Route> routes = new RouteSelector(address, routeDatabase, null, EventListener.NONE)
+        .next().getAll();
+
+    routeDatabase.connected(routes.get(0), 100L);
+    routeDatabase.connected(routes.get(1), 120L);
+    routeDatabase.failed(routes.get(0));
+    routeDatabase.connected(routes.get(0), 100L); // Halves the failure score to 0.5.
+
+    RouteSelector.Selection selection = new RouteSelector(address, routeDatabase, null,
+        EventListener.NONE).next();
+    assertEquals(routes.get(1), selection.next());
+    assertEquals(routes.get(0), selection.next());
+    assertFalse(selection.hasNext());
+  }
+
+  @Test public void failuresDecay() throws Exception {
+    Address address = httpAddress();
+    dns.set(uriHost, dns.allocate(1));
+    Route route = new RouteSelector(address, routeDatabase, null, EventListener.NONE)
+        .next().next();
+
+    long now = System.nanoTime();
+    routeDatabase.failed(route, now);
+    assertTrue(routeDatabase.shouldPostpone(route, now));
+    assertTrue(routeDatabase.shouldPostpone(route, now + RouteDatabase.HALF_LIFE_NANOS / 2));
+    assertFalse(routeDatabase.shouldPostpone(route, now + RouteDatabase.HALF_LIFE_NANOS * 2));
+
+    // Repeated failures postpone the route for longer.
+    routeDatabase.failed(route, now);
+    routeDatabase.failed(route, now);
+    assertTrue(routeDatabase.shouldPostpone(route, now + RouteDatabase.HALF_LIFE_NANOS * 2));
+
+    // A success ends the postponement.
+    routeDatabase.connected(route, 100L, now);
+    assertFalse(routeDatabase.shouldPostpone(route, now));
+  }
+
+  @Test public void connectLatencyMovingAverage() throws Exception {
+    Address address = httpAddress();
+    dns.set(uriHost, dns.allocate(1));
+    Route route = new RouteSelector(address, routeDatabase, null, EventListener.NONE)
+        .next().next();
+    assertEquals(-1L, routeDatabase.connectLatencyNanos(route));
+
+    long now = System.nanoTime();
+    routeDatabase.connected(route, 1000L, now);
+    assertEquals(1000L, routeDatabase.connectLatencyNanos(route));
+
+    // Recent samples are weighted by LATENCY_ALPHA.
+    routeDatabase.connected(route, 2000L, now);
+    assertEquals(1250L, routeDatabase.connectLatencyNanos(route));
+
+    // Old averages decay: after one half-life the new sample has half the weight.
+    routeDatabase.connected(route, 250L, now + RouteDatabase.HALF_LIFE_NANOS);
+    assertEquals(750L, routeDatabase.connectLatencyNanos(route));
+  }
+
   @Test public void getHostString() throws Exception {
     // Name proxy specification.
     InetSocketAddress socketAddress = InetSocketAddress.createUnresolved("host", 1234);
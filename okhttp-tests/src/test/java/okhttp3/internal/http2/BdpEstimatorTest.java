@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class BdpEstimatorTest {
+  private final BdpEstimator estimator = new BdpEstimator(65536, 1048576);
+  private long nowNanos = 1000L;
+
+  @Test public void onePingPerSample() {
+    assertTrue(estimator.dataReceived(100, nowNanos));
+    assertFalse(estimator.dataReceived(100, nowNanos));
+    estimator.pongReceived(nowNanos + 1000L);
+    assertTrue(estimator.dataReceived(100, nowNanos));
+  }
+
+  @Test public void windowGrowsWhenSampleFillsIt() {
+    assertEquals(131072, sample(65536, 10_000_000L));
+    assertEquals(262144, sample(131072, 10_000_000L));
+  }
+
+  @Test public void windowGrowthIsCapped() {
+    assertEquals(1048576, sample(1048576, 10_000_000L));
+    assertEquals(1048576, sample(1048576, 10_000_000L));
+  }
+
+  @Test public void windowDoesNotGrowWhenReadRateFalls() {
+    assertEquals(131072, sample(65536, 10_000_000L));
+    // The sample fills the window but arrived more slowly: the round trip grew, not the link.
+    assertEquals(131072, sample(131072, 100_000_000L));
+  }
+
+  @Test public void windowShrinksAfterSmallSamples() {
+    assertEquals(131072, sample(65536, 10_000_000L));
+    assertEquals(262144, sample(131072, 10_000_000L));
+    for (int i = 1; i < BdpEstimator.SHRINK_AFTER_SAMPLES; i++) {
+      assertEquals(262144, sample(40000, 10_000_000L));
+    }
+    assertEquals(80000, sample(40000, 10_000_000L));
+  }
+
+  @Test public void windowDoesNotShrinkBelowMinimum() {
+    for (int i = 0; i < BdpEstimator.SHRINK_AFTER_SAMPLES; i++) {
+      sample(100, 10_000_000L);
+    }
+    assertEquals(65536, estimator.windowSize());
+  }
+
+  /** Receives {@code byteCount} bytes in a round trip of {@code rttNanos}. */
+  private int sample(long byteCount, long rttNanos) {
+    estimator.dataReceived(byteCount, nowNanos);
+    nowNanos += rttNanos;
+    return estimator.pongReceived(nowNanos);
+  }
+}
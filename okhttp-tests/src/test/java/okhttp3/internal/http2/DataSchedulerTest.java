@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class DataSchedulerTest {
+  private final DataScheduler scheduler = new DataScheduler();
+
+  @Test public void firstComeFirstServed() {
+    scheduler.enqueue(3);
+    scheduler.enqueue(5);
+    assertTrue(scheduler.isNext(3));
+    assertFalse(scheduler.isNext(5));
+
+    assertEquals(1000, scheduler.take(3, 16, 1000));
+    assertTrue(scheduler.isNext(5));
+  }
+
+  @Test public void takeIsLimitedByCredit() {
+    scheduler.enqueue(3);
+    assertEquals(16384, scheduler.take(3, 16, 100000));
+    scheduler.enqueue(3);
+    assertEquals(1024, scheduler.take(3, 1, 100000));
+  }
+
+  @Test public void streamWithCreditKeepsItsTurn() {
+    scheduler.enqueue(3);
+    scheduler.enqueue(5);
+    assertEquals(16384, scheduler.take(3, 64, 16384));
+
+    // Stream 3 has credit left so it goes ahead of stream 5.
+    scheduler.enqueue(3);
+    assertTrue(scheduler.isNext(3));
+  }
+
+  @Test public void removedStreamIsSkipped() {
+    scheduler.enqueue(3);
+    scheduler.enqueue(5);
+    scheduler.remove(3);
+    assertTrue(scheduler.isNext(5));
+  }
+
+  @Test public void bytesAreSharedByWeight() {
+    long[] written = new long[2];
+    int[] streamIds = {3, 5};
+    int[] weights = {16, 64};
+    scheduler.enqueue(3);
+    scheduler.enqueue(5);
+    for (int i = 0; i < 1000; i++) {
+      int s = scheduler.isNext(3) ? 0 : 1;
+      written[s] += scheduler.take(streamIds[s], weights[s], 16384);
+      scheduler.enqueue(streamIds[s]);
+    }
+    assertEquals(4 * written[0], written[1]);
+  }
+}
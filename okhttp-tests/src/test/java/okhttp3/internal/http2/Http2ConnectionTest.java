@@ -21,7 +21,14 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.internal.Util;
@@ -539,6 +546,188 @@ public final class Http2ConnectionTest {
     assertTrue(Arrays.equals("c3po".getBytes("UTF-8"), requestData.data));
   }
 
+  @Test public void writerLoopWritesQueuedFramesInOrder() throws Exception {
+    // write the mocking script
+    peer.sendFrame().settings(new Settings());
+    peer.acceptFrame(); // ACK
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    peer.sendFrame().data(true, 3, new Buffer().writeUtf8("robot"), 5);
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0); // PING
+    peer.play();
+
+    // play it back
+    Http2Connection connection = new Http2Connection.Builder(true)
+        .socket(peer.openSocket())
+        .writerLoop(true)
+        .build();
+    connection.start(false);
+    assertEquals(Http2.TYPE_SETTINGS, peer.takeFrame().type); // ACK
+    Http2Stream stream = connection.newStream(headerEntries("b", "banana"), true);
+    BufferedSink out = Okio.buffer(stream.getSink());
+    out.writeUtf8("c3po");
+    out.flush();
+    out.writeUtf8("r2d2");
+    out.flush();
+    out.close();
+    assertEquals(headerEntries("a", "android"), stream.takeResponseHeaders());
+    assertStreamData("robot", stream.getSource());
+    connection.writePingAndAwaitPong();
+    assertEquals(0, connection.openStreamCount());
+
+    // verify the peer received what was expected
+    InFrame synStream = peer.takeFrame();
+    assertEquals(Http2.TYPE_HEADERS, synStream.type);
+    assertEquals(headerEntries("b", "banana"), synStream.headerBlock);
+    assertTrue(Arrays.equals("c3po".getBytes("UTF-8"), peer.takeFrame().data));
+    assertTrue(Arrays.equals("r2d2".getBytes("UTF-8"), peer.takeFrame().data));
+    InFrame finData = peer.takeFrame();
+    assertEquals(0, finData.data.length);
+    assertTrue(finData.inFinished);
+    assertEquals(Http2.TYPE_PING, peer.takeFrame().type);
+  }
+
+  @Test public void writerLoopResumesWhenNonBlockingSinkHasRoom() throws Exception {
+    // write the mocking script
+    peer.sendFrame().settings(new Settings());
+    peer.acceptFrame(); // ACK
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    peer.sendFrame().data(true, 3, new Buffer().writeUtf8("robot"), 5);
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0); // PING
+    peer.play();
+
+    // The loop and all background work share one thread, which the loop never blocks.
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    Socket socket = peer.openSocket();
+    ThrottledSink sink = new ThrottledSink(Okio.buffer(Okio.sink(socket)));
+
+    // play it back
+    Http2Connection connection = new Http2Connection.Builder(true)
+        .socket(socket)
+        .nonBlockingSink(sink)
+        .scheduler(scheduler)
+        .build();
+    connection.start(false);
+    assertEquals(Http2.TYPE_SETTINGS, peer.takeFrame().type); // ACK
+    Http2Stream stream = connection.newStream(headerEntries("b", "banana"), true);
+    BufferedSink out = Okio.buffer(stream.getSink());
+    out.writeUtf8("c3po");
+    out.flush();
+    out.writeUtf8("r2d2");
+    out.flush();
+    out.close();
+    assertEquals(headerEntries("a", "android"), stream.takeResponseHeaders());
+    assertStreamData("robot", stream.getSource());
+    connection.writePingAndAwaitPong();
+    assertEquals(0, connection.openStreamCount());
+
+    // verify the peer received what was expected
+    InFrame synStream = peer.takeFrame();
+    assertEquals(Http2.TYPE_HEADERS, synStream.type);
+    assertEquals(headerEntries("b", "banana"), synStream.headerBlock);
+    assertTrue(Arrays.equals("c3po".getBytes("UTF-8"), peer.takeFrame().data));
+    assertTrue(Arrays.equals("r2d2".getBytes("UTF-8"), peer.takeFrame().data));
+    InFrame finData = peer.takeFrame();
+    assertEquals(0, finData.data.length);
+    assertTrue(finData.inFinished);
+    assertEquals(Http2.TYPE_PING, peer.takeFrame().type);
+    assertTrue(sink.fullCount.get() > 0);
+    scheduler.shutdown();
+  }
+
+  @Test public void schedulerRunsBackgroundWorkOfBlockingConnections() throws Exception {
+    // write the mocking script
+    peer.sendFrame().settings(new Settings());
+    peer.acceptFrame(); // ACK
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0); // PING
+    peer.play();
+
+    // Background work only queues frames, so it runs on the scheduler even if writes block.
+    final List<Thread> schedulerThreads = new CopyOnWriteArrayList<>();
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+          @Override public Thread newThread(Runnable runnable) {
+            Thread result = new Thread(runnable);
+            schedulerThreads.add(result);
+            return result;
+          }
+        });
+    final BlockingQueue<Thread> settingsThreads = new LinkedBlockingQueue<>();
+
+    // play it back
+    Http2Connection connection = new Http2Connection.Builder(true)
+        .socket(peer.openSocket())
+        .scheduler(scheduler)
+        .listener(new Http2Connection.Listener() {
+          @Override public void onStream(Http2Stream stream) throws IOException {
+            throw new AssertionError();
+          }
+
+          @Override public void onSettings(Http2Connection connection) {
+            settingsThreads.add(Thread.currentThread());
+          }
+        })
+        .build();
+    connection.start(false);
+    assertEquals(Http2.TYPE_SETTINGS, peer.takeFrame().type); // ACK
+    assertTrue(schedulerThreads.contains(settingsThreads.take()));
+    connection.writePingAndAwaitPong();
+    assertEquals(Http2.TYPE_PING, peer.takeFrame().type);
+    scheduler.shutdown();
+  }
+
+  @Test public void windowAutoTuningGrowsWindowThatDataFills() throws Exception {
+    // write the mocking script
+    peer.sendFrame().settings(new Settings());
+    peer.acceptFrame(); // ACK
+    peer.acceptFrame(); // SYN_STREAM
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    for (int i = 0; i < 4; i++) {
+      peer.sendFrame().data(false, 3, data(16384), 16384);
+    }
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, Http2Connection.BDP_PING_PAYLOAD, 0);
+    peer.acceptFrame(); // SETTINGS
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.play();
+
+    // play it back
+    Http2Connection connection = new Http2Connection.Builder(true)
+        .socket(peer.openSocket())
+        .windowSize(65536)
+        .windowAutoTuning(true)
+        .build();
+    connection.start(false);
+    assertEquals(Http2.TYPE_SETTINGS, peer.takeFrame().type); // ACK
+    Http2Stream stream = connection.newStream(headerEntries("b", "banana"), false);
+    assertEquals(headerEntries("a", "android"), stream.takeResponseHeaders());
+
+    // verify the peer received what was expected
+    assertEquals(Http2.TYPE_HEADERS, peer.takeFrame().type);
+    InFrame ping = peer.takeFrame();
+    assertEquals(Http2.TYPE_PING, ping.type);
+    assertEquals(Http2Connection.BDP_PING_PAYLOAD, ping.payload1);
+    assertFalse(ping.ack);
+    InFrame settings = peer.takeFrame();
+    assertEquals(Http2.TYPE_SETTINGS, settings.type);
+    assertEquals(131072, settings.settings.getInitialWindowSize());
+    InFrame windowUpdate = peer.takeFrame();
+    assertEquals(Http2.TYPE_WINDOW_UPDATE, windowUpdate.type);
+    assertEquals(0, windowUpdate.streamId);
+    assertEquals(65536, windowUpdate.windowSizeIncrement);
+    assertEquals(65536, connection.windowUpdateThreshold());
+  }
+
   @Test public void clientCreatesStreamAndServerRepliesWithFin() throws Exception {
     // write the mocking script
     peer.sendFrame().settings(new Settings());
@@ -607,6 +796,60 @@ public final class Http2ConnectionTest {
     assertFalse(pingFrame.ack);
   }
 
+  @Test public void healthCheckPingsAreIndependentOfIntervalPings() throws Exception {
+    // write the mocking script
+    peer.sendFrame().settings(new Settings());
+    peer.acceptFrame(); // ACK
+    peer.acceptFrame(); // PING
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, Http2Connection.HEALTH_CHECK_PING_PAYLOAD, 0);
+    peer.acceptFrame(); // PING
+    peer.play();
+
+    // play it back
+    Http2Connection connection = connect(peer);
+    connection.writePing(false, 1, 5); // The peer never answers this one.
+    connection.sendHealthCheckPingAsync();
+    connection.awaitHealthCheckPong();
+    connection.sendHealthCheckPingAsync();
+
+    // verify the peer received what was expected
+    InFrame intervalPing = peer.takeFrame();
+    assertEquals(Http2.TYPE_PING, intervalPing.type);
+    assertEquals(1, intervalPing.payload1);
+    InFrame healthCheckPing = peer.takeFrame();
+    assertEquals(Http2.TYPE_PING, healthCheckPing.type);
+    assertEquals(Http2Connection.HEALTH_CHECK_PING_PAYLOAD, healthCheckPing.payload1);
+    assertFalse(healthCheckPing.ack);
+    // The outstanding interval ping doesn't fail the second health check.
+    InFrame healthCheckPing2 = peer.takeFrame();
+    assertEquals(Http2.TYPE_PING, healthCheckPing2.type);
+    assertEquals(Http2Connection.HEALTH_CHECK_PING_PAYLOAD, healthCheckPing2.payload1);
+    assertFalse(connection.isShutdown());
+  }
+
+  @Test public void unansweredHealthCheckPingFailsConnection() throws Exception {
+    // write the mocking script
+    peer.sendFrame().settings(new Settings());
+    peer.acceptFrame(); // ACK
+    peer.acceptFrame(); // PING
+    peer.acceptFrame(); // GOAWAY
+    peer.play();
+
+    // play it back
+    Http2Connection connection = connect(peer);
+    connection.sendHealthCheckPingAsync();
+    connection.sendHealthCheckPingAsync();
+
+    // verify the peer received what was expected
+    InFrame ping = peer.takeFrame();
+    assertEquals(Http2.TYPE_PING, ping.type);
+    assertEquals(Http2Connection.HEALTH_CHECK_PING_PAYLOAD, ping.payload1);
+    InFrame goAway = peer.takeFrame();
+    assertEquals(Http2.TYPE_GOAWAY, goAway.type);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.errorCode);
+  }
+
   @Test public void unexpectedPingIsNotReturned() throws Exception {
     // write the mocking script
     peer.sendFrame().settings(new Settings());
@@ -1677,4 +1920,32 @@ public final class Http2ConnectionTest {
       notifyAll();
     }
   }
+
+  /**
+   * Writes at most a few bytes per call, and reports room later from another thread, to exercise a
+   * writer loop that stops and resumes.
+   */
+  static final class ThrottledSink implements NonBlockingSink {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final BufferedSink sink;
+    final AtomicInteger fullCount = new AtomicInteger();
+
+    ThrottledSink(BufferedSink sink) {
+      this.sink = sink;
+    }
+
+    @Override public boolean write(Buffer source, Runnable onWritable) throws IOException {
+      sink.write(source, Math.min(7L, source.size()));
+      sink.flush();
+      if (source.size() == 0L) return true;
+      fullCount.incrementAndGet();
+      executor.execute(onWritable);
+      return false;
+    }
+
+    @Override public void close() {
+      executor.shutdown();
+      Util.closeQuietly(sink);
+    }
+  }
 }
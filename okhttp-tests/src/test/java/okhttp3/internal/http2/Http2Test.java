@@ -467,6 +467,39 @@ public final class Http2Test {
     assertTrue(frame.exhausted()); // Padding was skipped.
   }
 
+  @Test public void bufferedDataFramesAreCoalesced() throws IOException {
+    writeDataFrame(expectedStreamId, FLAG_NONE, "abc");
+    writeDataFrame(expectedStreamId, FLAG_NONE, "def");
+    writeDataFrame(expectedStreamId, FLAG_END_STREAM, "ghi");
+    writeDataFrame(expectedStreamId, FLAG_NONE, "jkl"); // Not coalesced after END_STREAM.
+    writeDataFrame(expectedStreamId + 2, FLAG_NONE, "mno");
+
+    Http2Reader coalescingReader = new Http2Reader(frame, false, true);
+    final AtomicInteger dataCount = new AtomicInteger();
+    coalescingReader.nextFrame(false, new BaseTestHandler() {
+      @Override public void data(boolean inFinished, int streamId, BufferedSource source,
+          int length) throws IOException {
+        dataCount.incrementAndGet();
+        assertTrue(inFinished);
+        assertEquals(expectedStreamId, streamId);
+        assertEquals("abcdefghi", source.readUtf8(length));
+      }
+    });
+    assertEquals(1, dataCount.get());
+    coalescingReader.nextFrame(false, assertDataFrame(expectedStreamId, "jkl"));
+    coalescingReader.nextFrame(false, assertDataFrame(expectedStreamId + 2, "mno"));
+    assertTrue(frame.exhausted());
+  }
+
+  @Test public void dataFramesAreNotCoalescedByDefault() throws IOException {
+    writeDataFrame(expectedStreamId, FLAG_NONE, "abc");
+    writeDataFrame(expectedStreamId, FLAG_NONE, "def");
+
+    reader.nextFrame(false, assertDataFrame(expectedStreamId, "abc"));
+    reader.nextFrame(false, assertDataFrame(expectedStreamId, "def"));
+    assertTrue(frame.exhausted());
+  }
+
   @Test public void readPaddedDataFrameZeroPadding() throws IOException {
     int dataLength = 1123;
     byte[] expectedData = new byte[dataLength];
@@ -743,6 +776,25 @@ public final class Http2Test {
     };
   }
 
+  private void writeDataFrame(int streamId, byte flags, String data) throws IOException {
+    writeMedium(frame, data.length());
+    frame.writeByte(Http2.TYPE_DATA);
+    frame.writeByte(flags);
+    frame.writeInt(streamId);
+    frame.writeUtf8(data);
+  }
+
+  private Http2Reader.Handler assertDataFrame(final int expectedStreamId, final String expected) {
+    return new BaseTestHandler() {
+      @Override public void data(boolean inFinished, int streamId, BufferedSource source,
+          int length) throws IOException {
+        assertFalse(inFinished);
+        assertEquals(expectedStreamId, streamId);
+        assertEquals(expected, source.readUtf8(length));
+      }
+    };
+  }
+
   private static Buffer gzip(byte[] data) throws IOException {
     Buffer buffer = new Buffer();
     Okio.buffer(new GzipSink(buffer)).write(data).close();
@@ -41,6 +41,7 @@ import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
+import okhttp3.RecordingCallback;
 import okhttp3.RecordingCookieJar;
 import okhttp3.RecordingHostnameVerifier;
 import okhttp3.Request;
@@ -1148,6 +1149,41 @@ public final class HttpOverHttp2Test {
     assertEquals(0, server.takeRequest().getSequenceNumber()); // New connection!
   }
 
+  @Test public void multiplexAwareDispatcherLimitsHostByStreams() throws Exception {
+    client = client.newBuilder()
+        .dispatcher(new okhttp3.Dispatcher())
+        .build();
+    client.dispatcher().setMaxRequestsPerHost(1);
+    client.dispatcher().setMultiplexAware(true);
+
+    // Establish an HTTP/2 connection to the host.
+    server.enqueue(new MockResponse()
+        .setBody("A"));
+    Response response = client.newCall(new Request.Builder()
+        .url(server.url("/"))
+        .build()).execute();
+    assertEquals("A", response.body().string());
+
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+    server.enqueue(new MockResponse()
+        .setBody("C"));
+    server.enqueue(new MockResponse()
+        .setBody("D"));
+    RecordingCallback callback = new RecordingCallback();
+    for (String path : Arrays.asList("/b", "/c", "/d")) {
+      client.newCall(new Request.Builder()
+          .url(server.url(path))
+          .build()).enqueue(callback);
+    }
+
+    // The connection has capacity for every call, so none wait for the per-host limit.
+    assertEquals(0, client.dispatcher().queuedCallsCount());
+    callback.await(server.url("/b")).assertSuccessful();
+    callback.await(server.url("/c")).assertSuccessful();
+    callback.await(server.url("/d")).assertSuccessful();
+  }
+
   @Test public void connectionNotReusedAfterShutdown() throws Exception {
     server.enqueue(new MockResponse()
         .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END)
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.tls;
+
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.mockwebserver.internal.tls.HeldCertificate;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class BasicTrustRootIndexTest {
+  @Test public void keyIdentifiers() throws Exception {
+    HeldCertificate root = new HeldCertificate.Builder()
+        .serialNumber("1")
+        .ca(1)
+        .commonName("root")
+        .build();
+    HeldCertificate leaf = new HeldCertificate.Builder()
+        .serialNumber("2")
+        .issuedBy(root)
+        .commonName("leaf")
+        .build();
+
+    ByteString rootKeyIdentifier = ByteString.of(root.keyPair.getPublic().getEncoded()).sha1();
+    assertEquals(rootKeyIdentifier, BasicTrustRootIndex.subjectKeyIdentifier(root.certificate));
+    assertEquals(rootKeyIdentifier, BasicTrustRootIndex.authorityKeyIdentifier(leaf.certificate));
+  }
+
+  @Test public void derContentsLongFormLength() throws Exception {
+    byte[] contents = new byte[300];
+    Arrays.fill(contents, (byte) 'a');
+    ByteString der = new Buffer()
+        .writeByte(0x04)
+        .writeByte(0x82)
+        .writeShort(300)
+        .write(contents)
+        .readByteString();
+    assertEquals(ByteString.of(contents), BasicTrustRootIndex.derContents(der, 0x04));
+    assertNull(BasicTrustRootIndex.derContents(der, 0x30));
+    assertNull(BasicTrustRootIndex.derContents(der.substring(0, 100), 0x04));
+  }
+
+  /** When a CA renews its key, both certificates have the same subject. */
+  @Test public void findsCaWithMatchingKeyIdentifier() throws Exception {
+    HeldCertificate oldRoot = new HeldCertificate.Builder()
+        .serialNumber("1")
+        .ca(1)
+        .commonName("root")
+        .build();
+    HeldCertificate newRoot = new HeldCertificate.Builder()
+        .serialNumber("2")
+        .ca(1)
+        .commonName("root")
+        .build();
+    HeldCertificate leaf = new HeldCertificate.Builder()
+        .serialNumber("3")
+        .issuedBy(newRoot)
+        .commonName("leaf")
+        .build();
+    HeldCertificate stranger = new HeldCertificate.Builder()
+        .serialNumber("4")
+        .commonName("leaf")
+        .build();
+
+    BasicTrustRootIndex index = new BasicTrustRootIndex(oldRoot.certificate, newRoot.certificate);
+    assertSame(newRoot.certificate, index.findByIssuerAndSignature(leaf.certificate));
+    assertNull(index.findByIssuerAndSignature(stranger.certificate));
+  }
+
+  @Test public void cleanedChainIsRemembered() throws Exception {
+    HeldCertificate root = new HeldCertificate.Builder()
+        .serialNumber("1")
+        .ca(2)
+        .commonName("root")
+        .build();
+    HeldCertificate intermediate = new HeldCertificate.Builder()
+        .serialNumber("2")
+        .ca(1)
+        .issuedBy(root)
+        .commonName("intermediate")
+        .build();
+    HeldCertificate leaf = new HeldCertificate.Builder()
+        .serialNumber("3")
+        .issuedBy(intermediate)
+        .commonName("leaf")
+        .build();
+
+    CertificateChainCleaner cleaner = CertificateChainCleaner.get(root.certificate);
+    List<Certificate> chain = Arrays.<Certificate>asList(
+        leaf.certificate, intermediate.certificate);
+    List<Certificate> expected = Arrays.<Certificate>asList(
+        leaf.certificate, intermediate.certificate, root.certificate);
+    assertEquals(expected, cleaner.clean(chain, "hostname"));
+    assertEquals(expected, cleaner.clean(chain, "hostname"));
+  }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import okhttp3.ConnectionPool;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.RecordingEventListener;
@@ -264,6 +265,22 @@ public final class WebSocketHttpTest {
         "Expected HTTP 101 response but was '404 Not Found'");
   }
 
+  @Test public void failedUpgradeReleasesConnection() throws Exception {
+    ConnectionPool connectionPool = new ConnectionPool();
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .build();
+    webServer.enqueue(new MockResponse().setStatus("HTTP/1.1 404 Not Found"));
+    newWebSocket();
+
+    clientListener.assertFailure(404, null, ProtocolException.class,
+        "Expected HTTP 101 response but was '404 Not Found'");
+    for (int i = 0; i < 50 && connectionPool.idleConnectionCount() == 0; i++) {
+      Thread.sleep(100L);
+    }
+    assertEquals(1, connectionPool.idleConnectionCount());
+  }
+
   @Test public void clientTimeoutClosesBody() {
     webServer.enqueue(new MockResponse().setResponseCode(408));
     webServer.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
+
+/**
+ * A {@link Dns} that caches the results of another. This keeps name resolution off the critical
+ * path of most calls:
+ *
+ * <ul>
+ *   <li><strong>Results are cached</strong> for a {@linkplain Builder#ttl time to live}. The cache
+ *       holds a bounded number of hosts and evicts the least recently used.
+ *   <li><strong>Stale results are refreshed in the background.</strong> For a {@linkplain
+ *       Builder#staleTtl period} after a result expires it is still returned while a fresh lookup
+ *       runs on a background thread. If that lookup fails the stale result continues to be used.
+ *   <li><strong>Failures are cached</strong> for a {@linkplain Builder#negativeTtl shorter time to
+ *       live}, so that repeated calls to an unknown host fail fast.
+ *   <li><strong>Concurrent lookups are shared.</strong> Calls that need a host that is already
+ *       being looked up wait for that lookup rather than starting their own.
+ * </ul>
+ *
+ * <p>Hosts can be {@linkplain #prefetch prefetched} before they are needed. Install a {@link
+ * Listener} to measure the latency of lookups that reach the delegate DNS.
+ *
+ * <p>The delegate's results don't include their DNS time to live, so every result is cached for
+ * the same duration.
+ */
+public final class CachingDns implements Dns {
+  private static final Executor defaultExecutor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp CachingDns", true));
+
+  final Dns delegate;
+  final long ttlNanos;
+  final long staleTtlNanos;
+  final long negativeTtlNanos;
+  final int maxEntries;
+  final Executor executor;
+  final Listener listener;
+
+  /** Cached results in access order. Guarded by this. */
+  private final LinkedHashMap<String, Entry> entries;
+
+  /** Lookups in progress, indexed by host. Guarded by this. */
+  private final Map<String, Lookup> lookups = new HashMap<>();
+
+  CachingDns(Builder builder) {
+    this.delegate = builder.delegate;
+    this.ttlNanos = builder.ttlNanos;
+    this.staleTtlNanos = builder.staleTtlNanos;
+    this.negativeTtlNanos = builder.negativeTtlNanos;
+    this.maxEntries = builder.maxEntries;
+    this.executor = builder.executor;
+    this.listener = builder.listener;
+    this.entries = new LinkedHashMap<String, Entry>(0, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    if (hostname == null) throw new UnknownHostException("hostname == null");
+
+    List<InetAddress> staleAddresses = null;
+    Lookup lookup = null;
+    boolean startLookup = false;
+    synchronized (this) {
+      Entry entry = entries.get(hostname);
+      if (entry != null) {
+        long ageNanos = System.nanoTime() - entry.resolvedAtNanos;
+        if (entry.failure != null) {
+          if (ageNanos < negativeTtlNanos) throw entry.newFailure();
+        } else if (ageNanos < ttlNanos) {
+          return entry.addresses;
+        } else if (ageNanos - ttlNanos < staleTtlNanos) {
+          // Return the stale result and refresh it in the background.
+          staleAddresses = entry.addresses;
+          if (!lookups.containsKey(hostname)) lookup = newLookup(hostname);
+        }
+      }
+
+      if (staleAddresses == null) {
+        lookup = lookups.get(hostname);
+        if (lookup == null) {
+          lookup = newLookup(hostname);
+          startLookup = true;
+        }
+      }
+    }
+
+    if (staleAddresses != null) {
+      if (lookup != null) executeLookup(lookup);
+      return staleAddresses;
+    }
+
+    if (startLookup) lookup.run(); // Look up on this thread.
+    return lookup.await();
+  }
+
+  /**
+   * Looks up {@code hostname} on a background thread unless its result is already cached and
+   * fresh, or it is already being looked up.
+   */
+  public void prefetch(String hostname) {
+    if (hostname == null) throw new NullPointerException("hostname == null");
+    Lookup lookup;
+    synchronized (this) {
+      Entry entry = entries.get(hostname);
+      if (entry != null && entry.failure == null
+          && System.nanoTime() - entry.resolvedAtNanos < ttlNanos) {
+        return;
+      }
+      if (lookups.containsKey(hostname)) return;
+      lookup = newLookup(hostname);
+    }
+    executeLookup(lookup);
+  }
+
+  /** Removes all cached results. Lookups in progress are not affected. */
+  public synchronized void evictAll() {
+    entries.clear();
+  }
+
+  /** Returns the number of hosts with cached results. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public Builder newBuilder() {
+    return new Builder(this);
+  }
+
+  private void executeLookup(Lookup lookup) {
+    try {
+      executor.execute(lookup);
+    } catch (RejectedExecutionException e) {
+      lookup.run(); // Callers may be waiting for this lookup. Don't abandon it.
+    }
+  }
+
+  private Lookup newLookup(String hostname) {
+    assert (Thread.holdsLock(this));
+    Lookup lookup = new Lookup(hostname);
+    lookups.put(hostname, lookup);
+    return lookup;
+  }
+
+  /** Receives the latency of each lookup made by the delegate DNS. Calls are not synchronized. */
+  public interface Listener {
+    Listener NONE = new Listener() {
+      @Override public void lookupSucceeded(String hostname, List<InetAddress> addresses,
+          long latencyNanos) {
+      }
+
+      @Override public void lookupFailed(String hostname, UnknownHostException e,
+          long latencyNanos) {
+      }
+    };
+
+    void lookupSucceeded(String hostname, List<InetAddress> addresses, long latencyNanos);
+
+    void lookupFailed(String hostname, UnknownHostException e, long latencyNanos);
+  }
+
+  /** A cached result: either addresses or a failure. */
+  static final class Entry {
+    final long resolvedAtNanos;
+    final @Nullable List<InetAddress> addresses;
+    final @Nullable UnknownHostException failure;
+
+    Entry(long resolvedAtNanos, @Nullable List<InetAddress> addresses,
+        @Nullable UnknownHostException failure) {
+      this.resolvedAtNanos = resolvedAtNanos;
+      this.addresses = addresses;
+      this.failure = failure;
+    }
+
+    /** Returns a new exception so that each caller gets its own stack trace. */
+    UnknownHostException newFailure() {
+      UnknownHostException result = new UnknownHostException(failure.getMessage());
+      result.initCause(failure);
+      return result;
+    }
+  }
+
+  /** A lookup by the delegate DNS that any number of callers may wait for. */
+  final class Lookup extends NamedRunnable {
+    final String hostname;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /** Published by {@link #done}. */
+    private @Nullable Entry result;
+
+    Lookup(String hostname) {
+      super("OkHttp CachingDns %s", hostname);
+      this.hostname = hostname;
+    }
+
+    @Override protected void execute() {
+      long start = System.nanoTime();
+      List<InetAddress> addresses = null;
+      UnknownHostException failure = null;
+      try {
+        addresses = Collections.unmodifiableList(new ArrayList<>(delegate.lookup(hostname)));
+        if (addresses.isEmpty()) {
+          throw new UnknownHostException(delegate + " returned no addresses for " + hostname);
+        }
+      } catch (UnknownHostException e) {
+        addresses = null;
+        failure = e;
+      } finally {
+        long now = System.nanoTime();
+        if (addresses == null && failure == null) {
+          failure = new UnknownHostException("Failed to look up " + hostname);
+        }
+        Entry entry = new Entry(now, addresses, failure);
+        synchronized (CachingDns.this) {
+          lookups.remove(hostname);
+          Entry stale = entries.get(hostname);
+          boolean staleUsable = stale != null && stale.failure == null
+              && now - stale.resolvedAtNanos - ttlNanos < staleTtlNanos;
+          if (failure == null || !staleUsable) {
+            entries.put(hostname, entry); // Don't replace a usable stale result with a failure.
+          }
+        }
+        result = entry;
+        done.countDown();
+      }
+
+      if (failure == null) {
+        listener.lookupSucceeded(hostname, addresses, System.nanoTime() - start);
+      } else {
+        listener.lookupFailed(hostname, failure, System.nanoTime() - start);
+      }
+    }
+
+    List<InetAddress> await() throws UnknownHostException {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Retain interrupted status.
+        UnknownHostException unknownHostException =
+            new UnknownHostException("interrupted looking up " + hostname);
+        unknownHostException.initCause(e);
+        throw unknownHostException;
+      }
+      if (result.failure != null) throw result.newFailure();
+      return result.addresses;
+    }
+  }
+
+  public static final class Builder {
+    Dns delegate = Dns.SYSTEM;
+    long ttlNanos = TimeUnit.MINUTES.toNanos(1);
+    long staleTtlNanos = TimeUnit.MINUTES.toNanos(5);
+    long negativeTtlNanos = TimeUnit.SECONDS.toNanos(10);
+    int maxEntries = 256;
+    Executor executor = defaultExecutor;
+    Listener listener = Listener.NONE;
+
+    public Builder() {
+    }
+
+    Builder(CachingDns cachingDns) {
+      this.delegate = cachingDns.delegate;
+      this.ttlNanos = cachingDns.ttlNanos;
+      this.staleTtlNanos = cachingDns.staleTtlNanos;
+      this.negativeTtlNanos = cachingDns.negativeTtlNanos;
+      this.maxEntries = cachingDns.maxEntries;
+      this.executor = cachingDns.executor;
+      this.listener = cachingDns.listener;
+    }
+
+    /** Sets the DNS whose results are cached. The default is {@link Dns#SYSTEM}. */
+    public Builder delegate(Dns delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+      return this;
+    }
+
+    /** Sets how long results are fresh. The default is 1 minute. */
+    public Builder ttl(long duration, TimeUnit unit) {
+      this.ttlNanos = checkDuration("ttl", duration, unit);
+      return this;
+    }
+
+    /**
+     * Sets how long after a result expires that it may still be returned while it is refreshed in
+     * the background. Use 0 to always wait for expired results to be refreshed. The default is 5
+     * minutes.
+     */
+    public Builder staleTtl(long duration, TimeUnit unit) {
+      if (duration < 0) throw new IllegalArgumentException("duration < 0: " + duration);
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.staleTtlNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /** Sets how long failed lookups are cached. The default is 10 seconds. */
+    public Builder negativeTtl(long duration, TimeUnit unit) {
+      this.negativeTtlNanos = checkDuration("negativeTtl", duration, unit);
+      return this;
+    }
+
+    /** Sets the maximum number of hosts whose results are cached. The default is 256. */
+    public Builder maxEntries(int maxEntries) {
+      if (maxEntries < 1) throw new IllegalArgumentException("maxEntries < 1: " + maxEntries);
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /** Sets the executor that refreshes stale results and prefetches hosts. */
+    public Builder executor(Executor executor) {
+      if (executor == null) throw new NullPointerException("executor == null");
+      this.executor = executor;
+      return this;
+    }
+
+    public Builder listener(Listener listener) {
+      if (listener == null) throw new NullPointerException("listener == null");
+      this.listener = listener;
+      return this;
+    }
+
+    public CachingDns build() {
+      return new CachingDns(this);
+    }
+
+    private static long checkDuration(String name, long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException(name + " <= 0: " + duration);
+      if (unit == null) throw new NullPointerException("unit == null");
+      return unit.toNanos(duration);
+    }
+  }
+}
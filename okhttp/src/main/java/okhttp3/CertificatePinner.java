@@ -20,8 +20,10 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -128,9 +130,24 @@ import static okhttp3.internal.Util.equal;
 public final class CertificatePinner {
   public static final CertificatePinner DEFAULT = new Builder().build();
 
+  /** The maximum number of verified certificate chains to remember. */
+  static final int MAX_VERIFIED_CHAINS = 64;
+
   private final Set<Pin> pins;
   private final @Nullable CertificateChainCleaner certificateChainCleaner;
 
+  /**
+   * Chains that satisfied this pinner, least recently used first. Servers in a fleet usually share
+   * a chain, so remembering it skips cleaning and hashing the chain on most connections. Guarded by
+   * this map.
+   */
+  private final Map<VerifiedChain, Boolean> verifiedChains =
+      new LinkedHashMap<VerifiedChain, Boolean>(0, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<VerifiedChain, Boolean> eldest) {
+          return size() > MAX_VERIFIED_CHAINS;
+        }
+      };
+
   CertificatePinner(Set<Pin> pins, @Nullable CertificateChainCleaner certificateChainCleaner) {
     this.pins = pins;
     this.certificateChainCleaner = certificateChainCleaner;
@@ -162,29 +179,22 @@ public final class CertificatePinner {
     List<Pin> pins = findMatchingPins(hostname);
     if (pins.isEmpty()) return;
 
+    VerifiedChain verifiedChain = new VerifiedChain(hostname, peerCertificates);
+    synchronized (verifiedChains) {
+      if (verifiedChains.containsKey(verifiedChain)) return; // Success!
+    }
+
+    List<Certificate> uncleanedCertificates = peerCertificates;
     if (certificateChainCleaner != null) {
       peerCertificates = certificateChainCleaner.clean(peerCertificates, hostname);
     }
 
-    for (int c = 0, certsSize = peerCertificates.size(); c < certsSize; c++) {
-      X509Certificate x509Certificate = (X509Certificate) peerCertificates.get(c);
-
-      // Lazily compute the hashes for each certificate.
-      ByteString sha1 = null;
-      ByteString sha256 = null;
-
-      for (int p = 0, pinsSize = pins.size(); p < pinsSize; p++) {
-        Pin pin = pins.get(p);
-        if (pin.hashAlgorithm.equals("sha256/")) {
-          if (sha256 == null) sha256 = sha256(x509Certificate);
-          if (pin.hash.equals(sha256)) return; // Success!
-        } else if (pin.hashAlgorithm.equals("sha1/")) {
-          if (sha1 == null) sha1 = sha1(x509Certificate);
-          if (pin.hash.equals(sha1)) return; // Success!
-        } else {
-          throw new AssertionError("unsupported hashAlgorithm: " + pin.hashAlgorithm);
-        }
+    if (matchesPin(pins, peerCertificates)) {
+      verifiedChain = new VerifiedChain(hostname, new ArrayList<>(uncleanedCertificates));
+      synchronized (verifiedChains) {
+        verifiedChains.put(verifiedChain, Boolean.TRUE);
       }
+      return;
     }
 
     // If we couldn't find a matching pin, format a nice exception.
@@ -204,6 +214,31 @@ public final class CertificatePinner {
     throw new SSLPeerUnverifiedException(message.toString());
   }
 
+  /** Returns true if any of {@code peerCertificates} matches any of {@code pins}. */
+  private static boolean matchesPin(List<Pin> pins, List<Certificate> peerCertificates) {
+    for (int c = 0, certsSize = peerCertificates.size(); c < certsSize; c++) {
+      X509Certificate x509Certificate = (X509Certificate) peerCertificates.get(c);
+
+      // Lazily compute the hashes for each certificate.
+      ByteString sha1 = null;
+      ByteString sha256 = null;
+
+      for (int p = 0, pinsSize = pins.size(); p < pinsSize; p++) {
+        Pin pin = pins.get(p);
+        if (pin.hashAlgorithm.equals("sha256/")) {
+          if (sha256 == null) sha256 = sha256(x509Certificate);
+          if (pin.hash.equals(sha256)) return true;
+        } else if (pin.hashAlgorithm.equals("sha1/")) {
+          if (sha1 == null) sha1 = sha1(x509Certificate);
+          if (pin.hash.equals(sha1)) return true;
+        } else {
+          throw new AssertionError("unsupported hashAlgorithm: " + pin.hashAlgorithm);
+        }
+      }
+    }
+    return false;
+  }
+
   /** @deprecated replaced with {@link #check(String, List)}. */
   public void check(String hostname, Certificate... peerCertificates)
       throws SSLPeerUnverifiedException {
@@ -316,6 +351,30 @@ public final class CertificatePinner {
     }
   }
 
+  /** A hostname and the certificate chain its server presented. */
+  static final class VerifiedChain {
+    final String hostname;
+    final List<Certificate> peerCertificates;
+
+    VerifiedChain(String hostname, List<Certificate> peerCertificates) {
+      this.hostname = hostname;
+      this.peerCertificates = peerCertificates;
+    }
+
+    @Override public boolean equals(Object other) {
+      return other instanceof VerifiedChain
+          && hostname.equals(((VerifiedChain) other).hostname)
+          && peerCertificates.equals(((VerifiedChain) other).peerCertificates);
+    }
+
+    @Override public int hashCode() {
+      int result = 17;
+      result = 31 * result + hostname.hashCode();
+      result = 31 * result + peerCertificates.hashCode();
+      return result;
+    }
+  }
+
   /** Builds a configured certificate pinner. */
   public static final class Builder {
     private final List<Pin> pins = new ArrayList<>();
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of calls that a {@link Dispatcher} runs concurrently for each host. Limits are
+ * adjusted with additive increase and multiplicative decrease (AIMD): each call that completes
+ * promptly while the host's limit is being used grows the limit by one, and each call that fails
+ * or is slow shrinks it by the {@linkplain Builder#backoffRatio backoff ratio}.
+ *
+ * <p>This lets a dispatcher run many calls to fast hosts and few calls to struggling ones. Calls
+ * that fail with an {@link java.io.IOException}, calls that take longer than the {@linkplain
+ * Builder#latencyThreshold latency threshold} to receive a response, and responses with the status
+ * codes 429 and 503 are treated as signals that a host is overloaded. Canceled calls and web
+ * sockets are ignored.
+ *
+ * <p>Install a limiter with {@link Dispatcher#setConcurrencyLimiter}. While a limiter is installed
+ * it replaces the dispatcher's {@linkplain Dispatcher#setMaxRequestsPerHost maximum requests per
+ * host}.
+ */
+public final class ConcurrencyLimiter {
+  final int initialLimit;
+  final int minLimit;
+  final int maxLimit;
+  final double backoffRatio;
+  final long latencyThresholdNanos;
+  final Listener listener;
+
+  /**
+   * Limits of hosts that have completed calls, indexed by host. A host is removed once its limit is
+   * back at the initial limit and it has no calls in flight, so this only holds hosts whose limits
+   * matter.
+   */
+  private final ConcurrentHashMap<String, HostLimit> hostLimits = new ConcurrentHashMap<>();
+
+  ConcurrencyLimiter(Builder builder) {
+    this.initialLimit = builder.initialLimit;
+    this.minLimit = builder.minLimit;
+    this.maxLimit = builder.maxLimit;
+    this.backoffRatio = builder.backoffRatio;
+    this.latencyThresholdNanos = builder.latencyThresholdNanos;
+    this.listener = builder.listener;
+  }
+
+  /** Returns the number of calls to {@code host} that may currently run concurrently. */
+  public int limit(String host) {
+    HostLimit hostLimit = hostLimits.get(host);
+    return hostLimit != null ? hostLimit.limit() : initialLimit;
+  }
+
+  /**
+   * Records a completed call to {@code host} and adjusts its limit.
+   *
+   * @param inFlight the number of calls to {@code host} that were running, including this one.
+   * @param latencyNanos the duration from when the call started to when it received a response or
+   *     failed.
+   * @param failed true if the call failed or the server reported that it is overloaded.
+   */
+  void callFinished(String host, int inFlight, long latencyNanos, boolean failed) {
+    int previousLimit;
+    int newLimit;
+    while (true) {
+      HostLimit hostLimit = hostLimits.get(host);
+      if (hostLimit == null) {
+        HostLimit created = new HostLimit();
+        hostLimit = hostLimits.putIfAbsent(host, created);
+        if (hostLimit == null) hostLimit = created;
+      }
+
+      synchronized (hostLimit) {
+        if (hostLimit.removed) continue; // Lost a race with a removal. Use the replacement.
+        previousLimit = (int) hostLimit.limit;
+        if (failed || latencyNanos > latencyThresholdNanos) {
+          hostLimit.limit = Math.max(minLimit, hostLimit.limit * backoffRatio);
+        } else if (inFlight * 2 >= previousLimit) {
+          // Only grow the limit if it's being used. Otherwise idle hosts would grow without bound.
+          hostLimit.limit = Math.min(maxLimit, hostLimit.limit + 1);
+        }
+        newLimit = (int) hostLimit.limit;
+
+        // Forget idle hosts at the initial limit. Their next call starts from there anyway.
+        if (newLimit == initialLimit && inFlight <= 1) {
+          hostLimit.removed = true;
+          hostLimits.remove(host, hostLimit);
+        }
+        break;
+      }
+    }
+
+    if (newLimit != previousLimit) {
+      listener.limitChanged(host, newLimit);
+    }
+  }
+
+  /** Returns the number of hosts whose limits are tracked. */
+  int hostCount() {
+    return hostLimits.size();
+  }
+
+  public Builder newBuilder() {
+    return new Builder(this);
+  }
+
+  /** Receives notifications of changed limits. Calls to this listener are not synchronized. */
+  public interface Listener {
+    Listener NONE = new Listener() {
+      @Override public void limitChanged(String host, int limit) {
+      }
+    };
+
+    /** Invoked when the number of calls to {@code host} that may run concurrently changes. */
+    void limitChanged(String host, int limit);
+  }
+
+  final class HostLimit {
+    /** Fractional so that repeated multiplicative decreases don't round to the same value. */
+    double limit = initialLimit;
+
+    /** True once this has been removed from the limits. Callers must use a new instance. */
+    boolean removed;
+
+    synchronized int limit() {
+      return (int) limit;
+    }
+  }
+
+  public static final class Builder {
+    int initialLimit = 5;
+    int minLimit = 1;
+    int maxLimit = 64;
+    double backoffRatio = 0.9;
+    long latencyThresholdNanos = TimeUnit.SECONDS.toNanos(5);
+    Listener listener = Listener.NONE;
+
+    public Builder() {
+    }
+
+    Builder(ConcurrencyLimiter concurrencyLimiter) {
+      this.initialLimit = concurrencyLimiter.initialLimit;
+      this.minLimit = concurrencyLimiter.minLimit;
+      this.maxLimit = concurrencyLimiter.maxLimit;
+      this.backoffRatio = concurrencyLimiter.backoffRatio;
+      this.latencyThresholdNanos = concurrencyLimiter.latencyThresholdNanos;
+      this.listener = concurrencyLimiter.listener;
+    }
+
+    /** Sets the limit of hosts that haven't completed any calls. The default is 5. */
+    public Builder initialLimit(int initialLimit) {
+      if (initialLimit < 1) throw new IllegalArgumentException("initialLimit < 1: " + initialLimit);
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /** Sets the lowest limit that a host may shrink to. The default is 1. */
+    public Builder minLimit(int minLimit) {
+      if (minLimit < 1) throw new IllegalArgumentException("minLimit < 1: " + minLimit);
+      this.minLimit = minLimit;
+      return this;
+    }
+
+    /** Sets the highest limit that a host may grow to. The default is 64. */
+    public Builder maxLimit(int maxLimit) {
+      if (maxLimit < 1) throw new IllegalArgumentException("maxLimit < 1: " + maxLimit);
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * Sets the factor that a host's limit is multiplied by when one of its calls fails or is slow.
+     * The default is 0.9.
+     */
+    public Builder backoffRatio(double backoffRatio) {
+      if (!(backoffRatio > 0.0 && backoffRatio < 1.0)) {
+        throw new IllegalArgumentException("backoffRatio must be in (0, 1): " + backoffRatio);
+      }
+      this.backoffRatio = backoffRatio;
+      return this;
+    }
+
+    /**
+     * Sets how long a call may take to receive its response before it is treated as a sign that
+     * the host is overloaded. The default is 5 seconds.
+     */
+    public Builder latencyThreshold(long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException("duration <= 0: " + duration);
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.latencyThresholdNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    public Builder listener(Listener listener) {
+      if (listener == null) throw new NullPointerException("listener == null");
+      this.listener = listener;
+      return this;
+    }
+
+    public ConcurrencyLimiter build() {
+      if (minLimit > maxLimit) {
+        throw new IllegalStateException("minLimit > maxLimit: " + minLimit + " > " + maxLimit);
+      }
+      if (initialLimit < minLimit || initialLimit > maxLimit) {
+        throw new IllegalStateException("initialLimit must be in [minLimit, maxLimit]: "
+            + initialLimit);
+      }
+      return new ConcurrencyLimiter(this);
+    }
+  }
+}
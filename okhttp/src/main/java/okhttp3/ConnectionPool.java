@@ -16,21 +16,32 @@
  */
 package okhttp3;
 
+import java.io.IOException;
 import java.lang.ref.Reference;
 import java.net.Socket;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.SerialExecutor;
+import okhttp3.internal.TimingWheel;
 import okhttp3.internal.Util;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
+import okhttp3.internal.connection.RouteException;
 import okhttp3.internal.connection.StreamAllocation;
 import okhttp3.internal.platform.Platform;
 
@@ -40,42 +51,116 @@ import static okhttp3.internal.Util.closeQuietly;
  * Manages reuse of HTTP and HTTP/2 connections for reduced network latency. HTTP requests that
  * share the same {@link Address} may share a {@link Connection}. This class implements the policy
  * of which connections to keep open for future use.
+ *
+ * <p>Pooled connections are indexed by their address so that finding a connection for a call
+ * examines only the connections that could carry it, even when the pool holds connections to many
+ * hosts.
+ *
+ * <p>Each idle connection schedules its own eviction on a timing wheel that is shared by all pools,
+ * and reusing the connection cancels it. This evicts expired connections without examining the
+ * others. The pool is also swept periodically to detect leaked connections and to enforce its
+ * limits.
+ *
+ * <h3>Health Checks</h3>
+ *
+ * <p>By default calls confirm that a pooled connection is healthy before they use it, which costs
+ * a blocking read on the call's thread. With a {@linkplain #setHealthCheckInterval health check
+ * interval} the pool checks its idle connections in the background instead: HTTP/1 connections are
+ * probed for a closed socket and HTTP/2 connections are sent a ping. Connections that fail are
+ * evicted before a call can use them, so calls don't check connections themselves.
+ *
+ * <h3>Host Policies</h3>
+ *
+ * <p>The pool's limits apply to all hosts together, so a busy host may cause idle connections to
+ * other hosts to be evicted. {@linkplain #setHostPolicy Host policies} give individual hosts their
+ * own limits. A policy may also ask the pool to keep a minimum number of idle connections to a host
+ * so that calls to it rarely need to connect. The pool establishes these connections in the
+ * background once it has connected to the host at least once.
  */
 public final class ConnectionPool {
   /**
-   * Background threads are used to cleanup expired connections. There will be at most a single
-   * thread running per connection pool. The thread pool executor permits the pool itself to be
-   * garbage collected.
+   * Schedules the eviction of idle connections and the sweeps of pools. All pools share a single
+   * thread that exits when no pool has connections, which permits the pools themselves to be
+   * garbage collected. That thread only hands due work to each pool's {@link #timeoutExecutor}.
    */
+  static final TimingWheel timingWheel = new TimingWheel(
+      "OkHttp ConnectionPool", 100L, TimeUnit.MILLISECONDS, 512);
+
+  /** Background threads connect connections to keep hosts warm and check connection health. */
   private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
       Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
       new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionPool", true));
 
+  /** How long connections made to keep hosts warm may take to connect. */
+  static final int WARM_TIMEOUT_MILLIS = 10_000;
+
+  /** How long to wait before retrying to keep a host warm after connecting to it fails. */
+  static final long WARM_RETRY_DELAY_NS = TimeUnit.SECONDS.toNanos(10);
+
   /** The maximum number of idle connections for each address. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
+
+  /**
+   * Runs this pool's evictions and sweeps, which close sockets and take this pool's lock. Running
+   * them on the timing wheel's thread would delay every other pool's timeouts.
+   */
+  private final Executor timeoutExecutor = new SerialExecutor(executor);
+
   private final Runnable cleanupRunnable = new Runnable() {
     @Override public void run() {
-      while (true) {
-        long waitNanos = cleanup(System.nanoTime());
-        if (waitNanos == -1) return;
-        if (waitNanos > 0) {
-          long waitMillis = waitNanos / 1000000L;
-          waitNanos -= (waitMillis * 1000000L);
-          synchronized (ConnectionPool.this) {
-            try {
-              ConnectionPool.this.wait(waitMillis, (int) waitNanos);
-            } catch (InterruptedException ignored) {
-            }
-          }
-        }
+      while (cleanup(System.nanoTime()) == 0) {
+        // Evicted a connection. Look for another one to evict.
+      }
+
+      synchronized (ConnectionPool.this) {
+        if (cleanupTimeout != null && cleanupTimeout.isPending()) return; // Already rescheduled.
+        cleanupTimeout = null;
+        if (!connections.isEmpty()) scheduleCleanup(keepAliveDurationNs);
       }
     }
   };
 
-  private final Deque<RealConnection> connections = new ArrayDeque<>();
+  /** All pooled connections, in the order they were pooled. */
+  private final Set<RealConnection> connections = new LinkedHashSet<>();
+
+  /** Pooled connections indexed by the address of their route. Buckets are never empty. */
+  private final Map<Address, Deque<RealConnection>> addressConnections = new HashMap<>();
+
+  /** Pooled HTTP/2 connections. These may also carry calls for other addresses. */
+  private final Set<RealConnection> multiplexedConnections = new LinkedHashSet<>();
+
+  /**
+   * The number of streams that the pooled HTTP/2 connections to each host may carry concurrently.
+   * Written while holding this pool's lock and read without it by the dispatcher.
+   */
+  private final Map<String, Integer> multiplexedStreamLimits = new ConcurrentHashMap<>();
+
+  /** Scheduled evictions of idle connections, in the order that the connections became idle. */
+  private final Map<RealConnection, IdleTimeout> idleTimeouts = new LinkedHashMap<>();
+
+  /** Idle HTTP/1 connections being checked. These may not be used until the check completes. */
+  private final Set<RealConnection> checkingConnections = new LinkedHashSet<>();
+
+  /**
+   * Pooled connections that carry no calls and may carry new ones, as far as this pool knows.
+   * Leaked allocations are only found when the pool is cleaned up, which also corrects this.
+   */
+  private final Set<RealConnection> idlePooledConnections = new HashSet<>();
+  private volatile long healthCheckIntervalNs;
+  private @Nullable TimingWheel.Timeout cleanupTimeout;
+  private long cleanupDeadlineNanos;
+
+  /** Hosts that have policies or connections being connected, indexed by host. */
+  private final Map<String, HostEntry> hostEntries = new HashMap<>();
+
+  /** Callbacks awaiting each in-flight non-blocking connect, indexed by address. */
+  private final Map<Address, List<Runnable>> nonBlockingConnects = new HashMap<>();
   final RouteDatabase routeDatabase = new RouteDatabase();
-  boolean cleanupRunning;
+  private volatile TlsSessionCache tlsSessionCache = new InMemoryTlsSessionCache(256);
+
+  /** False to only evict connections when {@link #cleanup} is called, as tests do. */
+  boolean cleanupEnabled = true;
 
   /**
    * Create a new connection pool with tuning parameters appropriate for a single-user application.
@@ -96,6 +181,82 @@ public final class ConnectionPool {
     }
   }
 
+  /**
+   * Sets the policy for connections to {@code host}, or null to apply only this pool's limits.
+   * Connections that exceed a new policy's limits are evicted the next time the pool is cleaned up.
+   */
+  public synchronized void setHostPolicy(String host, @Nullable HostPolicy policy) {
+    if (host == null) throw new NullPointerException("host == null");
+    HostEntry entry = hostEntries.get(host);
+    if (policy == null) {
+      if (entry != null) {
+        entry.policy = null;
+        if (entry.reservedCount == 0 && entry.warmingCount == 0) hostEntries.remove(host);
+        notifyAll(); // Awake any calls waiting for capacity that no longer needs reserving.
+      }
+      return;
+    }
+
+    if (entry == null) entry = newHostEntry(host);
+    entry.policy = policy;
+
+    // Remember the host's address so that connections to it can be kept warm.
+    for (RealConnection connection : connections) {
+      Address address = connection.route().address();
+      if (address.url().host().equals(host)) entry.address = address;
+    }
+
+    scheduleCleanup(0L); // Apply the policy's limits and keep the host warm.
+    notifyAll(); // Awake any calls waiting to connect.
+  }
+
+  /**
+   * Sets how often idle connections are checked in the background, or 0 for calls to check pooled
+   * connections before they use them. Checks are disabled by default.
+   */
+  public synchronized void setHealthCheckInterval(long interval, TimeUnit unit) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0: " + interval);
+    if (unit == null) throw new NullPointerException("unit == null");
+    this.healthCheckIntervalNs = unit.toNanos(interval);
+
+    // Reschedule so that idle connections are checked on the new interval.
+    for (RealConnection connection : new ArrayList<>(idleTimeouts.keySet())) {
+      scheduleIdleTimeout(connection);
+    }
+  }
+
+  /** Returns how often idle connections are checked in the background, or 0 if they aren't. */
+  public long healthCheckIntervalMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(healthCheckIntervalNs);
+  }
+
+  /**
+   * Returns true if idle connections are checked in the background, so calls don't need to check
+   * them before use.
+   */
+  public boolean checksHealthInBackground() {
+    return healthCheckIntervalNs != 0L;
+  }
+
+  /**
+   * Sets the cache of TLS sessions established by this pool's connections. Pools may share a
+   * cache. By default each pool has its own {@link InMemoryTlsSessionCache} of up to 256 sessions.
+   */
+  public void setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+    if (tlsSessionCache == null) throw new NullPointerException("tlsSessionCache == null");
+    this.tlsSessionCache = tlsSessionCache;
+  }
+
+  public TlsSessionCache tlsSessionCache() {
+    return tlsSessionCache;
+  }
+
+  /** Returns the policy for connections to {@code host}, or null if it has none. */
+  public synchronized @Nullable HostPolicy hostPolicy(String host) {
+    HostEntry entry = hostEntries.get(host);
+    return entry != null ? entry.policy : null;
+  }
+
   /** Returns the number of idle connections in the pool. */
   public synchronized int idleConnectionCount() {
     int total = 0;
@@ -121,25 +282,97 @@ public final class ConnectionPool {
    */
   @Nullable RealConnection get(Address address, StreamAllocation streamAllocation, Route route) {
     assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
+    Deque<RealConnection> bucket = addressConnections.get(address);
+    if (bucket != null) {
+      for (RealConnection connection : bucket) {
+        if (checkingConnections.contains(connection)) continue;
+        if (connection.isEligible(address, route)) {
+          acquire(connection, streamAllocation);
+          return connection;
+        }
+      }
+    }
+
+    // Only HTTP/2 connections can be coalesced to carry calls for a different address.
+    if (route == null) return null;
+    for (RealConnection connection : multiplexedConnections) {
+      if (connection.route().address().equals(address)) continue; // Already checked.
       if (connection.isEligible(address, route)) {
-        streamAllocation.acquire(connection, true);
+        acquire(connection, streamAllocation);
         return connection;
       }
     }
     return null;
   }
 
+  /**
+   * Returns true if a pooled connection to {@code address} could carry a call. Unlike {@link #get}
+   * this doesn't acquire the connection, so an idle connection stays idle.
+   */
+  boolean hasConnection(Address address) {
+    assert (Thread.holdsLock(this));
+    Deque<RealConnection> bucket = addressConnections.get(address);
+    if (bucket == null) return false;
+    for (RealConnection connection : bucket) {
+      if (checkingConnections.contains(connection)) continue;
+      if (connection.isEligible(address, null)) return true;
+    }
+    return false;
+  }
+
+  /** Acquires a pooled connection, which may be idle, for {@code streamAllocation}. */
+  private void acquire(RealConnection connection, StreamAllocation streamAllocation) {
+    streamAllocation.acquire(connection, true);
+    setIdle(connection, false);
+    if (cancelIdleTimeout(connection)) {
+      // The host has one fewer idle connection. Replace it if the host is kept warm.
+      warmConnections(connection.route().address().url().host(), System.nanoTime());
+    }
+  }
+
+  /**
+   * Returns the number of streams that the pooled HTTP/2 connections to {@code host} may carry
+   * concurrently, or -1 if there are no such connections. This doesn't lock the pool.
+   */
+  int multiplexedStreamLimit(String host) {
+    Integer result = multiplexedStreamLimits.get(host);
+    return result != null ? result : -1;
+  }
+
+  /**
+   * Recomputes the stream limit of {@code connection}'s host. Call this when a pooled HTTP/2
+   * connection is added or removed, or when the peer changes its maximum concurrent streams.
+   */
+  void multiplexedConnectionChanged(RealConnection connection) {
+    assert (Thread.holdsLock(this));
+    String host = connection.route().address().url().host();
+    long limit = -1L;
+    for (RealConnection c : multiplexedConnections) {
+      if (c.noNewStreams) continue;
+      if (!c.route().address().url().host().equals(host)) continue;
+      limit = Math.max(limit, 0L) + c.allocationLimit;
+    }
+    if (limit == -1L) {
+      multiplexedStreamLimits.remove(host);
+    } else {
+      multiplexedStreamLimits.put(host, (int) Math.min(limit, Integer.MAX_VALUE));
+    }
+  }
+
   /**
    * Replaces the connection held by {@code streamAllocation} with a shared connection if possible.
    * This recovers when multiple multiplexed connections are created concurrently.
    */
   @Nullable Socket deduplicate(Address address, StreamAllocation streamAllocation) {
     assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
+    Deque<RealConnection> bucket = addressConnections.get(address);
+    if (bucket == null) return null;
+    for (RealConnection connection : bucket) {
       if (connection.isEligible(address, null)
           && connection.isMultiplexed()
           && connection != streamAllocation.connection()) {
+        cancelIdleTimeout(connection);
+        setIdle(connection, false);
         return streamAllocation.releaseAndAcquire(connection);
       }
     }
@@ -148,11 +381,186 @@ public final class ConnectionPool {
 
   void put(RealConnection connection) {
     assert (Thread.holdsLock(this));
-    if (!cleanupRunning) {
-      cleanupRunning = true;
-      executor.execute(cleanupRunnable);
-    }
     connections.add(connection);
+
+    Address address = connection.route().address();
+    Deque<RealConnection> bucket = addressConnections.get(address);
+    if (bucket == null) {
+      bucket = new ArrayDeque<>();
+      addressConnections.put(address, bucket);
+    }
+    bucket.add(connection);
+
+    if (connection.isMultiplexed()) {
+      multiplexedConnections.add(connection);
+      multiplexedConnectionChanged(connection);
+    }
+
+    HostEntry entry = hostEntries.get(address.url().host());
+    if (entry != null) {
+      entry.connectionCount++;
+      if (entry.policy != null) entry.address = address;
+    }
+
+    if (connection.allocations.isEmpty()) {
+      setIdle(connection, true);
+      scheduleIdleTimeout(connection);
+    }
+    scheduleCleanup(keepAliveDurationNs); // Detect leaks even if the connection is never idle.
+  }
+
+  /**
+   * Reserves capacity to connect a new connection to {@code address}. Returns false if its host
+   * already has its maximum number of connections. Each reservation must be released with {@link
+   * #releaseReservation} once the connection is pooled or has failed. Hosts without a policy have
+   * no maximum, so callers needn't reserve capacity to connect to them.
+   */
+  boolean reserveConnection(Address address) {
+    assert (Thread.holdsLock(this));
+    String host = address.url().host();
+    HostEntry entry = hostEntries.get(host);
+    if (entry == null) entry = newHostEntry(host);
+    if (entry.policy != null
+        && entry.connectionCount + entry.reservedCount >= entry.policy.maxConnections) {
+      return false;
+    }
+    entry.reservedCount++;
+    return true;
+  }
+
+  void releaseReservation(Address address) {
+    assert (Thread.holdsLock(this));
+    String host = address.url().host();
+    HostEntry entry = hostEntries.get(host);
+    entry.reservedCount--;
+    if (entry.policy == null && entry.reservedCount == 0 && entry.warmingCount == 0) {
+      hostEntries.remove(host);
+    }
+    notifyAll(); // Awake any calls waiting to connect.
+  }
+
+  /**
+   * Returns true if a non-blocking connect to {@code address} is in flight, in which case {@code
+   * callback} will run when it completes. Otherwise this begins tracking a connect to {@code
+   * address} and the caller must connect it and call {@link #finishNonBlockingConnect}.
+   */
+  boolean joinNonBlockingConnect(Address address, Runnable callback) {
+    assert (Thread.holdsLock(this));
+    List<Runnable> callbacks = nonBlockingConnects.get(address);
+    if (callbacks != null) {
+      callbacks.add(callback);
+      return true;
+    }
+    callbacks = new ArrayList<>();
+    callbacks.add(callback);
+    nonBlockingConnects.put(address, callbacks);
+    return false;
+  }
+
+  /** Stops tracking the connect to {@code address} and returns the callbacks awaiting it. */
+  List<Runnable> finishNonBlockingConnect(Address address) {
+    assert (Thread.holdsLock(this));
+    return nonBlockingConnects.remove(address);
+  }
+
+  /** Creates the entry of {@code host}, counting its pooled connections. */
+  private HostEntry newHostEntry(String host) {
+    HostEntry entry = new HostEntry();
+    for (RealConnection connection : connections) {
+      if (!connection.route().address().url().host().equals(host)) continue;
+      entry.connectionCount++;
+      if (idlePooledConnections.contains(connection)) entry.idleConnectionCount++;
+    }
+    hostEntries.put(host, entry);
+    return entry;
+  }
+
+  /** Records whether {@code connection} is idle, keeping its host's count of idle connections. */
+  private void setIdle(RealConnection connection, boolean idle) {
+    boolean changed = idle
+        ? idlePooledConnections.add(connection)
+        : idlePooledConnections.remove(connection);
+    if (!changed) return;
+    HostEntry entry = hostEntries.get(connection.route().address().url().host());
+    if (entry != null) entry.idleConnectionCount += idle ? 1 : -1;
+  }
+
+  private @Nullable HostPolicy policy(RealConnection connection) {
+    HostEntry entry = hostEntries.get(connection.route().address().url().host());
+    return entry != null ? entry.policy : null;
+  }
+
+  /** Returns how long {@code connection} may be idle before it is evicted. */
+  private long keepAliveDurationNs(RealConnection connection) {
+    HostPolicy policy = policy(connection);
+    return policy != null && policy.keepAliveDurationNs != -1L
+        ? policy.keepAliveDurationNs
+        : keepAliveDurationNs;
+  }
+
+  /** Removes {@code connection} from this pool and its indexes. */
+  private void remove(RealConnection connection) {
+    if (!connections.remove(connection)) return;
+    setIdle(connection, false);
+    HostEntry entry = hostEntries.get(connection.route().address().url().host());
+    if (entry != null) entry.connectionCount--;
+
+    Address address = connection.route().address();
+    Deque<RealConnection> bucket = addressConnections.get(address);
+    bucket.remove(connection);
+    if (bucket.isEmpty()) addressConnections.remove(address);
+
+    if (multiplexedConnections.remove(connection)) multiplexedConnectionChanged(connection);
+    checkingConnections.remove(connection);
+    cancelIdleTimeout(connection);
+    notifyAll(); // Awake any calls waiting to connect.
+  }
+
+  /**
+   * Schedules the eviction of {@code connection} once it has been idle for too long, or its next
+   * health check if that is sooner.
+   */
+  private void scheduleIdleTimeout(RealConnection connection) {
+    cancelIdleTimeout(connection);
+    if (!cleanupEnabled) return;
+    long idleDurationNs = Math.max(0L, System.nanoTime() - connection.idleAtNanos);
+    long expiryNs = Math.max(0L, keepAliveDurationNs(connection) - idleDurationNs);
+    long healthCheckIntervalNs = this.healthCheckIntervalNs;
+    boolean expires = healthCheckIntervalNs == 0L || expiryNs <= healthCheckIntervalNs;
+
+    IdleTimeout idleTimeout = new IdleTimeout(connection, expires);
+    idleTimeout.timeout = scheduleTimeout(idleTimeout, expires ? expiryNs : healthCheckIntervalNs);
+    idleTimeouts.put(connection, idleTimeout);
+  }
+
+  /** Cancels the eviction of {@code connection}. Returns true if it had been scheduled. */
+  private boolean cancelIdleTimeout(RealConnection connection) {
+    IdleTimeout idleTimeout = idleTimeouts.remove(connection);
+    if (idleTimeout == null) return false;
+    idleTimeout.timeout.cancel();
+    return true;
+  }
+
+  /** Schedules {@link #cleanup} to run within {@code delayNanos}. */
+  private void scheduleCleanup(long delayNanos) {
+    assert (Thread.holdsLock(this));
+    if (!cleanupEnabled) return;
+    long deadlineNanos = System.nanoTime() + delayNanos;
+    if (cleanupTimeout != null && cleanupTimeout.isPending()) {
+      if (cleanupDeadlineNanos - deadlineNanos <= 0L) return; // Already scheduled to run sooner.
+      cleanupTimeout.cancel();
+    }
+    cleanupTimeout = scheduleTimeout(cleanupRunnable, delayNanos);
+    cleanupDeadlineNanos = deadlineNanos;
+  }
+
+  /** Runs {@code task} on {@link #timeoutExecutor} once {@code delayNanos} has elapsed. */
+  private TimingWheel.Timeout scheduleTimeout(final Runnable task, long delayNanos) {
+    return timingWheel.schedule(new Runnable() {
+      @Override public void run() {
+        timeoutExecutor.execute(task);
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
   }
 
   /**
@@ -161,11 +569,18 @@ public final class ConnectionPool {
    */
   boolean connectionBecameIdle(RealConnection connection) {
     assert (Thread.holdsLock(this));
-    if (connection.noNewStreams || maxIdleConnections == 0) {
-      connections.remove(connection);
+    HostPolicy policy = policy(connection);
+    if (connection.noNewStreams || maxIdleConnections == 0
+        || (policy != null && policy.maxIdleConnections == 0)) {
+      remove(connection);
       return true;
     } else {
-      notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
+      setIdle(connection, true);
+      scheduleIdleTimeout(connection);
+      if (idleTimeouts.size() > maxIdleConnections || policy != null) {
+        scheduleCleanup(0L); // We may have exceeded an idle connection limit.
+      }
+      notifyAll(); // Awake any calls waiting to connect to this connection's host.
       return false;
     }
   }
@@ -174,14 +589,15 @@ public final class ConnectionPool {
   public void evictAll() {
     List<RealConnection> evictedConnections = new ArrayList<>();
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
+      for (RealConnection connection : connections) {
         if (connection.allocations.isEmpty()) {
           connection.noNewStreams = true;
           evictedConnections.add(connection);
-          i.remove();
         }
       }
+      for (RealConnection connection : evictedConnections) {
+        remove(connection);
+      }
     }
 
     for (RealConnection connection : evictedConnections) {
@@ -191,62 +607,153 @@ public final class ConnectionPool {
 
   /**
    * Performs maintenance on this pool, evicting the connection that has been idle the longest if
-   * either it has exceeded the keep alive limit or the idle connections limit.
+   * either it has exceeded the keep alive limit or the idle connections limit. Connections that
+   * exceed their host's limits are evicted first, and connections that their host's policy keeps
+   * warm don't count towards the idle connections limit.
    *
    * <p>Returns the duration in nanos to sleep until the next scheduled call to this method. Returns
    * -1 if no further cleanups are required.
    */
   long cleanup(long now) {
     int inUseConnectionCount = 0;
-    int idleConnectionCount = 0;
-    RealConnection longestIdleConnection = null;
-    long longestIdleDurationNs = Long.MIN_VALUE;
+    List<RealConnection> idleConnections = new ArrayList<>();
+    Map<String, Integer> hostIdleCounts = new HashMap<>();
+    RealConnection connectionToEvict;
 
     // Find either a connection to evict, or the time that the next eviction is due.
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
-
+      for (RealConnection connection : connections) {
         // If the connection is in use, keep searching.
         if (pruneAndGetAllocationCount(connection, now) > 0) {
+          setIdle(connection, false);
           inUseConnectionCount++;
           continue;
         }
 
-        idleConnectionCount++;
+        setIdle(connection, !connection.noNewStreams);
+        idleConnections.add(connection);
+        if (policy(connection) != null) {
+          String host = connection.route().address().url().host();
+          Integer count = hostIdleCounts.get(host);
+          hostIdleCounts.put(host, count != null ? count + 1 : 1);
+        }
+      }
+
+      RealConnection expiredConnection = null;
+      long longestOverdueNs = -1L;
+      RealConnection excessHostConnection = null;
+      long excessHostIdleDurationNs = Long.MIN_VALUE;
+      RealConnection longestIdleConnection = null;
+      long longestIdleDurationNs = Long.MIN_VALUE;
+      long nextExpiryNs = Long.MAX_VALUE;
 
-        // If the connection is ready to be evicted, we're done.
+      for (RealConnection connection : idleConnections) {
         long idleDurationNs = now - connection.idleAtNanos;
-        if (idleDurationNs > longestIdleDurationNs) {
+        HostPolicy policy = policy(connection);
+        long keepAliveDurationNs = keepAliveDurationNs(connection);
+
+        // If the connection is ready to be evicted, prefer the one that's the most overdue.
+        if (idleDurationNs >= keepAliveDurationNs) {
+          if (idleDurationNs - keepAliveDurationNs > longestOverdueNs) {
+            longestOverdueNs = idleDurationNs - keepAliveDurationNs;
+            expiredConnection = connection;
+          }
+        } else {
+          nextExpiryNs = Math.min(nextExpiryNs, keepAliveDurationNs - idleDurationNs);
+        }
+
+        int hostIdleCount = policy != null
+            ? hostIdleCounts.get(connection.route().address().url().host())
+            : 0;
+        if (policy != null && hostIdleCount > policy.maxIdleConnections
+            && idleDurationNs > excessHostIdleDurationNs) {
+          excessHostIdleDurationNs = idleDurationNs;
+          excessHostConnection = connection;
+        }
+        if ((policy == null || hostIdleCount > policy.minIdleConnections)
+            && idleDurationNs > longestIdleDurationNs) {
           longestIdleDurationNs = idleDurationNs;
           longestIdleConnection = connection;
         }
       }
 
-      if (longestIdleDurationNs >= this.keepAliveDurationNs
-          || idleConnectionCount > this.maxIdleConnections) {
+      if (expiredConnection != null) {
+        connectionToEvict = expiredConnection;
+      } else if (excessHostConnection != null) {
+        connectionToEvict = excessHostConnection;
+      } else if (idleConnections.size() > this.maxIdleConnections) {
+        connectionToEvict = longestIdleConnection;
+      } else {
+        connectionToEvict = null;
+      }
+
+      if (connectionToEvict != null) {
         // We've found a connection to evict. Remove it from the list, then close it below (outside
         // of the synchronized block).
-        connections.remove(longestIdleConnection);
-      } else if (idleConnectionCount > 0) {
-        // A connection will be ready to evict soon.
-        return keepAliveDurationNs - longestIdleDurationNs;
-      } else if (inUseConnectionCount > 0) {
-        // All connections are in use. It'll be at least the keep alive duration 'til we run again.
-        return keepAliveDurationNs;
+        remove(connectionToEvict);
       } else {
-        // No connections, idle or in use.
-        cleanupRunning = false;
-        return -1;
+        warmConnections(now);
+        if (!idleConnections.isEmpty()) {
+          // A connection will be ready to evict soon.
+          return nextExpiryNs;
+        } else if (inUseConnectionCount > 0) {
+          // All connections are in use. It'll be at least the keep alive duration 'til we run
+          // again.
+          return keepAliveDurationNs;
+        } else {
+          // No connections, idle or in use.
+          return -1;
+        }
       }
     }
 
-    closeQuietly(longestIdleConnection.socket());
+    closeQuietly(connectionToEvict.socket());
 
     // Cleanup again immediately.
     return 0;
   }
 
+  /**
+   * Starts connecting to hosts that have fewer available connections than their policy's minimum.
+   * Hosts whose last connection attempt failed recently are skipped.
+   */
+  private void warmConnections(long now) {
+    assert (Thread.holdsLock(this));
+    for (String host : hostEntries.keySet()) {
+      warmConnections(host, now);
+    }
+  }
+
+  private void warmConnections(String host, long now) {
+    HostEntry entry = hostEntries.get(host);
+    if (entry == null || entry.policy == null || entry.policy.minIdleConnections == 0) return;
+    if (entry.address == null) return; // Never connected.
+    if (entry.warmFailedAtNanos != 0L && now - entry.warmFailedAtNanos < WARM_RETRY_DELAY_NS) {
+      return;
+    }
+
+    if (hasMultiplexedCapacity(host)) return; // One HTTP/2 connection is enough.
+    int available = entry.idleConnectionCount + entry.warmingCount;
+    int capacity = entry.policy.maxConnections - entry.connectionCount - entry.reservedCount;
+    int warmCount = Math.min(entry.policy.minIdleConnections - available, capacity);
+    for (int i = 0; i < warmCount; i++) {
+      entry.warmingCount++;
+      executor.execute(new WarmConnection(host, entry.address));
+    }
+  }
+
+  /** Returns true if a pooled HTTP/2 connection to {@code host} can carry another stream. */
+  private boolean hasMultiplexedCapacity(String host) {
+    for (RealConnection connection : multiplexedConnections) {
+      if (connection.route().address().url().host().equals(host)
+          && !connection.noNewStreams
+          && connection.allocations.size() < connection.allocationLimit) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Prunes any leaked allocations and then returns the number of remaining live allocations on
    * {@code connection}. Allocations are leaked if the connection is tracking them but the
@@ -282,4 +789,227 @@ public final class ConnectionPool {
 
     return references.size();
   }
+
+  /**
+   * Evicts a connection that has been idle for its keep alive duration, or checks the health of one
+   * that hasn't.
+   */
+  final class IdleTimeout implements Runnable {
+    final RealConnection connection;
+    final boolean expires;
+    TimingWheel.Timeout timeout;
+
+    IdleTimeout(RealConnection connection, boolean expires) {
+      this.connection = connection;
+      this.expires = expires;
+    }
+
+    @Override public void run() {
+      synchronized (ConnectionPool.this) {
+        if (idleTimeouts.get(connection) != this) return; // Reused or evicted since scheduled.
+        idleTimeouts.remove(connection);
+        if (!connection.allocations.isEmpty()) {
+          setIdle(connection, false); // Acquired without the pool's knowledge.
+          return;
+        }
+
+        if (!expires && connection.isHealthy(false)) {
+          if (connection.isMultiplexed()) {
+            // An unanswered ping fails the connection by the time it is next checked.
+            connection.sendHealthCheckPing();
+            scheduleIdleTimeout(connection);
+          } else {
+            // Probing the socket blocks, so it is done on another thread.
+            checkingConnections.add(connection);
+            executor.execute(new HealthCheck(connection));
+          }
+          return;
+        }
+
+        remove(connection);
+        warmConnections(connection.route().address().url().host(), System.nanoTime());
+      }
+      closeQuietly(connection.socket());
+    }
+  }
+
+  /** Probes an idle HTTP/1 connection and evicts it if its socket has been closed. */
+  final class HealthCheck extends NamedRunnable {
+    private final RealConnection connection;
+
+    HealthCheck(RealConnection connection) {
+      super("OkHttp ConnectionPool health check %s", connection.route().address().url().host());
+      this.connection = connection;
+    }
+
+    @Override protected void execute() {
+      boolean healthy = connection.isHealthy(true);
+      synchronized (ConnectionPool.this) {
+        if (!checkingConnections.remove(connection)) return; // Evicted during the check.
+        if (healthy) {
+          scheduleIdleTimeout(connection);
+          notifyAll(); // Awake any calls waiting to connect to this connection's host.
+          return;
+        }
+        remove(connection);
+        warmConnections(connection.route().address().url().host(), System.nanoTime());
+      }
+      closeQuietly(connection.socket());
+    }
+  }
+
+  /** Connects a connection to keep warm for a host whose policy requires it. */
+  final class WarmConnection extends NamedRunnable {
+    private final String host;
+    private final Address address;
+
+    WarmConnection(String host, Address address) {
+      super("OkHttp ConnectionPool warm %s", host);
+      this.host = host;
+      this.address = address;
+    }
+
+    @Override protected void execute() {
+      boolean success = false;
+      try {
+        StreamAllocation streamAllocation = new StreamAllocation(
+            ConnectionPool.this, address, null, EventListener.NONE, null);
+        streamAllocation.prewarm(WARM_TIMEOUT_MILLIS, WARM_TIMEOUT_MILLIS, WARM_TIMEOUT_MILLIS, 0,
+            Util.threadFactory("OkHttp Http2Connection", true), false, null, true);
+        success = true;
+      } catch (IOException | RouteException e) {
+        Platform.get().log(Platform.INFO, "Failed to warm a connection to " + host, e);
+      } finally {
+        synchronized (ConnectionPool.this) {
+          HostEntry entry = hostEntries.get(host);
+          entry.warmingCount--;
+          if (!success) {
+            entry.warmFailedAtNanos = System.nanoTime();
+            scheduleCleanup(WARM_RETRY_DELAY_NS); // Try again later.
+          }
+          if (entry.policy == null && entry.reservedCount == 0 && entry.warmingCount == 0) {
+            hostEntries.remove(host);
+          }
+        }
+      }
+    }
+  }
+
+  /** State of a host with a policy or connections being connected. Guarded by the pool. */
+  static final class HostEntry {
+    @Nullable HostPolicy policy;
+
+    /** Pooled connections to this host. */
+    int connectionCount;
+
+    /** Pooled connections to this host that are idle. */
+    int idleConnectionCount;
+
+    /** The address of the most recent connection to this host, used to keep it warm. */
+    @Nullable Address address;
+
+    /** Connections to this host that are being connected and aren't yet pooled. */
+    int reservedCount;
+
+    /** Connections being connected to satisfy this host's minimum idle connections. */
+    int warmingCount;
+
+    /** When connecting to keep this host warm last failed, or 0 if it hasn't. */
+    long warmFailedAtNanos;
+  }
+
+  /** Limits that apply to the connections to a single host. */
+  public static final class HostPolicy {
+    final int maxIdleConnections;
+    final int maxConnections;
+    final long keepAliveDurationNs;
+    final int minIdleConnections;
+
+    HostPolicy(Builder builder) {
+      this.maxIdleConnections = builder.maxIdleConnections;
+      this.maxConnections = builder.maxConnections;
+      this.keepAliveDurationNs = builder.keepAliveDurationNs;
+      this.minIdleConnections = builder.minIdleConnections;
+    }
+
+    public int maxIdleConnections() {
+      return maxIdleConnections;
+    }
+
+    public int maxConnections() {
+      return maxConnections;
+    }
+
+    /** Returns the keep alive duration in nanoseconds, or -1 to use the pool's. */
+    public long keepAliveDurationNanos() {
+      return keepAliveDurationNs;
+    }
+
+    public int minIdleConnections() {
+      return minIdleConnections;
+    }
+
+    public static final class Builder {
+      int maxIdleConnections = Integer.MAX_VALUE;
+      int maxConnections = Integer.MAX_VALUE;
+      long keepAliveDurationNs = -1L;
+      int minIdleConnections;
+
+      /**
+       * Sets the maximum number of idle connections to keep to the host. Idle connections to the
+       * host also count towards the pool's limit. The default is unlimited.
+       */
+      public Builder maxIdleConnections(int maxIdleConnections) {
+        if (maxIdleConnections < 0) {
+          throw new IllegalArgumentException("maxIdleConnections < 0: " + maxIdleConnections);
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        return this;
+      }
+
+      /**
+       * Sets the maximum number of connections to the host, both idle and in use. Calls that need
+       * a new connection while the host has this many wait up to their connect timeout for one to
+       * become available. The default is unlimited.
+       */
+      public Builder maxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+          throw new IllegalArgumentException("maxConnections < 1: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+        return this;
+      }
+
+      /** Sets how long idle connections to the host are kept. The default is the pool's. */
+      public Builder keepAliveDuration(long keepAliveDuration, TimeUnit timeUnit) {
+        if (keepAliveDuration <= 0) {
+          throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDuration);
+        }
+        this.keepAliveDurationNs = timeUnit.toNanos(keepAliveDuration);
+        return this;
+      }
+
+      /**
+       * Sets the number of idle connections that the pool keeps open to the host. These
+       * connections are never evicted to satisfy the pool's idle connection limit. When idle
+       * connections expire or are used, the pool connects replacements in the background. One
+       * HTTP/2 connection with capacity for more streams is sufficient. The default is 0.
+       */
+      public Builder minIdleConnections(int minIdleConnections) {
+        if (minIdleConnections < 0) {
+          throw new IllegalArgumentException("minIdleConnections < 0: " + minIdleConnections);
+        }
+        this.minIdleConnections = minIdleConnections;
+        return this;
+      }
+
+      public HostPolicy build() {
+        if (minIdleConnections > maxIdleConnections || minIdleConnections > maxConnections) {
+          throw new IllegalStateException("minIdleConnections > maxIdleConnections or "
+              + "maxConnections: " + minIdleConnections);
+        }
+        return new HostPolicy(this);
+      }
+    }
+  }
 }
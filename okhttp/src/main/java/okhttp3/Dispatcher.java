@@ -15,19 +15,35 @@
  */
 package okhttp3;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 import okhttp3.RealCall.AsyncCall;
+import okhttp3.internal.TimingWheel;
 import okhttp3.internal.Util;
+import okhttp3.internal.platform.Platform;
 
 /**
  * Policy on when async requests are executed.
@@ -35,17 +51,79 @@ import okhttp3.internal.Util;
  * <p>Each dispatcher uses an {@link ExecutorService} to run calls internally. If you supply your
  * own executor, it should be able to run {@linkplain #getMaxRequests the configured maximum} number
  * of calls concurrently.
+ *
+ * <p>By default a single monitor guards admission of every call. Applications that enqueue many
+ * calls across many hosts may {@linkplain #setConcurrentAdmission enable concurrent admission},
+ * which keeps a queue and a running counter for each host instead.
+ *
+ * <p>Ready calls are started in order of their request's {@linkplain Request#priority() priority},
+ * then {@linkplain Request#deadlineNanoTime() deadline}, then the order they were enqueued. Calls
+ * whose deadline is reached while they are queued are removed from the queue and fail without
+ * connecting. Their callbacks run on a dispatcher timer thread and should be brief.
+ *
+ * <p>The number of ready calls is unbounded by default. Services that must shed load may
+ * {@linkplain #setMaxQueuedRequests limit it} and choose a {@linkplain #setQueueOverflowPolicy
+ * policy} for calls that are enqueued when the queue is full.
  */
 public final class Dispatcher {
-  private int maxRequests = 64;
-  private int maxRequestsPerHost = 5;
-  private @Nullable Runnable idleCallback;
+  /** Fails ready calls whose deadline is reached. Shared by all dispatchers. */
+  static final TimingWheel deadlineWheel = new TimingWheel(
+      "OkHttp Dispatcher Deadlines", 10L, TimeUnit.MILLISECONDS, 512);
+
+  /** Orders ready calls by priority, then deadline, then the order they were enqueued. */
+  static final Comparator<AsyncCall> READY_CALL_ORDER = new Comparator<AsyncCall>() {
+    @Override public int compare(AsyncCall a, AsyncCall b) {
+      Request aRequest = a.request();
+      Request bRequest = b.request();
+      if (aRequest.priority != bRequest.priority) {
+        return aRequest.priority > bRequest.priority ? -1 : 1;
+      }
+      if (aRequest.hasDeadline != bRequest.hasDeadline) {
+        return aRequest.hasDeadline ? -1 : 1;
+      }
+      if (aRequest.hasDeadline) {
+        // Compare nano times by their difference to tolerate numerical overflow.
+        long delta = aRequest.deadlineNanoTime - bRequest.deadlineNanoTime;
+        if (delta != 0L) return delta < 0L ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+    }
+  };
+
+  /** Orders calls by when they were enqueued. */
+  static final Comparator<AsyncCall> ARRIVAL_ORDER = new Comparator<AsyncCall>() {
+    @Override public int compare(AsyncCall a, AsyncCall b) {
+      return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+    }
+  };
+
+  private volatile int maxRequests = 64;
+  private volatile int maxRequestsPerHost = 5;
+  private volatile int maxQueuedRequests = Integer.MAX_VALUE;
+  private volatile QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.REJECT;
+  private volatile @Nullable ConcurrencyLimiter concurrencyLimiter;
+  private volatile @Nullable Runnable idleCallback;
 
   /** Executes calls. Created lazily. */
-  private @Nullable ExecutorService executorService;
+  private volatile @Nullable ExecutorService executorService;
+
+  /** True to run calls and connection readers on virtual threads if the runtime supports them. */
+  private volatile boolean virtualThreads;
+
+  /** True to limit hosts with pooled HTTP/2 connections by their stream capacity. */
+  private volatile boolean multiplexAware;
+
+  /** True to admit calls using {@link #hosts} rather than the deques guarded by this. */
+  private volatile boolean concurrentAdmission;
 
   /** Ready async calls in the order they'll be run. */
-  private final Deque<AsyncCall> readyAsyncCalls = new ArrayDeque<>();
+  private final NavigableSet<AsyncCall> readyAsyncCalls = new TreeSet<>(READY_CALL_ORDER);
+
+  /** The calls in {@link #readyAsyncCalls} in the order they were enqueued. */
+  private final Set<AsyncCall> readyAsyncCallsByArrival = new LinkedHashSet<>();
+
+  /** The sequence number of the next enqueued call. */
+  private final AtomicLong nextSequence = new AtomicLong();
 
   /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
   private final Deque<AsyncCall> runningAsyncCalls = new ArrayDeque<>();
@@ -53,6 +131,31 @@ public final class Dispatcher {
   /** Running synchronous calls. Includes canceled calls that haven't finished yet. */
   private final Deque<RealCall> runningSyncCalls = new ArrayDeque<>();
 
+  /** Calls that failed because the ready queue was full. */
+  private final AtomicLong rejectedCallsCount = new AtomicLong();
+
+  /** Threads waiting in {@link #awaitQueueSpace} to be notified on this. */
+  private final AtomicInteger blockedEnqueuersCount = new AtomicInteger();
+
+  // The following fields are only used with concurrent admission.
+
+  /** Ready and running calls indexed by host. Entries are removed when a host becomes idle. */
+  private final ConcurrentHashMap<String, HostCalls> hosts = new ConcurrentHashMap<>();
+
+  /** Hosts with ready calls that are waiting for {@link #maxRequests} capacity. */
+  private final Queue<HostCalls> hostsAwaitingCapacity = new ConcurrentLinkedQueue<>();
+
+  private final Set<AsyncCall> concurrentRunningAsyncCalls
+      = Collections.newSetFromMap(new ConcurrentHashMap<AsyncCall, Boolean>());
+  private final Set<RealCall> concurrentRunningSyncCalls
+      = Collections.newSetFromMap(new ConcurrentHashMap<RealCall, Boolean>());
+  private final AtomicInteger runningAsyncCallsCount = new AtomicInteger();
+  private final AtomicInteger readyAsyncCallsCount = new AtomicInteger();
+
+  /** The ready calls of every host, in the order they were enqueued. */
+  private final NavigableSet<AsyncCall> concurrentReadyCallsByArrival
+      = new ConcurrentSkipListSet<>(ARRIVAL_ORDER);
+
   public Dispatcher(ExecutorService executorService) {
     this.executorService = executorService;
   }
@@ -60,12 +163,81 @@ public final class Dispatcher {
   public Dispatcher() {
   }
 
-  public synchronized ExecutorService executorService() {
-    if (executorService == null) {
-      executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-          new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
+  public ExecutorService executorService() {
+    ExecutorService result = executorService;
+    if (result != null) return result;
+
+    synchronized (this) {
+      if (executorService == null) {
+        ThreadFactory virtualThreadFactory = virtualThreads
+            ? Platform.get().virtualThreadFactory("OkHttp Dispatcher")
+            : null;
+        if (virtualThreadFactory != null) {
+          // Virtual threads are cheap to create and expensive to keep. Don't keep idle ones.
+          executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+              new SynchronousQueue<Runnable>(), virtualThreadFactory);
+        } else {
+          executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+              new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
+        }
+      }
+      return executorService;
+    }
+  }
+
+  /**
+   * Configures this dispatcher to run calls on virtual threads if the runtime supports them. Each
+   * asynchronous call blocks its thread for the duration of its network I/O; virtual threads make
+   * that cheap for applications that hold many calls in flight, such as long polls. Web socket
+   * readers run on the call's thread, and HTTP/2 connections created by these calls also use
+   * virtual threads for their readers.
+   *
+   * <p>On runtimes without virtual threads this falls back to the default thread pool.
+   *
+   * <p>This has no effect on an executor service that was supplied to the constructor or that has
+   * already been created.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Returns a factory for threads named {@code name} that do work on behalf of this dispatcher's
+   * calls, such as reading frames from an HTTP/2 connection.
+   */
+  ThreadFactory threadFactory(String name, boolean daemon) {
+    if (virtualThreads) {
+      ThreadFactory result = Platform.get().virtualThreadFactory(name);
+      if (result != null) return result;
+    }
+    return Util.threadFactory(name, daemon);
+  }
+
+  /**
+   * Configures whether this dispatcher admits calls concurrently. When enabled, ready and running
+   * calls are tracked per host and the {@link #setMaxRequests global limit} is a lock-free counter.
+   * Enqueueing a call and completing one then cost a constant amount of work and only contend with
+   * other calls to the same host.
+   *
+   * <p>With concurrent admission ready calls to each host are still ordered by priority and
+   * deadline, but a call to one host may start before a more urgent call to another host when the
+   * global limit is reached.
+   *
+   * <p>This must be configured before the dispatcher has any queued or running calls.
+   */
+  public synchronized void setConcurrentAdmission(boolean concurrentAdmission) {
+    if (runningCallsCount() != 0 || queuedCallsCount() != 0) {
+      throw new IllegalStateException("dispatcher has queued or running calls");
     }
-    return executorService;
+    this.concurrentAdmission = concurrentAdmission;
+  }
+
+  public boolean isConcurrentAdmission() {
+    return concurrentAdmission;
   }
 
   /**
@@ -75,15 +247,18 @@ public final class Dispatcher {
    * <p>If more than {@code maxRequests} requests are in flight when this is invoked, those requests
    * will remain in flight.
    */
-  public synchronized void setMaxRequests(int maxRequests) {
+  public void setMaxRequests(int maxRequests) {
     if (maxRequests < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequests);
     }
-    this.maxRequests = maxRequests;
-    promoteCalls();
+    synchronized (this) {
+      this.maxRequests = maxRequests;
+      promoteCalls();
+    }
+    promoteAllHosts();
   }
 
-  public synchronized int getMaxRequests() {
+  public int getMaxRequests() {
     return maxRequests;
   }
 
@@ -98,18 +273,116 @@ public final class Dispatcher {
    *
    * <p>WebSocket connections to hosts <b>do not</b> count against this limit.
    */
-  public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+  public void setMaxRequestsPerHost(int maxRequestsPerHost) {
     if (maxRequestsPerHost < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
-    this.maxRequestsPerHost = maxRequestsPerHost;
-    promoteCalls();
+    synchronized (this) {
+      this.maxRequestsPerHost = maxRequestsPerHost;
+      promoteCalls();
+    }
+    promoteAllHosts();
   }
 
-  public synchronized int getMaxRequestsPerHost() {
+  public int getMaxRequestsPerHost() {
     return maxRequestsPerHost;
   }
 
+  /**
+   * Sets a limiter that adapts the maximum number of requests for each host to execute
+   * concurrently, or null to use {@linkplain #setMaxRequestsPerHost a fixed maximum}. The limiter
+   * observes the latency and failures of asynchronous calls as they complete.
+   *
+   * <p>The {@linkplain #setMaxRequests maximum number of requests} is still enforced for all hosts.
+   * WebSocket connections to hosts <b>do not</b> count against the limiter's limits.
+   */
+  public void setConcurrencyLimiter(@Nullable ConcurrencyLimiter concurrencyLimiter) {
+    synchronized (this) {
+      this.concurrencyLimiter = concurrencyLimiter;
+      promoteCalls();
+    }
+    promoteAllHosts();
+  }
+
+  public @Nullable ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * Configures whether per-host limits account for HTTP/2 multiplexing. When enabled, a host that
+   * has pooled HTTP/2 connections may run as many calls as those connections can carry streams
+   * concurrently, as advertised by the server's {@code SETTINGS_MAX_CONCURRENT_STREAMS}. This
+   * replaces {@linkplain #setMaxRequestsPerHost the maximum requests per host} for such hosts, and
+   * caps the limits of a {@linkplain #setConcurrencyLimiter concurrency limiter}. Hosts without a
+   * pooled HTTP/2 connection, including hosts whose first connection is still being established,
+   * are limited as usual.
+   *
+   * <p>The {@linkplain #setMaxRequests maximum number of requests} is still enforced for all hosts.
+   */
+  public void setMultiplexAware(boolean multiplexAware) {
+    synchronized (this) {
+      this.multiplexAware = multiplexAware;
+      promoteCalls();
+    }
+    promoteAllHosts();
+  }
+
+  public boolean isMultiplexAware() {
+    return multiplexAware;
+  }
+
+  /**
+   * Returns the maximum number of requests to {@code call}'s host to execute concurrently. This
+   * doesn't lock the connection pool, so it may be called while holding a {@link HostCalls}.
+   */
+  private int maxRequestsForHost(AsyncCall call) {
+    String host = call.host();
+    ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+    int result = concurrencyLimiter != null ? concurrencyLimiter.limit(host) : maxRequestsPerHost;
+
+    if (multiplexAware) {
+      int streamLimit = call.get().client.connectionPool().multiplexedStreamLimit(host);
+      if (streamLimit != -1) {
+        result = concurrencyLimiter != null ? Math.min(result, streamLimit) : streamLimit;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Set the maximum number of ready calls to hold while waiting for running calls to complete. When
+   * this many calls are queued, further calls are handled by the {@linkplain
+   * #setQueueOverflowPolicy queue overflow policy}. The default is unbounded.
+   *
+   * <p>If more than {@code maxQueuedRequests} calls are queued when this is invoked, those calls
+   * will remain queued.
+   */
+  public void setMaxQueuedRequests(int maxQueuedRequests) {
+    if (maxQueuedRequests < 1) {
+      throw new IllegalArgumentException("max < 1: " + maxQueuedRequests);
+    }
+    this.maxQueuedRequests = maxQueuedRequests;
+    signalQueueSpace();
+  }
+
+  public int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  /**
+   * Set what happens to calls that are enqueued when {@linkplain #setMaxQueuedRequests the ready
+   * queue is full}. The default is {@link QueueOverflowPolicy#REJECT REJECT}.
+   */
+  public void setQueueOverflowPolicy(QueueOverflowPolicy queueOverflowPolicy) {
+    if (queueOverflowPolicy == null) throw new NullPointerException("queueOverflowPolicy == null");
+    this.queueOverflowPolicy = queueOverflowPolicy;
+  }
+
+  public QueueOverflowPolicy getQueueOverflowPolicy() {
+    return queueOverflowPolicy;
+  }
+
   /**
    * Set a callback to be invoked each time the dispatcher becomes idle (when the number of running
    * calls returns to zero).
@@ -126,12 +399,164 @@ public final class Dispatcher {
     this.idleCallback = idleCallback;
   }
 
-  synchronized void enqueue(AsyncCall call) {
-    if (runningAsyncCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
+  void enqueue(AsyncCall call) {
+    call.sequence = nextSequence.getAndIncrement();
+
+    while (true) {
+      boolean enqueued = concurrentAdmission ? enqueueConcurrent(call) : enqueueSynchronized(call);
+      if (enqueued || !queueFull(call)) return;
+    }
+  }
+
+  /** Returns false if {@code call} wasn't enqueued because the ready queue is full. */
+  private synchronized boolean enqueueSynchronized(AsyncCall call) {
+    if (runningAsyncCalls.size() < maxRequests
+        && runningCallsForHost(call) < maxRequestsForHost(call)) {
       runningAsyncCalls.add(call);
       executorService().execute(call);
-    } else {
+    } else if (readyAsyncCalls.size() < maxQueuedRequests) {
       readyAsyncCalls.add(call);
+      readyAsyncCallsByArrival.add(call);
+      scheduleDeadline(call);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Applies the queue overflow policy to {@code call}, which couldn't be enqueued because the ready
+   * queue is full. Returns true if the caller should try again to enqueue it.
+   */
+  private boolean queueFull(AsyncCall call) {
+    switch (queueOverflowPolicy) {
+      case DROP_OLDEST:
+        AsyncCall oldest = concurrentAdmission ? removeOldestConcurrent() : removeOldest();
+        if (oldest != null) reject(oldest, new IOException("dropped from full dispatcher queue"));
+        return true; // If there was no oldest call, the queue has since been drained.
+
+      case BLOCK:
+        try {
+          awaitQueueSpace();
+          return true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Retain interrupted status.
+          reject(call, new InterruptedIOException("interrupted awaiting dispatcher queue"));
+          return false;
+        }
+
+      default:
+        reject(call, new IOException("dispatcher queue is full"));
+        return false;
+    }
+  }
+
+  private void reject(AsyncCall call, IOException e) {
+    rejectedCallsCount.incrementAndGet();
+    call.rejected(e);
+  }
+
+  /** Removes and returns the ready call that was enqueued first, or null if there are none. */
+  private synchronized @Nullable AsyncCall removeOldest() {
+    Iterator<AsyncCall> i = readyAsyncCallsByArrival.iterator();
+    if (!i.hasNext()) return null;
+    AsyncCall oldest = i.next();
+    i.remove();
+    readyAsyncCalls.remove(oldest);
+    cancelDeadline(oldest);
+    return oldest;
+  }
+
+  /** Removes and returns the ready call that was enqueued first, or null if there are none. */
+  private @Nullable AsyncCall removeOldestConcurrent() {
+    while (true) {
+      AsyncCall oldest = concurrentReadyCallsByArrival.pollFirst();
+      if (oldest == null) return null;
+
+      HostCalls hostCalls = hosts.get(oldest.host());
+      if (hostCalls == null) continue; // Promoted or expired. Retry.
+      synchronized (hostCalls) {
+        if (!hostCalls.readyCalls.remove(oldest)) continue; // Promoted or expired. Retry.
+        readyAsyncCallsCount.decrementAndGet();
+        cancelDeadline(oldest);
+        removeIfIdle(hostCalls);
+      }
+      return oldest;
+    }
+  }
+
+  /**
+   * Schedules {@code call} to fail when its deadline is reached if it hasn't started by then.
+   * Callers must hold the lock that guards the call's ready queue.
+   */
+  private void scheduleDeadline(final AsyncCall call) {
+    Request request = call.request();
+    if (!request.hasDeadline) return;
+    long delayNanos = Math.max(0L, request.deadlineNanoTime - System.nanoTime());
+    call.deadlineTimeout = deadlineWheel.schedule(new Runnable() {
+      @Override public void run() {
+        deadlineReached(call);
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Cancels the deadline of {@code call}, which has left the ready queue. */
+  private void cancelDeadline(AsyncCall call) {
+    if (call.deadlineTimeout == null) return;
+    call.deadlineTimeout.cancel();
+    call.deadlineTimeout = null;
+  }
+
+  /** Fails {@code call} if it is still ready. Called when its deadline is reached. */
+  private void deadlineReached(AsyncCall call) {
+    boolean removed = false;
+    if (concurrentAdmission) {
+      HostCalls hostCalls = hosts.get(call.host());
+      if (hostCalls != null) {
+        synchronized (hostCalls) {
+          removed = hostCalls.readyCalls.remove(call);
+          if (removed) {
+            concurrentReadyCallsByArrival.remove(call);
+            readyAsyncCallsCount.decrementAndGet();
+            removeIfIdle(hostCalls);
+          }
+        }
+      }
+    } else {
+      synchronized (this) {
+        removed = readyAsyncCalls.remove(call);
+        if (removed) readyAsyncCallsByArrival.remove(call);
+      }
+    }
+    if (!removed) return; // Started or dropped since the deadline was scheduled.
+
+    call.deadlineTimeout = null;
+    signalQueueSpace();
+    call.rejected(new InterruptedIOException("deadline reached"));
+  }
+
+  /** Blocks until the ready queue may have space for another call. */
+  private void awaitQueueSpace() throws InterruptedException {
+    blockedEnqueuersCount.incrementAndGet();
+    try {
+      synchronized (this) {
+        while (queuedCallsCount() >= maxQueuedRequests) {
+          wait();
+        }
+      }
+    } finally {
+      blockedEnqueuersCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Wakes threads that are blocked waiting for space in the ready queue. Callers must not hold the
+   * lock of a {@link HostCalls}.
+   */
+  private void signalQueueSpace() {
+    if (blockedEnqueuersCount.get() == 0) return;
+    synchronized (this) {
+      notifyAll();
     }
   }
 
@@ -151,23 +576,43 @@ public final class Dispatcher {
     for (RealCall call : runningSyncCalls) {
       call.cancel();
     }
+
+    for (HostCalls hostCalls : hosts.values()) {
+      for (AsyncCall call : hostCalls.readyCalls()) {
+        call.get().cancel();
+      }
+    }
+
+    for (AsyncCall call : concurrentRunningAsyncCalls) {
+      call.get().cancel();
+    }
+
+    for (RealCall call : concurrentRunningSyncCalls) {
+      call.cancel();
+    }
   }
 
   private void promoteCalls() {
     if (runningAsyncCalls.size() >= maxRequests) return; // Already running max capacity.
     if (readyAsyncCalls.isEmpty()) return; // No ready calls to promote.
 
+    boolean promoted = false;
     for (Iterator<AsyncCall> i = readyAsyncCalls.iterator(); i.hasNext(); ) {
       AsyncCall call = i.next();
 
-      if (runningCallsForHost(call) < maxRequestsPerHost) {
+      if (runningCallsForHost(call) < maxRequestsForHost(call)) {
         i.remove();
+        readyAsyncCallsByArrival.remove(call);
+        cancelDeadline(call);
         runningAsyncCalls.add(call);
         executorService().execute(call);
+        promoted = true;
       }
 
-      if (runningAsyncCalls.size() >= maxRequests) return; // Reached max capacity.
+      if (runningAsyncCalls.size() >= maxRequests) break; // Reached max capacity.
     }
+
+    if (promoted) signalQueueSpace();
   }
 
   /** Returns the number of running calls that share a host with {@code call}. */
@@ -181,20 +626,217 @@ public final class Dispatcher {
   }
 
   /** Used by {@code Call#execute} to signal it is in-flight. */
-  synchronized void executed(RealCall call) {
-    runningSyncCalls.add(call);
+  void executed(RealCall call) {
+    if (concurrentAdmission) {
+      concurrentRunningSyncCalls.add(call);
+      return;
+    }
+
+    synchronized (this) {
+      runningSyncCalls.add(call);
+    }
   }
 
   /** Used by {@code AsyncCall#run} to signal completion. */
   void finished(AsyncCall call) {
+    recordLatency(call);
+
+    if (concurrentAdmission) {
+      finishedConcurrent(call);
+      return;
+    }
     finished(runningAsyncCalls, call, true);
   }
 
   /** Used by {@code Call#execute} to signal completion. */
   void finished(RealCall call) {
+    if (concurrentAdmission) {
+      if (!concurrentRunningSyncCalls.remove(call)) {
+        throw new AssertionError("Call wasn't in-flight!");
+      }
+      runIdleCallbackIfIdle();
+      return;
+    }
     finished(runningSyncCalls, call, false);
   }
 
+  /** Reports a completed call to the concurrency limiter so it can adjust the call's host. */
+  private void recordLatency(AsyncCall call) {
+    ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+    if (concurrencyLimiter == null) return;
+    if (call.latencyNanos == -1L) return; // Didn't use the network.
+    if (call.get().forWebSocket || call.get().isCanceled()) return;
+
+    int inFlight;
+    if (concurrentAdmission) {
+      HostCalls hostCalls = hosts.get(call.host());
+      if (hostCalls == null) return;
+      synchronized (hostCalls) {
+        inFlight = hostCalls.runningCallsCount;
+      }
+    } else {
+      synchronized (this) {
+        inFlight = runningCallsForHost(call);
+      }
+    }
+
+    concurrencyLimiter.callFinished(call.host(), inFlight, call.latencyNanos, call.failed);
+  }
+
+  /** Returns false if {@code call} wasn't enqueued because the ready queue is full. */
+  private boolean enqueueConcurrent(AsyncCall call) {
+    boolean admitted;
+    HostCalls hostCalls;
+    while (true) {
+      hostCalls = hostCalls(call.host());
+      synchronized (hostCalls) {
+        if (hostCalls.removed) continue; // Lost a race with the host becoming idle. Try again.
+        admitted = (call.get().forWebSocket || hostCalls.readyCalls.isEmpty())
+            && hostCalls.tryAdmit(call);
+        if (!admitted) {
+          if (!tryAcquireReadySlot()) {
+            removeIfIdle(hostCalls);
+            return false;
+          }
+          hostCalls.readyCalls.add(call);
+          concurrentReadyCallsByArrival.add(call);
+          scheduleDeadline(call);
+          awaitCapacityIfNecessary(hostCalls);
+        }
+        break;
+      }
+    }
+
+    if (admitted) {
+      executorService().execute(call);
+    } else {
+      // A running call may have completed before this host started waiting for capacity.
+      promoteHostsAwaitingCapacity();
+    }
+    return true;
+  }
+
+  private void finishedConcurrent(AsyncCall call) {
+    if (!concurrentRunningAsyncCalls.remove(call)) {
+      throw new AssertionError("Call wasn't in-flight!");
+    }
+    runningAsyncCallsCount.decrementAndGet();
+
+    // Hosts whose only running calls are web sockets may already have been removed.
+    HostCalls hostCalls = hosts.get(call.host());
+    if (hostCalls != null) {
+      synchronized (hostCalls) {
+        if (!call.get().forWebSocket) hostCalls.runningCallsCount--;
+      }
+      promoteCalls(hostCalls);
+    }
+
+    promoteHostsAwaitingCapacity();
+    runIdleCallbackIfIdle();
+  }
+
+  /** Returns the calls for {@code host}, creating them if necessary. */
+  private HostCalls hostCalls(String host) {
+    HostCalls result = hosts.get(host);
+    if (result != null) return result;
+    HostCalls created = new HostCalls(host);
+    result = hosts.putIfAbsent(host, created);
+    return result != null ? result : created;
+  }
+
+  /** Starts as many of the ready calls for {@code hostCalls} as the limits permit. */
+  private void promoteCalls(HostCalls hostCalls) {
+    List<AsyncCall> executableCalls = new ArrayList<>();
+    synchronized (hostCalls) {
+      while (!hostCalls.readyCalls.isEmpty()) {
+        AsyncCall call = hostCalls.readyCalls.first();
+        if (!hostCalls.tryAdmit(call)) {
+          awaitCapacityIfNecessary(hostCalls);
+          break;
+        }
+        hostCalls.readyCalls.pollFirst();
+        concurrentReadyCallsByArrival.remove(call);
+        readyAsyncCallsCount.decrementAndGet();
+        cancelDeadline(call);
+        executableCalls.add(call);
+      }
+
+      removeIfIdle(hostCalls);
+    }
+
+    for (AsyncCall call : executableCalls) {
+      executorService().execute(call);
+    }
+    if (!executableCalls.isEmpty()) signalQueueSpace();
+  }
+
+  /** Removes {@code hostCalls} from {@link #hosts} if it has no ready or running calls. */
+  private void removeIfIdle(HostCalls hostCalls) {
+    assert Thread.holdsLock(hostCalls);
+    if (hostCalls.readyCalls.isEmpty() && hostCalls.runningCallsCount == 0
+        && !hostCalls.awaitingCapacity) {
+      hostCalls.removed = true;
+      hosts.remove(hostCalls.host, hostCalls);
+    }
+  }
+
+  private void promoteHostsAwaitingCapacity() {
+    while (runningAsyncCallsCount.get() < maxRequests) {
+      HostCalls hostCalls = hostsAwaitingCapacity.poll();
+      if (hostCalls == null) return;
+      synchronized (hostCalls) {
+        hostCalls.awaitingCapacity = false;
+      }
+      promoteCalls(hostCalls);
+    }
+  }
+
+  private void promoteAllHosts() {
+    if (!concurrentAdmission) return;
+    for (HostCalls hostCalls : hosts.values()) {
+      promoteCalls(hostCalls);
+    }
+  }
+
+  /**
+   * Enqueues {@code hostCalls} to be promoted when capacity becomes available. Hosts that are
+   * limited by {@link #maxRequestsForHost} are instead promoted when one of their own calls
+   * completes.
+   */
+  private void awaitCapacityIfNecessary(HostCalls hostCalls) {
+    assert Thread.holdsLock(hostCalls);
+    if (hostCalls.awaitingCapacity) return;
+    if (hostCalls.readyCalls.isEmpty()) return;
+    if (!hostCalls.hasHostCapacity(hostCalls.readyCalls.first())) return;
+    hostCalls.awaitingCapacity = true;
+    hostsAwaitingCapacity.add(hostCalls);
+  }
+
+  /** Returns true if a running call slot was acquired without exceeding {@link #maxRequests}. */
+  private boolean tryAcquireRunningSlot() {
+    while (true) {
+      int running = runningAsyncCallsCount.get();
+      if (running >= maxRequests) return false;
+      if (runningAsyncCallsCount.compareAndSet(running, running + 1)) return true;
+    }
+  }
+
+  /** Returns true if a ready call slot was acquired within {@link #maxQueuedRequests}. */
+  private boolean tryAcquireReadySlot() {
+    while (true) {
+      int ready = readyAsyncCallsCount.get();
+      if (ready >= maxQueuedRequests) return false;
+      if (readyAsyncCallsCount.compareAndSet(ready, ready + 1)) return true;
+    }
+  }
+
+  private void runIdleCallbackIfIdle() {
+    Runnable idleCallback = this.idleCallback;
+    if (runningCallsCount() == 0 && idleCallback != null) {
+      idleCallback.run();
+    }
+  }
+
   private <T> void finished(Deque<T> calls, T call, boolean promoteCalls) {
     int runningCallsCount;
     Runnable idleCallback;
@@ -211,29 +853,126 @@ public final class Dispatcher {
   }
 
   /** Returns a snapshot of the calls currently awaiting execution. */
-  public synchronized List<Call> queuedCalls() {
+  public List<Call> queuedCalls() {
     List<Call> result = new ArrayList<>();
-    for (AsyncCall asyncCall : readyAsyncCalls) {
-      result.add(asyncCall.get());
+    if (concurrentAdmission) {
+      for (HostCalls hostCalls : hosts.values()) {
+        for (AsyncCall asyncCall : hostCalls.readyCalls()) {
+          result.add(asyncCall.get());
+        }
+      }
+    } else {
+      synchronized (this) {
+        for (AsyncCall asyncCall : readyAsyncCalls) {
+          result.add(asyncCall.get());
+        }
+      }
     }
     return Collections.unmodifiableList(result);
   }
 
   /** Returns a snapshot of the calls currently being executed. */
-  public synchronized List<Call> runningCalls() {
+  public List<Call> runningCalls() {
     List<Call> result = new ArrayList<>();
-    result.addAll(runningSyncCalls);
-    for (AsyncCall asyncCall : runningAsyncCalls) {
-      result.add(asyncCall.get());
+    if (concurrentAdmission) {
+      result.addAll(concurrentRunningSyncCalls);
+      for (AsyncCall asyncCall : concurrentRunningAsyncCalls) {
+        result.add(asyncCall.get());
+      }
+    } else {
+      synchronized (this) {
+        result.addAll(runningSyncCalls);
+        for (AsyncCall asyncCall : runningAsyncCalls) {
+          result.add(asyncCall.get());
+        }
+      }
     }
     return Collections.unmodifiableList(result);
   }
 
-  public synchronized int queuedCallsCount() {
-    return readyAsyncCalls.size();
+  public int queuedCallsCount() {
+    if (concurrentAdmission) return readyAsyncCallsCount.get();
+    synchronized (this) {
+      return readyAsyncCalls.size();
+    }
+  }
+
+  /**
+   * Returns the number of calls that failed because they were enqueued when {@linkplain
+   * #setMaxQueuedRequests the ready queue was full}, including calls that were dropped to make
+   * room for newer ones.
+   */
+  public long rejectedCallsCount() {
+    return rejectedCallsCount.get();
+  }
+
+  public int runningCallsCount() {
+    if (concurrentAdmission) {
+      return runningAsyncCallsCount.get() + concurrentRunningSyncCalls.size();
+    }
+    synchronized (this) {
+      return runningAsyncCalls.size() + runningSyncCalls.size();
+    }
+  }
+
+  /** What to do with calls that are enqueued when the ready queue is full. */
+  public enum QueueOverflowPolicy {
+    /** Fail the enqueued call immediately by calling {@link Callback#onFailure}. */
+    REJECT,
+
+    /**
+     * Fail the ready call that was enqueued first by calling its {@link Callback#onFailure}, and
+     * enqueue the new call in its place. The dropped call's callback runs on the thread that
+     * enqueued the new call.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Block the thread calling {@link Call#enqueue} until the queue has space. Don't use this
+     * policy if calls are enqueued from callbacks: if every running call's callback is blocked, no
+     * call can complete to make space. If the enqueuing thread is interrupted the call fails.
+     */
+    BLOCK
   }
 
-  public synchronized int runningCallsCount() {
-    return runningAsyncCalls.size() + runningSyncCalls.size();
+  /** Ready and running calls to a single host. Guarded by itself. */
+  final class HostCalls {
+    final String host;
+
+    /** Ready calls to this host in the order they'll be run. */
+    final NavigableSet<AsyncCall> readyCalls = new TreeSet<>(READY_CALL_ORDER);
+
+    /** Running calls to this host, not including web sockets. */
+    int runningCallsCount;
+
+    /** True if this is in {@link #hostsAwaitingCapacity}. */
+    boolean awaitingCapacity;
+
+    /** True if this was removed from {@link #hosts} and must not be used to admit new calls. */
+    boolean removed;
+
+    HostCalls(String host) {
+      this.host = host;
+    }
+
+    /** Returns true if {@code call} was admitted and should be executed. */
+    boolean tryAdmit(AsyncCall call) {
+      assert Thread.holdsLock(this);
+      if (!hasHostCapacity(call)) return false;
+      if (!tryAcquireRunningSlot()) return false;
+      if (!call.get().forWebSocket) runningCallsCount++;
+      concurrentRunningAsyncCalls.add(call);
+      return true;
+    }
+
+    /** Returns true if {@code call} is not limited by {@link #maxRequestsForHost}. */
+    boolean hasHostCapacity(AsyncCall call) {
+      assert Thread.holdsLock(this);
+      return call.get().forWebSocket || runningCallsCount < maxRequestsForHost(call);
+    }
+
+    synchronized List<AsyncCall> readyCalls() {
+      return new ArrayList<>(readyCalls);
+    }
   }
 }
@@ -128,11 +128,34 @@ public abstract class EventListener {
   /**
    * Invoked immediately after a TLS connection was attempted.
    *
-   * <p>This method is invoked after {@link #secureConnectStart}.
+   * <p>This method is invoked after {@link #secureConnectStart}. If the handshake succeeded, it is
+   * invoked after {@link #tlsSessionCacheHit} or {@link #tlsSessionCacheMiss}.
    */
   public void secureConnectEnd(Call call, @Nullable Handshake handshake) {
   }
 
+  /**
+   * Invoked after a TLS handshake resumed a session held by the connection pool's {@linkplain
+   * ConnectionPool#tlsSessionCache() TLS session cache}, skipping the certificate exchange and key
+   * agreement of a full handshake.
+   *
+   * <p>This method is invoked after {@link #secureConnectStart} and before {@link
+   * #secureConnectEnd}, once the handshake's certificates have been accepted.
+   */
+  public void tlsSessionCacheHit(Call call) {
+  }
+
+  /**
+   * Invoked after a TLS handshake negotiated a new session because the connection pool's
+   * {@linkplain ConnectionPool#tlsSessionCache() TLS session cache} held no resumable session for
+   * the address.
+   *
+   * <p>This method is invoked after {@link #secureConnectStart} and before {@link
+   * #secureConnectEnd}, once the handshake's certificates have been accepted.
+   */
+  public void tlsSessionCacheMiss(Call call) {
+  }
+
   /**
    * Invoked immediately after a socket connection was attempted.
    *
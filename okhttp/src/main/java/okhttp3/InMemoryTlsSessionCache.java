@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A {@link TlsSessionCache} that holds the most recent session of each address in a bounded LRU.
+ * This is the default cache of each {@link ConnectionPool}.
+ *
+ * <p>When a handshake fails, or its certificates fail hostname verification or certificate
+ * pinning, the address's session is invalidated and the next connection performs a full
+ * handshake. When an address is evicted to make room, its session is left to the TLS provider,
+ * which may still resume it.
+ *
+ * <h3>Cache Optimization</h3>
+ *
+ * <p>To measure cache effectiveness, this class tracks three statistics:
+ * <ul>
+ *     <li><strong>{@linkplain #handshakeCount() Handshake Count:}</strong> the number of TLS
+ *         handshakes that completed since this cache was created.
+ *     <li><strong>{@linkplain #hitCount() Hit Count:}</strong> the number of those handshakes that
+ *         resumed a cached session.
+ *     <li><strong>{@linkplain #missCount() Miss Count:}</strong> the number of those handshakes
+ *         that negotiated a new session.
+ * </ul>
+ *
+ * <p>These counts are updated before {@link EventListener#secureConnectEnd} is invoked.
+ */
+public final class InMemoryTlsSessionCache implements TlsSessionCache {
+  private final int maxSize;
+
+  /** The most recent session of each address, least recently used first. Guarded by this. */
+  private final LinkedHashMap<Address, SSLSession> sessions;
+
+  private int hitCount;
+  private int missCount;
+
+  public InMemoryTlsSessionCache(int maxSize) {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize < 1: " + maxSize);
+    this.maxSize = maxSize;
+    this.sessions = new LinkedHashMap<Address, SSLSession>(0, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Address, SSLSession> eldest) {
+        return size() > InMemoryTlsSessionCache.this.maxSize;
+      }
+    };
+  }
+
+  @Override public synchronized boolean handshakeSucceeded(Address address, SSLSession session) {
+    SSLSession cached = sessions.put(address, session);
+    if (cached != null && cached.isValid() && Arrays.equals(cached.getId(), session.getId())) {
+      hitCount++;
+      return true;
+    } else {
+      missCount++;
+      return false;
+    }
+  }
+
+  @Override public void handshakeFailed(Address address, @Nullable SSLSession session) {
+    SSLSession cached;
+    synchronized (this) {
+      cached = sessions.remove(address);
+    }
+    if (cached != null) cached.invalidate();
+    if (session != null) session.invalidate();
+  }
+
+  @Override public void evictAll() {
+    List<SSLSession> evicted;
+    synchronized (this) {
+      evicted = new ArrayList<>(sessions.values());
+      sessions.clear();
+    }
+    for (int i = 0, size = evicted.size(); i < size; i++) {
+      evicted.get(i).invalidate();
+    }
+  }
+
+  /** Returns the number of addresses with cached sessions. */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  public synchronized int handshakeCount() {
+    return hitCount + missCount;
+  }
+
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  public synchronized int missCount() {
+    return missCount;
+  }
+}
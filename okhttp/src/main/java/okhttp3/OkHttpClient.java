@@ -28,6 +28,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.net.SocketFactory;
@@ -39,7 +42,9 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 import okhttp3.internal.Internal;
+import okhttp3.internal.NamedRunnable;
 import okhttp3.internal.Util;
+import okhttp3.internal.cache.CoalescingInterceptor;
 import okhttp3.internal.cache.InternalCache;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
@@ -150,11 +155,20 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         return pool.connectionBecameIdle(connection);
       }
 
+      @Override public void multiplexedConnectionChanged(
+          ConnectionPool pool, RealConnection connection) {
+        pool.multiplexedConnectionChanged(connection);
+      }
+
       @Override public RealConnection get(ConnectionPool pool, Address address,
           StreamAllocation streamAllocation, Route route) {
         return pool.get(address, streamAllocation, route);
       }
 
+      @Override public boolean hasConnection(ConnectionPool pool, Address address) {
+        return pool.hasConnection(address);
+      }
+
       @Override public boolean equalsNonHost(Address a, Address b) {
         return a.equalsNonHost(b);
       }
@@ -168,6 +182,24 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         pool.put(connection);
       }
 
+      @Override public boolean reserveConnection(ConnectionPool pool, Address address) {
+        return pool.reserveConnection(address);
+      }
+
+      @Override public void releaseReservation(ConnectionPool pool, Address address) {
+        pool.releaseReservation(address);
+      }
+
+      @Override public boolean joinNonBlockingConnect(
+          ConnectionPool pool, Address address, Runnable callback) {
+        return pool.joinNonBlockingConnect(address, callback);
+      }
+
+      @Override public List<Runnable> finishNonBlockingConnect(
+          ConnectionPool pool, Address address) {
+        return pool.finishNonBlockingConnect(address);
+      }
+
       @Override public RouteDatabase routeDatabase(ConnectionPool connectionPool) {
         return connectionPool.routeDatabase;
       }
@@ -193,6 +225,15 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       @Override public Call newWebSocketCall(OkHttpClient client, Request originalRequest) {
         return RealCall.newRealCall(client, originalRequest, true);
       }
+
+      @Override public ThreadFactory threadFactory(
+          OkHttpClient client, String name, boolean daemon) {
+        return client.dispatcher.threadFactory(name, daemon);
+      }
+
+      @Override public @Nullable ScheduledExecutorService scheduler(OkHttpClient client) {
+        return client.scheduler;
+      }
     };
   }
 
@@ -209,6 +250,8 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
   final @Nullable InternalCache internalCache;
   final SocketFactory socketFactory;
   final @Nullable SSLSocketFactory sslSocketFactory;
+  /** The context that created {@link #sslSocketFactory}, if it is known. */
+  final @Nullable SSLContext sslContext;
   final @Nullable CertificateChainCleaner certificateChainCleaner;
   final HostnameVerifier hostnameVerifier;
   final CertificatePinner certificatePinner;
@@ -219,6 +262,11 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
   final boolean followSslRedirects;
   final boolean followRedirects;
   final boolean retryOnConnectionFailure;
+  final @Nullable CoalescingInterceptor coalescingInterceptor;
+  final boolean fastFallback;
+  final boolean nonBlockingHandshakes;
+  final boolean nioTransport;
+  final @Nullable ScheduledExecutorService scheduler;
   final int connectTimeout;
   final int readTimeout;
   final int writeTimeout;
@@ -249,10 +297,12 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
 
     if (builder.sslSocketFactory != null || !isTLS) {
       this.sslSocketFactory = builder.sslSocketFactory;
+      this.sslContext = builder.sslContext;
       this.certificateChainCleaner = builder.certificateChainCleaner;
     } else {
       X509TrustManager trustManager = systemDefaultTrustManager();
-      this.sslSocketFactory = systemDefaultSslSocketFactory(trustManager);
+      this.sslContext = systemDefaultSslContext(trustManager);
+      this.sslSocketFactory = sslContext.getSocketFactory();
       this.certificateChainCleaner = CertificateChainCleaner.get(trustManager);
     }
 
@@ -270,6 +320,13 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     this.followSslRedirects = builder.followSslRedirects;
     this.followRedirects = builder.followRedirects;
     this.retryOnConnectionFailure = builder.retryOnConnectionFailure;
+    this.coalescingInterceptor = builder.coalesceRequests ? new CoalescingInterceptor() : null;
+    this.fastFallback = builder.fastFallback;
+    this.nonBlockingHandshakes = builder.nonBlockingHandshakes;
+    this.nioTransport = builder.nioTransport;
+    this.scheduler = builder.sharedScheduler
+        ? (builder.scheduler != null ? builder.scheduler : newScheduler())
+        : null;
     this.connectTimeout = builder.connectTimeout;
     this.readTimeout = builder.readTimeout;
     this.writeTimeout = builder.writeTimeout;
@@ -299,16 +356,26 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     }
   }
 
-  private SSLSocketFactory systemDefaultSslSocketFactory(X509TrustManager trustManager) {
+  private SSLContext systemDefaultSslContext(X509TrustManager trustManager) {
     try {
       SSLContext sslContext = Platform.get().getSSLContext();
       sslContext.init(null, new TrustManager[] { trustManager }, null);
-      return sslContext.getSocketFactory();
+      return sslContext;
     } catch (GeneralSecurityException e) {
       throw assertionError("No System TLS", e); // The system has no TLS. Just give up.
     }
   }
 
+  /** Returns a pool with a thread per core whose threads exit when they've been idle a minute. */
+  private static ScheduledExecutorService newScheduler() {
+    ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(
+        Math.max(2, Runtime.getRuntime().availableProcessors()),
+        Util.threadFactory("OkHttp Scheduler", true));
+    result.setKeepAliveTime(60, TimeUnit.SECONDS);
+    result.allowCoreThreadTimeOut(true);
+    return result;
+  }
+
   /** Default connect timeout (in milliseconds). */
   public int connectTimeoutMillis() {
     return connectTimeout;
@@ -393,6 +460,26 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return retryOnConnectionFailure;
   }
 
+  public boolean coalesceRequests() {
+    return coalescingInterceptor != null;
+  }
+
+  public boolean fastFallback() {
+    return fastFallback;
+  }
+
+  public boolean nonBlockingHandshakes() {
+    return nonBlockingHandshakes;
+  }
+
+  public boolean nioTransport() {
+    return nioTransport;
+  }
+
+  public boolean sharedScheduler() {
+    return scheduler != null;
+  }
+
   public Dispatcher dispatcher() {
     return dispatcher;
   }
@@ -443,6 +530,34 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return webSocket;
   }
 
+  /**
+   * Asynchronously connects to {@code url}'s host so that calls to it don't need to wait for DNS,
+   * TCP, and TLS. Up to {@code connections} connections are established one at a time and added to
+   * this client's {@linkplain #connectionPool() connection pool} as idle connections. Fewer are
+   * established if the host supports HTTP/2, because one connection can carry many calls, or if
+   * the host's {@linkplain ConnectionPool#setHostPolicy policy} limits its connections.
+   *
+   * <p>Progress is reported to this client's {@linkplain EventListener event listener} as a call
+   * to {@code url} that doesn't send a request. That call's events include each connection's DNS
+   * and connect events, and it ends with either {@link EventListener#callEnd callEnd} or {@link
+   * EventListener#callFailed callFailed}.
+   *
+   * <p>Idle connections are subject to the pool's keep alive duration. Use a host policy with
+   * {@linkplain ConnectionPool.HostPolicy.Builder#minIdleConnections minimum idle connections} to
+   * keep them open.
+   */
+  public void prewarm(HttpUrl url, final int connections) {
+    if (url == null) throw new NullPointerException("url == null");
+    if (connections < 1) throw new IllegalArgumentException("connections < 1: " + connections);
+
+    final RealCall call = RealCall.newRealCall(this, new Request.Builder().url(url).build(), false);
+    dispatcher.executorService().execute(new NamedRunnable("OkHttp Prewarm %s", url.redact()) {
+      @Override protected void execute() {
+        call.prewarm(connections);
+      }
+    });
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -461,6 +576,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     @Nullable InternalCache internalCache;
     SocketFactory socketFactory;
     @Nullable SSLSocketFactory sslSocketFactory;
+    @Nullable SSLContext sslContext;
     @Nullable CertificateChainCleaner certificateChainCleaner;
     HostnameVerifier hostnameVerifier;
     CertificatePinner certificatePinner;
@@ -471,6 +587,12 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     boolean followSslRedirects;
     boolean followRedirects;
     boolean retryOnConnectionFailure;
+    boolean coalesceRequests;
+    boolean fastFallback;
+    boolean nonBlockingHandshakes;
+    boolean nioTransport;
+    boolean sharedScheduler;
+    @Nullable ScheduledExecutorService scheduler;
     int connectTimeout;
     int readTimeout;
     int writeTimeout;
@@ -513,6 +635,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       this.cache = okHttpClient.cache;
       this.socketFactory = okHttpClient.socketFactory;
       this.sslSocketFactory = okHttpClient.sslSocketFactory;
+      this.sslContext = okHttpClient.sslContext;
       this.certificateChainCleaner = okHttpClient.certificateChainCleaner;
       this.hostnameVerifier = okHttpClient.hostnameVerifier;
       this.certificatePinner = okHttpClient.certificatePinner;
@@ -523,6 +646,12 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       this.followSslRedirects = okHttpClient.followSslRedirects;
       this.followRedirects = okHttpClient.followRedirects;
       this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+      this.coalesceRequests = okHttpClient.coalescingInterceptor != null;
+      this.fastFallback = okHttpClient.fastFallback;
+      this.nonBlockingHandshakes = okHttpClient.nonBlockingHandshakes;
+      this.nioTransport = okHttpClient.nioTransport;
+      this.sharedScheduler = okHttpClient.scheduler != null;
+      this.scheduler = okHttpClient.scheduler;
       this.connectTimeout = okHttpClient.connectTimeout;
       this.readTimeout = okHttpClient.readTimeout;
       this.writeTimeout = okHttpClient.writeTimeout;
@@ -674,6 +803,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     public Builder sslSocketFactory(SSLSocketFactory sslSocketFactory) {
       if (sslSocketFactory == null) throw new NullPointerException("sslSocketFactory == null");
       this.sslSocketFactory = sslSocketFactory;
+      this.sslContext = null;
       this.certificateChainCleaner = Platform.get().buildCertificateChainCleaner(sslSocketFactory);
       return this;
     }
@@ -713,6 +843,22 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       if (sslSocketFactory == null) throw new NullPointerException("sslSocketFactory == null");
       if (trustManager == null) throw new NullPointerException("trustManager == null");
       this.sslSocketFactory = sslSocketFactory;
+      this.sslContext = null;
+      this.certificateChainCleaner = CertificateChainCleaner.get(trustManager);
+      return this;
+    }
+
+    /**
+     * Sets the SSL context and trust manager used to secure HTTPS connections. This is like {@link
+     * #sslSocketFactory(SSLSocketFactory, X509TrustManager)} with the context's socket factory, but
+     * it also permits {@linkplain #nonBlockingHandshakes non-blocking handshakes}, which need
+     * engines from the context.
+     */
+    public Builder sslContext(SSLContext sslContext, X509TrustManager trustManager) {
+      if (sslContext == null) throw new NullPointerException("sslContext == null");
+      if (trustManager == null) throw new NullPointerException("trustManager == null");
+      this.sslSocketFactory = sslContext.getSocketFactory();
+      this.sslContext = sslContext;
       this.certificateChainCleaner = CertificateChainCleaner.get(trustManager);
       return this;
     }
@@ -815,6 +961,101 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       return this;
     }
 
+    /**
+     * Configure this client to coalesce concurrent identical GET requests. When enabled, a call
+     * whose request has the same URL and headers as a call that is already in flight waits for
+     * that call's response instead of making its own request. Each waiting call receives a copy of
+     * the response with its own {@link ResponseBody}. This protects servers and the {@link Cache}
+     * from a thundering herd of requests for the same resource.
+     *
+     * <p>Calls only wait for a call whose response headers haven't arrived yet. If no call is
+     * waiting when they arrive, the response body streams as usual. Otherwise the calls share the
+     * body as they read it, and bytes that some calls have yet to read are held in memory. A call
+     * that falls more than 1 MiB behind the others fails. If the in-flight call fails, the waiting
+     * calls fail with it unless it was canceled.
+     *
+     * <p>Calls made by different clients are never coalesced, even if the clients were created
+     * with {@link OkHttpClient#newBuilder()}. Coalescing is disabled by default.
+     */
+    public Builder coalesceRequests(boolean coalesceRequests) {
+      this.coalesceRequests = coalesceRequests;
+      return this;
+    }
+
+    /**
+     * Configure this client to race connections to a host's IP addresses. When enabled and a host
+     * has multiple IP addresses, this client alternates between IPv6 and IPv4 addresses and starts
+     * a new connect attempt every 250 ms until one succeeds, as recommended by RFC 8305 (Happy
+     * Eyeballs). The first socket to connect is used and the other attempts are canceled. This
+     * avoids waiting for the {@linkplain #connectTimeout connect timeout} when an address is
+     * unreachable, as is common on networks with broken IPv6.
+     *
+     * <p>Each attempt is reported to the {@link EventListener} with {@code connectStart()}, and
+     * each attempt that fails or is canceled with {@code connectFailed()}. Connections through
+     * proxies are not raced. Fast fallback is disabled by default.
+     */
+    public Builder fastFallback(boolean fastFallback) {
+      this.fastFallback = fastFallback;
+      return this;
+    }
+
+    /**
+     * Configure this client to connect HTTPS calls that are {@linkplain Call#enqueue enqueued}
+     * without blocking a thread on the TCP and TLS handshakes. When enabled and no pooled
+     * connection is available, the call's connection is established by a small pool of selector
+     * threads that drive {@link javax.net.ssl.SSLEngine SSL engines} over non-blocking channels.
+     * The call counts against the {@linkplain Dispatcher dispatcher's} limits while it connects
+     * but doesn't occupy one of its threads, and calls to the same address share a single
+     * in-flight connect. This lets a few threads hold thousands of in-progress handshakes, as
+     * during a reconnect storm.
+     *
+     * <p>If the non-blocking connect fails the call connects normally. Non-blocking handshakes
+     * need the SSL context of this client's socket factory, so they aren't used if the factory
+     * was set with {@link #sslSocketFactory}; use {@link #sslContext} instead. They also aren't
+     * used with proxies or a custom {@link #socketFactory socket factory}. Non-blocking handshakes
+     * are disabled by default.
+     */
+    public Builder nonBlockingHandshakes(boolean nonBlockingHandshakes) {
+      this.nonBlockingHandshakes = nonBlockingHandshakes;
+      return this;
+    }
+
+    /**
+     * Configure this client to read and write new connections with a shared pool of selector
+     * threads, one per core, instead of with blocking sockets. HTTP/2 connections don't need a
+     * reader thread of their own; their frames are read by the selector threads as they arrive.
+     * Their outbound frames are queued and written by a single writer loop per connection, which
+     * coalesces small frames into one write. HTTP/1.1 calls still block their own thread while
+     * they wait for a response.
+     *
+     * <p>Only direct and HTTP proxy routes for cleartext URLs using the default {@link
+     * #socketFactory socket factory} are eligible, plus HTTPS connections that were established by
+     * {@linkplain #nonBlockingHandshakes non-blocking handshakes}. Other connections use blocking
+     * sockets. The NIO transport is disabled by default.
+     */
+    public Builder nioTransport(boolean nioTransport) {
+      this.nioTransport = nioTransport;
+      return this;
+    }
+
+    /**
+     * Configure this client to run the background work of its HTTP/2 connections on a small shared
+     * pool with a thread per core, instead of on threads owned by each connection. This includes
+     * writing window updates and stream resets, acknowledging settings, sending pings, and
+     * delivering settings and pushed streams. Each connection's work still runs in order.
+     *
+     * <p>The pool's tasks only queue frames, so they never block on a socket. Connections that use
+     * the {@linkplain #nioTransport NIO transport} also write and read their frames on shared
+     * threads without blocking. Other connections write frames on a shared pool of threads that
+     * are only held while a socket accepts bytes, and read frames on a thread of their own.
+     * Clients created with {@link OkHttpClient#newBuilder} share this client's pool. The shared
+     * scheduler is disabled by default.
+     */
+    public Builder sharedScheduler(boolean sharedScheduler) {
+      this.sharedScheduler = sharedScheduler;
+      return this;
+    }
+
     /**
      * Sets the dispatcher used to set policy and execute asynchronous requests. Must not be null.
      */
@@ -16,11 +16,18 @@
 package okhttp3;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
 import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.TimingWheel;
 import okhttp3.internal.cache.CacheInterceptor;
 import okhttp3.internal.connection.ConnectInterceptor;
+import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.StreamAllocation;
 import okhttp3.internal.http.BridgeInterceptor;
 import okhttp3.internal.http.CallServerInterceptor;
@@ -28,9 +35,12 @@ import okhttp3.internal.http.RealInterceptorChain;
 import okhttp3.internal.http.RetryAndFollowUpInterceptor;
 import okhttp3.internal.platform.Platform;
 
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 import static okhttp3.internal.platform.Platform.INFO;
 
 final class RealCall implements Call {
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
   final OkHttpClient client;
   final RetryAndFollowUpInterceptor retryAndFollowUpInterceptor;
 
@@ -124,6 +134,24 @@ final class RealCall implements Call {
   final class AsyncCall extends NamedRunnable {
     private final Callback responseCallback;
 
+    /** The order in which this call was enqueued. Assigned by the dispatcher. */
+    long sequence;
+
+    /** When this call started using the network, or -1 if it hasn't. */
+    long startNanos = -1L;
+
+    /** How long this call took to receive a response or fail, or -1 if it hasn't completed. */
+    long latencyNanos = -1L;
+
+    /** True if this call failed or its response indicates that the server is overloaded. */
+    boolean failed;
+
+    /** Fails this call if it is still ready at its deadline. Guarded by its ready queue's lock. */
+    @Nullable TimingWheel.Timeout deadlineTimeout;
+
+    /** True once this call has tried to connect without blocking a thread on its handshakes. */
+    private boolean connectAttempted;
+
     AsyncCall(Callback responseCallback) {
       super("OkHttp %s", redactedUrl());
       this.responseCallback = responseCallback;
@@ -141,10 +169,26 @@ final class RealCall implements Call {
       return RealCall.this;
     }
 
+    /** Returns true if this call's deadline was reached before it could start. */
+    boolean deadlineReached() {
+      return originalRequest.hasDeadline
+          && originalRequest.deadlineNanoTime - System.nanoTime() <= 0;
+    }
+
     @Override protected void execute() {
+      if (!connectAttempted
+          && !deadlineReached()
+          && !isCanceled()
+          && connectNonBlocking()) {
+        return; // We'll be executed again.
+      }
+
       boolean signalledCallback = false;
       try {
+        if (deadlineReached()) throw new InterruptedIOException("deadline reached");
+        startNanos = System.nanoTime();
         Response response = getResponseWithInterceptorChain();
+        completed(response.code() == HTTP_UNAVAILABLE || response.code() == HTTP_TOO_MANY_REQUESTS);
         if (retryAndFollowUpInterceptor.isCanceled()) {
           signalledCallback = true;
           responseCallback.onFailure(RealCall.this, new IOException("Canceled"));
@@ -157,6 +201,7 @@ final class RealCall implements Call {
           // Do not signal the callback twice!
           Platform.get().log(INFO, "Callback failure for " + toLoggableString(), e);
         } else {
+          if (startNanos != -1L) completed(true);
           eventListener.callFailed(RealCall.this, e);
           responseCallback.onFailure(RealCall.this, e);
         }
@@ -164,6 +209,87 @@ final class RealCall implements Call {
         client.dispatcher().finished(this);
       }
     }
+
+    /**
+     * Connects a connection for this call without blocking a thread on its handshakes. Returns true
+     * if connecting has started, in which case this call is executed again once it completes; the
+     * call keeps its place among the dispatcher's running calls meanwhile. If connecting fails the
+     * call connects normally when it is executed again.
+     */
+    private boolean connectNonBlocking() {
+      connectAttempted = true;
+      if (!client.nonBlockingHandshakes
+          || client.sslContext == null
+          || client.socketFactory != SocketFactory.getDefault()
+          || !originalRequest.isHttps()) {
+        return false;
+      }
+
+      Runnable resume = new Runnable() {
+        @Override public void run() {
+          try {
+            client.dispatcher().executorService().execute(AsyncCall.this);
+          } catch (RejectedExecutionException e) {
+            InterruptedIOException ioException = new InterruptedIOException("executor rejected");
+            ioException.initCause(e);
+            rejected(ioException);
+            client.dispatcher().finished(AsyncCall.this);
+          }
+        }
+      };
+      try {
+        Address address = retryAndFollowUpInterceptor.createAddress(originalRequest.url());
+        StreamAllocation streamAllocation = new StreamAllocation(
+            client.connectionPool(), address, RealCall.this, eventListener, null);
+        if (!retryAndFollowUpInterceptor.connecting(streamAllocation)) return false; // Canceled.
+        return streamAllocation.connectNonBlocking(client.sslContext,
+            client.connectTimeoutMillis(), client.readTimeoutMillis(),
+            client.writeTimeoutMillis(), client.pingIntervalMillis(),
+            client.dispatcher().threadFactory("OkHttp Http2Connection", false),
+            client.nioTransport(), client.scheduler, client.retryOnConnectionFailure(), resume);
+      } catch (IOException e) {
+        Platform.get().log(INFO, "Failed to connect " + toLoggableString(), e);
+        return false;
+      }
+    }
+
+    /** Fails this call without running it. Used when the dispatcher's queue is full. */
+    void rejected(IOException e) {
+      eventListener.callFailed(RealCall.this, e);
+      responseCallback.onFailure(RealCall.this, e);
+    }
+
+    private void completed(boolean failed) {
+      this.latencyNanos = System.nanoTime() - startNanos;
+      this.failed = failed;
+    }
+  }
+
+  /**
+   * Connects up to {@code connections} connections to this call's URL and pools them as idle
+   * connections without sending a request. Stops early if an HTTP/2 connection is established
+   * because one is sufficient, or if the host has its maximum number of connections.
+   */
+  void prewarm(int connections) {
+    eventListener.callStart(this);
+    try {
+      Address address = retryAndFollowUpInterceptor.createAddress(originalRequest.url());
+      ThreadFactory threadFactory = client.dispatcher().threadFactory(
+          "OkHttp Http2Connection", false);
+      for (int i = 0; i < connections; i++) {
+        StreamAllocation streamAllocation = new StreamAllocation(
+            client.connectionPool(), address, this, eventListener, null);
+        RealConnection connection = streamAllocation.prewarm(client.connectTimeoutMillis(),
+            client.readTimeoutMillis(), client.writeTimeoutMillis(), client.pingIntervalMillis(),
+            threadFactory, client.nioTransport(), client.scheduler,
+            client.retryOnConnectionFailure());
+        if (connection == null || connection.isMultiplexed()) break;
+      }
+      eventListener.callEnd(this);
+    } catch (IOException e) {
+      eventListener.callFailed(this, e);
+      Platform.get().log(INFO, "Failed to prewarm " + toLoggableString(), e);
+    }
   }
 
   /**
@@ -184,6 +310,9 @@ final class RealCall implements Call {
     // Build a full stack of interceptors.
     List<Interceptor> interceptors = new ArrayList<>();
     interceptors.addAll(client.interceptors());
+    if (client.coalescingInterceptor != null && !forWebSocket) {
+      interceptors.add(client.coalescingInterceptor);
+    }
     interceptors.add(retryAndFollowUpInterceptor);
     interceptors.add(new BridgeInterceptor(client.cookieJar()));
     interceptors.add(new CacheInterceptor(client.internalCache()));
@@ -17,6 +17,7 @@ package okhttp3;
 
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import okhttp3.internal.Util;
 import okhttp3.internal.http.HttpMethod;
@@ -31,6 +32,10 @@ public final class Request {
   final Headers headers;
   final @Nullable RequestBody body;
   final Object tag;
+  final int priority;
+  final int weight;
+  final boolean hasDeadline;
+  final long deadlineNanoTime;
 
   private volatile CacheControl cacheControl; // Lazily initialized.
 
@@ -40,6 +45,10 @@ public final class Request {
     this.headers = builder.headers.build();
     this.body = builder.body;
     this.tag = builder.tag != null ? builder.tag : this;
+    this.priority = builder.priority;
+    this.weight = builder.weight;
+    this.hasDeadline = builder.hasDeadline;
+    this.deadlineNanoTime = builder.deadlineNanoTime;
   }
 
   public HttpUrl url() {
@@ -70,6 +79,37 @@ public final class Request {
     return tag;
   }
 
+  /**
+   * Returns the priority of this request when it is {@linkplain Call#enqueue enqueued}. Ready calls
+   * with a higher priority are started before calls with a lower priority. The default is 0.
+   */
+  public int priority() {
+    return priority;
+  }
+
+  /**
+   * Returns the weight of this request's stream when it shares an HTTP/2 connection with other
+   * streams. Between 1 and 256; the default is 16.
+   */
+  public int weight() {
+    return weight;
+  }
+
+  /** Returns true if a deadline is enabled. */
+  public boolean hasDeadline() {
+    return hasDeadline;
+  }
+
+  /**
+   * Returns the {@linkplain System#nanoTime() nano time} when this request's deadline is reached.
+   *
+   * @throws IllegalStateException if no deadline is set.
+   */
+  public long deadlineNanoTime() {
+    if (!hasDeadline) throw new IllegalStateException("No deadline");
+    return deadlineNanoTime;
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -103,10 +143,15 @@ public final class Request {
     Headers.Builder headers;
     RequestBody body;
     Object tag;
+    int priority;
+    int weight;
+    boolean hasDeadline;
+    long deadlineNanoTime;
 
     public Builder() {
       this.method = "GET";
       this.headers = new Headers.Builder();
+      this.weight = 16;
     }
 
     Builder(Request request) {
@@ -115,6 +160,10 @@ public final class Request {
       this.body = request.body;
       this.tag = request.tag;
       this.headers = request.headers.newBuilder();
+      this.priority = request.priority;
+      this.weight = request.weight;
+      this.hasDeadline = request.hasDeadline;
+      this.deadlineNanoTime = request.deadlineNanoTime;
     }
 
     public Builder url(HttpUrl url) {
@@ -252,6 +301,58 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Sets the priority of this request when it is {@linkplain Call#enqueue enqueued}. When the
+     * {@link Dispatcher} has more ready calls than it can run, calls with a higher priority start
+     * first. Calls with equal priority start in the order of their deadlines, and then in the order
+     * they were enqueued. Synchronous calls are not affected by priority.
+     */
+    public Builder priority(int priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * Sets the weight of this request's stream when it shares an HTTP/2 connection with other
+     * streams. When the connection's flow-control window is contended, streams that are uploading
+     * request bodies share it in proportion to their weights: a stream with weight 64 sends about
+     * four times as many bytes as a stream with weight 16. Give bulk uploads a low weight so that
+     * small interactive requests on the same connection aren't starved.
+     *
+     * @param weight between 1 and 256. The default is 16.
+     */
+    public Builder weight(int weight) {
+      if (weight < 1 || weight > 256) {
+        throw new IllegalArgumentException("weight < 1 || weight > 256: " + weight);
+      }
+      this.weight = weight;
+      return this;
+    }
+
+    /**
+     * Sets the {@linkplain System#nanoTime() nano time} by which an enqueued call for this request
+     * must start. Ready calls with earlier deadlines start before calls with later deadlines. If
+     * the deadline is reached while the call is still queued it fails without connecting.
+     */
+    public Builder deadlineNanoTime(long deadlineNanoTime) {
+      this.hasDeadline = true;
+      this.deadlineNanoTime = deadlineNanoTime;
+      return this;
+    }
+
+    /** Set a deadline of now plus {@code duration} time. */
+    public Builder deadline(long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException("duration <= 0: " + duration);
+      if (unit == null) throw new NullPointerException("unit == null");
+      return deadlineNanoTime(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /** Clears the deadline. */
+    public Builder clearDeadline() {
+      this.hasDeadline = false;
+      return this;
+    }
+
     public Request build() {
       if (url == null) throw new IllegalStateException("url == null");
       return new Request(this);
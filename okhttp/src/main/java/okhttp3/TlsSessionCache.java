@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Tracks the TLS sessions established by a {@link ConnectionPool}'s connections so that new
+ * connections to the same address can resume them. Resuming a session skips the certificate
+ * exchange and key agreement of a full handshake, saving CPU and a round trip. The default
+ * implementation is {@link InMemoryTlsSessionCache}.
+ *
+ * <p>Sessions are resumed by the TLS provider when a new socket is created by the same {@link
+ * javax.net.ssl.SSLSocketFactory} for the same host and port. A cache observes each handshake and
+ * decides which sessions may be resumed: it must {@linkplain SSLSession#invalidate() invalidate}
+ * sessions that shouldn't be.
+ *
+ * <h3>Persistence</h3>
+ *
+ * <p>JSSE has no API to serialize a session, nor to offer a saved session to a new socket. Sessions
+ * therefore live only as long as the {@link javax.net.ssl.SSLSessionContext} that created them, and
+ * a cache can't persist them to disk to resume them after the process restarts.
+ *
+ * <p>Implementations must be thread-safe. Each method is invoked on the thread that performed the
+ * handshake, before {@link EventListener#secureConnectEnd} is invoked.
+ */
+public interface TlsSessionCache {
+  /**
+   * Records that a handshake with {@code address} established {@code session} and that its
+   * certificates were accepted. Returns true if the handshake resumed a session that this cache
+   * held for {@code address}; this is reported to {@link EventListener#tlsSessionCacheHit}.
+   * Otherwise this returns false, which is reported to {@link EventListener#tlsSessionCacheMiss}.
+   */
+  boolean handshakeSucceeded(Address address, SSLSession session);
+
+  /**
+   * Invalidates the session of {@code address} so that it isn't resumed. This is invoked if a
+   * handshake fails or its certificates aren't accepted. If {@code session} is non-null it must be
+   * invalidated too.
+   */
+  void handshakeFailed(Address address, @Nullable SSLSession session);
+
+  /**
+   * Invalidates all sessions so that subsequent connections perform full handshakes. Call this
+   * after changing the trusted certificates or pins.
+   */
+  void evictAll();
+}
@@ -18,6 +18,10 @@ package okhttp3.internal;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLSocket;
 import okhttp3.Address;
 import okhttp3.Call;
@@ -56,6 +60,8 @@ public abstract class Internal {
   public abstract RealConnection get(ConnectionPool pool, Address address,
       StreamAllocation streamAllocation, Route route);
 
+  public abstract boolean hasConnection(ConnectionPool pool, Address address);
+
   public abstract boolean equalsNonHost(Address a, Address b);
 
   public abstract Socket deduplicate(
@@ -63,8 +69,19 @@ public abstract class Internal {
 
   public abstract void put(ConnectionPool pool, RealConnection connection);
 
+  public abstract boolean reserveConnection(ConnectionPool pool, Address address);
+
+  public abstract void releaseReservation(ConnectionPool pool, Address address);
+
+  public abstract boolean joinNonBlockingConnect(
+      ConnectionPool pool, Address address, Runnable callback);
+
+  public abstract List<Runnable> finishNonBlockingConnect(ConnectionPool pool, Address address);
+
   public abstract boolean connectionBecameIdle(ConnectionPool pool, RealConnection connection);
 
+  public abstract void multiplexedConnectionChanged(ConnectionPool pool, RealConnection connection);
+
   public abstract RouteDatabase routeDatabase(ConnectionPool connectionPool);
 
   public abstract int code(Response.Builder responseBuilder);
@@ -78,4 +95,8 @@ public abstract class Internal {
   public abstract StreamAllocation streamAllocation(Call call);
 
   public abstract Call newWebSocketCall(OkHttpClient client, Request request);
+
+  public abstract ThreadFactory threadFactory(OkHttpClient client, String name, boolean daemon);
+
+  public abstract @Nullable ScheduledExecutorService scheduler(OkHttpClient client);
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that runs its tasks one at a time, in the order they were submitted, on threads
+ * borrowed from a shared executor. This behaves like a single-threaded executor without keeping a
+ * thread of its own, so many of these can share a small pool.
+ *
+ * <p>Like a thread pool, this runs the tasks that were submitted before {@link #shutdown} and
+ * rejects those submitted after.
+ */
+public final class SerialExecutor extends AbstractExecutorService {
+  private final Executor executor;
+  private final Deque<Runnable> tasks = new ArrayDeque<>();
+  private final Runnable drain = new Runnable() {
+    @Override public void run() {
+      runTasks();
+    }
+  };
+
+  /** True if {@link #drain} has been submitted to the shared executor and hasn't yet finished. */
+  private boolean running;
+  private boolean shutdown;
+
+  public SerialExecutor(Executor executor) {
+    if (executor == null) throw new NullPointerException("executor == null");
+    this.executor = executor;
+  }
+
+  @Override public void execute(Runnable task) {
+    if (task == null) throw new NullPointerException("task == null");
+    synchronized (this) {
+      if (shutdown) throw new RejectedExecutionException("shutdown");
+      tasks.addLast(task);
+      if (running) return;
+      running = true;
+    }
+    submitDrain();
+  }
+
+  private void submitDrain() {
+    try {
+      executor.execute(drain);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        tasks.clear();
+        running = false;
+        notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  private void runTasks() {
+    boolean completed = false;
+    try {
+      while (true) {
+        Runnable task;
+        synchronized (this) {
+          task = tasks.pollFirst();
+          if (task == null) {
+            running = false;
+            notifyAll();
+            completed = true;
+            return;
+          }
+        }
+        task.run();
+      }
+    } finally {
+      // A task threw. Continue with the remaining tasks on another thread.
+      if (!completed) submitDrain();
+    }
+  }
+
+  @Override public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  @Override public synchronized List<Runnable> shutdownNow() {
+    shutdown = true;
+    List<Runnable> result = Collections.unmodifiableList(new ArrayList<>(tasks));
+    tasks.clear();
+    notifyAll();
+    return result;
+  }
+
+  @Override public synchronized boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override public synchronized boolean isTerminated() {
+    return shutdown && !running;
+  }
+
+  @Override public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long remainingNanos = unit.toNanos(timeout);
+    long deadlineNanos = System.nanoTime() + remainingNanos;
+    while (!isTerminated()) {
+      if (remainingNanos <= 0L) return false;
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+      remainingNanos = deadlineNanos - System.nanoTime();
+    }
+    return true;
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.platform.Platform;
+
+/**
+ * A hashed timing wheel that runs tasks after a delay. Scheduling and canceling a task take
+ * constant time no matter how many tasks are pending, which suits timeouts that are usually
+ * canceled before they elapse.
+ *
+ * <p>Time is divided into ticks of a fixed duration, and each pending task is kept in the bucket
+ * for the tick it is due. Tasks due more than one revolution of the wheel in the future wait in
+ * their bucket for later revolutions. Tasks run no earlier than they are due, and up to one tick
+ * late.
+ *
+ * <p>Tasks run on a single daemon thread that is started when a task is scheduled and that exits
+ * when no tasks remain. The thread sleeps until the earliest task scheduled since it last woke is
+ * due, and then wakes once per tick until no tasks remain. Neither costs more when more tasks are
+ * pending. Tasks should be brief: a slow task delays all others.
+ */
+public final class TimingWheel {
+  private final ThreadFactory threadFactory;
+  private final long tickNanos;
+  private final Timeout[] buckets;
+  private final long startNanos = System.nanoTime();
+
+  /** The first tick that hasn't been processed. Guarded by this. */
+  private long tick;
+  private int pendingCount;
+  private boolean running;
+
+  /**
+   * No pending task is due before this tick. This is lowered when a task is scheduled and raised to
+   * the next tick when a tick is processed. Guarded by this.
+   */
+  private long nextDueTick = Long.MAX_VALUE;
+
+  /** The tick that the worker thread is sleeping until, if it is sleeping. */
+  private long sleepingUntilTick = Long.MAX_VALUE;
+
+  private final Runnable worker = new Runnable() {
+    @Override public void run() {
+      while (true) {
+        List<Timeout> expired = nextTick();
+        if (expired == null) return;
+
+        for (int i = 0, size = expired.size(); i < size; i++) {
+          try {
+            expired.get(i).task.run();
+          } catch (RuntimeException e) {
+            Platform.get().log(Platform.WARN, "TimingWheel task failed", e);
+          }
+        }
+      }
+    }
+  };
+
+  /**
+   * @param name the name of the thread that runs tasks.
+   * @param ticksPerWheel the number of buckets. This is rounded up to a power of two.
+   */
+  public TimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("tickDuration <= 0: " + tickDuration);
+    }
+    if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+      throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+    }
+    this.threadFactory = Util.threadFactory(name, true);
+    this.tickNanos = unit.toNanos(tickDuration);
+    int bucketCount = 1;
+    while (bucketCount < ticksPerWheel) bucketCount <<= 1;
+    this.buckets = new Timeout[bucketCount];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new Timeout(null, 0L);
+    }
+  }
+
+  /** Runs {@code task} once {@code delay} has elapsed, unless it is canceled first. */
+  public synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (task == null) throw new NullPointerException("task == null");
+    if (delay < 0) throw new IllegalArgumentException("delay < 0: " + delay);
+
+    long elapsedNanos = System.nanoTime() - startNanos;
+    if (!running) {
+      // Nothing is pending so there's no reason to process the ticks that passed while idle.
+      tick = Math.max(tick, elapsedNanos / tickNanos);
+    }
+
+    long deadlineNanos = elapsedNanos + unit.toNanos(delay);
+    long deadlineTick = Math.max(tick, (deadlineNanos + tickNanos - 1) / tickNanos);
+    Timeout timeout = new Timeout(task, deadlineTick);
+    timeout.linkBefore(buckets[(int) (deadlineTick & (buckets.length - 1))]);
+    pendingCount++;
+    nextDueTick = Math.min(nextDueTick, deadlineTick);
+
+    if (!running) {
+      running = true;
+      threadFactory.newThread(worker).start();
+    } else if (deadlineTick < sleepingUntilTick) {
+      notifyAll(); // Wake the worker to sleep until this task is due instead.
+    }
+    return timeout;
+  }
+
+  /** Returns the number of tasks that are waiting to run. */
+  public synchronized int pendingCount() {
+    return pendingCount;
+  }
+
+  /**
+   * Waits for the next tick that has tasks due and returns those tasks, or null if no tasks remain
+   * and the worker thread should exit.
+   */
+  private synchronized List<Timeout> nextTick() {
+    while (true) {
+      if (pendingCount == 0) {
+        running = false;
+        nextDueTick = Long.MAX_VALUE;
+        return null;
+      }
+
+      // Ticks before the next due tick have nothing to run. Skip them.
+      long dueTick = Math.max(tick, nextDueTick);
+      long waitNanos = dueTick * tickNanos - (System.nanoTime() - startNanos);
+      if (waitNanos <= 0) {
+        tick = dueTick;
+        break;
+      }
+      try {
+        sleepingUntilTick = dueTick;
+        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Retain interrupted status.
+        running = false;
+        return null;
+      } finally {
+        sleepingUntilTick = Long.MAX_VALUE;
+      }
+    }
+
+    List<Timeout> expired = new ArrayList<>();
+    Timeout head = buckets[(int) (tick & (buckets.length - 1))];
+    for (Timeout timeout = head.next; timeout != head; ) {
+      Timeout next = timeout.next;
+      if (timeout.deadlineTick <= tick) {
+        timeout.unlink();
+        pendingCount--;
+        expired.add(timeout);
+      }
+      timeout = next;
+    }
+    tick++;
+
+    // Finding the earliest deadline of the remaining tasks would mean visiting them all. Instead
+    // visit each tick in turn until none remain.
+    nextDueTick = tick;
+    return expired;
+  }
+
+  /** A scheduled task. */
+  public final class Timeout {
+    final Runnable task;
+    final long deadlineTick;
+
+    /** Neighbors in this timeout's bucket, or null if it isn't pending. Guarded by the wheel. */
+    Timeout prev;
+    Timeout next;
+
+    Timeout(Runnable task, long deadlineTick) {
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+      this.prev = this;
+      this.next = this;
+    }
+
+    /**
+     * Prevents this task from running. Returns false if it has already run, is running, or was
+     * already canceled.
+     */
+    public boolean cancel() {
+      synchronized (TimingWheel.this) {
+        if (next == null) return false;
+        unlink();
+        pendingCount--;
+        return true;
+      }
+    }
+
+    /** Returns true if this task is waiting to run. */
+    public boolean isPending() {
+      synchronized (TimingWheel.this) {
+        return next != null;
+      }
+    }
+
+    void linkBefore(Timeout head) {
+      prev = head.prev;
+      next = head;
+      head.prev.next = this;
+      head.prev = this;
+    }
+
+    void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = null;
+      next = null;
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Shares one exchange between concurrent calls that make identical GET requests. The first call
+ * for a request proceeds normally; calls made while it awaits its response headers wait for that
+ * response and receive a copy of it with their own response body.
+ *
+ * <p>Requests are identical if they have the same {@linkplain Cache#key cache key} and the same
+ * headers. Because every request header must match, responses that vary on request headers are
+ * only shared by requests that would select the same variant.
+ *
+ * <p>If no other call is waiting when the response headers arrive, the first call's response is
+ * returned untouched and its body streams as usual. Otherwise the body is read from the network
+ * as fast as the fastest of the sharing calls reads it, and the bytes that the slower calls have
+ * yet to read are held in memory. A call that falls more than {@link #MAX_SHARED_BODY_SIZE} bytes
+ * behind fails, and a waiting call that would start that far behind makes its own request. If the
+ * first call fails, the waiting calls fail too unless the first call was canceled.
+ */
+public final class CoalescingInterceptor implements Interceptor {
+  /** The most bytes of a shared response body that are held for the calls reading it. */
+  static final long MAX_SHARED_BODY_SIZE = 1024L * 1024L;
+
+  /** How often waiting calls check whether they've been canceled. */
+  private static final long CANCEL_POLL_MILLIS = 100L;
+
+  /** In-flight exchanges indexed by their request key. */
+  private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!request.method().equals("GET")) return chain.proceed(request);
+
+    String key = Cache.key(request.url()) + "\n" + request.headers();
+    Flight flight = new Flight();
+    Flight leader = flights.putIfAbsent(key, flight);
+    if (leader != null) {
+      Response shared = leader.await(chain.call(), request);
+      if (shared != null) return shared;
+      return chain.proceed(request); // Nothing to share. Make our own request.
+    }
+
+    try {
+      Response response = chain.proceed(request);
+      flights.remove(key, flight);
+      return flight.share(response);
+    } catch (IOException e) {
+      flights.remove(key, flight);
+      flight.land(chain.call().isCanceled() ? null : e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+      flight.land(null);
+    }
+  }
+
+  /**
+   * An exchange whose response may be shared. Once the response is shared this relays its body to
+   * each call that shares it: whichever call needs bytes that haven't been read yet reads them
+   * from the network and the others read them from a buffer. Guarded by this.
+   */
+  static final class Flight {
+    /** True once the leading call has received its response or failed. Calls can't join after. */
+    boolean landed;
+
+    /** Calls that are waiting for the leading call's response. */
+    int waitingCount;
+
+    /** The shared response, without a body. Null if the response isn't shared. */
+    @Nullable Response response;
+    @Nullable MediaType contentType;
+    long contentLength;
+    @Nullable IOException failure;
+
+    /** The shared body. Closed once it is exhausted, has failed, or is no longer being read. */
+    @Nullable ResponseBody upstreamBody;
+    @Nullable BufferedSource upstream;
+    boolean upstreamReading;
+    boolean upstreamExhausted;
+    @Nullable IOException upstreamFailure;
+
+    /** Bytes of the body that some sources have yet to read, starting at {@code bufferOffset}. */
+    final Buffer buffer = new Buffer();
+    long bufferOffset;
+
+    /** Open sources of the shared body. */
+    final List<SharedSource> sources = new ArrayList<>();
+
+    /** Waiting calls that have yet to open their source. These read from the start of the body. */
+    int unopenedSourceCount;
+
+    /**
+     * Returns {@code response} to the leading call. If other calls are waiting this arranges for
+     * them to share it, and the returned response has a body that relays its bytes to them.
+     */
+    Response share(Response response) {
+      synchronized (this) {
+        landed = true;
+        notifyAll();
+        ResponseBody body = response.body();
+        if (waitingCount == 0 || body == null) return response; // Nobody to share with.
+
+        this.upstreamBody = body;
+        this.upstream = body.source();
+        this.response = response.newBuilder().body(null).build();
+        this.contentType = body.contentType();
+        this.contentLength = body.contentLength();
+        this.unopenedSourceCount = waitingCount;
+        SharedSource source = new SharedSource();
+        sources.add(source);
+        return copy(response, source);
+      }
+    }
+
+    /** Releases the calls waiting for this flight, which fail if {@code failure} is non-null. */
+    synchronized void land(@Nullable IOException failure) {
+      if (landed) return;
+      this.landed = true;
+      this.failure = failure;
+      notifyAll();
+    }
+
+    /**
+     * Blocks until the leading call receives its response and returns a copy of it for {@code
+     * request}, or null if {@code call} should make its own request.
+     */
+    @Nullable Response await(Call call, Request request) throws IOException {
+      boolean interrupted = false;
+      ResponseBody unusedBody = null;
+      synchronized (this) {
+        if (landed) return null; // Too late to join.
+        waitingCount++;
+        try {
+          while (!landed) {
+            wait(CANCEL_POLL_MILLIS);
+            if (!landed && call.isCanceled()) {
+              waitingCount--;
+              throw new IOException("Canceled");
+            }
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+          if (!landed) {
+            waitingCount--;
+          } else if (response != null && unopenedSourceCount > 0) {
+            unopenedSourceCount--;
+            unusedBody = takeUnusedUpstream();
+          }
+        }
+
+        if (!interrupted) {
+          if (failure != null) throw new IOException("coalesced call failed", failure);
+          if (response == null) return null; // Not shared.
+          if (unopenedSourceCount == 0) return null; // The body has moved on without us.
+          unopenedSourceCount--;
+          SharedSource source = new SharedSource();
+          sources.add(source);
+          return copy(response.newBuilder().request(request).build(), source);
+        }
+      }
+
+      closeQuietly(unusedBody);
+      Thread.currentThread().interrupt(); // Retain interrupted status.
+      throw new InterruptedIOException("interrupted awaiting coalesced call");
+    }
+
+    /** Returns a copy of {@code shared} that reads its body from {@code source}. */
+    private Response copy(Response shared, SharedSource source) {
+      return shared.newBuilder()
+          .body(ResponseBody.create(contentType, contentLength, Okio.buffer(source)))
+          .build();
+    }
+
+    /**
+     * Returns the upstream body if no source can read it anymore. The caller must close it after
+     * releasing this flight's lock.
+     */
+    private @Nullable ResponseBody takeUnusedUpstream() {
+      assert Thread.holdsLock(this);
+      if (!sources.isEmpty() || unopenedSourceCount > 0 || upstreamBody == null) return null;
+      ResponseBody result = upstreamBody;
+      upstreamBody = null;
+      upstream = null;
+      return result;
+    }
+
+    /** Discards buffered bytes that every source has read. */
+    private void trim() throws IOException {
+      assert Thread.holdsLock(this);
+      if (unopenedSourceCount > 0) return; // Some calls haven't started reading yet.
+      long minOffset = bufferOffset + buffer.size();
+      for (SharedSource source : sources) {
+        minOffset = Math.min(minOffset, source.offset);
+      }
+      buffer.skip(minOffset - bufferOffset);
+      bufferOffset = minOffset;
+    }
+
+    /** Fails the sources that have fallen too far behind to keep their bytes buffered. */
+    private void dropSlowSources() throws IOException {
+      assert Thread.holdsLock(this);
+      long end = bufferOffset + buffer.size();
+      if (unopenedSourceCount > 0 && end > MAX_SHARED_BODY_SIZE) {
+        unopenedSourceCount = 0; // These calls will make their own requests.
+      }
+      for (int i = sources.size() - 1; i >= 0; i--) {
+        SharedSource source = sources.get(i);
+        if (end - source.offset > MAX_SHARED_BODY_SIZE) {
+          source.dropped = true;
+          sources.remove(i);
+        }
+      }
+      trim();
+    }
+
+    /** A response body that reads the shared body from the start. */
+    final class SharedSource implements Source {
+      private final Timeout timeout = new Timeout();
+
+      /** The offset in the body of the next byte to read. */
+      long offset;
+      boolean dropped;
+      private boolean closed;
+
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+        if (closed) throw new IllegalStateException("closed");
+
+        BufferedSource upstream;
+        synchronized (Flight.this) {
+          while (true) {
+            if (dropped) throw new IOException("fell behind other calls sharing this response");
+
+            // The buffer has the bytes we need.
+            long available = bufferOffset + buffer.size() - offset;
+            if (available > 0L) {
+              long bytesToRead = Math.min(byteCount, available);
+              buffer.copyTo(sink, offset - bufferOffset, bytesToRead);
+              offset += bytesToRead;
+              trim();
+              return bytesToRead;
+            }
+
+            if (upstreamExhausted) return -1L;
+            if (upstreamFailure != null) {
+              throw new IOException("coalesced call failed", upstreamFailure);
+            }
+
+            // Another call is already reading. Wait for that.
+            if (upstreamReading) {
+              timeout.waitUntilNotified(Flight.this);
+              continue;
+            }
+
+            // We will do the read.
+            upstreamReading = true;
+            upstream = Flight.this.upstream;
+            break;
+          }
+        }
+
+        Buffer upstreamBuffer = new Buffer();
+        long upstreamBytesRead = -1L;
+        IOException failure = null;
+        try {
+          upstreamBytesRead = upstream.read(upstreamBuffer, 8192L);
+        } catch (IOException e) {
+          failure = e;
+        }
+
+        ResponseBody bodyToClose = null;
+        long bytesRead;
+        synchronized (Flight.this) {
+          upstreamReading = false;
+          Flight.this.notifyAll();
+
+          if (failure != null || upstreamBytesRead == -1L) {
+            if (failure != null) upstreamFailure = failure;
+            upstreamExhausted = failure == null;
+            bodyToClose = upstreamBody;
+            upstreamBody = null;
+            Flight.this.upstream = null;
+            bytesRead = -1L;
+          } else {
+            // Publish the bytes to the other sources and return our share of them.
+            buffer.write(upstreamBuffer, upstreamBytesRead);
+            bytesRead = Math.min(byteCount, upstreamBytesRead);
+            buffer.copyTo(sink, offset - bufferOffset, bytesRead);
+            offset += bytesRead;
+            dropSlowSources();
+          }
+        }
+
+        closeQuietly(bodyToClose);
+        if (failure != null) throw failure;
+        return bytesRead;
+      }
+
+      @Override public Timeout timeout() {
+        return timeout;
+      }
+
+      @Override public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        ResponseBody bodyToClose;
+        synchronized (Flight.this) {
+          sources.remove(this);
+          bodyToClose = takeUnusedUpstream();
+          trim();
+        }
+        closeQuietly(bodyToClose);
+      }
+    }
+  }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.annotation.Nullable;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_TASK;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
+
+/**
+ * An {@link SSLSocket} whose handshake was completed by an {@link SSLEngine}, as by {@link
+ * NioHandshaker}. The socket's channel is in blocking mode; its streams encrypt and decrypt TLS
+ * records with the engine.
+ *
+ * <p>Renegotiation initiated by this socket isn't supported, so handshake completed listeners are
+ * never notified. {@link #close} doesn't send a {@code close_notify} alert because a writer blocked
+ * on the channel may hold the write lock.
+ */
+final class EngineSocket extends SSLSocket {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  final SocketChannel channel;
+  private final Socket rawSocket;
+  final SSLEngine engine;
+  private final InputStream rawIn;
+  private final InputStream in = new EngineInputStream();
+  private final OutputStream out = new EngineOutputStream();
+
+  /** Guards {@link #netIn} and {@link #appIn}. */
+  private final Object readLock = new Object();
+
+  /** Guards {@link #netOut}. Never acquire the read lock while holding this. */
+  private final Object writeLock = new Object();
+
+  /** Encrypted bytes read from the channel and not yet unwrapped. In write mode. */
+  ByteBuffer netIn;
+
+  /** Decrypted bytes not yet returned by the input stream. In write mode. */
+  ByteBuffer appIn;
+
+  /** Encrypted bytes to write to the channel. */
+  private ByteBuffer netOut;
+
+  private boolean inboundDone;
+  private volatile boolean closed;
+
+  /** True once the channel has been handed to another reader. The streams fail after this. */
+  private volatile boolean detached;
+
+  /**
+   * @param netIn encrypted bytes that the handshake read beyond its final message.
+   * @param appIn decrypted bytes that the handshake read beyond its final message.
+   */
+  EngineSocket(SocketChannel channel, SSLEngine engine, ByteBuffer netIn, ByteBuffer appIn)
+      throws IOException {
+    if (!channel.isBlocking()) throw new IllegalArgumentException("channel is non-blocking");
+    this.channel = channel;
+    this.rawSocket = channel.socket();
+    this.engine = engine;
+    this.rawIn = rawSocket.getInputStream();
+    this.netIn = netIn;
+    this.appIn = appIn;
+    this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+  }
+
+  @Override public InputStream getInputStream() throws IOException {
+    if (closed) throw new SocketException("Socket is closed");
+    return in;
+  }
+
+  @Override public OutputStream getOutputStream() throws IOException {
+    if (closed) throw new SocketException("Socket is closed");
+    return out;
+  }
+
+  /** Returns the protocol negotiated with ALPN, or null if none was. Used by Java 9+ platforms. */
+  public @Nullable String getApplicationProtocol() {
+    try {
+      String protocol = (String) SSLEngine.class.getMethod("getApplicationProtocol")
+          .invoke(engine);
+      return protocol == null || protocol.isEmpty() ? null : protocol;
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      return null;
+    }
+  }
+
+  @Override public void startHandshake() {
+    // The handshake is already complete.
+  }
+
+  @Override public SSLSession getSession() {
+    return engine.getSession();
+  }
+
+  @Override public String[] getSupportedCipherSuites() {
+    return engine.getSupportedCipherSuites();
+  }
+
+  @Override public String[] getEnabledCipherSuites() {
+    return engine.getEnabledCipherSuites();
+  }
+
+  @Override public void setEnabledCipherSuites(String[] suites) {
+    engine.setEnabledCipherSuites(suites);
+  }
+
+  @Override public String[] getSupportedProtocols() {
+    return engine.getSupportedProtocols();
+  }
+
+  @Override public String[] getEnabledProtocols() {
+    return engine.getEnabledProtocols();
+  }
+
+  @Override public void setEnabledProtocols(String[] protocols) {
+    engine.setEnabledProtocols(protocols);
+  }
+
+  @Override public SSLParameters getSSLParameters() {
+    return engine.getSSLParameters();
+  }
+
+  @Override public void setSSLParameters(SSLParameters params) {
+    engine.setSSLParameters(params);
+  }
+
+  /**
+   * Does nothing. This socket's only handshake completed before the socket was created and it
+   * doesn't renegotiate, so there is no handshake left for {@code listener} to observe.
+   */
+  @Override public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+    if (listener == null) throw new IllegalArgumentException("listener == null");
+  }
+
+  /** Does nothing. Listeners are never registered; see {@link #addHandshakeCompletedListener}. */
+  @Override public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+    if (listener == null) throw new IllegalArgumentException("listener == null");
+  }
+
+  @Override public void setUseClientMode(boolean mode) {
+    engine.setUseClientMode(mode);
+  }
+
+  @Override public boolean getUseClientMode() {
+    return engine.getUseClientMode();
+  }
+
+  @Override public void setNeedClientAuth(boolean need) {
+    engine.setNeedClientAuth(need);
+  }
+
+  @Override public boolean getNeedClientAuth() {
+    return engine.getNeedClientAuth();
+  }
+
+  @Override public void setWantClientAuth(boolean want) {
+    engine.setWantClientAuth(want);
+  }
+
+  @Override public boolean getWantClientAuth() {
+    return engine.getWantClientAuth();
+  }
+
+  @Override public void setEnableSessionCreation(boolean flag) {
+    engine.setEnableSessionCreation(flag);
+  }
+
+  @Override public boolean getEnableSessionCreation() {
+    return engine.getEnableSessionCreation();
+  }
+
+  @Override public void connect(SocketAddress endpoint, int timeout) throws IOException {
+    throw new SocketException("already connected");
+  }
+
+  @Override public void bind(SocketAddress bindpoint) throws IOException {
+    throw new SocketException("already bound");
+  }
+
+  @Override public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    engine.closeOutbound();
+    channel.close();
+  }
+
+  @Override public boolean isClosed() {
+    return closed;
+  }
+
+  @Override public boolean isConnected() {
+    return rawSocket.isConnected();
+  }
+
+  @Override public boolean isBound() {
+    return rawSocket.isBound();
+  }
+
+  @Override public void shutdownInput() throws IOException {
+    rawSocket.shutdownInput();
+  }
+
+  @Override public void shutdownOutput() throws IOException {
+    rawSocket.shutdownOutput();
+  }
+
+  @Override public boolean isInputShutdown() {
+    return rawSocket.isInputShutdown();
+  }
+
+  @Override public boolean isOutputShutdown() {
+    return rawSocket.isOutputShutdown();
+  }
+
+  @Override public InetAddress getInetAddress() {
+    return rawSocket.getInetAddress();
+  }
+
+  @Override public int getPort() {
+    return rawSocket.getPort();
+  }
+
+  @Override public InetAddress getLocalAddress() {
+    return rawSocket.getLocalAddress();
+  }
+
+  @Override public int getLocalPort() {
+    return rawSocket.getLocalPort();
+  }
+
+  @Override public SocketAddress getRemoteSocketAddress() {
+    return rawSocket.getRemoteSocketAddress();
+  }
+
+  @Override public SocketAddress getLocalSocketAddress() {
+    return rawSocket.getLocalSocketAddress();
+  }
+
+  @Override public void setSoTimeout(int timeout) throws SocketException {
+    rawSocket.setSoTimeout(timeout);
+  }
+
+  @Override public int getSoTimeout() throws SocketException {
+    return rawSocket.getSoTimeout();
+  }
+
+  @Override public void setTcpNoDelay(boolean on) throws SocketException {
+    rawSocket.setTcpNoDelay(on);
+  }
+
+  @Override public boolean getTcpNoDelay() throws SocketException {
+    return rawSocket.getTcpNoDelay();
+  }
+
+  @Override public void setKeepAlive(boolean on) throws SocketException {
+    rawSocket.setKeepAlive(on);
+  }
+
+  @Override public boolean getKeepAlive() throws SocketException {
+    return rawSocket.getKeepAlive();
+  }
+
+  @Override public void setSendBufferSize(int size) throws SocketException {
+    rawSocket.setSendBufferSize(size);
+  }
+
+  @Override public int getSendBufferSize() throws SocketException {
+    return rawSocket.getSendBufferSize();
+  }
+
+  @Override public void setReceiveBufferSize(int size) throws SocketException {
+    rawSocket.setReceiveBufferSize(size);
+  }
+
+  @Override public int getReceiveBufferSize() throws SocketException {
+    return rawSocket.getReceiveBufferSize();
+  }
+
+  @Override public String toString() {
+    return "EngineSocket[" + rawSocket + "]";
+  }
+
+  /** Reads up to {@code byteCount} decrypted bytes into {@code sink}, or returns -1 at EOF. */
+  private int read(byte[] sink, int offset, int byteCount) throws IOException {
+    if (byteCount == 0) return 0;
+    synchronized (readLock) {
+      while (true) {
+        if (closed || detached) throw new SocketException("Socket closed");
+
+        if (appIn.position() > 0) {
+          appIn.flip();
+          int result = Math.min(byteCount, appIn.remaining());
+          appIn.get(sink, offset, result);
+          appIn.compact();
+          return result;
+        }
+
+        if (inboundDone) return -1;
+
+        netIn.flip();
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+        netIn.compact();
+
+        switch (result.getStatus()) {
+          case BUFFER_UNDERFLOW:
+            if (!netIn.hasRemaining()) {
+              netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+            }
+            int read = rawIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(),
+                netIn.remaining());
+            if (read == -1) {
+              inboundDone = true;
+              try {
+                engine.closeInbound();
+              } catch (SSLException ignored) {
+                // The peer closed without a close_notify alert. HTTP framing detects truncation.
+              }
+            } else {
+              netIn.position(netIn.position() + read);
+            }
+            break;
+
+          case BUFFER_OVERFLOW:
+            appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+            break;
+
+          case CLOSED:
+            inboundDone = true;
+            break;
+
+          default:
+            break;
+        }
+
+        // Respond to post-handshake messages like session tickets and key updates.
+        if (result.getHandshakeStatus() == NEED_TASK) runDelegatedTasks();
+        if (engine.getHandshakeStatus() == NEED_WRAP) write(EMPTY);
+      }
+    }
+  }
+
+  /** Encrypts all of {@code source} and writes it to the channel. */
+  private void write(ByteBuffer source) throws IOException {
+    synchronized (writeLock) {
+      while (source.hasRemaining() || engine.getHandshakeStatus() == NEED_WRAP) {
+        if (closed || detached) throw new SocketException("Socket closed");
+
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(source, netOut);
+
+        switch (result.getStatus()) {
+          case BUFFER_OVERFLOW:
+            netOut = ByteBuffer.allocate(
+                Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+            continue;
+
+          case CLOSED:
+            throw new SocketException("Socket closed");
+
+          default:
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+              throw new SSLException("unexpected handshake: " + result.getHandshakeStatus());
+            }
+            // Write to the channel directly. On some JDKs the socket's output stream shares a lock
+            // with its input stream, so a writer would wait for a reader blocked on the socket.
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+              channel.write(netOut);
+            }
+            if (result.getHandshakeStatus() == NEED_TASK) runDelegatedTasks();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops this socket's streams so that {@link #channel}, {@link #engine}, and the buffered bytes
+   * can be used by another reader, like {@link NioTransport}. Closing this socket still closes the
+   * channel.
+   */
+  void detach() {
+    synchronized (readLock) {
+      synchronized (writeLock) {
+        detached = true;
+      }
+    }
+  }
+
+  private void runDelegatedTasks() {
+    for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+      task.run();
+    }
+  }
+
+  /** Returns a buffer in write mode holding {@code buffer}'s bytes with room for more. */
+  static ByteBuffer grow(ByteBuffer buffer, int minimumCapacity) {
+    ByteBuffer result = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumCapacity));
+    buffer.flip();
+    result.put(buffer);
+    return result;
+  }
+
+  final class EngineInputStream extends InputStream {
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+      return EngineSocket.this.read(b, off, len);
+    }
+
+    @Override public void close() throws IOException {
+      EngineSocket.this.close();
+    }
+  }
+
+  final class EngineOutputStream extends OutputStream {
+    @Override public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+      if (len == 0) return;
+      EngineSocket.this.write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override public void close() throws IOException {
+      EngineSocket.this.close();
+    }
+  }
+}
@@ -0,0 +1,678 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import okhttp3.internal.http2.NonBlockingSink;
+import okhttp3.internal.platform.Platform;
+import okio.Buffer;
+import okio.Sink;
+import okio.Source;
+import okio.Timeout;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_TASK;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
+import static okhttp3.internal.Util.checkOffsetAndCount;
+import static okhttp3.internal.Util.closeQuietly;
+import static okhttp3.internal.platform.Platform.INFO;
+
+/**
+ * A connection registered with a {@link NioTransport}. The transport's event loop reads the channel
+ * as bytes arrive, decrypting them if the connection uses TLS. Callers consume the bytes in one of
+ * two ways:
+ *
+ * <ul>
+ *   <li>With {@link #source}, which blocks until bytes are available like a socket's input stream.
+ *       The event loop stops reading while too many unconsumed bytes are buffered.
+ *   <li>With a {@link Listener}, which the event loop calls with the buffered bytes each time more
+ *       arrive.
+ * </ul>
+ *
+ * <p>Writes to {@link #sink} are made by the calling thread, which waits for the event loop when
+ * the channel's send buffer is full. Writes to {@link #nonBlockingSink} never wait: they return
+ * when the send buffer is full, and the event loop calls back once it has room. Neither the source
+ * nor the sink may block the event loop.
+ */
+final class NioChannel {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /** Stop reading from the channel while this many bytes are unconsumed by {@link #source}. */
+  static final long MAX_BUFFERED_BYTES = 64 * 1024;
+
+  final NioTransport transport;
+  final NioTransport.EventLoop loop;
+  final SocketChannel channel;
+  final @Nullable SSLEngine engine;
+  private final Source source = new ChannelSource();
+  private final Sink sink = new ChannelSink();
+  private final NonBlockingSink nonBlockingSink = new ChannelNonBlockingSink();
+
+  // The fields below are only accessed by the event loop.
+
+  private SelectionKey key;
+
+  /** Encrypted bytes read from the channel and not yet unwrapped. In write mode. */
+  private ByteBuffer netIn;
+
+  /** Decrypted bytes not yet moved to {@link #inbound}. In write mode. */
+  private ByteBuffer appIn;
+
+  /** True while the engine's delegated tasks run on the transport's executor. */
+  private boolean runningTasks;
+
+  // The fields below are guarded by this.
+
+  /** Bytes read from the channel and not yet consumed. */
+  private final Buffer inbound = new Buffer();
+  private @Nullable Listener listener;
+  private boolean readPaused;
+  private boolean inputDone;
+  private @Nullable IOException inputException;
+  private boolean writable;
+  private @Nullable Runnable onWritable;
+  private boolean closed;
+
+  // The fields below are guarded by writeLock.
+
+  private final Object writeLock = new Object();
+
+  /** Plaintext bytes to write. */
+  private final ByteBuffer appOut = ByteBuffer.allocate(16384);
+
+  /** Encrypted bytes to write. Only used with TLS. */
+  private ByteBuffer netOut;
+
+  /**
+   * {@link #appOut} or {@link #netOut} if a non-blocking write left bytes in it, or null. In read
+   * mode. These bytes are written before any others.
+   */
+  private @Nullable ByteBuffer pendingOut;
+
+  NioChannel(NioTransport transport, NioTransport.EventLoop loop, SocketChannel channel,
+      @Nullable SSLEngine engine, @Nullable ByteBuffer netIn, @Nullable ByteBuffer appIn) {
+    this.transport = transport;
+    this.loop = loop;
+    this.channel = channel;
+    this.engine = engine;
+    if (engine != null) {
+      int packetBufferSize = engine.getSession().getPacketBufferSize();
+      this.netIn = netIn != null ? netIn : ByteBuffer.allocate(packetBufferSize);
+      this.appIn = appIn != null
+          ? appIn
+          : ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+      this.netOut = ByteBuffer.allocate(packetBufferSize);
+    }
+  }
+
+  /** Returns a source that blocks until the event loop has read bytes. */
+  Source source() {
+    return source;
+  }
+
+  Sink sink() {
+    return sink;
+  }
+
+  /** Returns a sink whose writes return instead of waiting when the send buffer is full. */
+  NonBlockingSink nonBlockingSink() {
+    return nonBlockingSink;
+  }
+
+  /** Returns the buffer of unconsumed bytes. Only a {@linkplain Listener listener} may read it. */
+  Buffer buffer() {
+    return inbound;
+  }
+
+  /**
+   * Delivers bytes to {@code listener} on the event loop instead of to {@link #source}. Bytes that
+   * are already buffered are delivered immediately.
+   */
+  void setListener(final Listener listener) throws IOException {
+    loop.execute(new Runnable() {
+      @Override public void run() {
+        boolean done;
+        IOException e;
+        synchronized (NioChannel.this) {
+          NioChannel.this.listener = listener;
+          if (readPaused) {
+            readPaused = false;
+            interestOps(SelectionKey.OP_READ, true);
+          }
+          done = inputDone;
+          e = inputException;
+        }
+        if (inbound.size() > 0L) listener.onReadable(inbound);
+        if (done) listener.onInputDone(e);
+      }
+    });
+  }
+
+  /** Returns true if no more bytes will be read from the channel. */
+  synchronized boolean isInputDone() {
+    return inputDone;
+  }
+
+  /** Closes the channel. Blocked reads and writes fail with a {@link SocketException}. */
+  void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      notifyAll();
+    }
+    if (engine != null) engine.closeOutbound();
+    closeQuietly(channel);
+    try {
+      loop.execute(new Runnable() {
+        @Override public void run() {
+          inputDone(new SocketException("Socket closed"));
+        }
+      });
+    } catch (IOException ignored) {
+      // The event loop couldn't be started. Nothing is registered with it.
+    }
+  }
+
+  /** Registers the channel with {@code selector} and delivers bytes buffered by a handshake. */
+  void registerWith(Selector selector) {
+    try {
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+      loop.channels.add(this);
+      if (engine != null) {
+        deliverAppIn();
+        unwrap();
+      }
+    } catch (IOException e) {
+      inputDone(e);
+    }
+  }
+
+  /** Handles the operations that {@code key} is ready for. Called by the event loop. */
+  void ready(SelectionKey key) {
+    try {
+      if (!key.isValid()) {
+        inputDone(new SocketException("Socket closed"));
+        return;
+      }
+      if (key.isWritable()) {
+        interestOps(SelectionKey.OP_WRITE, false);
+        Runnable onWritable;
+        synchronized (this) {
+          writable = true;
+          onWritable = this.onWritable;
+          this.onWritable = null;
+          notifyAll();
+        }
+        if (onWritable != null) onWritable.run();
+      }
+      if (key.isReadable()) {
+        read();
+      }
+    } catch (CancelledKeyException e) {
+      inputDone(new SocketException("Socket closed"));
+    } catch (IOException e) {
+      inputDone(e);
+    }
+  }
+
+  private void read() throws IOException {
+    if (engine == null) {
+      ByteBuffer readBuffer = loop.readBuffer;
+      readBuffer.clear();
+      if (channel.read(readBuffer) == -1) {
+        inputDone(null);
+        return;
+      }
+      readBuffer.flip();
+      deliver(readBuffer);
+    } else {
+      if (runningTasks) {
+        // The engine can't unwrap until its tasks complete. Resume reading after that.
+        interestOps(SelectionKey.OP_READ, false);
+        return;
+      }
+      if (!netIn.hasRemaining()) {
+        netIn = EngineSocket.grow(netIn, engine.getSession().getPacketBufferSize());
+      }
+      if (channel.read(netIn) == -1) {
+        try {
+          engine.closeInbound();
+        } catch (SSLException ignored) {
+          // The peer closed without a close_notify alert. HTTP framing detects truncation.
+        }
+        inputDone(null);
+        return;
+      }
+      unwrap();
+    }
+  }
+
+  /** Decrypts the records in {@link #netIn} and delivers their bytes. */
+  private void unwrap() throws IOException {
+    while (!runningTasks) {
+      netIn.flip();
+      SSLEngineResult result = engine.unwrap(netIn, appIn);
+      netIn.compact();
+
+      // Respond to post-handshake messages like session tickets and key updates.
+      if (result.getHandshakeStatus() == NEED_TASK) runDelegatedTasksLater();
+      if (engine.getHandshakeStatus() == NEED_WRAP) wrapLater();
+
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          appIn = EngineSocket.grow(appIn, engine.getSession().getApplicationBufferSize());
+          break;
+
+        case BUFFER_UNDERFLOW:
+          return;
+
+        case CLOSED:
+          deliverAppIn();
+          inputDone(null);
+          return;
+
+        default:
+          deliverAppIn();
+          if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) return;
+      }
+    }
+  }
+
+  private void deliverAppIn() throws IOException {
+    appIn.flip();
+    if (appIn.hasRemaining()) deliver(appIn);
+    appIn.clear();
+  }
+
+  /** Moves all of {@code bytes} to the inbound buffer and notifies its consumer. */
+  private void deliver(ByteBuffer bytes) throws IOException {
+    Listener listener;
+    synchronized (this) {
+      inbound.write(bytes);
+      listener = this.listener;
+      if (listener == null) {
+        notifyAll();
+        if (inbound.size() >= MAX_BUFFERED_BYTES) {
+          readPaused = true;
+          interestOps(SelectionKey.OP_READ, false);
+        }
+      }
+    }
+    if (listener != null) listener.onReadable(inbound);
+  }
+
+  /** Marks the input as done, with {@code e} if reading failed. Called by the event loop. */
+  void inputDone(@Nullable IOException e) {
+    Listener listener;
+    Runnable onWritable;
+    synchronized (this) {
+      if (inputDone) return;
+      inputDone = true;
+      inputException = e;
+      listener = this.listener;
+      onWritable = this.onWritable;
+      this.onWritable = null;
+      notifyAll();
+    }
+    loop.channels.remove(this);
+    if (key != null) key.cancel();
+    if (listener != null) listener.onInputDone(e);
+    if (onWritable != null) onWritable.run(); // The writer will find that the channel failed.
+  }
+
+  /** Adds or removes {@code ops} from the key's interest set. Called by the event loop. */
+  private void interestOps(int ops, boolean on) {
+    if (key == null || !key.isValid()) return;
+    try {
+      key.interestOps(on ? key.interestOps() | ops : key.interestOps() & ~ops);
+    } catch (CancelledKeyException ignored) {
+      // The channel was closed by another thread. The next sweep will notice.
+    }
+  }
+
+  private void interestOpsLater(final int ops, final boolean on) throws IOException {
+    loop.execute(new Runnable() {
+      @Override public void run() {
+        interestOps(ops, on);
+      }
+    });
+  }
+
+  /** Sends the TLS messages that the engine needs without blocking the event loop. */
+  private void wrapLater() {
+    transport.executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          synchronized (writeLock) {
+            Timeout timeout = new Timeout();
+            writePendingOut(timeout);
+            wrap(EMPTY, timeout);
+          }
+        } catch (IOException e) {
+          Platform.get().log(INFO, "Failed to write a TLS message", e);
+        }
+      }
+    });
+  }
+
+  /** Encrypts all of {@code source} and writes it to the channel. */
+  private void wrap(ByteBuffer source, Timeout timeout) throws IOException {
+    assert (Thread.holdsLock(writeLock));
+    while (source.hasRemaining() || engine.getHandshakeStatus() == NEED_WRAP) {
+      netOut.clear();
+      SSLEngineResult result = engine.wrap(source, netOut);
+
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          netOut = ByteBuffer.allocate(
+              Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+          continue;
+
+        case CLOSED:
+          throw new SocketException("Socket closed");
+
+        default:
+          if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+            throw new SSLException("unexpected handshake: " + result.getHandshakeStatus());
+          }
+          netOut.flip();
+          writeFully(netOut, timeout);
+          if (result.getHandshakeStatus() == NEED_TASK) runDelegatedTasks();
+      }
+    }
+  }
+
+  /** Writes the bytes that a non-blocking write left behind, waiting if necessary. */
+  private void writePendingOut(Timeout timeout) throws IOException {
+    assert (Thread.holdsLock(writeLock));
+    if (pendingOut == null) return;
+    writeFully(pendingOut, timeout);
+    pendingOut = null;
+  }
+
+  /**
+   * Writes as much of {@code source} as the channel accepts now. If bytes remain this returns
+   * false, and {@code onWritable} runs on the event loop once the channel has room or fails.
+   */
+  private boolean writeNonBlocking(Buffer source, Runnable onWritable) throws IOException {
+    synchronized (writeLock) {
+      while (true) {
+        if (pendingOut != null) {
+          channel.write(pendingOut);
+          if (pendingOut.hasRemaining()) {
+            awaitWritableLater(onWritable);
+            return false;
+          }
+          pendingOut = null;
+        }
+        if (source.size() == 0L) return true;
+
+        appOut.clear();
+        if (appOut.remaining() > source.size()) appOut.limit((int) source.size());
+        source.read(appOut);
+        appOut.flip();
+        pendingOut = engine != null ? encrypt(appOut) : appOut;
+      }
+    }
+  }
+
+  /** Encrypts all of {@code source} into {@link #netOut} and returns it in read mode. */
+  private ByteBuffer encrypt(ByteBuffer source) throws IOException {
+    assert (Thread.holdsLock(writeLock));
+    netOut.clear();
+    while (source.hasRemaining() || engine.getHandshakeStatus() == NEED_WRAP) {
+      SSLEngineResult result = engine.wrap(source, netOut);
+
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          ByteBuffer larger = ByteBuffer.allocate(
+              netOut.capacity() + engine.getSession().getPacketBufferSize());
+          netOut.flip();
+          larger.put(netOut);
+          netOut = larger;
+          continue;
+
+        case CLOSED:
+          throw new SocketException("Socket closed");
+
+        default:
+          if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+            throw new SSLException("unexpected handshake: " + result.getHandshakeStatus());
+          }
+          if (result.getHandshakeStatus() == NEED_TASK) runDelegatedTasks();
+      }
+    }
+    netOut.flip();
+    return netOut;
+  }
+
+  /** Asks the event loop to run {@code onWritable} once the channel has room. */
+  private void awaitWritableLater(Runnable onWritable) throws IOException {
+    synchronized (this) {
+      if (closed || inputDone) throw new SocketException("Socket closed");
+      this.onWritable = onWritable;
+    }
+    interestOpsLater(SelectionKey.OP_WRITE, true);
+  }
+
+  private void writeFully(ByteBuffer bytes, Timeout timeout) throws IOException {
+    assert (Thread.holdsLock(writeLock));
+    while (bytes.hasRemaining()) {
+      if (channel.write(bytes) == 0) awaitWritable(timeout);
+    }
+  }
+
+  /** Waits for the event loop to find that the channel's send buffer has room. */
+  private void awaitWritable(Timeout timeout) throws IOException {
+    synchronized (this) {
+      writable = false;
+    }
+    interestOpsLater(SelectionKey.OP_WRITE, true);
+    synchronized (this) {
+      long startNanos = System.nanoTime();
+      while (!writable) {
+        if (closed || inputDone) throw new SocketException("Socket closed");
+        awaitIo(timeout, startNanos);
+      }
+    }
+  }
+
+  /**
+   * Waits on this monitor until notified of I/O. Throws if {@code timeout} elapses first, counting
+   * from {@code startNanos}.
+   */
+  private void awaitIo(Timeout timeout, long startNanos) throws IOException {
+    assert (Thread.holdsLock(this));
+    if (loop.inLoop()) throw new IllegalStateException("blocking I/O on the event loop");
+
+    long waitNanos = timeout.timeoutNanos() != 0L
+        ? timeout.timeoutNanos() - (System.nanoTime() - startNanos)
+        : Long.MAX_VALUE;
+    if (timeout.hasDeadline()) {
+      waitNanos = Math.min(waitNanos, timeout.deadlineNanoTime() - System.nanoTime());
+    }
+    if (waitNanos <= 0L) throw new SocketTimeoutException("timeout");
+
+    try {
+      if (waitNanos == Long.MAX_VALUE) {
+        wait();
+      } else {
+        long waitMillis = waitNanos / 1_000_000L;
+        wait(waitMillis, (int) (waitNanos - waitMillis * 1_000_000L));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Retain interrupted status.
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void runDelegatedTasks() {
+    for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+      task.run();
+    }
+  }
+
+  /**
+   * Runs the engine's delegated tasks on the transport's executor, which may block, and then
+   * resumes unwrapping on the event loop. Reading is paused meanwhile.
+   */
+  private void runDelegatedTasksLater() {
+    runningTasks = true;
+    interestOps(SelectionKey.OP_READ, false);
+    transport.executor.execute(new Runnable() {
+      @Override public void run() {
+        RuntimeException failure = null;
+        try {
+          runDelegatedTasks();
+        } catch (RuntimeException e) {
+          failure = e;
+        }
+        final RuntimeException taskFailure = failure;
+        try {
+          loop.execute(new Runnable() {
+            @Override public void run() {
+              resumeAfterTasks(taskFailure);
+            }
+          });
+        } catch (IOException e) {
+          close(); // The event loop couldn't be started.
+        }
+      }
+    });
+  }
+
+  /** Resumes reading after delegated tasks complete. Called by the event loop. */
+  private void resumeAfterTasks(@Nullable RuntimeException taskFailure) {
+    runningTasks = false;
+    if (taskFailure != null) {
+      inputDone(new SSLException("TLS task failed", taskFailure));
+      close();
+      return;
+    }
+    try {
+      synchronized (this) {
+        if (!readPaused) interestOps(SelectionKey.OP_READ, true);
+      }
+      if (engine.getHandshakeStatus() == NEED_WRAP) wrapLater();
+      unwrap();
+    } catch (CancelledKeyException e) {
+      inputDone(new SocketException("Socket closed"));
+    } catch (IOException e) {
+      inputDone(e);
+    }
+  }
+
+  /** Receives bytes on the event loop. Implementations must not block. */
+  interface Listener {
+    /** Called when bytes are added to {@code buffer}. Bytes that aren't consumed are kept. */
+    void onReadable(Buffer buffer);
+
+    /**
+     * Called when no more bytes will be added to the buffer. {@code e} is null if the peer ended
+     * the stream, or the reason reading failed otherwise.
+     */
+    void onInputDone(@Nullable IOException e);
+  }
+
+  final class ChannelSource implements Source {
+    private final Timeout timeout = new Timeout();
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+      synchronized (NioChannel.this) {
+        long startNanos = System.nanoTime();
+        while (inbound.size() == 0L) {
+          if (closed) throw new SocketException("Socket closed");
+          if (inputDone) {
+            if (inputException != null) throw inputException;
+            return -1L;
+          }
+          awaitIo(timeout, startNanos);
+        }
+
+        long result = inbound.read(sink, byteCount);
+        if (readPaused && inbound.size() < MAX_BUFFERED_BYTES / 2) {
+          readPaused = false;
+          interestOpsLater(SelectionKey.OP_READ, true);
+        }
+        return result;
+      }
+    }
+
+    @Override public Timeout timeout() {
+      return timeout;
+    }
+
+    @Override public void close() {
+      NioChannel.this.close();
+    }
+  }
+
+  final class ChannelSink implements Sink {
+    private final Timeout timeout = new Timeout();
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      checkOffsetAndCount(source.size(), 0, byteCount);
+      synchronized (writeLock) {
+        writePendingOut(timeout);
+        while (byteCount > 0L) {
+          appOut.clear();
+          if (appOut.remaining() > byteCount) appOut.limit((int) byteCount);
+          byteCount -= source.read(appOut);
+          appOut.flip();
+          if (engine != null) {
+            wrap(appOut, timeout);
+          } else {
+            writeFully(appOut, timeout);
+          }
+        }
+      }
+    }
+
+    @Override public void flush() {
+      // Writes aren't buffered.
+    }
+
+    @Override public Timeout timeout() {
+      return timeout;
+    }
+
+    @Override public void close() {
+      NioChannel.this.close();
+    }
+  }
+
+  final class ChannelNonBlockingSink implements NonBlockingSink {
+    @Override public boolean write(Buffer source, Runnable onWritable) throws IOException {
+      return writeNonBlocking(source, onWritable);
+    }
+
+    @Override public void close() {
+      NioChannel.this.close();
+    }
+  }
+}
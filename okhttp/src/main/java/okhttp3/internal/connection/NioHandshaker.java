@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
+import okhttp3.internal.platform.Platform;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_TASK;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+import static okhttp3.internal.Util.closeQuietly;
+import static okhttp3.internal.platform.Platform.WARN;
+
+/**
+ * Drives TCP connects and TLS handshakes without blocking a thread per connection. Each handshake
+ * uses an {@link SSLEngine} over a non-blocking {@link SocketChannel} that is registered with one
+ * of a small pool of selectors, so a few threads can hold thousands of in-progress handshakes.
+ *
+ * <p>The engine's delegated tasks, like certificate validation, run on a separate executor so that
+ * they don't stall the selectors. Callbacks run on that executor too. When a handshake completes
+ * its channel is returned to blocking mode and wrapped in an {@link EngineSocket}.
+ */
+final class NioHandshaker {
+  private static final NioHandshaker INSTANCE = new NioHandshaker(
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final Executor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L,
+      TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      Util.threadFactory("OkHttp NioHandshaker Task", true));
+  private final ThreadFactory selectorThreadFactory =
+      Util.threadFactory("OkHttp NioHandshaker", true);
+  private final SelectorLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  NioHandshaker(int selectorCount) {
+    loops = new SelectorLoop[selectorCount];
+    for (int i = 0; i < selectorCount; i++) {
+      loops[i] = new SelectorLoop();
+    }
+  }
+
+  static NioHandshaker get() {
+    return INSTANCE;
+  }
+
+  interface Callback {
+    void handshakeSucceeded(EngineSocket socket);
+
+    void handshakeFailed(IOException e);
+  }
+
+  /**
+   * Completes the connect of {@code channel}, which must be non-blocking and connecting, and then
+   * performs a TLS handshake with {@code engine}. Exactly one of {@code callback}'s methods is
+   * invoked when the handshake completes, fails, exceeds {@code timeoutNanos}, or is {@linkplain
+   * Handshake#cancel canceled}.
+   *
+   * @param timeoutNanos the time limit for both the connect and the handshake, or 0 for no limit.
+   */
+  Handshake handshake(SocketChannel channel, SSLEngine engine, long timeoutNanos,
+      Callback callback) {
+    SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    Handshake handshake = new Handshake(loop, channel, engine, timeoutNanos, callback);
+    try {
+      loop.submit(handshake);
+    } catch (IOException e) {
+      handshake.fail(e);
+    }
+    return handshake;
+  }
+
+  enum State {
+    CONNECTING, HANDSHAKING, RUNNING_TASKS, SUCCEEDED, FAILED
+  }
+
+  /** A selector and the handshakes registered with it. */
+  final class SelectorLoop implements Runnable {
+    /** Handshakes to start, or to resume after running delegated tasks. */
+    final Queue<Handshake> ready = new ConcurrentLinkedQueue<>();
+
+    /** In-progress handshakes. Only accessed by the selector thread. */
+    final List<Handshake> active = new ArrayList<>();
+
+    /** Opened and its thread started on first use. Guarded by this. */
+    private Selector selector;
+
+    synchronized Selector selector() throws IOException {
+      if (selector == null) {
+        selector = Selector.open();
+        selectorThreadFactory.newThread(this).start();
+      }
+      return selector;
+    }
+
+    void submit(Handshake handshake) throws IOException {
+      Selector selector = selector();
+      ready.add(handshake);
+      selector.wakeup();
+    }
+
+    @Override public void run() {
+      Selector selector;
+      synchronized (this) {
+        selector = this.selector;
+      }
+      while (true) {
+        try {
+          runOnce(selector);
+        } catch (IOException | RuntimeException e) {
+          // Keep the loop alive: the handshakes registered with it would otherwise never finish.
+          Platform.get().log(WARN, "NioHandshaker selector failed", e);
+        }
+      }
+    }
+
+    private void runOnce(Selector selector) throws IOException {
+      for (Handshake handshake; (handshake = ready.poll()) != null; ) {
+        if (handshake.canceled) {
+          if (handshake.state != State.SUCCEEDED) handshake.fail(new IOException("Canceled"));
+          continue;
+        }
+        if (handshake.state == State.RUNNING_TASKS) {
+          handshake.state = State.HANDSHAKING;
+          if (handshake.taskFailure != null) {
+            handshake.fail(handshake.taskFailure);
+            continue;
+          }
+        }
+        if (handshake.state == State.CONNECTING) active.add(handshake);
+        handshake.advance(selector);
+      }
+
+      long now = System.nanoTime();
+      long waitNanos = Long.MAX_VALUE;
+      for (int i = 0, size = active.size(); i < size; i++) {
+        Handshake handshake = active.get(i);
+        if (handshake.state == State.SUCCEEDED || handshake.state == State.FAILED) {
+          waitNanos = 0L; // Don't wait to deliver a completed handshake.
+        } else if (handshake.hasDeadline) {
+          waitNanos = Math.min(waitNanos, handshake.deadlineNanos - now);
+        }
+      }
+      if (waitNanos == Long.MAX_VALUE) {
+        selector.select();
+      } else if (waitNanos > 0L) {
+        selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+      } else {
+        selector.selectNow();
+      }
+
+      for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+        SelectionKey key = i.next();
+        i.remove();
+        ((Handshake) key.attachment()).advance(selector);
+      }
+
+      // Fail expired handshakes and collect the completed ones.
+      now = System.nanoTime();
+      List<Handshake> succeeded = null;
+      for (Iterator<Handshake> i = active.iterator(); i.hasNext(); ) {
+        Handshake handshake = i.next();
+        if (handshake.state != State.SUCCEEDED && handshake.state != State.FAILED
+            && handshake.hasDeadline && now - handshake.deadlineNanos >= 0L) {
+          handshake.fail(new SocketTimeoutException(handshake.state == State.CONNECTING
+              ? "connect timed out"
+              : "handshake timed out"));
+        }
+        if (handshake.state == State.SUCCEEDED) {
+          if (succeeded == null) succeeded = new ArrayList<>();
+          succeeded.add(handshake);
+          i.remove();
+        } else if (handshake.state == State.FAILED) {
+          i.remove();
+        }
+      }
+
+      if (succeeded != null) {
+        // Deregister the cancelled keys so that their channels can be made blocking.
+        selector.selectNow();
+        for (int i = 0, size = succeeded.size(); i < size; i++) {
+          succeeded.get(i).complete();
+        }
+      }
+    }
+  }
+
+  final class Handshake {
+    final SelectorLoop loop;
+    final SocketChannel channel;
+    final SSLEngine engine;
+    final boolean hasDeadline;
+    final long deadlineNanos;
+    final Callback callback;
+    State state = State.CONNECTING;
+
+    /** Set by the executor if a delegated task failed. Read on the selector after resuming. */
+    volatile @Nullable IOException taskFailure;
+    volatile boolean canceled;
+    SelectionKey key;
+    ByteBuffer netIn;
+    ByteBuffer netOut;
+    ByteBuffer appIn;
+
+    Handshake(SelectorLoop loop, SocketChannel channel, SSLEngine engine, long timeoutNanos,
+        Callback callback) {
+      this.loop = loop;
+      this.channel = channel;
+      this.engine = engine;
+      this.hasDeadline = timeoutNanos != 0L;
+      this.deadlineNanos = System.nanoTime() + timeoutNanos;
+      this.callback = callback;
+      int packetBufferSize = engine.getSession().getPacketBufferSize();
+      this.netIn = ByteBuffer.allocate(packetBufferSize);
+      this.netOut = ByteBuffer.allocate(packetBufferSize);
+      this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Fails this handshake promptly unless it has already succeeded. Safe to call from any thread,
+     * and more than once.
+     */
+    void cancel() {
+      canceled = true;
+      try {
+        loop.submit(this);
+      } catch (IOException ignored) {
+        // The selector couldn't be opened, so this handshake has already failed.
+      }
+    }
+
+    /** Does as much of the connect and handshake as possible without blocking. */
+    void advance(Selector selector) {
+      try {
+        if (state == State.CONNECTING) {
+          if (!channel.finishConnect()) {
+            interest(selector, SelectionKey.OP_CONNECT);
+            return;
+          }
+          state = State.HANDSHAKING;
+          engine.beginHandshake();
+        }
+        while (state == State.HANDSHAKING) {
+          if (!flush()) {
+            interest(selector, SelectionKey.OP_WRITE);
+            return;
+          }
+
+          SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+          if (status == FINISHED || status == NOT_HANDSHAKING) {
+            state = State.SUCCEEDED;
+            if (key != null) key.cancel();
+          } else if (status == NEED_TASK) {
+            state = State.RUNNING_TASKS;
+            interest(selector, 0);
+            runDelegatedTasks();
+          } else if (status == NEED_WRAP) {
+            wrap();
+          } else if (!unwrap()) {
+            interest(selector, SelectionKey.OP_READ);
+            return;
+          }
+        }
+      } catch (IOException e) {
+        fail(e);
+      } catch (RuntimeException e) {
+        // Engines throw unchecked exceptions for some malformed input, and keys may be canceled.
+        fail(new SSLException("handshake failed", e));
+      }
+    }
+
+    /** Writes pending handshake bytes. Returns false if the channel can't accept them all. */
+    private boolean flush() throws IOException {
+      if (netOut.position() == 0) return true;
+      netOut.flip();
+      channel.write(netOut);
+      netOut.compact();
+      return netOut.position() == 0;
+    }
+
+    private void wrap() throws IOException {
+      SSLEngineResult result = engine.wrap(EMPTY, netOut);
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          netOut = EngineSocket.grow(netOut, engine.getSession().getPacketBufferSize());
+          break;
+        case CLOSED:
+          flush();
+          throw new SSLException("connection closed during handshake");
+        default:
+          break;
+      }
+    }
+
+    /** Unwraps a handshake message. Returns false if more bytes must be read to do so. */
+    private boolean unwrap() throws IOException {
+      netIn.flip();
+      SSLEngineResult result = engine.unwrap(netIn, appIn);
+      netIn.compact();
+      switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+          if (!netIn.hasRemaining()) {
+            netIn = EngineSocket.grow(netIn, engine.getSession().getPacketBufferSize());
+          }
+          int read = channel.read(netIn);
+          if (read == -1) throw new EOFException("connection closed during handshake");
+          return read > 0;
+        case BUFFER_OVERFLOW:
+          appIn = EngineSocket.grow(appIn, engine.getSession().getApplicationBufferSize());
+          return true;
+        case CLOSED:
+          throw new SSLException("connection closed during handshake");
+        default:
+          return true;
+      }
+    }
+
+    private void interest(Selector selector, int ops) throws IOException {
+      if (key == null) {
+        key = channel.register(selector, ops, this);
+      } else {
+        key.interestOps(ops);
+      }
+    }
+
+    private void runDelegatedTasks() {
+      executor.execute(new NamedRunnable("OkHttp NioHandshaker %s", engine.getPeerHost()) {
+        @Override protected void execute() {
+          try {
+            for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+              task.run();
+            }
+          } catch (RuntimeException e) {
+            taskFailure = new SSLException("handshake task failed", e);
+          }
+          try {
+            loop.submit(Handshake.this);
+          } catch (IOException e) {
+            throw new AssertionError(e); // The selector is already open.
+          }
+        }
+      });
+    }
+
+    /** Returns the channel to blocking mode and delivers the socket. Its key must be gone. */
+    void complete() {
+      final EngineSocket socket;
+      try {
+        channel.configureBlocking(true);
+        socket = new EngineSocket(channel, engine, netIn, appIn);
+      } catch (IOException e) {
+        fail(e);
+        return;
+      }
+      executor.execute(new NamedRunnable("OkHttp NioHandshaker %s", engine.getPeerHost()) {
+        @Override protected void execute() {
+          callback.handshakeSucceeded(socket);
+        }
+      });
+    }
+
+    void fail(final IOException e) {
+      if (state == State.FAILED) return;
+      state = State.FAILED;
+      if (key != null) key.cancel();
+      closeQuietly(channel);
+      executor.execute(new NamedRunnable("OkHttp NioHandshaker %s", engine.getPeerHost()) {
+        @Override protected void execute() {
+          callback.handshakeFailed(e);
+        }
+      });
+    }
+  }
+}
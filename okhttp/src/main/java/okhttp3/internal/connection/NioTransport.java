@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import okhttp3.internal.Util;
+import okhttp3.internal.platform.Platform;
+
+import static okhttp3.internal.platform.Platform.WARN;
+
+/**
+ * Reads and writes many connections with a fixed pool of event loops, one per core. Each loop owns
+ * a selector and reads every channel registered with it as bytes arrive, so connections don't need
+ * a thread of their own. See {@link NioChannel} for how callers read and write.
+ */
+final class NioTransport {
+  private static final NioTransport INSTANCE =
+      new NioTransport(Runtime.getRuntime().availableProcessors());
+
+  /** How often each loop checks for channels that were closed without its knowledge. */
+  private static final long SWEEP_INTERVAL_MILLIS = 1000L;
+
+  /** Runs writes that a loop must not block on, like TLS messages sent after the handshake. */
+  final Executor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp NioTransport Task", true));
+  private final ThreadFactory loopThreadFactory = Util.threadFactory("OkHttp NioTransport", true);
+  private final EventLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  NioTransport(int loopCount) {
+    loops = new EventLoop[Math.max(1, loopCount)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+  }
+
+  static NioTransport get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Registers {@code channel}, which must be connected, with one of this transport's loops.
+   *
+   * @param engine the engine that completed a TLS handshake on {@code channel}, or null if the
+   *     channel carries plaintext.
+   * @param netIn encrypted bytes that were read from the channel but not yet unwrapped. In write
+   *     mode. Ignored if {@code engine} is null.
+   * @param appIn decrypted bytes that were read from the channel but not yet consumed. In write
+   *     mode. Ignored if {@code engine} is null.
+   */
+  NioChannel register(SocketChannel channel, @Nullable SSLEngine engine,
+      @Nullable ByteBuffer netIn, @Nullable ByteBuffer appIn) throws IOException {
+    EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    channel.configureBlocking(false);
+    final NioChannel result = new NioChannel(this, loop, channel, engine, netIn, appIn);
+    loop.execute(new Runnable() {
+      @Override public void run() {
+        result.registerWith(result.loop.selector);
+      }
+    });
+    return result;
+  }
+
+  /** Registers the socket of a completed TLS handshake. Its streams may not be used after this. */
+  NioChannel register(EngineSocket socket) throws IOException {
+    socket.detach();
+    return register(socket.channel, socket.engine, socket.netIn, socket.appIn);
+  }
+
+  /** A selector and the channels registered with it. */
+  final class EventLoop implements Runnable {
+    /** Work to do on this loop's thread, like changing a key's interest set. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** Channels registered with this loop. Only accessed by the loop's thread. */
+    final List<NioChannel> channels = new ArrayList<>();
+
+    /** Plaintext bytes read from the channel being serviced. Only accessed by the loop's thread. */
+    final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+    private Selector selector;
+    private Thread thread;
+
+    /** Runs {@code task} on this loop's thread, starting the loop if necessary. */
+    synchronized void execute(Runnable task) throws IOException {
+      if (selector == null) {
+        selector = Selector.open();
+        thread = loopThreadFactory.newThread(this);
+        thread.start();
+      }
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    boolean inLoop() {
+      return Thread.currentThread() == thread;
+    }
+
+    @Override public void run() {
+      Selector selector;
+      synchronized (this) {
+        selector = this.selector;
+      }
+      long lastSweepNanos = System.nanoTime();
+      while (true) {
+        try {
+          for (Runnable task; (task = tasks.poll()) != null; ) {
+            task.run();
+          }
+
+          selector.select(SWEEP_INTERVAL_MILLIS);
+          for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+            SelectionKey key = i.next();
+            i.remove();
+            ((NioChannel) key.attachment()).ready(key);
+          }
+
+          long now = System.nanoTime();
+          if (now - lastSweepNanos >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS)) {
+            lastSweepNanos = now;
+            sweep();
+          }
+        } catch (IOException | RuntimeException e) {
+          Platform.get().log(WARN, "NioTransport event loop failed", e);
+        }
+      }
+    }
+
+    /** Fails channels that were closed directly, such as by closing their sockets. */
+    private void sweep() {
+      for (int i = channels.size() - 1; i >= 0; i--) {
+        NioChannel channel = channels.get(i);
+        if (!channel.channel.isOpen()) {
+          channel.inputDone(new SocketException("Socket closed"));
+        }
+      }
+    }
+  }
+}
@@ -25,11 +25,15 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownServiceException;
+import java.nio.channels.SocketChannel;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
@@ -62,6 +66,7 @@ import okhttp3.internal.http2.Http2Stream;
 import okhttp3.internal.platform.Platform;
 import okhttp3.internal.tls.OkHostnameVerifier;
 import okhttp3.internal.ws.RealWebSocket;
+import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.Okio;
@@ -95,6 +100,12 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   private BufferedSource source;
   private BufferedSink sink;
 
+  /**
+   * The channel that {@link #source} and {@link #sink} read and write with the NIO transport, or
+   * null if they use {@link #socket}'s streams.
+   */
+  private @Nullable NioChannel nioChannel;
+
   // The fields below track connection state and are guarded by connectionPool.
 
   /** If true, no new streams can be created on this connection. Once true this is always true. */
@@ -127,9 +138,38 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     return result;
   }
 
+  /**
+   * Connects this connection's route.
+   *
+   * @param threadFactory creates the thread that reads frames if this connection uses HTTP/2.
+   * @param nioTransport true to read and write with {@link NioTransport} if the route permits it.
+   * @param scheduler runs the background work of an HTTP/2 connection, or null for the connection
+   *     to create threads of its own.
+   */
   public void connect(int connectTimeout, int readTimeout, int writeTimeout,
-      int pingIntervalMillis, boolean connectionRetryEnabled, Call call,
+      int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, boolean connectionRetryEnabled, Call call,
       EventListener eventListener) {
+    connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis, threadFactory,
+        nioTransport, scheduler, connectionRetryEnabled, null, call, eventListener);
+  }
+
+  /**
+   * Connects this connection's route.
+   *
+   * @param threadFactory creates the thread that reads frames if this connection uses HTTP/2.
+   * @param nioTransport true to read and write with {@link NioTransport} if the route permits it.
+   *     That requires a direct cleartext route using the default socket factory, or a socket from
+   *     {@link NioHandshaker}.
+   * @param scheduler runs the background work of an HTTP/2 connection, or null for the connection
+   *     to create threads of its own.
+   * @param connectedRawSocket a socket already connected to this connection's route, or null to
+   *     connect one. Such sockets must not require a tunnel.
+   */
+  public void connect(int connectTimeout, int readTimeout, int writeTimeout,
+      int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, boolean connectionRetryEnabled,
+      @Nullable Socket connectedRawSocket, Call call, EventListener eventListener) {
     if (protocol != null) throw new IllegalStateException("already connected");
 
     RouteException routeException = null;
@@ -161,10 +201,17 @@ public final class RealConnection extends Http2Connection.Listener implements Co
             // We were unable to connect the tunnel but properly closed down our resources.
             break;
           }
+        } else if (connectedRawSocket != null) {
+          // Use the socket once. If we need to retry, connect another.
+          rawSocket = connectedRawSocket;
+          connectedRawSocket = null;
+          rawSocket.setSoTimeout(readTimeout);
+          openSourceAndSink();
         } else {
-          connectSocket(connectTimeout, readTimeout, call, eventListener);
+          connectSocket(connectTimeout, readTimeout, nioTransport, call, eventListener);
         }
-        establishProtocol(connectionSpecSelector, pingIntervalMillis, call, eventListener);
+        establishProtocol(connectionSpecSelector, pingIntervalMillis, threadFactory, nioTransport,
+            scheduler, call, eventListener);
         eventListener.connectEnd(call, route.socketAddress(), route.proxy(), protocol);
         break;
       } catch (IOException e) {
@@ -174,6 +221,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
         rawSocket = null;
         source = null;
         sink = null;
+        nioChannel = null;
         handshake = null;
         protocol = null;
         http2Connection = null;
@@ -214,7 +262,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     Request tunnelRequest = createTunnelRequest();
     HttpUrl url = tunnelRequest.url();
     for (int i = 0; i < MAX_TUNNEL_ATTEMPTS; i++) {
-      connectSocket(connectTimeout, readTimeout, call, eventListener);
+      connectSocket(connectTimeout, readTimeout, false, call, eventListener);
       tunnelRequest = createTunnel(readTimeout, writeTimeout, tunnelRequest, url);
 
       if (tunnelRequest == null) break; // Tunnel successfully created.
@@ -230,14 +278,22 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   }
 
   /** Does all the work necessary to build a full HTTP or HTTPS connection on a raw socket. */
-  private void connectSocket(int connectTimeout, int readTimeout, Call call,
+  private void connectSocket(int connectTimeout, int readTimeout, boolean nioTransport, Call call,
       EventListener eventListener) throws IOException {
     Proxy proxy = route.proxy();
     Address address = route.address();
 
-    rawSocket = proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP
-        ? address.socketFactory().createSocket()
-        : new Socket(proxy);
+    if (nioTransport
+        && proxy.type() != Proxy.Type.SOCKS
+        && address.sslSocketFactory() == null
+        && address.socketFactory() == SocketFactory.getDefault()) {
+      // Connect the channel in blocking mode. It's registered with the transport once connected.
+      rawSocket = SocketChannel.open().socket();
+    } else if (proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP) {
+      rawSocket = address.socketFactory().createSocket();
+    } else {
+      rawSocket = new Socket(proxy);
+    }
 
     eventListener.connectStart(call, route.socketAddress(), proxy);
     rawSocket.setSoTimeout(readTimeout);
@@ -249,6 +305,10 @@ public final class RealConnection extends Http2Connection.Listener implements Co
       throw ce;
     }
 
+    openSourceAndSink();
+  }
+
+  private void openSourceAndSink() throws IOException {
     // The following try/catch block is a pseudo hacky way to get around a crash on Android 7.0
     // More details:
     // https://github.com/square/okhttp/issues/3245
@@ -264,60 +324,103 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   }
 
   private void establishProtocol(ConnectionSpecSelector connectionSpecSelector,
-      int pingIntervalMillis, Call call, EventListener eventListener) throws IOException {
+      int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, Call call, EventListener eventListener)
+      throws IOException {
     if (route.address().sslSocketFactory() == null) {
-      if (route.address().protocols().contains(Protocol.H2_PRIOR_KNOWLEDGE)) {
-        socket = rawSocket;
-        protocol = Protocol.H2_PRIOR_KNOWLEDGE;
-        startHttp2(pingIntervalMillis);
-        return;
-      }
-
       socket = rawSocket;
-      protocol = Protocol.HTTP_1_1;
-      return;
+      protocol = route.address().protocols().contains(Protocol.H2_PRIOR_KNOWLEDGE)
+          ? Protocol.H2_PRIOR_KNOWLEDGE
+          : Protocol.HTTP_1_1;
+    } else {
+      eventListener.secureConnectStart(call);
+      boolean sessionResumed = connectTls(connectionSpecSelector);
+      if (sessionResumed) {
+        eventListener.tlsSessionCacheHit(call);
+      } else {
+        eventListener.tlsSessionCacheMiss(call);
+      }
+      eventListener.secureConnectEnd(call, handshake);
     }
 
-    eventListener.secureConnectStart(call);
-    connectTls(connectionSpecSelector);
-    eventListener.secureConnectEnd(call, handshake);
+    if (nioTransport && (socket instanceof EngineSocket || socket.getChannel() != null)) {
+      registerNioChannel();
+    }
 
-    if (protocol == Protocol.HTTP_2) {
-      startHttp2(pingIntervalMillis);
+    if (protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE) {
+      startHttp2(pingIntervalMillis, threadFactory, scheduler);
     }
   }
 
-  private void startHttp2(int pingIntervalMillis) throws IOException {
+  /** Hands this connection's channel to the NIO transport and reads and writes through it. */
+  private void registerNioChannel() throws IOException {
+    nioChannel = socket instanceof EngineSocket
+        ? NioTransport.get().register((EngineSocket) socket)
+        : NioTransport.get().register(socket.getChannel(), null, null, null);
+    source = Okio.buffer(nioChannel.source());
+    sink = Okio.buffer(nioChannel.sink());
+  }
+
+  private void startHttp2(int pingIntervalMillis, ThreadFactory threadFactory,
+      @Nullable ScheduledExecutorService scheduler) throws IOException {
     socket.setSoTimeout(0); // HTTP/2 connection timeouts are set per-stream.
-    http2Connection = new Http2Connection.Builder(true)
-        .socket(socket, route.address().url().host(), source, sink)
+    // With the NIO transport, a writer loop writes frames to the channel without blocking.
+    final Http2Connection connection = new Http2Connection.Builder(true)
+        .socket(socket, route.address().url().host(),
+            nioChannel != null ? nioChannel.buffer() : source, sink)
         .listener(this)
         .pingIntervalMillis(pingIntervalMillis)
+        .threadFactory(threadFactory)
+        .scheduler(scheduler)
+        .readerThread(nioChannel == null)
+        .nonBlockingSink(nioChannel != null ? nioChannel.nonBlockingSink() : null)
         .build();
-    http2Connection.start();
+    http2Connection = connection;
+    connection.start();
+
+    if (nioChannel != null) {
+      // Read frames on the transport's event loop rather than on a thread of this connection's own.
+      nioChannel.setListener(new NioChannel.Listener() {
+        @Override public void onReadable(Buffer buffer) {
+          connection.readBufferedFrames();
+        }
+
+        @Override public void onInputDone(@Nullable IOException e) {
+          connection.sourceExhausted(e);
+        }
+      });
+    }
   }
 
-  private void connectTls(ConnectionSpecSelector connectionSpecSelector) throws IOException {
+  /** Returns true if the handshake resumed a session held by the pool's TLS session cache. */
+  private boolean connectTls(ConnectionSpecSelector connectionSpecSelector) throws IOException {
     Address address = route.address();
     SSLSocketFactory sslSocketFactory = address.sslSocketFactory();
     boolean success = false;
     SSLSocket sslSocket = null;
+    SSLSession sslSocketSession = null;
     try {
-      // Create the wrapper over the connected socket.
-      sslSocket = (SSLSocket) sslSocketFactory.createSocket(
-          rawSocket, address.url().host(), address.url().port(), true /* autoClose */);
-
-      // Configure the socket's ciphers, TLS versions, and extensions.
-      ConnectionSpec connectionSpec = connectionSpecSelector.configureSecureSocket(sslSocket);
-      if (connectionSpec.supportsTlsExtensions()) {
-        Platform.get().configureTlsExtensions(
-            sslSocket, address.url().host(), address.protocols());
-      }
+      ConnectionSpec connectionSpec = null;
+      if (rawSocket instanceof EngineSocket) {
+        // The non-blocking handshaker already configured the engine and completed the handshake.
+        sslSocket = (EngineSocket) rawSocket;
+      } else {
+        // Create the wrapper over the connected socket.
+        sslSocket = (SSLSocket) sslSocketFactory.createSocket(
+            rawSocket, address.url().host(), address.url().port(), true /* autoClose */);
+
+        // Configure the socket's ciphers, TLS versions, and extensions.
+        connectionSpec = connectionSpecSelector.configureSecureSocket(sslSocket);
+        if (connectionSpec.supportsTlsExtensions()) {
+          Platform.get().configureTlsExtensions(
+              sslSocket, address.url().host(), address.protocols());
+        }
 
-      // Force handshake. This can throw!
-      sslSocket.startHandshake();
+        // Force handshake. This can throw!
+        sslSocket.startHandshake();
+      }
       // block for session establishment
-      SSLSession sslSocketSession = sslSocket.getSession();
+      sslSocketSession = sslSocket.getSession();
       if (!isValid(sslSocketSession)) {
         throw new IOException("a valid ssl session was not established");
       }
@@ -335,9 +438,11 @@ public final class RealConnection extends Http2Connection.Listener implements Co
       // Check that the certificate pinner is satisfied by the certificates presented.
       address.certificatePinner().check(address.url().host(),
           unverifiedHandshake.peerCertificates());
+      boolean sessionResumed = connectionPool.tlsSessionCache().handshakeSucceeded(
+          address, sslSocketSession);
 
       // Success! Save the handshake and the ALPN protocol.
-      String maybeProtocol = connectionSpec.supportsTlsExtensions()
+      String maybeProtocol = connectionSpec == null || connectionSpec.supportsTlsExtensions()
           ? Platform.get().getSelectedProtocol(sslSocket)
           : null;
       socket = sslSocket;
@@ -348,6 +453,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
           ? Protocol.get(maybeProtocol)
           : Protocol.HTTP_1_1;
       success = true;
+      return sessionResumed;
     } catch (AssertionError e) {
       if (Util.isAndroidGetsocknameError(e)) throw new IOException(e);
       throw e;
@@ -356,6 +462,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
         Platform.get().afterHandshake(sslSocket);
       }
       if (!success) {
+        // Don't resume a session whose handshake failed or whose certificates weren't accepted.
+        connectionPool.tlsSessionCache().handshakeFailed(address, sslSocketSession);
         closeQuietly(sslSocket);
       }
     }
@@ -521,6 +629,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
   public void cancel() {
     // Close the raw socket so we don't end up doing synchronous I/O.
+    if (nioChannel != null) nioChannel.close();
     closeQuietly(rawSocket);
   }
 
@@ -534,11 +643,15 @@ public final class RealConnection extends Http2Connection.Listener implements Co
       return false;
     }
 
+    if (nioChannel != null && nioChannel.isInputDone()) {
+      return false; // The event loop found that the socket is closed.
+    }
+
     if (http2Connection != null) {
       return !http2Connection.isShutdown();
     }
 
-    if (doExtensiveChecks) {
+    if (doExtensiveChecks && nioChannel == null) {
       try {
         int readTimeout = socket.getSoTimeout();
         try {
@@ -560,6 +673,15 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     return true;
   }
 
+  /**
+   * Checks the health of this HTTP/2 connection without blocking by sending the peer a ping. If the
+   * previous health check ping hasn't been answered when this is called, the connection is failed
+   * instead.
+   */
+  public void sendHealthCheckPing() {
+    http2Connection.sendHealthCheckPingAsync();
+  }
+
   /** Refuse incoming streams. */
   @Override public void onStream(Http2Stream stream) throws IOException {
     stream.close(ErrorCode.REFUSED_STREAM);
@@ -569,6 +691,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   @Override public void onSettings(Http2Connection connection) {
     synchronized (connectionPool) {
       allocationLimit = connection.maxConcurrentStreams();
+      Internal.instance.multiplexedConnectionChanged(connectionPool, this);
     }
   }
 
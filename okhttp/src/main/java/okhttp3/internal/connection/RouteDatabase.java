@@ -15,31 +15,175 @@
  */
 package okhttp3.internal.connection;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import okhttp3.Route;
 
 /**
- * A blacklist of failed routes to avoid when creating a new connection to a target address. This is
- * used so that OkHttp can learn from its mistakes: if there was a failure attempting to connect to
- * a specific IP address or proxy server, that failure is remembered and alternate routes are
- * preferred.
+ * Scores routes to prefer when creating a new connection to a target address. This is used so
+ * that OkHttp can learn from its mistakes and its successes: if there was a failure attempting to
+ * connect to a specific IP address or proxy server, that failure is remembered and alternate routes
+ * are preferred; among healthy routes, the ones that connect fastest are preferred.
+ *
+ * <p>For each route this tracks a failure score and an exponentially-weighted moving average of
+ * its connect latency. Both decay over time so that old observations count for less than recent
+ * ones: each failure adds one to the failure score, which halves every {@link #HALF_LIFE_NANOS}.
+ * A route is postponed while its failure score exceeds {@link #POSTPONE_THRESHOLD}, so a single
+ * failure postpones a route for one half-life or until it connects successfully.
  */
 public final class RouteDatabase {
-  private final Set<Route> failedRoutes = new LinkedHashSet<>();
+  /** How long it takes for old observations to lose half of their weight. */
+  static final long HALF_LIFE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  /** Routes whose failure score is greater than this are postponed. */
+  static final double POSTPONE_THRESHOLD = 0.5;
+
+  /** The minimum weight of a new latency sample in the moving average. */
+  static final double LATENCY_ALPHA = 0.25;
+
+  /** The maximum number of routes to track. The least recently used routes are forgotten. */
+  static final int MAX_ROUTES = 1024;
+
+  private final Map<Route, RouteStats> routeStats = new LinkedHashMap<Route, RouteStats>(
+      0, 0.75f, true) {
+    @Override protected boolean removeEldestEntry(Map.Entry<Route, RouteStats> eldest) {
+      return size() > MAX_ROUTES;
+    }
+  };
 
   /** Records a failure connecting to {@code failedRoute}. */
-  public synchronized void failed(Route failedRoute) {
-    failedRoutes.add(failedRoute);
+  public void failed(Route failedRoute) {
+    failed(failedRoute, System.nanoTime());
+  }
+
+  synchronized void failed(Route failedRoute, long now) {
+    RouteStats stats = getOrCreate(failedRoute);
+    stats.failureScore = stats.failureScore(now) + 1.0;
+    stats.failureScoreAtNanos = now;
   }
 
-  /** Records success connecting to {@code route}. */
-  public synchronized void connected(Route route) {
-    failedRoutes.remove(route);
+  /**
+   * Records success connecting to {@code route} in {@code connectLatencyNanos}. This halves the
+   * route's failure score and ends its postponement.
+   */
+  public void connected(Route route, long connectLatencyNanos) {
+    connected(route, connectLatencyNanos, System.nanoTime());
+  }
+
+  synchronized void connected(Route route, long connectLatencyNanos, long now) {
+    RouteStats stats = getOrCreate(route);
+    stats.failureScore = Math.min(stats.failureScore(now) / 2.0, POSTPONE_THRESHOLD);
+    stats.failureScoreAtNanos = now;
+
+    if (stats.latencyNanos == -1L) {
+      stats.latencyNanos = connectLatencyNanos;
+    } else {
+      // Weigh the new sample more heavily if the average is old.
+      double weight = Math.max(LATENCY_ALPHA, 1.0 - decay(now - stats.latencyAtNanos));
+      stats.latencyNanos += (long) ((connectLatencyNanos - stats.latencyNanos) * weight);
+    }
+    stats.latencyAtNanos = now;
   }
 
   /** Returns true if {@code route} has failed recently and should be avoided. */
-  public synchronized boolean shouldPostpone(Route route) {
-    return failedRoutes.contains(route);
+  public boolean shouldPostpone(Route route) {
+    return shouldPostpone(route, System.nanoTime());
+  }
+
+  synchronized boolean shouldPostpone(Route route, long now) {
+    RouteStats stats = routeStats.get(route);
+    return stats != null && stats.failureScore(now) > POSTPONE_THRESHOLD;
+  }
+
+  /** Returns the decayed failure score of {@code route}, or 0 if it has never failed. */
+  public synchronized double failureScore(Route route) {
+    RouteStats stats = routeStats.get(route);
+    return stats != null ? stats.failureScore(System.nanoTime()) : 0.0;
+  }
+
+  /**
+   * Returns the moving average connect latency of {@code route}, or -1 if it has never connected.
+   */
+  public synchronized long connectLatencyNanos(Route route) {
+    RouteStats stats = routeStats.get(route);
+    return stats != null ? stats.latencyNanos : -1L;
+  }
+
+  /**
+   * Sorts {@code routes} so that the routes expected to connect fastest are first. A route's
+   * expected cost is its average connect latency scaled up by its failure score. Routes that have
+   * never connected are assumed to have the average latency of those that have. Routes with equal
+   * costs keep their order.
+   */
+  public void sort(List<Route> routes) {
+    sort(routes, System.nanoTime());
+  }
+
+  void sort(List<Route> routes, long now) {
+    if (routes.size() < 2) return;
+
+    final Map<Route, Double> costs = new IdentityHashMap<>();
+    synchronized (this) {
+      long latencySum = 0L;
+      int latencyCount = 0;
+      List<RouteStats> statsList = new ArrayList<>(routes.size());
+      for (int i = 0, size = routes.size(); i < size; i++) {
+        RouteStats stats = routeStats.get(routes.get(i));
+        statsList.add(stats);
+        if (stats != null && stats.latencyNanos != -1L) {
+          latencySum += stats.latencyNanos;
+          latencyCount++;
+        }
+      }
+      if (latencyCount == 0) return; // Nothing to learn from. Keep the DNS order.
+      long defaultLatencyNanos = latencySum / latencyCount;
+
+      for (int i = 0, size = routes.size(); i < size; i++) {
+        RouteStats stats = statsList.get(i);
+        long latencyNanos = stats != null && stats.latencyNanos != -1L
+            ? stats.latencyNanos
+            : defaultLatencyNanos;
+        double failureScore = stats != null ? stats.failureScore(now) : 0.0;
+        costs.put(routes.get(i), latencyNanos * (1.0 + failureScore));
+      }
+    }
+
+    Collections.sort(routes, new Comparator<Route>() {
+      @Override public int compare(Route a, Route b) {
+        return Double.compare(costs.get(a), costs.get(b));
+      }
+    });
+  }
+
+  private RouteStats getOrCreate(Route route) {
+    RouteStats stats = routeStats.get(route);
+    if (stats == null) {
+      stats = new RouteStats();
+      routeStats.put(route, stats);
+    }
+    return stats;
+  }
+
+  /** Returns the fraction of an observation's weight that remains after {@code ageNanos}. */
+  static double decay(long ageNanos) {
+    return Math.pow(0.5, (double) Math.max(0L, ageNanos) / HALF_LIFE_NANOS);
+  }
+
+  /** Observations of a single route. Guarded by the database. */
+  static final class RouteStats {
+    double failureScore;
+    long failureScoreAtNanos;
+    long latencyNanos = -1L;
+    long latencyAtNanos;
+
+    double failureScore(long now) {
+      return failureScore * decay(now - failureScoreAtNanos);
+    }
   }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Route;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
+import okhttp3.internal.platform.Platform;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Races TCP connect attempts to the routes of a selection, as recommended by RFC 8305 (Happy
+ * Eyeballs). An attempt starts every {@link #ATTEMPT_DELAY_MILLIS}, or immediately when the
+ * previous attempt fails. The first socket to connect wins and the others are closed.
+ *
+ * <p>Attempts connect on background threads, but events are reported on the racing thread.
+ */
+final class RouteRacer {
+  /** How long to wait for an attempt to connect before starting the next one. */
+  static final long ATTEMPT_DELAY_MILLIS = 250L;
+
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp RouteRacer", true));
+
+  private final RouteSelector routeSelector;
+  private final RouteSelector.Selection selection;
+  private final int connectTimeout;
+  private final Call call;
+  private final EventListener eventListener;
+
+  /** Attempts that have started but whose results haven't been reported. Guarded by this. */
+  private final List<Attempt> attempts = new ArrayList<>();
+  private boolean canceled;
+
+  RouteRacer(RouteSelector routeSelector, RouteSelector.Selection selection, int connectTimeout,
+      Call call, EventListener eventListener) {
+    this.routeSelector = routeSelector;
+    this.selection = selection;
+    this.connectTimeout = connectTimeout;
+    this.call = call;
+    this.eventListener = eventListener;
+  }
+
+  /**
+   * Connects to the remaining routes of the selection and returns the first attempt to succeed.
+   * Throws a {@link RouteException} if every attempt fails.
+   */
+  synchronized Attempt race() throws IOException {
+    selection.interleaveAddressFamilies();
+
+    RouteException routeException = null;
+    long nextAttemptNanos = System.nanoTime();
+    while (true) {
+      if (canceled) {
+        cancelAttempts(new IOException("Canceled"));
+        throw new IOException("Canceled");
+      }
+
+      // Report the attempts that have finished. If one has connected, we're done.
+      for (int i = 0; i < attempts.size(); ) {
+        Attempt attempt = attempts.get(i);
+        if (!attempt.done) {
+          i++;
+          continue;
+        }
+
+        attempts.remove(i);
+        if (attempt.failure == null) {
+          cancelAttempts(new IOException("Canceled: " + attempt.route.socketAddress()
+              + " connected first"));
+          return attempt;
+        }
+
+        Route route = attempt.route;
+        eventListener.connectFailed(call, route.socketAddress(), route.proxy(), null,
+            attempt.failure);
+        routeSelector.connectFailed(route, attempt.failure);
+        if (routeException == null) {
+          routeException = new RouteException(attempt.failure);
+        } else {
+          routeException.addConnectException(attempt.failure);
+        }
+        nextAttemptNanos = System.nanoTime(); // Don't wait to start the next attempt.
+      }
+
+      long now = System.nanoTime();
+      if (selection.hasNext() && now - nextAttemptNanos >= 0L) {
+        start(selection.next());
+        nextAttemptNanos = now + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS);
+        continue;
+      }
+
+      if (attempts.isEmpty()) throw routeException; // Every attempt failed.
+
+      try {
+        if (selection.hasNext()) {
+          TimeUnit.NANOSECONDS.timedWait(this, nextAttemptNanos - now);
+        } else {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Retain interrupted status.
+        cancelAttempts(new InterruptedIOException("interrupted"));
+        throw new InterruptedIOException("interrupted");
+      }
+    }
+  }
+
+  /** Closes the sockets of attempts in progress. This causes {@link #race} to fail. */
+  synchronized void cancel() {
+    canceled = true;
+    for (Attempt attempt : attempts) {
+      closeQuietly(attempt.socket);
+    }
+    notifyAll();
+  }
+
+  private void start(Route route) {
+    Attempt attempt = new Attempt(route);
+    attempts.add(attempt);
+    eventListener.connectStart(call, route.socketAddress(), route.proxy());
+    try {
+      attempt.socket = route.address().socketFactory().createSocket();
+    } catch (IOException e) {
+      attempt.done = true;
+      attempt.failure = e;
+      return;
+    }
+    executor.execute(attempt);
+  }
+
+  /** Closes the sockets of attempts in progress and reports that they failed with {@code e}. */
+  private void cancelAttempts(IOException e) {
+    for (Attempt attempt : attempts) {
+      closeQuietly(attempt.socket);
+      Route route = attempt.route;
+      eventListener.connectFailed(call, route.socketAddress(), route.proxy(), null, e);
+    }
+    attempts.clear();
+  }
+
+  /** An attempt to connect a socket to a route. */
+  final class Attempt extends NamedRunnable {
+    final Route route;
+    Socket socket;
+
+    /** True once the attempt has connected or failed. Guarded by the racer. */
+    boolean done;
+    IOException failure;
+    long connectLatencyNanos;
+
+    Attempt(Route route) {
+      super("OkHttp RouteRacer %s", route.socketAddress());
+      this.route = route;
+    }
+
+    @Override protected void execute() {
+      IOException failure = new IOException("Failed to connect to " + route.socketAddress());
+      long start = System.nanoTime();
+      try {
+        Platform.get().connectSocket(socket, route.socketAddress(), connectTimeout);
+        failure = null;
+      } catch (ConnectException e) {
+        failure = new ConnectException("Failed to connect to " + route.socketAddress());
+        failure.initCause(e);
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        synchronized (RouteRacer.this) {
+          this.done = true;
+          this.failure = failure;
+          this.connectLatencyNanos = System.nanoTime() - start;
+          RouteRacer.this.notifyAll();
+        }
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package okhttp3.internal.connection;
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -102,6 +103,9 @@ public final class RouteSelector {
       postponedRoutes.clear();
     }
 
+    // Prefer the routes that have connected fastest and failed least.
+    routeDatabase.sort(routes);
+
     return new Selection(routes);
   }
 
@@ -237,5 +241,48 @@ public final class RouteSelector {
     public List<Route> getAll() {
       return new ArrayList<>(routes);
     }
+
+    /**
+     * Returns true if connect attempts to the remaining routes may be raced. This requires at
+     * least two routes, all of which connect directly to an IP address.
+     */
+    boolean canRace() {
+      if (routes.size() - nextRouteIndex < 2) return false;
+      for (int i = nextRouteIndex; i < routes.size(); i++) {
+        Route route = routes.get(i);
+        if (route.proxy().type() != Proxy.Type.DIRECT) return false;
+        if (route.socketAddress().isUnresolved()) return false;
+      }
+      return true;
+    }
+
+    /**
+     * Reorders the remaining routes so that IPv6 and IPv4 addresses alternate, starting with the
+     * family of the first remaining route. Routes of each family keep their relative order.
+     */
+    void interleaveAddressFamilies() {
+      if (!hasNext()) return;
+      List<Route> first = new ArrayList<>();
+      List<Route> second = new ArrayList<>();
+      boolean firstIsIpv6 = isIpv6(routes.get(nextRouteIndex));
+      for (int i = nextRouteIndex; i < routes.size(); i++) {
+        Route route = routes.get(i);
+        if (isIpv6(route) == firstIsIpv6) {
+          first.add(route);
+        } else {
+          second.add(route);
+        }
+      }
+
+      int index = nextRouteIndex;
+      for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+        if (i < first.size()) routes.set(index++, first.get(i));
+        if (i < second.size()) routes.set(index++, second.get(i));
+      }
+    }
+
+    private static boolean isIpv6(Route route) {
+      return route.socketAddress().getAddress() instanceof Inet6Address;
+    }
   }
 }
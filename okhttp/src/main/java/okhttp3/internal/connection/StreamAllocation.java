@@ -18,12 +18,24 @@ package okhttp3.internal.connection;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
 import okhttp3.Address;
 import okhttp3.Call;
 import okhttp3.Connection;
 import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
 import okhttp3.EventListener;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
@@ -34,8 +46,10 @@ import okhttp3.internal.http.HttpCodec;
 import okhttp3.internal.http2.ConnectionShutdownException;
 import okhttp3.internal.http2.ErrorCode;
 import okhttp3.internal.http2.StreamResetException;
+import okhttp3.internal.platform.Platform;
 
 import static okhttp3.internal.Util.closeQuietly;
+import static okhttp3.internal.platform.Platform.WARN;
 
 /**
  * This class coordinates the relationship between three entities:
@@ -75,6 +89,13 @@ import static okhttp3.internal.Util.closeQuietly;
  * then canceling may break the entire connection.
  */
 public final class StreamAllocation {
+  /**
+   * Bounds each of the connect and the handshake of a non-blocking connect when the client has no
+   * timeout for it. A call whose non-blocking connect fails connects normally, with the client's
+   * timeouts.
+   */
+  static final int NON_BLOCKING_TIMEOUT_MILLIS = 10_000;
+
   public final Address address;
   private RouteSelector.Selection routeSelection;
   private Route route;
@@ -91,6 +112,9 @@ public final class StreamAllocation {
   private boolean released;
   private boolean canceled;
   private HttpCodec codec;
+  private RouteRacer routeRacer;
+  private NioHandshaker.Handshake nonBlockingHandshake;
+  private boolean reservedConnection;
 
   public StreamAllocation(ConnectionPool connectionPool, Address address, Call call,
       EventListener eventListener, Object callStackTrace) {
@@ -108,11 +132,17 @@ public final class StreamAllocation {
     int readTimeout = chain.readTimeoutMillis();
     int writeTimeout = chain.writeTimeoutMillis();
     int pingIntervalMillis = client.pingIntervalMillis();
+    ThreadFactory threadFactory = Internal.instance.threadFactory(
+        client, "OkHttp Http2Connection", false);
+    boolean nioTransport = client.nioTransport();
+    ScheduledExecutorService scheduler = Internal.instance.scheduler(client);
     boolean connectionRetryEnabled = client.retryOnConnectionFailure();
+    boolean fastFallback = client.fastFallback();
 
     try {
       RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
-          writeTimeout, pingIntervalMillis, connectionRetryEnabled, doExtensiveHealthChecks);
+          writeTimeout, pingIntervalMillis, threadFactory, nioTransport, scheduler,
+          connectionRetryEnabled, fastFallback, doExtensiveHealthChecks);
       HttpCodec resultCodec = resultConnection.newCodec(client, chain, this);
 
       synchronized (connectionPool) {
@@ -129,11 +159,13 @@ public final class StreamAllocation {
    * until a healthy connection is found.
    */
   private RealConnection findHealthyConnection(int connectTimeout, int readTimeout,
-      int writeTimeout, int pingIntervalMillis, boolean connectionRetryEnabled,
-      boolean doExtensiveHealthChecks) throws IOException {
+      int writeTimeout, int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, boolean connectionRetryEnabled,
+      boolean fastFallback, boolean doExtensiveHealthChecks) throws IOException {
     while (true) {
       RealConnection candidate = findConnection(connectTimeout, readTimeout, writeTimeout,
-          pingIntervalMillis, connectionRetryEnabled);
+          pingIntervalMillis, threadFactory, nioTransport, scheduler, connectionRetryEnabled,
+          fastFallback);
 
       // If this is a brand new connection, we can skip the extensive health checks.
       synchronized (connectionPool) {
@@ -143,8 +175,10 @@ public final class StreamAllocation {
       }
 
       // Do a (potentially slow) check to confirm that the pooled connection is still good. If it
-      // isn't, take it out of the pool and start again.
-      if (!candidate.isHealthy(doExtensiveHealthChecks)) {
+      // isn't, take it out of the pool and start again. Skip the slow part if the pool checks its
+      // idle connections in the background.
+      if (!candidate.isHealthy(
+          doExtensiveHealthChecks && !connectionPool.checksHealthInBackground())) {
         noNewStreams();
         continue;
       }
@@ -156,12 +190,18 @@ public final class StreamAllocation {
   /**
    * Returns a connection to host a new stream. This prefers the existing connection if it exists,
    * then the pool, finally building a new connection.
+   *
+   * @param fastFallback true to race connect attempts to the selected routes rather than trying
+   *     them one at a time.
    */
   private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
-      int pingIntervalMillis, boolean connectionRetryEnabled) throws IOException {
+      int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, boolean connectionRetryEnabled,
+      boolean fastFallback) throws IOException {
     boolean foundPooledConnection = false;
     RealConnection result = null;
     Route selectedRoute = null;
+    RouteRacer racer = null;
     Connection releasedConnection;
     Socket toClose;
     synchronized (connectionPool) {
@@ -234,16 +274,28 @@ public final class StreamAllocation {
       }
 
       if (!foundPooledConnection) {
-        if (selectedRoute == null) {
-          selectedRoute = routeSelection.next();
-        }
+        result = awaitConnectionCapacity(connectTimeout);
+        if (result != null) foundPooledConnection = true;
+      }
 
-        // Create a connection and assign it to this allocation immediately. This makes it possible
-        // for an asynchronous cancel() to interrupt the handshake we're about to do.
-        route = selectedRoute;
-        refusedStreamCount = 0;
-        result = new RealConnection(connectionPool, selectedRoute);
-        acquire(result, false);
+      if (!foundPooledConnection) {
+        if (selectedRoute == null && fastFallback && routeSelection.canRace()) {
+          // Race the remaining routes. Register the racer so that cancel() can interrupt it.
+          racer = new RouteRacer(routeSelector, routeSelection, connectTimeout, call,
+              eventListener);
+          routeRacer = racer;
+        } else {
+          if (selectedRoute == null) {
+            selectedRoute = routeSelection.next();
+          }
+
+          // Create a connection and assign it to this allocation immediately. This makes it
+          // possible for an asynchronous cancel() to interrupt the handshake we're about to do.
+          route = selectedRoute;
+          refusedStreamCount = 0;
+          result = new RealConnection(connectionPool, selectedRoute);
+          acquire(result, false);
+        }
       }
     }
 
@@ -254,9 +306,41 @@ public final class StreamAllocation {
     }
 
     // Do TCP + TLS handshakes. This is a blocking operation.
-    result.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis,
-        connectionRetryEnabled, call, eventListener);
-    routeDatabase().connected(result.route());
+    boolean connected = false;
+    long connectLatencyNanos = 0L;
+    try {
+      Socket rawSocket = null;
+      if (racer != null) {
+        RouteRacer.Attempt winner = racer.race();
+        synchronized (connectionPool) {
+          routeRacer = null;
+          if (canceled) {
+            closeQuietly(winner.socket);
+            throw new IOException("Canceled");
+          }
+          route = winner.route;
+          refusedStreamCount = 0;
+          result = new RealConnection(connectionPool, winner.route);
+          acquire(result, false);
+        }
+        rawSocket = winner.socket;
+        connectLatencyNanos = winner.connectLatencyNanos;
+      }
+
+      long connectStartNanos = System.nanoTime();
+      result.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis, threadFactory,
+          nioTransport, scheduler, connectionRetryEnabled, rawSocket, call, eventListener);
+      connectLatencyNanos += System.nanoTime() - connectStartNanos;
+      connected = true;
+    } finally {
+      if (!connected) {
+        synchronized (connectionPool) {
+          routeRacer = null;
+          releaseReservation();
+        }
+      }
+    }
+    routeDatabase().connected(result.route(), connectLatencyNanos);
 
     Socket socket = null;
     synchronized (connectionPool) {
@@ -264,6 +348,7 @@ public final class StreamAllocation {
 
       // Pool the connection.
       Internal.instance.put(connectionPool, result);
+      releaseReservation();
 
       // If another multiplexed connection to the same address was created concurrently, then
       // release this connection and acquire that one.
@@ -278,6 +363,286 @@ public final class StreamAllocation {
     return result;
   }
 
+  /**
+   * Reserves capacity to connect a new connection to this allocation's address. If the address's
+   * host has its maximum number of connections this waits for either capacity or a pooled
+   * connection to become available. Returns the pooled connection if one was acquired, or null if
+   * capacity was reserved.
+   */
+  private @Nullable RealConnection awaitConnectionCapacity(int connectTimeout) throws IOException {
+    assert (Thread.holdsLock(connectionPool));
+    long timeoutNanos = connectTimeout != 0
+        ? TimeUnit.MILLISECONDS.toNanos(connectTimeout)
+        : Long.MAX_VALUE;
+    long start = System.nanoTime();
+    while (!reserveConnection()) {
+      if (canceled) throw new IOException("Canceled");
+      long remainingNanos = timeoutNanos - (System.nanoTime() - start);
+      if (remainingNanos <= 0L) {
+        throw new SocketTimeoutException("timed out waiting for a connection to "
+            + address.url().host());
+      }
+      try {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(remainingNanos);
+        connectionPool.wait(remainingMillis, (int) (remainingNanos - remainingMillis * 1_000_000L));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Retain interrupted status.
+        throw new InterruptedIOException("interrupted waiting for a connection");
+      }
+      if (canceled) throw new IOException("Canceled");
+
+      Internal.instance.get(connectionPool, address, this, null);
+      if (connection != null) return connection;
+    }
+    return null;
+  }
+
+  /**
+   * Reserves capacity to connect a new connection to this allocation's address. Returns false if
+   * its host already has its maximum number of connections. Hosts without a policy have no maximum,
+   * so no capacity is reserved for them.
+   */
+  private boolean reserveConnection() {
+    assert (Thread.holdsLock(connectionPool));
+    if (connectionPool.hostPolicy(address.url().host()) == null) return true;
+    if (!Internal.instance.reserveConnection(connectionPool, address)) return false;
+    reservedConnection = true;
+    return true;
+  }
+
+  /** Releases the capacity reserved by {@link #reserveConnection}, if any. */
+  private void releaseReservation() {
+    assert (Thread.holdsLock(connectionPool));
+    if (!reservedConnection) return;
+    reservedConnection = false;
+    Internal.instance.releaseReservation(connectionPool, address);
+  }
+
+  /**
+   * Connects a new connection to this allocation's address and pools it as an idle connection.
+   * Returns the connection, or null if the address's host already has its maximum number of
+   * connections.
+   */
+  public @Nullable RealConnection prewarm(int connectTimeout, int readTimeout, int writeTimeout,
+      int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, boolean connectionRetryEnabled)
+      throws IOException {
+    synchronized (connectionPool) {
+      if (released) throw new IllegalStateException("released");
+      if (connection != null) throw new IllegalStateException("connection != null");
+      if (canceled) throw new IOException("Canceled");
+      if (!reserveConnection()) return null;
+    }
+
+    RealConnection result = null;
+    try {
+      if (routeSelection == null || !routeSelection.hasNext()) {
+        routeSelection = routeSelector.next();
+      }
+
+      synchronized (connectionPool) {
+        if (canceled) throw new IOException("Canceled");
+        route = routeSelection.next();
+        result = new RealConnection(connectionPool, route);
+        acquire(result, false);
+      }
+
+      connectAndPool(result, null, System.nanoTime(), connectTimeout, readTimeout, writeTimeout,
+          pingIntervalMillis, threadFactory, nioTransport, scheduler, connectionRetryEnabled);
+    } catch (RouteException e) {
+      streamFailed(e.getLastConnectException());
+      throw e.getLastConnectException();
+    } finally {
+      synchronized (connectionPool) {
+        releaseReservation();
+      }
+      release();
+    }
+    return result;
+  }
+
+  /**
+   * Connects a new TLS connection to this allocation's address and pools it as an idle connection,
+   * without blocking a thread on the TCP and TLS handshakes. The handshakes are driven by {@link
+   * NioHandshaker} with an engine from {@code sslContext}, and {@code callback} runs when the
+   * connection is pooled or connecting fails.
+   *
+   * <p>If a non-blocking connect to the same address is already in flight this doesn't connect
+   * another; {@code callback} runs when that connect completes instead.
+   *
+   * <p>Returns false without running {@code callback} if a pooled connection is already available,
+   * if the host has its maximum number of connections, if the route isn't direct, or if the
+   * platform can't negotiate protocols on an engine.
+   */
+  public boolean connectNonBlocking(SSLContext sslContext, final int connectTimeout,
+      final int readTimeout, final int writeTimeout, final int pingIntervalMillis,
+      final ThreadFactory threadFactory, final boolean nioTransport,
+      final @Nullable ScheduledExecutorService scheduler, final boolean connectionRetryEnabled,
+      final Runnable callback) throws IOException {
+    if (!Platform.get().tlsExtensionsInParameters()) return false;
+
+    synchronized (connectionPool) {
+      if (released) throw new IllegalStateException("released");
+      if (connection != null) throw new IllegalStateException("connection != null");
+      if (canceled) throw new IOException("Canceled");
+
+      if (Internal.instance.hasConnection(connectionPool, address)) return false;
+      if (Internal.instance.joinNonBlockingConnect(connectionPool, address, callback)) return true;
+      if (!reserveConnection()) {
+        Internal.instance.finishNonBlockingConnect(connectionPool, address);
+        return false;
+      }
+    }
+
+    boolean connecting = false;
+    SocketChannel channel = null;
+    try {
+      if (routeSelection == null || !routeSelection.hasNext()) {
+        routeSelection = routeSelector.next();
+      }
+      final Route route = routeSelection.next();
+      if (route.proxy().type() != Proxy.Type.DIRECT) return false;
+
+      SSLEngine engine = newSslEngine(sslContext);
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      eventListener.connectStart(call, route.socketAddress(), route.proxy());
+      final long connectStartNanos = System.nanoTime();
+      try {
+        channel.connect(route.socketAddress());
+      } catch (IOException e) {
+        eventListener.connectFailed(call, route.socketAddress(), route.proxy(), null, e);
+        synchronized (connectionPool) {
+          routeSelector.connectFailed(route, e);
+        }
+        throw e;
+      }
+
+      // The call holds its place in the dispatcher while it waits, so never wait indefinitely.
+      long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+          (long) (connectTimeout != 0 ? connectTimeout : NON_BLOCKING_TIMEOUT_MILLIS)
+              + (readTimeout != 0 ? readTimeout : NON_BLOCKING_TIMEOUT_MILLIS));
+      NioHandshaker.Handshake handshake = NioHandshaker.get().handshake(
+          channel, engine, timeoutNanos, new NioHandshaker.Callback() {
+            @Override public void handshakeSucceeded(EngineSocket socket) {
+              try {
+                RealConnection result;
+                synchronized (connectionPool) {
+                  if (canceled) throw new IOException("Canceled");
+                  StreamAllocation.this.route = route;
+                  result = new RealConnection(connectionPool, route);
+                  acquire(result, false);
+                }
+                connectAndPool(result, socket, connectStartNanos, connectTimeout, readTimeout,
+                    writeTimeout, pingIntervalMillis, threadFactory, nioTransport, scheduler,
+                    connectionRetryEnabled);
+              } catch (RouteException e) {
+                streamFailed(e.getLastConnectException());
+              } catch (IOException e) {
+                closeQuietly(socket);
+              } catch (RuntimeException e) {
+                // Keep the handshaker running. The waiting calls will connect for themselves.
+                Platform.get().log(WARN, "Failed to pool " + address.url().host(), e);
+                closeQuietly(socket);
+              } finally {
+                finishNonBlocking();
+              }
+            }
+
+            @Override public void handshakeFailed(IOException e) {
+              eventListener.connectFailed(call, route.socketAddress(), route.proxy(), null, e);
+              synchronized (connectionPool) {
+                if (!canceled) routeSelector.connectFailed(route, e);
+              }
+              finishNonBlocking();
+            }
+          });
+      connecting = true;
+
+      boolean canceledNow;
+      synchronized (connectionPool) {
+        nonBlockingHandshake = handshake;
+        canceledNow = canceled;
+      }
+      if (canceledNow) handshake.cancel();
+    } finally {
+      if (!connecting) {
+        closeQuietly(channel);
+        List<Runnable> callbacks;
+        synchronized (connectionPool) {
+          releaseReservation();
+          callbacks = Internal.instance.finishNonBlockingConnect(connectionPool, address);
+        }
+        release();
+        // The caller connects for itself. Release the calls that joined this connect to do so too.
+        callbacks.remove(callback);
+        for (Runnable joined : callbacks) {
+          joined.run();
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns an engine for this allocation's address, configured with the cipher suites, TLS
+   * versions, and extensions that the address's first compatible connection spec permits.
+   */
+  private SSLEngine newSslEngine(SSLContext sslContext) throws IOException {
+    String host = address.url().host();
+    SSLEngine engine = sslContext.createSSLEngine(host, address.url().port());
+    engine.setUseClientMode(true);
+
+    // Apply the connection spec to an unconnected socket and copy its parameters to the engine.
+    SSLSocket template = (SSLSocket) address.sslSocketFactory().createSocket();
+    try {
+      ConnectionSpec connectionSpec = new ConnectionSpecSelector(address.connectionSpecs())
+          .configureSecureSocket(template);
+      if (connectionSpec.supportsTlsExtensions()) {
+        Platform.get().configureTlsExtensions(template, host, address.protocols());
+      }
+      engine.setSSLParameters(template.getSSLParameters());
+    } finally {
+      closeQuietly(template);
+    }
+    return engine;
+  }
+
+  /** Completes a non-blocking connect and runs the callbacks of every call awaiting it. */
+  private void finishNonBlocking() {
+    List<Runnable> callbacks;
+    synchronized (connectionPool) {
+      releaseReservation();
+      callbacks = Internal.instance.finishNonBlockingConnect(connectionPool, address);
+    }
+    try {
+      release();
+    } finally {
+      for (Runnable callback : callbacks) {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * Connects {@code result}, which this allocation holds, and pools it as an idle connection. The
+   * caller must release its reservation and this allocation.
+   */
+  private void connectAndPool(RealConnection result, @Nullable Socket connectedRawSocket,
+      long connectStartNanos, int connectTimeout, int readTimeout, int writeTimeout,
+      int pingIntervalMillis, ThreadFactory threadFactory, boolean nioTransport,
+      @Nullable ScheduledExecutorService scheduler, boolean connectionRetryEnabled) {
+    result.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis, threadFactory,
+        nioTransport, scheduler, connectionRetryEnabled, connectedRawSocket, call, eventListener);
+    routeDatabase().connected(result.route(), System.nanoTime() - connectStartNanos);
+
+    synchronized (connectionPool) {
+      reportedAcquired = true;
+      Internal.instance.put(connectionPool, result);
+    }
+    eventListener.connectionAcquired(call, result);
+  }
+
   /**
    * Releases the currently held connection and returns a socket to close if the held connection
    * restricts new streams from being created. With HTTP/2 multiple requests share the same
@@ -388,8 +753,11 @@ public final class StreamAllocation {
     }
     Socket socket = null;
     if (connection != null) {
-      if (noNewStreams) {
+      if (noNewStreams && !connection.noNewStreams) {
         connection.noNewStreams = true;
+        if (connection.isMultiplexed()) {
+          Internal.instance.multiplexedConnectionChanged(connectionPool, connection);
+        }
       }
       if (this.codec == null && (this.released || connection.noNewStreams)) {
         release(connection);
@@ -408,15 +776,23 @@ public final class StreamAllocation {
   public void cancel() {
     HttpCodec codecToCancel;
     RealConnection connectionToCancel;
+    RouteRacer racerToCancel;
+    NioHandshaker.Handshake handshakeToCancel;
     synchronized (connectionPool) {
       canceled = true;
+      connectionPool.notifyAll(); // Awake this allocation if it's waiting for connection capacity.
       codecToCancel = codec;
       connectionToCancel = connection;
+      racerToCancel = routeRacer;
+      handshakeToCancel = nonBlockingHandshake;
     }
+    if (handshakeToCancel != null) handshakeToCancel.cancel();
     if (codecToCancel != null) {
       codecToCancel.cancel();
     } else if (connectionToCancel != null) {
       connectionToCancel.cancel();
+    } else if (racerToCancel != null) {
+      racerToCancel.cancel();
     }
   }
 
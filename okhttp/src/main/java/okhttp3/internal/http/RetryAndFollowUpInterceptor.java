@@ -94,6 +94,15 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     return canceled;
   }
 
+  /**
+   * Makes {@link #cancel} reach {@code streamAllocation}, which connects for the call before this
+   * interceptor runs. Returns false if the call is already canceled.
+   */
+  public boolean connecting(StreamAllocation streamAllocation) {
+    this.streamAllocation = streamAllocation;
+    return !canceled;
+  }
+
   public void setCallStackTrace(Object callStackTrace) {
     this.callStackTrace = callStackTrace;
   }
@@ -197,7 +206,8 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     }
   }
 
-  private Address createAddress(HttpUrl url) {
+  /** Returns the address that this interceptor's client uses to connect to {@code url}. */
+  public Address createAddress(HttpUrl url) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
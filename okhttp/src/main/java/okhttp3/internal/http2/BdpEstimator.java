@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+/**
+ * Sizes a connection's receive window to its bandwidth-delay product. While data is arriving this
+ * sends a ping and counts the bytes received until the pong arrives. That count is what the peer
+ * can send in one round trip, the most a window needs to hold to keep the link busy.
+ *
+ * <p>If a sample fills most of the window while the read rate is at its highest so far, the window
+ * is what limits throughput and it is doubled. If several samples in a row use only a small part of
+ * the window, it is shrunk to twice the largest of them. The window stays between its minimum and
+ * maximum sizes. This class is not thread safe; it is guarded by its connection.
+ */
+final class BdpEstimator {
+  /** Consecutive small samples required before the window shrinks. */
+  static final int SHRINK_AFTER_SAMPLES = 4;
+
+  private final int minWindowSize;
+  private final int maxWindowSize;
+  private int windowSize;
+
+  private boolean pingInFlight;
+  private long pingSentAtNanos;
+  private long bytesSincePing;
+
+  /** The highest read rate sampled so far, in bytes per second. */
+  private double maxBytesPerSecond;
+
+  /** The number of consecutive samples that used less than a quarter of the window. */
+  private int smallSampleCount;
+  private long largestSmallSample;
+
+  BdpEstimator(int minWindowSize, int maxWindowSize) {
+    this.minWindowSize = minWindowSize;
+    this.maxWindowSize = maxWindowSize;
+    this.windowSize = minWindowSize;
+  }
+
+  int windowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Counts {@code byteCount} bytes received at {@code nowNanos}. Returns true if the caller should
+   * send a ping to start a new sample.
+   */
+  boolean dataReceived(long byteCount, long nowNanos) {
+    if (pingInFlight) {
+      bytesSincePing += byteCount;
+      return false;
+    }
+    pingInFlight = true;
+    pingSentAtNanos = nowNanos;
+    bytesSincePing = byteCount;
+    return true;
+  }
+
+  /**
+   * Completes the sample started by the last ping. Returns the new window size, which is the
+   * current size if it didn't change.
+   */
+  int pongReceived(long nowNanos) {
+    if (!pingInFlight) return windowSize;
+    pingInFlight = false;
+
+    long sample = bytesSincePing;
+    long rttNanos = Math.max(1L, nowNanos - pingSentAtNanos);
+    double bytesPerSecond = sample * 1e9 / rttNanos;
+
+    if (sample * 3L >= windowSize * 2L) {
+      smallSampleCount = 0;
+      if (bytesPerSecond >= maxBytesPerSecond) {
+        maxBytesPerSecond = bytesPerSecond;
+        windowSize = (int) Math.min(maxWindowSize, Math.max(sample * 2L, windowSize));
+      }
+    } else if (sample * 4L < windowSize) {
+      largestSmallSample = smallSampleCount == 0 ? sample : Math.max(largestSmallSample, sample);
+      if (++smallSampleCount >= SHRINK_AFTER_SAMPLES) {
+        smallSampleCount = 0;
+        windowSize = (int) Math.max(minWindowSize, largestSmallSample * 2L);
+        maxBytesPerSecond = 0d; // Rates measured with the larger window aren't comparable.
+      }
+    } else {
+      smallSampleCount = 0;
+    }
+    return windowSize;
+  }
+}
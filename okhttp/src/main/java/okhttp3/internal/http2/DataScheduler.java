@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Decides which stream gets a connection's flow-control window next when several streams are
+ * waiting to write DATA frames. This uses deficit round robin: when a stream's turn comes it earns
+ * {@code weight * QUANTUM_PER_WEIGHT} bytes of credit, and it keeps the turn until it has spent
+ * that credit or stops writing. Over many rounds streams send bytes in proportion to their weights.
+ *
+ * <p>Only the most recently served stream can hold credit; it is forfeited as soon as another
+ * stream is served. This class is not thread safe; it is guarded by its connection.
+ */
+final class DataScheduler {
+  /** Bytes of credit per unit of weight. With the default weight of 16 that's one full frame. */
+  static final int QUANTUM_PER_WEIGHT = 1024;
+
+  /** IDs of the streams waiting to write, in the order they'll be served. */
+  private final Deque<Integer> waiting = new ArrayDeque<>();
+
+  private int lastServedStreamId;
+  private long deficit;
+
+  /**
+   * Adds {@code streamId} to the streams waiting to write. A stream that still has credit from its
+   * turn resumes that turn; others wait for all streams ahead of them.
+   */
+  void enqueue(int streamId) {
+    if (streamId == lastServedStreamId && deficit > 0L) {
+      waiting.addFirst(streamId);
+    } else {
+      waiting.addLast(streamId);
+    }
+  }
+
+  /** Returns true if {@code streamId} is the next stream to take window. */
+  boolean isNext(int streamId) {
+    Integer next = waiting.peekFirst();
+    return next != null && next == streamId;
+  }
+
+  /**
+   * Removes {@code streamId} from the waiting streams and returns how many of {@code byteCount}
+   * window bytes it may write. The result is positive and doesn't exceed {@code byteCount}.
+   */
+  int take(int streamId, int weight, int byteCount) {
+    waiting.remove(streamId);
+    if (streamId != lastServedStreamId) {
+      lastServedStreamId = streamId;
+      deficit = 0L;
+    }
+    if (deficit <= 0L) {
+      deficit += (long) weight * QUANTUM_PER_WEIGHT;
+    }
+    int result = (int) Math.min(byteCount, deficit);
+    deficit -= result;
+    return result;
+  }
+
+  /** Removes {@code streamId} from the waiting streams, as when its stream is closed. */
+  void remove(int streamId) {
+    waiting.remove(streamId);
+  }
+}
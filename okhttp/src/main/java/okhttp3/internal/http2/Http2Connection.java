@@ -29,12 +29,16 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import okhttp3.Protocol;
 import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.SerialExecutor;
 import okhttp3.internal.Util;
 import okhttp3.internal.platform.Platform;
 import okio.Buffer;
@@ -73,6 +77,15 @@ public final class Http2Connection implements Closeable {
 
   static final int OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024;
 
+  /** The largest receive window that auto-tuning grows to by default. */
+  static final int DEFAULT_MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** The first payload of pings that sample the bandwidth-delay product: "OKbd". */
+  static final int BDP_PING_PAYLOAD = 0x4f4b6264;
+
+  /** The first payload of pings that check the health of idle connections: "OKhc". */
+  static final int HEALTH_CHECK_PING_PAYLOAD = 0x4f4b6863;
+
   /**
    * Shared executor to send notifications of incoming streams. This executor requires multiple
    * threads because listeners are not required to return promptly.
@@ -81,12 +94,20 @@ public final class Http2Connection implements Closeable {
       Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
       Util.threadFactory("OkHttp Http2Connection", true));
 
+  /**
+   * Shared executor for writer loops that block on their sockets, and for non-blocking writer loops
+   * of connections without a scheduler. Loops only hold a thread while they write.
+   */
+  private static final ExecutorService writerLoopPool = new ThreadPoolExecutor(0,
+      Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      Util.threadFactory("OkHttp Http2Connection Writer", true));
+
   /** True if this peer initiated the connection. */
   final boolean client;
 
   /**
    * User code to run in response to incoming streams or settings. Calls to this are always invoked
-   * on {@link #listenerExecutor}.
+   * on {@link #callbackExecutor}.
    */
   final Listener listener;
   final Map<Integer, Http2Stream> streams = new LinkedHashMap<>();
@@ -96,17 +117,35 @@ public final class Http2Connection implements Closeable {
   boolean shutdown;
 
   /** Asynchronously writes frames to the outgoing socket. */
-  private final ScheduledExecutorService writerExecutor;
+  private final ExecutorService writerExecutor;
+
+  /** Sends a ping every ping interval, or null if this connection doesn't ping or isn't shared. */
+  private final @Nullable ScheduledFuture<?> pingFuture;
+
+  /**
+   * Invokes {@link #listener}: the static {@link #listenerExecutor}, or this connection's share of
+   * a shared scheduler.
+   */
+  private final ExecutorService callbackExecutor;
 
   /** Ensures push promise callbacks events are sent in order per stream. */
   private final ExecutorService pushExecutor;
 
+  /**
+   * Runs the writer's loop on a shared pool, or is null if frames are written by the threads that
+   * create them.
+   */
+  private final @Nullable ExecutorService writerLoopExecutor;
+
   /** User code to run in response to push promise events. */
   final PushObserver pushObserver;
 
   /** True if we have sent a ping that is still awaiting a reply. */
   private boolean awaitingPong;
 
+  /** True if we have sent a health check ping that is still awaiting a reply. */
+  private boolean awaitingHealthCheckPong;
+
   /**
    * The total number of bytes consumed by the application, but not yet acknowledged by sending a
    * {@code WINDOW_UPDATE} frame on this connection.
@@ -120,6 +159,28 @@ public final class Http2Connection implements Closeable {
   // Visible for testing
   long bytesLeftInWriteWindow;
 
+  /** Shares {@link #bytesLeftInWriteWindow} among streams that are waiting to write. */
+  private final DataScheduler dataScheduler = new DataScheduler();
+
+  /** The fraction of a receive window consumed before a {@code WINDOW_UPDATE} is sent. */
+  final float windowUpdateRatio;
+
+  /** Sizes the receive window while data arrives, or null if the window has a fixed size. */
+  private final @Nullable BdpEstimator bdpEstimator;
+
+  /**
+   * The largest receive window that has been advertised to the peer. Streams may buffer this many
+   * bytes because the peer may have sent them before learning of a smaller window.
+   */
+  volatile long receiveWindowLimit;
+
+  /**
+   * Bytes that the peer may send on the connection beyond our receive window because the window
+   * shrank, or started below the protocol's default. These are read without a window update.
+   */
+  // guarded by this
+  long connectionWindowExcess;
+
   /** Settings we communicate to the peer. */
   Settings okHttpSettings = new Settings();
 
@@ -134,6 +195,12 @@ public final class Http2Connection implements Closeable {
   // Visible for testing
   final ReaderRunnable readerRunnable;
 
+  /** Creates the thread that runs {@link #readerRunnable}. */
+  private final ThreadFactory readerThreadFactory;
+
+  /** False if the caller reads frames with {@link #readBufferedFrames} instead of a thread. */
+  private final boolean readerThread;
+
   Http2Connection(Builder builder) {
     pushObserver = builder.pushObserver;
     client = builder.client;
@@ -148,30 +215,77 @@ public final class Http2Connection implements Closeable {
     // If we are a client, set the flow control window to 16MiB.  This avoids
     // thrashing window updates every 64KiB, yet small enough to avoid blowing
     // up the heap.
-    if (builder.client) {
+    if (builder.windowSize != 0) {
+      okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, builder.windowSize);
+    } else if (builder.client) {
       okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, OKHTTP_CLIENT_WINDOW_SIZE);
     }
+    int windowSize = okHttpSettings.getInitialWindowSize();
+    receiveWindowLimit = Math.max(windowSize, DEFAULT_INITIAL_WINDOW_SIZE);
+    connectionWindowExcess = Math.max(0, DEFAULT_INITIAL_WINDOW_SIZE - windowSize);
+    windowUpdateRatio = builder.windowUpdateRatio;
+    bdpEstimator = builder.windowAutoTuning
+        ? new BdpEstimator(windowSize, Math.max(windowSize, builder.maxWindowSize))
+        : null;
 
     hostname = builder.hostname;
 
-    writerExecutor = new ScheduledThreadPoolExecutor(1,
-        Util.threadFactory(Util.format("OkHttp %s Writer", hostname), false));
-    if (builder.pingIntervalMillis != 0) {
-      writerExecutor.scheduleAtFixedRate(new PingRunnable(false, 0, 0),
-          builder.pingIntervalMillis, builder.pingIntervalMillis, MILLISECONDS);
+    // Tasks on a shared scheduler only queue frames for the writer loop, so they never block.
+    ScheduledExecutorService scheduler = builder.scheduler;
+    if (scheduler != null) {
+      // Borrow threads from the shared scheduler. Each executor still runs one task at a time.
+      writerExecutor = new SerialExecutor(scheduler);
+      pushExecutor = new SerialExecutor(scheduler);
+      callbackExecutor = new SerialExecutor(scheduler);
+      pingFuture = builder.pingIntervalMillis != 0
+          ? scheduler.scheduleAtFixedRate(new NamedRunnable("OkHttp %s ping", hostname) {
+              @Override protected void execute() {
+                sendPingAsync();
+              }
+            }, builder.pingIntervalMillis, builder.pingIntervalMillis, MILLISECONDS)
+          : null;
+    } else {
+      ScheduledThreadPoolExecutor scheduledWriterExecutor = new ScheduledThreadPoolExecutor(1,
+          Util.threadFactory(Util.format("OkHttp %s Writer", hostname), false));
+      if (builder.pingIntervalMillis != 0) {
+        scheduledWriterExecutor.scheduleAtFixedRate(new PingRunnable(false, 0, 0),
+            builder.pingIntervalMillis, builder.pingIntervalMillis, MILLISECONDS);
+      }
+      writerExecutor = scheduledWriterExecutor;
+
+      // Like newSingleThreadExecutor, except lazy creates the thread.
+      pushExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          Util.threadFactory(Util.format("OkHttp %s Push Observer", hostname), true));
+      callbackExecutor = listenerExecutor;
+      pingFuture = null;
     }
-
-    // Like newSingleThreadExecutor, except lazy creates the thread.
-    pushExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
-        new LinkedBlockingQueue<Runnable>(),
-        Util.threadFactory(Util.format("OkHttp %s Push Observer", hostname), true));
     peerSettings.set(Settings.INITIAL_WINDOW_SIZE, DEFAULT_INITIAL_WINDOW_SIZE);
     peerSettings.set(Settings.MAX_FRAME_SIZE, Http2.INITIAL_MAX_FRAME_SIZE);
     bytesLeftInWriteWindow = peerSettings.getInitialWindowSize();
     socket = builder.socket;
-    writer = new Http2Writer(builder.sink, client);
+    if (builder.nonBlockingSink != null) {
+      // The loop never blocks, so it can borrow threads from the scheduler.
+      writerLoopExecutor = new SerialExecutor(scheduler != null ? scheduler : writerLoopPool);
+      writer = new Http2Writer(builder.nonBlockingSink, client, writerLoopExecutor);
+    } else if (builder.writerLoop || scheduler != null) {
+      // The loop blocks on the socket, so keep it off the scheduler's bounded pool.
+      writerLoopExecutor = new SerialExecutor(writerLoopPool);
+      writer = new Http2Writer(builder.sink, client, writerLoopExecutor);
+    } else {
+      writerLoopExecutor = null;
+      writer = new Http2Writer(builder.sink, client);
+    }
 
-    readerRunnable = new ReaderRunnable(new Http2Reader(builder.source, client));
+    if (!builder.readerThread && !(builder.source instanceof Buffer)) {
+      throw new IllegalArgumentException("reading without a thread requires a Buffer source");
+    }
+    readerThread = builder.readerThread;
+    readerRunnable = new ReaderRunnable(
+        builder.source, new Http2Reader(builder.source, client, true));
+    readerThreadFactory = builder.threadFactory != null
+        ? builder.threadFactory
+        : Util.threadFactory(Util.format("OkHttp %s", hostname), false);
   }
 
   /** The protocol as selected using ALPN. */
@@ -202,12 +316,98 @@ public final class Http2Connection implements Closeable {
 
   synchronized void updateConnectionFlowControl(long read) {
     unacknowledgedBytesRead += read;
-    if (unacknowledgedBytesRead >= okHttpSettings.getInitialWindowSize() / 2) {
-      writeWindowUpdateLater(0, unacknowledgedBytesRead);
+    if (unacknowledgedBytesRead >= windowUpdateThreshold()) {
+      // Don't return bytes that the peer was permitted to send beyond our current window.
+      long excessRead = Math.min(connectionWindowExcess, unacknowledgedBytesRead);
+      connectionWindowExcess -= excessRead;
+      if (unacknowledgedBytesRead > excessRead) {
+        writeWindowUpdateLater(0, unacknowledgedBytesRead - excessRead);
+      }
       unacknowledgedBytesRead = 0;
     }
   }
 
+  /** Returns the number of bytes to consume before sending a {@code WINDOW_UPDATE}. */
+  long windowUpdateThreshold() {
+    return Math.max(1L, (long) (okHttpSettings.getInitialWindowSize() * windowUpdateRatio));
+  }
+
+  /**
+   * Counts {@code byteCount} bytes of incoming data to estimate the bandwidth-delay product,
+   * sending a ping when a new sample starts.
+   */
+  void sampleReceivedData(long byteCount) {
+    if (bdpEstimator == null) return;
+    synchronized (this) {
+      if (shutdown || !bdpEstimator.dataReceived(byteCount, System.nanoTime())) return;
+    }
+    try {
+      writerExecutor.execute(new NamedRunnable("OkHttp %s BDP ping", hostname) {
+        @Override public void execute() {
+          try {
+            writer.ping(false, BDP_PING_PAYLOAD, 0);
+          } catch (IOException e) {
+            failConnection();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ignored) {
+      // This connection has been closed.
+    }
+  }
+
+  /** Completes a bandwidth-delay product sample, resizing the receive window if necessary. */
+  void receiveBdpPong() {
+    if (bdpEstimator == null) return;
+    final int windowSize;
+    final long connectionWindowIncrement;
+    Http2Stream[] streamsToNotify;
+    synchronized (this) {
+      windowSize = bdpEstimator.pongReceived(System.nanoTime());
+      int oldWindowSize = okHttpSettings.getInitialWindowSize();
+      if (shutdown || windowSize == oldWindowSize) return;
+
+      okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, windowSize);
+      receiveWindowLimit = Math.max(receiveWindowLimit, windowSize);
+      if (windowSize > oldWindowSize) {
+        // Grow the connection window, first taking back bytes the peer already has.
+        long growth = windowSize - oldWindowSize;
+        long excessUsed = Math.min(connectionWindowExcess, growth);
+        connectionWindowExcess -= excessUsed;
+        connectionWindowIncrement = growth - excessUsed;
+      } else {
+        // The connection window can't be revoked. Withhold window updates until it has shrunk.
+        connectionWindowExcess += oldWindowSize - windowSize;
+        connectionWindowIncrement = 0L;
+      }
+      streamsToNotify = streams.values().toArray(new Http2Stream[streams.size()]);
+    }
+
+    // A smaller window may be enough for streams to acknowledge what they've read.
+    for (Http2Stream stream : streamsToNotify) {
+      stream.receiveWindowResized();
+    }
+
+    try {
+      writerExecutor.execute(new NamedRunnable("OkHttp %s window %d", hostname, windowSize) {
+        @Override public void execute() {
+          try {
+            Settings settings = new Settings();
+            settings.set(Settings.INITIAL_WINDOW_SIZE, windowSize);
+            writer.settings(settings);
+            if (connectionWindowIncrement > 0L) {
+              writer.windowUpdate(0, connectionWindowIncrement);
+            }
+          } catch (IOException e) {
+            failConnection();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ignored) {
+      // This connection has been closed.
+    }
+  }
+
   /**
    * Returns a new server-initiated stream.
    *
@@ -218,7 +418,7 @@ public final class Http2Connection implements Closeable {
   public Http2Stream pushStream(int associatedStreamId, List<Header> requestHeaders, boolean out)
       throws IOException {
     if (client) throw new IllegalStateException("Client cannot push requests.");
-    return newStream(associatedStreamId, requestHeaders, out);
+    return newStream(associatedStreamId, requestHeaders, out, Http2Stream.DEFAULT_WEIGHT);
   }
 
   /**
@@ -227,11 +427,23 @@ public final class Http2Connection implements Closeable {
    * Corresponds to {@code FLAG_FIN}.
    */
   public Http2Stream newStream(List<Header> requestHeaders, boolean out) throws IOException {
-    return newStream(0, requestHeaders, out);
+    return newStream(0, requestHeaders, out, Http2Stream.DEFAULT_WEIGHT);
   }
 
-  private Http2Stream newStream(
-      int associatedStreamId, List<Header> requestHeaders, boolean out) throws IOException {
+  /**
+   * Returns a new locally-initiated stream.
+   * @param out true to create an output stream that we can use to send data to the remote peer.
+   * Corresponds to {@code FLAG_FIN}.
+   * @param weight the stream's share of the connection's write window when other streams are also
+   * waiting to write, between 1 and 256.
+   */
+  public Http2Stream newStream(List<Header> requestHeaders, boolean out, int weight)
+      throws IOException {
+    return newStream(0, requestHeaders, out, weight);
+  }
+
+  private Http2Stream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
+      int weight) throws IOException {
     boolean outFinished = !out;
     boolean inFinished = false;
     boolean flushHeaders;
@@ -249,6 +461,7 @@ public final class Http2Connection implements Closeable {
         streamId = nextStreamId;
         nextStreamId += 2;
         stream = new Http2Stream(streamId, this, outFinished, inFinished, requestHeaders);
+        stream.weight = weight;
         flushHeaders = !out || bytesLeftInWriteWindow == 0L || stream.bytesLeftInWriteWindow == 0L;
         if (stream.isOpen()) {
           streams.put(streamId, stream);
@@ -297,22 +510,35 @@ public final class Http2Connection implements Closeable {
     while (byteCount > 0) {
       int toWrite;
       synchronized (Http2Connection.this) {
+        // Wait for a share of the window. Streams waiting together are served by weight.
+        Http2Stream stream = streams.get(streamId);
+        int weight = stream != null ? stream.weight : Http2Stream.DEFAULT_WEIGHT;
+        dataScheduler.enqueue(streamId);
+        boolean scheduled = false;
         try {
-          while (bytesLeftInWriteWindow <= 0) {
+          while (bytesLeftInWriteWindow <= 0 || !dataScheduler.isNext(streamId)) {
             // Before blocking, confirm that the stream we're writing is still open. It's possible
             // that the stream has since been closed (such as if this write timed out.)
             if (!streams.containsKey(streamId)) {
               throw new IOException("stream closed");
             }
-            Http2Connection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
+            Http2Connection.this.wait(); // Wait until we receive a WINDOW_UPDATE or our turn.
           }
+          scheduled = true;
         } catch (InterruptedException e) {
           throw new InterruptedIOException();
+        } finally {
+          if (!scheduled) {
+            dataScheduler.remove(streamId);
+            Http2Connection.this.notifyAll(); // The next stream may be able to write.
+          }
         }
 
         toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
         toWrite = Math.min(toWrite, writer.maxDataLength());
+        toWrite = dataScheduler.take(streamId, weight, toWrite);
         bytesLeftInWriteWindow -= toWrite;
+        Http2Connection.this.notifyAll(); // The next stream may take what's left of the window.
       }
 
       byteCount -= toWrite;
@@ -394,6 +620,55 @@ public final class Http2Connection implements Closeable {
     }
   }
 
+  /**
+   * Sends a ping on the writer thread. If the previous ping is still awaiting a pong this fails
+   * the connection instead.
+   */
+  public void sendPingAsync() {
+    try {
+      writerExecutor.execute(new PingRunnable(false, 0, 0));
+    } catch (RejectedExecutionException ignored) {
+      // This connection has been closed.
+    }
+  }
+
+  /**
+   * Sends a ping that checks this connection's health. If the previous health check ping is still
+   * awaiting a pong this fails the connection instead. These pings are independent of those sent
+   * every ping interval.
+   */
+  public void sendHealthCheckPingAsync() {
+    final boolean failedDueToMissingPong;
+    synchronized (this) {
+      failedDueToMissingPong = awaitingHealthCheckPong;
+      awaitingHealthCheckPong = true;
+    }
+    try {
+      writerExecutor.execute(new NamedRunnable("OkHttp %s health check", hostname) {
+        @Override public void execute() {
+          if (failedDueToMissingPong) {
+            failConnection();
+            return;
+          }
+          try {
+            writer.ping(false, HEALTH_CHECK_PING_PAYLOAD, 0);
+          } catch (IOException e) {
+            failConnection();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ignored) {
+      // This connection has been closed.
+    }
+  }
+
+  /** For testing: waits until the peer has answered the last health check ping. */
+  synchronized void awaitHealthCheckPong() throws InterruptedException {
+    while (awaitingHealthCheckPong) {
+      wait();
+    }
+  }
+
   /** For testing: sends a ping and waits for a pong. */
   void writePingAndAwaitPong() throws IOException, InterruptedException {
     writePing(false, 0x4f4b6f6b /* "OKok" */, 0xf09f8da9 /* donut */);
@@ -482,8 +757,10 @@ public final class Http2Connection implements Closeable {
     }
 
     // Release the threads.
+    if (pingFuture != null) pingFuture.cancel(false);
     writerExecutor.shutdown();
     pushExecutor.shutdown();
+    if (writerLoopExecutor != null) writerLoopExecutor.shutdown();
 
     if (thrown != null) throw thrown;
   }
@@ -512,11 +789,31 @@ public final class Http2Connection implements Closeable {
       writer.connectionPreface();
       writer.settings(okHttpSettings);
       int windowSize = okHttpSettings.getInitialWindowSize();
-      if (windowSize != Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
+      if (windowSize > Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
         writer.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
       }
     }
-    new Thread(readerRunnable).start(); // Not a daemon thread.
+    if (readerThread) {
+      readerThreadFactory.newThread(readerRunnable).start(); // Not a daemon thread by default.
+    }
+  }
+
+  /**
+   * Reads the complete frames in this connection's source buffer. Connections built with {@link
+   * Builder#readerThread readerThread(false)} must call this each time bytes are added to the
+   * buffer. Frames that are only partially buffered are left for a subsequent call.
+   */
+  public void readBufferedFrames() {
+    readerRunnable.readBufferedFrames();
+  }
+
+  /**
+   * Closes this connection because its source buffer won't receive any more bytes. Connections
+   * built with {@link Builder#readerThread readerThread(false)} must call this when the peer's
+   * stream ends. If {@code e} is non-null the stream ended because reading failed.
+   */
+  public void sourceExhausted(@Nullable IOException e) {
+    readerRunnable.sourceExhausted(e);
   }
 
   /** Merges {@code settings} into this peer's settings and sends them to the remote peer. */
@@ -527,6 +824,7 @@ public final class Http2Connection implements Closeable {
           throw new ConnectionShutdownException();
         }
         okHttpSettings.merge(settings);
+        receiveWindowLimit = Math.max(receiveWindowLimit, okHttpSettings.getInitialWindowSize());
       }
       writer.settings(settings);
     }
@@ -545,6 +843,15 @@ public final class Http2Connection implements Closeable {
     PushObserver pushObserver = PushObserver.CANCEL;
     boolean client;
     int pingIntervalMillis;
+    @Nullable ThreadFactory threadFactory;
+    boolean readerThread = true;
+    boolean writerLoop;
+    @Nullable NonBlockingSink nonBlockingSink;
+    @Nullable ScheduledExecutorService scheduler;
+    int windowSize;
+    float windowUpdateRatio = 0.5f;
+    boolean windowAutoTuning;
+    int maxWindowSize = DEFAULT_MAX_WINDOW_SIZE;
 
     /**
      * @param client true if this peer initiated the connection; false if this peer accepted the
@@ -583,6 +890,108 @@ public final class Http2Connection implements Closeable {
       return this;
     }
 
+    /**
+     * Sets the factory of the thread that reads frames from the peer. By default each connection
+     * creates a platform thread that is not a daemon.
+     */
+    public Builder threadFactory(ThreadFactory threadFactory) {
+      this.threadFactory = threadFactory;
+      return this;
+    }
+
+    /**
+     * Set to false to read frames with {@link Http2Connection#readBufferedFrames} instead of a
+     * thread of the connection's own. The source must then be a {@link Buffer} that the caller
+     * fills, as with bytes read by a selector. True by default.
+     */
+    public Builder readerThread(boolean readerThread) {
+      this.readerThread = readerThread;
+      return this;
+    }
+
+    /**
+     * Set to true to queue frames in memory and write them to the socket from a single writer loop.
+     * Frames queued while the loop writes are coalesced into one flush, and threads that write
+     * frames don't block on the socket unless too many bytes are queued. False by default.
+     */
+    public Builder writerLoop(boolean writerLoop) {
+      this.writerLoop = writerLoop;
+      return this;
+    }
+
+    /**
+     * Writes frames to {@code nonBlockingSink} instead of to the socket's sink, from a {@link
+     * #writerLoop writer loop} that never blocks. The loop stops while the sink is full and resumes
+     * when it has room, so it doesn't hold a thread while the peer is slow.
+     */
+    public Builder nonBlockingSink(@Nullable NonBlockingSink nonBlockingSink) {
+      this.nonBlockingSink = nonBlockingSink;
+      return this;
+    }
+
+    /**
+     * Sets a scheduler to run this connection's background work, such as writing window updates,
+     * stream resets and pings, acknowledging settings, and invoking the listener and push observer.
+     * The connection's tasks still run one at a time, so a small pool can serve many connections.
+     * By default, or if this is null, each connection creates threads of its own.
+     *
+     * <p>With a scheduler frames are always queued for a {@link #writerLoop writer loop}, so its
+     * tasks never block on the socket. A writer loop with a {@link #nonBlockingSink non-blocking
+     * sink} runs on the scheduler too; one that blocks on the socket borrows threads from a shared
+     * cached pool instead. Frames are still read on a thread from {@link #threadFactory} unless
+     * {@link #readerThread readerThread(false)} is set: reads block, which would starve a bounded
+     * pool.
+     */
+    public Builder scheduler(@Nullable ScheduledExecutorService scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Sets the receive window of the connection and of each of its streams, in bytes. This is how
+     * much the peer may send before we've read it. Defaults to 16 MiB for clients and the
+     * protocol's 65,535 bytes for servers.
+     */
+    public Builder windowSize(int windowSize) {
+      if (windowSize <= 0) throw new IllegalArgumentException("windowSize <= 0: " + windowSize);
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of a receive window that is read before a {@code WINDOW_UPDATE} returns it
+     * to the peer. Smaller fractions send more frames but keep the peer's window fuller. Defaults
+     * to 0.5.
+     */
+    public Builder windowUpdateRatio(float windowUpdateRatio) {
+      if (!(windowUpdateRatio > 0f && windowUpdateRatio <= 1f)) {
+        throw new IllegalArgumentException("windowUpdateRatio <= 0 || windowUpdateRatio > 1: "
+            + windowUpdateRatio);
+      }
+      this.windowUpdateRatio = windowUpdateRatio;
+      return this;
+    }
+
+    /**
+     * Set to true to resize the receive windows to the connection's bandwidth-delay product. While
+     * data is arriving the connection pings the peer to measure how much data is received per round
+     * trip, then grows the windows for fast or distant peers and shrinks them when less is needed.
+     * The windows stay between {@link #windowSize} and {@link #maxWindowSize}. False by default.
+     */
+    public Builder windowAutoTuning(boolean windowAutoTuning) {
+      this.windowAutoTuning = windowAutoTuning;
+      return this;
+    }
+
+    /** Sets the largest receive window that auto-tuning may grow to. Defaults to 64 MiB. */
+    public Builder maxWindowSize(int maxWindowSize) {
+      if (maxWindowSize <= 0) {
+        throw new IllegalArgumentException("maxWindowSize <= 0: " + maxWindowSize);
+      }
+      this.maxWindowSize = maxWindowSize;
+      return this;
+    }
+
     public Http2Connection build() {
       return new Http2Connection(this);
     }
@@ -593,10 +1002,18 @@ public final class Http2Connection implements Closeable {
    * async task to do so.
    */
   class ReaderRunnable extends NamedRunnable implements Http2Reader.Handler {
+    final BufferedSource source;
     final Http2Reader reader;
 
-    ReaderRunnable(Http2Reader reader) {
+    /** True once the peer's connection preface has been read by {@link #readBufferedFrames}. */
+    boolean prefaceRead;
+
+    /** True once this has failed or run out of frames. Only used without a reader thread. */
+    boolean finished;
+
+    ReaderRunnable(BufferedSource source, Http2Reader reader) {
       super("OkHttp %s", hostname);
+      this.source = source;
       this.reader = reader;
     }
 
@@ -621,12 +1038,59 @@ public final class Http2Connection implements Closeable {
       }
     }
 
+    void readBufferedFrames() {
+      if (finished) return;
+      Buffer buffer = (Buffer) source;
+      try {
+        if (!prefaceRead) {
+          boolean prefaceBuffered = client
+              ? Http2Reader.isFrameBuffered(buffer)
+              : buffer.size() >= Http2.CONNECTION_PREFACE.size();
+          if (!prefaceBuffered) return;
+          reader.readConnectionPreface(this);
+          prefaceRead = true;
+        }
+        while (Http2Reader.isFrameBuffered(buffer)) {
+          reader.nextFrame(false, this);
+        }
+      } catch (IOException e) {
+        finish(ErrorCode.PROTOCOL_ERROR, ErrorCode.PROTOCOL_ERROR);
+      }
+    }
+
+    void sourceExhausted(@Nullable IOException e) {
+      if (e == null) {
+        finish(ErrorCode.NO_ERROR, ErrorCode.CANCEL);
+      } else {
+        finish(ErrorCode.PROTOCOL_ERROR, ErrorCode.PROTOCOL_ERROR);
+      }
+    }
+
+    /**
+     * Closes the connection like a reader thread does when it stops. Closing writes to the socket,
+     * so it is done on another thread than the one that reads frames.
+     */
+    private void finish(final ErrorCode connectionErrorCode, final ErrorCode streamErrorCode) {
+      if (finished) return;
+      finished = true;
+      callbackExecutor.execute(new NamedRunnable("OkHttp %s close", hostname) {
+        @Override public void execute() {
+          try {
+            close(connectionErrorCode, streamErrorCode);
+          } catch (IOException ignored) {
+          }
+          Util.closeQuietly(reader);
+        }
+      });
+    }
+
     @Override public void data(boolean inFinished, int streamId, BufferedSource source, int length)
         throws IOException {
       if (pushedStream(streamId)) {
         pushDataLater(streamId, source, length, inFinished);
         return;
       }
+      sampleReceivedData(length);
       Http2Stream dataStream = getStream(streamId);
       if (dataStream == null) {
         writeSynResetLater(streamId, ErrorCode.PROTOCOL_ERROR);
@@ -665,7 +1129,7 @@ public final class Http2Connection implements Closeable {
               false, inFinished, headerBlock);
           lastGoodStreamId = streamId;
           streams.put(streamId, newStream);
-          listenerExecutor.execute(new NamedRunnable("OkHttp %s stream %d", hostname, streamId) {
+          callbackExecutor.execute(new NamedRunnable("OkHttp %s stream %d", hostname, streamId) {
             @Override public void execute() {
               try {
                 listener.onStream(newStream);
@@ -716,7 +1180,7 @@ public final class Http2Connection implements Closeable {
             streamsToNotify = streams.values().toArray(new Http2Stream[streams.size()]);
           }
         }
-        listenerExecutor.execute(new NamedRunnable("OkHttp %s settings", hostname) {
+        callbackExecutor.execute(new NamedRunnable("OkHttp %s settings", hostname) {
           @Override public void execute() {
             listener.onSettings(Http2Connection.this);
           }
@@ -752,7 +1216,14 @@ public final class Http2Connection implements Closeable {
     }
 
     @Override public void ping(boolean reply, int payload1, int payload2) {
-      if (reply) {
+      if (reply && payload1 == BDP_PING_PAYLOAD && bdpEstimator != null) {
+        receiveBdpPong();
+      } else if (reply && payload1 == HEALTH_CHECK_PING_PAYLOAD) {
+        synchronized (Http2Connection.this) {
+          awaitingHealthCheckPong = false;
+          Http2Connection.this.notifyAll();
+        }
+      } else if (reply) {
         synchronized (Http2Connection.this) {
           awaitingPong = false;
           Http2Connection.this.notifyAll();
@@ -63,13 +63,25 @@ final class Http2Reader implements Closeable {
   private final ContinuationSource continuation;
   private final boolean client;
 
+  /** True to deliver consecutive buffered DATA frames for a stream in one call to the handler. */
+  private final boolean coalesceData;
+
   // Visible for testing.
   final Hpack.Reader hpackReader;
 
   /** Creates a frame reader with max header table size of 4096. */
   Http2Reader(BufferedSource source, boolean client) {
+    this(source, client, false);
+  }
+
+  /**
+   * @param coalesceData true to deliver the payloads of consecutive unpadded DATA frames for the
+   *     same stream in one call to {@link Handler#data}, if they're already buffered.
+   */
+  Http2Reader(BufferedSource source, boolean client, boolean coalesceData) {
     this.source = source;
     this.client = client;
+    this.coalesceData = coalesceData;
     this.continuation = new ContinuationSource(this.source);
     this.hpackReader = new Hpack.Reader(4096, continuation);
   }
@@ -211,10 +223,54 @@ final class Http2Reader implements Closeable {
     short padding = (flags & FLAG_PADDED) != 0 ? (short) (source.readByte() & 0xff) : 0;
     length = lengthWithoutPadding(length, flags, padding);
 
+    Buffer buffered = source.buffer();
+    if (coalesceData && padding == 0 && !inFinished
+        && isBufferedDataFrame(buffered, length, streamId)) {
+      // More DATA frames for this stream are already buffered. Move their payloads' segments into
+      // one buffer so the stream receives them all at once.
+      Buffer payloads = new Buffer();
+      payloads.write(buffered, length);
+      while (!inFinished && isBufferedDataFrame(buffered, 0L, streamId)) {
+        int nextLength = readMedium(source);
+        byte nextType = source.readByte();
+        byte nextFlags = source.readByte();
+        source.readInt();
+        if (logger.isLoggable(FINE)) {
+          logger.fine(frameLog(true, streamId, nextLength, nextType, nextFlags));
+        }
+        inFinished = (nextFlags & FLAG_END_STREAM) != 0;
+        payloads.write(buffered, nextLength);
+      }
+      handler.data(inFinished, streamId, payloads, (int) payloads.size());
+      return;
+    }
+
     handler.data(inFinished, streamId, source, length);
     source.skip(padding);
   }
 
+  /**
+   * Returns true if {@code buffer} holds a complete unpadded DATA frame for {@code streamId} at
+   * {@code offset}.
+   */
+  private static boolean isBufferedDataFrame(Buffer buffer, long offset, int streamId) {
+    if (buffer.size() < offset + 9) return false; // Frame header size
+    int length = (buffer.getByte(offset) & 0xff) << 16
+        | (buffer.getByte(offset + 1) & 0xff) << 8
+        | (buffer.getByte(offset + 2) & 0xff);
+    byte type = buffer.getByte(offset + 3);
+    byte flags = buffer.getByte(offset + 4);
+    int frameStreamId = ((buffer.getByte(offset + 5) & 0x7f) << 24 // Ignore reserved bit.
+        | (buffer.getByte(offset + 6) & 0xff) << 16
+        | (buffer.getByte(offset + 7) & 0xff) << 8
+        | (buffer.getByte(offset + 8) & 0xff));
+    return length <= INITIAL_MAX_FRAME_SIZE
+        && type == TYPE_DATA
+        && (flags & ~FLAG_END_STREAM) == 0
+        && frameStreamId == streamId
+        && buffer.size() >= offset + 9 + length;
+  }
+
   private void readPriority(Handler handler, int length, byte flags, int streamId)
       throws IOException {
     if (length != 5) throw ioException("TYPE_PRIORITY length: %d != 5", length);
@@ -395,6 +451,32 @@ final class Http2Reader implements Closeable {
     }
   }
 
+  /**
+   * Returns true if {@code buffer} holds at least one complete frame, so that {@link #nextFrame}
+   * can read it without blocking. A HEADERS or PUSH_PROMISE frame is complete only with all of its
+   * CONTINUATION frames. Also returns true if the frames are malformed; reading them will fail.
+   */
+  static boolean isFrameBuffered(Buffer buffer) {
+    long offset = 0L;
+    boolean continuation = false;
+    while (true) {
+      if (buffer.size() < offset + 9) return false; // Frame header size
+      int length = (buffer.getByte(offset) & 0xff) << 16
+          | (buffer.getByte(offset + 1) & 0xff) << 8
+          | (buffer.getByte(offset + 2) & 0xff);
+      if (length > INITIAL_MAX_FRAME_SIZE) return true;
+      byte type = buffer.getByte(offset + 3);
+      byte flags = buffer.getByte(offset + 4);
+      if (continuation && type != TYPE_CONTINUATION) return true;
+      offset += 9 + length;
+      if (buffer.size() < offset) return false;
+
+      continuation = (type == TYPE_HEADERS || type == TYPE_PUSH_PROMISE || continuation)
+          && (flags & FLAG_END_HEADERS) == 0;
+      if (!continuation) return true;
+    }
+  }
+
   static int readMedium(BufferedSource source) throws IOException {
     return (source.readByte() & 0xff) << 16
         | (source.readByte() & 0xff) << 8
@@ -33,6 +33,8 @@ public final class Http2Stream {
   // Internal state is guarded by this. No long-running or potentially
   // blocking operations are performed while the lock is held.
 
+  static final int DEFAULT_WEIGHT = 16;
+
   /**
    * The total number of bytes consumed by the application (with {@link FramingSource#read}), but
    * not yet acknowledged by sending a {@code WINDOW_UPDATE} frame on this stream.
@@ -51,6 +53,10 @@ public final class Http2Stream {
   final int id;
   final Http2Connection connection;
 
+  /** This stream's share of the connection's write window when it is contended. */
+  // guarded by connection
+  int weight = DEFAULT_WEIGHT;
+
   /** Request headers. Immutable and non null. */
   private final List<Header> requestHeaders;
 
@@ -80,7 +86,7 @@ public final class Http2Stream {
     this.connection = connection;
     this.bytesLeftInWriteWindow =
         connection.peerSettings.getInitialWindowSize();
-    this.source = new FramingSource(connection.okHttpSettings.getInitialWindowSize());
+    this.source = new FramingSource();
     this.sink = new FramingSink();
     this.source.finished = inFinished;
     this.sink.finished = outFinished;
@@ -307,15 +313,9 @@ public final class Http2Stream {
    * readers.
    */
   private final class FramingSource implements Source {
-    /** Buffer to receive data from the network into. Only accessed by the reader thread. */
-    private final Buffer receiveBuffer = new Buffer();
-
     /** Buffer with readable data. Guarded by Http2Stream.this. */
     private final Buffer readBuffer = new Buffer();
 
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private final long maxByteCount;
-
     /** True if the caller has closed this stream. */
     boolean closed;
 
@@ -325,10 +325,6 @@ public final class Http2Stream {
      */
     boolean finished;
 
-    FramingSource(long maxByteCount) {
-      this.maxByteCount = maxByteCount;
-    }
-
     @Override public long read(Buffer sink, long byteCount) throws IOException {
       if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
 
@@ -347,8 +343,7 @@ public final class Http2Stream {
           unacknowledgedBytesRead += read;
         }
 
-        if (errorCode == null
-            && unacknowledgedBytesRead >= connection.okHttpSettings.getInitialWindowSize() / 2) {
+        if (errorCode == null && unacknowledgedBytesRead >= connection.windowUpdateThreshold()) {
           // Flow control: notify the peer that we're ready for more data! Only send a WINDOW_UPDATE
           // if the stream isn't in error.
           connection.writeWindowUpdateLater(id, unacknowledgedBytesRead);
@@ -394,11 +389,24 @@ public final class Http2Stream {
       assert (!Thread.holdsLock(Http2Stream.this));
 
       while (byteCount > 0) {
+        // Wait for the network without holding any locks.
+        if (!in.request(1)) throw new EOFException();
+        Buffer buffered = in.buffer();
+        long transferCount = Math.min(byteCount, buffered.size());
+
         boolean finished;
         boolean flowControlError;
         synchronized (Http2Stream.this) {
           finished = this.finished;
-          flowControlError = byteCount + readBuffer.size() > maxByteCount;
+          flowControlError = byteCount + readBuffer.size() > connection.receiveWindowLimit;
+          if (!finished && !flowControlError) {
+            // Move the buffered segments to the read buffer so the reader can read them.
+            boolean wasEmpty = readBuffer.size() == 0;
+            readBuffer.write(buffered, transferCount);
+            if (wasEmpty) {
+              Http2Stream.this.notifyAll();
+            }
+          }
         }
 
         // If the peer sends more data than we can handle, discard it and close the connection.
@@ -414,19 +422,7 @@ public final class Http2Stream {
           return;
         }
 
-        // Fill the receive buffer without holding any locks.
-        long read = in.read(receiveBuffer, byteCount);
-        if (read == -1) throw new EOFException();
-        byteCount -= read;
-
-        // Move the received data to the read buffer to the reader can read it.
-        synchronized (Http2Stream.this) {
-          boolean wasEmpty = readBuffer.size() == 0;
-          readBuffer.writeAll(receiveBuffer);
-          if (wasEmpty) {
-            Http2Stream.this.notifyAll();
-          }
-        }
+        byteCount -= transferCount;
       }
     }
 
@@ -449,6 +445,21 @@ public final class Http2Stream {
     }
   }
 
+  /**
+   * Sends a {@code WINDOW_UPDATE} if the connection's receive window shrank below what this stream
+   * needs to acknowledge.
+   */
+  void receiveWindowResized() {
+    assert (!Thread.holdsLock(Http2Stream.this));
+    synchronized (this) {
+      if (errorCode == null && unacknowledgedBytesRead > 0
+          && unacknowledgedBytesRead >= connection.windowUpdateThreshold()) {
+        connection.writeWindowUpdateLater(id, unacknowledgedBytesRead);
+        unacknowledgedBytesRead = 0;
+      }
+    }
+  }
+
   void cancelStreamIfNecessary() throws IOException {
     assert (!Thread.holdsLock(Http2Stream.this));
     boolean open;
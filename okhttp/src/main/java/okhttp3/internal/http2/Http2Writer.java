@@ -17,12 +17,17 @@ package okhttp3.internal.http2;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import okio.Buffer;
 import okio.BufferedSink;
 
 import static java.util.logging.Level.FINE;
+import static okhttp3.internal.Util.closeQuietly;
 import static okhttp3.internal.Util.format;
 import static okhttp3.internal.http2.Http2.CONNECTION_PREFACE;
 import static okhttp3.internal.http2.Http2.FLAG_ACK;
@@ -42,21 +47,88 @@ import static okhttp3.internal.http2.Http2.TYPE_WINDOW_UPDATE;
 import static okhttp3.internal.http2.Http2.frameLog;
 import static okhttp3.internal.http2.Http2.illegalArgument;
 
-/** Writes HTTP/2 transport frames. */
+/**
+ * Writes HTTP/2 transport frames.
+ *
+ * <p>By default frames are written to the socket by the calling thread while it holds this
+ * writer's lock. A writer created with an executor instead queues frames in memory, and a single
+ * writer loop on that executor writes everything queued to the socket with one flush. Callers then
+ * never block on socket I/O, except that writers of DATA frames wait while too many bytes are
+ * queued. Control frames are always queued so that background work never waits on a stalled peer.
+ *
+ * <p>The writer loop blocks on a socket's sink, but not on a {@link NonBlockingSink}: when that is
+ * full the loop returns and the sink resumes it once there is room.
+ */
 final class Http2Writer implements Closeable {
   private static final Logger logger = Logger.getLogger(Http2.class.getName());
 
+  /** Writers wait for the writer loop while this many bytes are queued. */
+  static final long MAX_QUEUED_BYTES = 256 * 1024;
+
+  /** The socket's sink, or the queue of frames if this writer has a writer loop. */
   private final BufferedSink sink;
   private final boolean client;
   private final Buffer hpackBuffer;
   private int maxFrameSize;
   private boolean closed;
 
+  /** The socket's sink if frames are queued and written by blocking. Only written by the loop. */
+  private final @Nullable BufferedSink socketSink;
+
+  /** The socket's sink if frames are queued and written without blocking. Guarded by this. */
+  private final @Nullable NonBlockingSink nonBlockingSink;
+
+  private final @Nullable Executor writerLoopExecutor;
+  private final Runnable writerLoop = new Runnable() {
+    @Override public void run() {
+      writeQueuedFrames();
+    }
+  };
+
+  /** Runs the writer loop again once {@link #nonBlockingSink} has room. */
+  private final Runnable resumeWriterLoop = new Runnable() {
+    @Override public void run() {
+      try {
+        writerLoopExecutor.execute(writerLoop);
+      } catch (RejectedExecutionException e) {
+        synchronized (Http2Writer.this) {
+          writerLoopFailed(new IOException("closed"));
+        }
+      }
+    }
+  };
+
+  /** True from when the writer loop is scheduled until the queue is empty, even while it waits. */
+  private boolean writerLoopScheduled;
+  private @Nullable IOException writerLoopFailure;
+
   final Hpack.Writer hpackWriter;
 
   Http2Writer(BufferedSink sink, boolean client) {
+    this(sink, client, null, null, null);
+  }
+
+  /** Creates a writer that queues frames and writes them to {@code sink} on {@code executor}. */
+  Http2Writer(BufferedSink sink, boolean client, Executor executor) {
+    this(new Buffer(), client, sink, null, executor);
+  }
+
+  /**
+   * Creates a writer that queues frames and writes them to {@code sink} on {@code executor}. The
+   * writer loop returns when the sink is full, so it never occupies one of the executor's threads
+   * for long.
+   */
+  Http2Writer(NonBlockingSink sink, boolean client, Executor executor) {
+    this(new Buffer(), client, null, sink, executor);
+  }
+
+  private Http2Writer(BufferedSink sink, boolean client, @Nullable BufferedSink socketSink,
+      @Nullable NonBlockingSink nonBlockingSink, @Nullable Executor writerLoopExecutor) {
     this.sink = sink;
     this.client = client;
+    this.socketSink = socketSink;
+    this.nonBlockingSink = nonBlockingSink;
+    this.writerLoopExecutor = writerLoopExecutor;
     this.hpackBuffer = new Buffer();
     this.hpackWriter = new Hpack.Writer(hpackBuffer);
     this.maxFrameSize = INITIAL_MAX_FRAME_SIZE;
@@ -69,7 +141,7 @@ final class Http2Writer implements Closeable {
       logger.fine(format(">> CONNECTION %s", CONNECTION_PREFACE.hex()));
     }
     sink.write(CONNECTION_PREFACE.toByteArray());
-    sink.flush();
+    emit();
   }
 
   /** Applies {@code peerSettings} and then sends a settings ACK. */
@@ -84,7 +156,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_ACK;
     int streamId = 0;
     frameHeader(streamId, length, type, flags);
-    sink.flush();
+    emit();
   }
 
   /**
@@ -118,7 +190,7 @@ final class Http2Writer implements Closeable {
 
   public synchronized void flush() throws IOException {
     if (closed) throw new IOException("closed");
-    sink.flush();
+    emit();
   }
 
   public synchronized void synStream(boolean outFinished, int streamId,
@@ -149,7 +221,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt(errorCode.httpCode);
-    sink.flush();
+    emit();
   }
 
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
@@ -171,6 +243,10 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     if (outFinished) flags |= FLAG_END_STREAM;
     dataFrame(streamId, flags, source, byteCount);
+    if (writerLoopExecutor != null) {
+      emit();
+      awaitQueueRoom();
+    }
   }
 
   void dataFrame(int streamId, byte flags, Buffer buffer, int byteCount) throws IOException {
@@ -200,7 +276,7 @@ final class Http2Writer implements Closeable {
       sink.writeShort(id);
       sink.writeInt(settings.get(i));
     }
-    sink.flush();
+    emit();
   }
 
   /**
@@ -216,7 +292,7 @@ final class Http2Writer implements Closeable {
     frameHeader(streamId, length, type, flags);
     sink.writeInt(payload1);
     sink.writeInt(payload2);
-    sink.flush();
+    emit();
   }
 
   /**
@@ -241,7 +317,7 @@ final class Http2Writer implements Closeable {
     if (debugData.length > 0) {
       sink.write(debugData);
     }
-    sink.flush();
+    emit();
   }
 
   /**
@@ -259,7 +335,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt((int) windowSizeIncrement);
-    sink.flush();
+    emit();
   }
 
   public void frameHeader(int streamId, int length, byte type, byte flags) throws IOException {
@@ -276,7 +352,138 @@ final class Http2Writer implements Closeable {
 
   @Override public synchronized void close() throws IOException {
     closed = true;
-    sink.close();
+    if (writerLoopExecutor == null) {
+      sink.close();
+      return;
+    }
+
+    if (nonBlockingSink != null) {
+      // Write what fits without waiting, like GOAWAY. Waiting could deadlock, because this may run
+      // on the thread that reports room in the sink.
+      try {
+        if (writerLoopFailure == null) writeQueuedFramesNonBlocking();
+      } catch (IOException ignored) {
+      } finally {
+        writerLoopScheduled = false;
+        ((Buffer) sink).clear();
+        notifyAll();
+        nonBlockingSink.close();
+      }
+      return;
+    }
+
+    // Let the writer loop write the frames that are already queued, like GOAWAY.
+    try {
+      scheduleWriterLoop();
+      while (writerLoopScheduled) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Retain interrupted status.
+      throw new InterruptedIOException();
+    } finally {
+      socketSink.close();
+    }
+  }
+
+  /** Sends the frames written so far. With a writer loop this schedules the loop and returns. */
+  private void emit() throws IOException {
+    if (writerLoopExecutor == null) {
+      sink.flush();
+      return;
+    }
+
+    if (writerLoopFailure != null) throw writerLoopFailure;
+    scheduleWriterLoop();
+  }
+
+  /** Waits for the writer loop while too many bytes are queued. */
+  private void awaitQueueRoom() throws IOException {
+    assert (Thread.holdsLock(this));
+    try {
+      while (((Buffer) sink).size() >= MAX_QUEUED_BYTES && writerLoopFailure == null && !closed) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Retain interrupted status.
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void scheduleWriterLoop() {
+    assert (Thread.holdsLock(this));
+    if (writerLoopScheduled || ((Buffer) sink).size() == 0L) return;
+    writerLoopScheduled = true;
+    writerLoopExecutor.execute(writerLoop);
+  }
+
+  /**
+   * Writes queued frames to the socket until the queue is empty. Frames queued while a batch is
+   * being written are coalesced into the next batch.
+   */
+  void writeQueuedFrames() {
+    if (nonBlockingSink != null) {
+      synchronized (this) {
+        if (closed || !writerLoopScheduled) return;
+        try {
+          if (!writeQueuedFramesNonBlocking()) return; // Resumed when the sink has room.
+          writerLoopScheduled = false;
+          notifyAll();
+        } catch (IOException e) {
+          writerLoopFailed(e);
+        }
+      }
+      return;
+    }
+
+    Buffer batch = new Buffer();
+    while (true) {
+      synchronized (this) {
+        Buffer queue = (Buffer) sink;
+        if (queue.size() == 0L) {
+          writerLoopScheduled = false;
+          notifyAll();
+          return;
+        }
+        batch.write(queue, queue.size());
+        notifyAll(); // Writers waiting for room may proceed.
+      }
+
+      try {
+        socketSink.write(batch, batch.size());
+        socketSink.flush();
+      } catch (IOException e) {
+        synchronized (this) {
+          writerLoopFailed(e);
+        }
+        // Close the socket's sink so that the connection's reader notices the failure.
+        closeQuietly(socketSink);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes queued frames to {@link #nonBlockingSink} until it is full. Returns true if the queue
+   * was emptied. Frames are written while holding this writer's lock; the sink never blocks.
+   */
+  private boolean writeQueuedFramesNonBlocking() throws IOException {
+    assert (Thread.holdsLock(this));
+    Buffer queue = (Buffer) sink;
+    long queuedBefore = queue.size();
+    boolean drained = nonBlockingSink.write(queue, resumeWriterLoop);
+    if (queue.size() < queuedBefore) notifyAll(); // Writers waiting for room may proceed.
+    return drained;
+  }
+
+  /** Fails the writer loop. A non-blocking sink is closed so the connection notices the failure. */
+  private void writerLoopFailed(IOException e) {
+    assert (Thread.holdsLock(this));
+    writerLoopFailure = e;
+    writerLoopScheduled = false;
+    ((Buffer) sink).clear();
+    notifyAll();
+    if (nonBlockingSink != null) nonBlockingSink.close();
   }
 
   private static void writeMedium(BufferedSink sink, int i) throws IOException {
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import okio.Buffer;
+
+/**
+ * A sink whose writes never wait for the peer. A writer loop that writes to one needs no thread of
+ * its own: it stops when the sink is full and resumes when the sink calls back.
+ */
+public interface NonBlockingSink extends Closeable {
+  /**
+   * Removes bytes from {@code source} and writes them until the sink is full. Returns true if all
+   * of {@code source} was written. Otherwise this returns false and later runs {@code onWritable}
+   * once, when the sink has room or has failed. {@code onWritable} must not block.
+   */
+  boolean write(Buffer source, Runnable onWritable) throws IOException;
+
+  @Override void close();
+}
@@ -136,6 +136,10 @@ class AndroidPlatform extends Platform {
     return alpnResult != null ? new String(alpnResult, Util.UTF_8) : null;
   }
 
+  @Override public boolean tlsExtensionsInParameters() {
+    return false;
+  }
+
   @Override public void log(int level, String message, Throwable t) {
     int logLevel = level == WARN ? Log.WARN : Log.DEBUG;
     if (t != null) message = message + '\n' + Log.getStackTraceString(t);
@@ -86,6 +86,10 @@ public class ConscryptPlatform extends Platform {
     }
   }
 
+  @Override public boolean tlsExtensionsInParameters() {
+    return false;
+  }
+
   @Override public SSLContext getSSLContext() {
     try {
       return SSLContext.getInstance("TLS", getProvider());
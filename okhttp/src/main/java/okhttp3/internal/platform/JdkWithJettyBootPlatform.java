@@ -82,6 +82,10 @@ class JdkWithJettyBootPlatform extends Platform {
     }
   }
 
+  @Override public boolean tlsExtensionsInParameters() {
+    return false; // ALPN is registered per socket.
+  }
+
   public static Platform buildIfSupported() {
     // Find Jetty's ALPN extension for OpenJDK.
     try {
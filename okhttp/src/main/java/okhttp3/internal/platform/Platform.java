@@ -18,12 +18,15 @@ package okhttp3.internal.platform;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -73,6 +76,10 @@ import okio.Buffer;
  * <h3>Android Cleartext Permit Detection</h3>
  *
  * <p>Supported on Android 6.0+ via {@code NetworkSecurityPolicy}.
+ *
+ * <h3>Virtual Threads</h3>
+ *
+ * <p>Supported on OpenJDK 21+ via {@code Thread.ofVirtual()}.
  */
 public class Platform {
   private static final Platform PLATFORM = findPlatform();
@@ -124,6 +131,16 @@ public class Platform {
     return null;
   }
 
+  /**
+   * Returns true if {@link #configureTlsExtensions} only changes a socket's {@linkplain
+   * SSLSocket#getSSLParameters parameters}, so that copying them to an {@code SSLEngine} configures
+   * the engine too. Platforms that track extensions per socket can't handshake with engines without
+   * losing protocol negotiation.
+   */
+  public boolean tlsExtensionsInParameters() {
+    return true;
+  }
+
   public void connectSocket(Socket socket, InetSocketAddress address,
       int connectTimeout) throws IOException {
     socket.connect(address, connectTimeout);
@@ -272,6 +289,23 @@ public class Platform {
     }
   }
 
+  /**
+   * Returns a factory of virtual threads named {@code name}, or null if this runtime doesn't
+   * support virtual threads.
+   */
+  public @Nullable ThreadFactory virtualThreadFactory(String name) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method nameMethod = builderClass.getMethod("name", String.class);
+      Method factoryMethod = builderClass.getMethod("factory");
+      return (ThreadFactory) factoryMethod.invoke(nameMethod.invoke(builder, name));
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+        | InvocationTargetException e) {
+      return null; // No virtual threads, or they're a preview feature that isn't enabled.
+    }
+  }
+
   public TrustRootIndex buildTrustRootIndex(X509TrustManager trustManager) {
     return new BasicTrustRootIndex(trustManager.getAcceptedIssuers());
   }
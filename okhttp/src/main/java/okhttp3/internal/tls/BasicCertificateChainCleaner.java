@@ -22,7 +22,9 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import javax.net.ssl.SSLPeerUnverifiedException;
 
 /**
@@ -31,6 +33,9 @@ import javax.net.ssl.SSLPeerUnverifiedException;
  * prefer other mechanisms where they exist, such as with
  * {@code okhttp3.internal.platform.AndroidPlatform.AndroidCertificateChainCleaner}.
  *
+ * <p>Servers usually present the same chain on every connection, so this remembers the signatures
+ * it has verified. Cleaning a chain that has been cleaned before doesn't verify any signatures.
+ *
  * <p>This class includes code from <a href="https://conscrypt.org/">Conscrypt's</a> {@code
  * TrustManagerImpl} and {@code TrustedCertificateIndex}.
  */
@@ -38,8 +43,17 @@ public final class BasicCertificateChainCleaner extends CertificateChainCleaner
   /** The maximum number of signers in a chain. We use 9 for consistency with OpenSSL. */
   private static final int MAX_SIGNERS = 9;
 
+  /** The maximum number of verified signatures to remember. */
+  static final int MAX_VERIFIED_SIGNATURES = 256;
+
   private final TrustRootIndex trustRootIndex;
 
+  /** Certificates and the trusted CA certificates that signed them. Guarded by this. */
+  private final Map<X509Certificate, X509Certificate> trustedSigners = newLruMap();
+
+  /** Certificates and the certificates of their chains that signed them. Guarded by this. */
+  private final Map<X509Certificate, X509Certificate> verifiedSigners = newLruMap();
+
   public BasicCertificateChainCleaner(TrustRootIndex trustRootIndex) {
     this.trustRootIndex = trustRootIndex;
   }
@@ -65,7 +79,7 @@ public final class BasicCertificateChainCleaner extends CertificateChainCleaner
       // If this cert has been signed by a trusted cert, use that. Add the trusted certificate to
       // the end of the chain unless it's already present. (That would happen if the first
       // certificate in the chain is itself a self-signed and trusted CA certificate.)
-      X509Certificate trustedCert = trustRootIndex.findByIssuerAndSignature(toVerify);
+      X509Certificate trustedCert = findTrustedSigner(toVerify);
       if (trustedCert != null) {
         if (result.size() > 1 || !toVerify.equals(trustedCert)) {
           result.add(trustedCert);
@@ -101,15 +115,48 @@ public final class BasicCertificateChainCleaner extends CertificateChainCleaner
     throw new SSLPeerUnverifiedException("Certificate chain too long: " + result);
   }
 
+  /** Returns the trusted CA certificate that signed {@code toVerify}, or null if none did. */
+  private X509Certificate findTrustedSigner(X509Certificate toVerify) {
+    synchronized (this) {
+      X509Certificate trustedCert = trustedSigners.get(toVerify);
+      if (trustedCert != null) return trustedCert;
+    }
+
+    X509Certificate trustedCert = trustRootIndex.findByIssuerAndSignature(toVerify);
+    if (trustedCert != null) {
+      synchronized (this) {
+        trustedSigners.put(toVerify, trustedCert);
+      }
+    }
+    return trustedCert;
+  }
+
   /** Returns true if {@code toVerify} was signed by {@code signingCert}'s public key. */
   private boolean verifySignature(X509Certificate toVerify, X509Certificate signingCert) {
     if (!toVerify.getIssuerDN().equals(signingCert.getSubjectDN())) return false;
+    synchronized (this) {
+      if (signingCert.equals(verifiedSigners.get(toVerify))) return true;
+    }
+
     try {
       toVerify.verify(signingCert.getPublicKey());
-      return true;
     } catch (GeneralSecurityException verifyFailed) {
       return false;
     }
+
+    synchronized (this) {
+      verifiedSigners.put(toVerify, signingCert);
+    }
+    return true;
+  }
+
+  private static Map<X509Certificate, X509Certificate> newLruMap() {
+    return new LinkedHashMap<X509Certificate, X509Certificate>(0, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(
+          Map.Entry<X509Certificate, X509Certificate> eldest) {
+        return size() > MAX_VERIFIED_SIGNATURES;
+      }
+    };
   }
 
   @Override public int hashCode() {
@@ -21,42 +21,124 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
 import javax.security.auth.x500.X500Principal;
+import okio.ByteString;
 
-/** A simple index that of trusted root certificates that have been loaded into memory. */
+/**
+ * A simple index that of trusted root certificates that have been loaded into memory.
+ *
+ * <p>CA certificates are indexed by their subject and by their subject key identifier. When a
+ * certificate names its signer's key with an authority key identifier, only the CA certificates
+ * with that key are tried. This avoids verifying signatures against every CA that shares a subject,
+ * as happens when a CA renews its key or is cross-signed.
+ */
 public final class BasicTrustRootIndex implements TrustRootIndex {
+  private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+  private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+
   private final Map<X500Principal, Set<X509Certificate>> subjectToCaCerts;
+  private final Map<ByteString, Set<X509Certificate>> keyIdentifierToCaCerts;
 
   public BasicTrustRootIndex(X509Certificate... caCerts) {
     subjectToCaCerts = new LinkedHashMap<>();
+    keyIdentifierToCaCerts = new LinkedHashMap<>();
     for (X509Certificate caCert : caCerts) {
-      X500Principal subject = caCert.getSubjectX500Principal();
-      Set<X509Certificate> subjectCaCerts = subjectToCaCerts.get(subject);
-      if (subjectCaCerts == null) {
-        subjectCaCerts = new LinkedHashSet<>(1);
-        subjectToCaCerts.put(subject, subjectCaCerts);
-      }
-      subjectCaCerts.add(caCert);
+      add(subjectToCaCerts, caCert.getSubjectX500Principal(), caCert);
+      ByteString keyIdentifier = subjectKeyIdentifier(caCert);
+      if (keyIdentifier != null) add(keyIdentifierToCaCerts, keyIdentifier, caCert);
+    }
+  }
+
+  private static <K> void add(Map<K, Set<X509Certificate>> map, K key, X509Certificate caCert) {
+    Set<X509Certificate> caCerts = map.get(key);
+    if (caCerts == null) {
+      caCerts = new LinkedHashSet<>(1);
+      map.put(key, caCerts);
     }
+    caCerts.add(caCert);
   }
 
   @Override public X509Certificate findByIssuerAndSignature(X509Certificate cert) {
     X500Principal issuer = cert.getIssuerX500Principal();
+
+    // Prefer the CA certificates whose key matches the certificate's authority key identifier.
+    ByteString authorityKeyIdentifier = authorityKeyIdentifier(cert);
+    Set<X509Certificate> keyCaCerts = authorityKeyIdentifier != null
+        ? keyIdentifierToCaCerts.get(authorityKeyIdentifier)
+        : null;
+    if (keyCaCerts != null) {
+      for (X509Certificate caCert : keyCaCerts) {
+        if (caCert.getSubjectX500Principal().equals(issuer) && verify(cert, caCert)) return caCert;
+      }
+    }
+
+    // Fall back to every CA certificate with the issuer's subject.
     Set<X509Certificate> subjectCaCerts = subjectToCaCerts.get(issuer);
     if (subjectCaCerts == null) return null;
 
     for (X509Certificate caCert : subjectCaCerts) {
-      PublicKey publicKey = caCert.getPublicKey();
-      try {
-        cert.verify(publicKey);
-        return caCert;
-      } catch (Exception ignored) {
-      }
+      if (keyCaCerts != null && keyCaCerts.contains(caCert)) continue; // Already tried.
+      if (verify(cert, caCert)) return caCert;
     }
 
     return null;
   }
 
+  private static boolean verify(X509Certificate cert, X509Certificate caCert) {
+    PublicKey publicKey = caCert.getPublicKey();
+    try {
+      cert.verify(publicKey);
+      return true;
+    } catch (Exception ignored) {
+      return false;
+    }
+  }
+
+  /** Returns the subject key identifier of {@code certificate}, or null if it has none. */
+  static @Nullable ByteString subjectKeyIdentifier(X509Certificate certificate) {
+    // SubjectKeyIdentifier ::= KeyIdentifier, itself an OCTET STRING.
+    ByteString extension = extensionValue(certificate, SUBJECT_KEY_IDENTIFIER_OID);
+    return extension != null ? derContents(extension, 0x04) : null;
+  }
+
+  /** Returns the key identifier of {@code certificate}'s signer, or null if it has none. */
+  static @Nullable ByteString authorityKeyIdentifier(X509Certificate certificate) {
+    // AuthorityKeyIdentifier ::= SEQUENCE { keyIdentifier [0] KeyIdentifier OPTIONAL, ... }
+    ByteString extension = extensionValue(certificate, AUTHORITY_KEY_IDENTIFIER_OID);
+    ByteString sequence = extension != null ? derContents(extension, 0x30) : null;
+    return sequence != null ? derContents(sequence, 0x80) : null;
+  }
+
+  /** Returns the DER-encoded value of the extension {@code oid}, or null if it is absent. */
+  private static @Nullable ByteString extensionValue(X509Certificate certificate, String oid) {
+    // The extension value is wrapped in an OCTET STRING.
+    byte[] extension = certificate.getExtensionValue(oid);
+    return extension != null ? derContents(ByteString.of(extension), 0x04) : null;
+  }
+
+  /**
+   * Returns the contents of the DER value at the start of {@code der}, or null if it doesn't have
+   * {@code tag} or is malformed.
+   */
+  static @Nullable ByteString derContents(ByteString der, int tag) {
+    if (der.size() < 2 || (der.getByte(0) & 0xff) != tag) return null;
+    int length = der.getByte(1) & 0xff;
+    int offset = 2;
+    if (length > 0x7f) {
+      // Long form: the low bits are the number of length bytes that follow.
+      int lengthByteCount = length & 0x7f;
+      if (lengthByteCount < 1 || lengthByteCount > 3) return null;
+      if (der.size() < offset + lengthByteCount) return null;
+      length = 0;
+      for (int i = 0; i < lengthByteCount; i++) {
+        length = (length << 8) | (der.getByte(offset++) & 0xff);
+      }
+    }
+    if (der.size() - offset < length) return null;
+    return der.substring(offset, offset + length);
+  }
+
   @Override public boolean equals(Object other) {
     if (other == this) return true;
     return other instanceof okhttp3.internal.tls.BasicTrustRootIndex
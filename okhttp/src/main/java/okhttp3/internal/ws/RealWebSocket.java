@@ -26,6 +26,7 @@ import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import okhttp3.Call;
@@ -178,6 +179,8 @@ public final class RealWebSocket implements WebSocket, WebSocketReader.FrameCall
   }
 
   public void connect(OkHttpClient client) {
+    final ThreadFactory threadFactory = Internal.instance.threadFactory(
+        client, "OkHttp WebSocket " + originalRequest.url().redact(), false);
     client = client.newBuilder()
         .eventListener(EventListener.NONE)
         .protocols(ONLY_HTTP1)
@@ -196,6 +199,8 @@ public final class RealWebSocket implements WebSocket, WebSocketReader.FrameCall
         } catch (ProtocolException e) {
           failWebSocket(e, response);
           closeQuietly(response);
+          // Web socket calls leave their connection to the web socket. Release it ourselves.
+          Internal.instance.streamAllocation(call).release();
           return;
         }
 
@@ -208,7 +213,7 @@ public final class RealWebSocket implements WebSocket, WebSocketReader.FrameCall
         try {
           listener.onOpen(RealWebSocket.this, response);
           String name = "OkHttp WebSocket " + request.url().redact();
-          initReaderAndWriter(name, streams);
+          initReaderAndWriter(name, streams, threadFactory);
           streamAllocation.connection().socket().setSoTimeout(0);
           loopReader();
         } catch (Exception e) {
@@ -250,10 +255,19 @@ public final class RealWebSocket implements WebSocket, WebSocketReader.FrameCall
   }
 
   public void initReaderAndWriter(String name, Streams streams) throws IOException {
+    initReaderAndWriter(name, streams, Util.threadFactory(name, false));
+  }
+
+  /**
+   * @param threadFactory creates the thread that writes messages and pings. The reader runs on the
+   *     caller's thread.
+   */
+  public void initReaderAndWriter(String name, Streams streams, ThreadFactory threadFactory)
+      throws IOException {
     synchronized (this) {
       this.streams = streams;
       this.writer = new WebSocketWriter(streams.client, streams.sink, random);
-      this.executor = new ScheduledThreadPoolExecutor(1, Util.threadFactory(name, false));
+      this.executor = new ScheduledThreadPoolExecutor(1, threadFactory);
       if (pingIntervalMillis != 0) {
         executor.scheduleAtFixedRate(
             new PingRunnable(), pingIntervalMillis, pingIntervalMillis, MILLISECONDS);